@@ -3,22 +3,30 @@ import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.BufferedOutputStream;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
-import java.util.Set;
-import java.net.Socket;
+import java.util.TreeSet;
+import java.util.concurrent.locks.LockSupport;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 
 import util.bencode.*;        // interface for Bencoded objects
 import util.lib.BitLibrary;   // various library functions for BitTorrent
+import util.lib.BitLogger;    // asynchronous event log
+import util.lib.BitLogger.Level;
+import util.lib.BitTimerWheel;  // keep-alives, eviction, periodic jobs
 
 /* BitClient:  manages a BitTorrent connection session */
 public class BitClient {
@@ -28,27 +36,93 @@ public class BitClient {
     private static final int MAX_UNCHOKED = 4;         // only unchoke 4 at once
     private static final int SHA_LENGTH = 20;          // bytes in a SHA1 hash
     private static final int INT_LEN = 4;              // bytes in an Integer
-    private static boolean _DEBUG = false;             // debugging flag
+    private static final int TICK_MS = 100;            // timer resolution
+    private static final int WHEEL_SLOTS = 512;        // ~51s per wheel turn
+    private static final int KEEPALIVE_INTERVAL = 90000; // send if quiet 90s
+    private static final int IDLE_TIMEOUT = 180000;    // drop if silent 3min
+    private static final int CHOKE_INTERVAL = 10000;   // rotate an unchoke
+    private static final int RATE_INTERVAL = 1000;     // sample peer rates
+    private static final int SLOW_INTERVAL = 1000;     // step for -z slow
+    private static final int DEFAULT_RTT = 1000;       // ms, before measured
+    private static final int MIN_RATE = 16384;         // B/s assumed at worst
+    private static final int MIN_REQUEST_TIMEOUT = 3000;
+    private static final int MAX_REQUEST_TIMEOUT = 60000;
+    private static final int SNUB_TIMEOUTS = 2;        // timeouts in a row
+    private static final int MAX_BAD_BLOCKS = 4;       // v2: then drop peer
+    private static final int INBOX_BATCH = 64;         // messages per pass
+    private static final int EVICT_INTERVAL = 30000;   // replace worst peer
+    private static final int DISK_STATS_INTERVAL = 10000; // log disk stats
+    private static final int ALLOWED_FAST_SET = 10;    // pieces, BEP 6 "k"
+    private static final int STREAM_WINDOW = 8;        // pieces, -o default
+    private static final double FAST_SHARE = 0.5;      // of the top rate
+    private static BitLogger log                       // async, level-filtered
+            = new BitLogger(System.out, System.err);
     private static String encoded;                     // Bencoded .torrent file
     private static String infoBencoded;                // Bencoded info dict
+    private static byte[] infoHash = null;             // hash of info dict
+    private static byte[] localPeerID = null;          // our id to trackers
     private static int fileLength = -1;                // len of whole file
     private static int pieceLength = -1;               // len of each piece
     private static int numPieces = -1;                 // num. of pieces in file
     private static Random random = null;               // request random pieces
     private static boolean[] localBitfield = null;     // pieces client has
+    private static BitPicker picker = null;            // what to request next
     private static String savePath = null;             // save location
-    private static RandomAccessFile file = null;       // file to transfer
+    private static BitStorage storage = null;          // file(s) to transfer
+    private static BitDiskIO disk = null;              // async disk stage
+    private static BitUploader uploader = null;        // serves REQUESTs
+    private static int uploadLimit = 0;                // -U, bytes/s
+    private static BitStorage.Allocation allocation    // -a, leecher's files
+            = BitStorage.Allocation.SPARSE;
+    private static long diskCompletedLogged = 0;
+    private static ArrayList<String> filePaths = null; // multi-file: relative
+    private static long[] fileLengths = null;          // multi-file
+    private static String filePriorities = null;       // -f, i=prio,...
+    private static boolean[] notNeeded = null;         // had, or skipped
     private static String[] pieces = null;             // SHA1 of pieces
+    private static BitHashTree hashTree = null;        // v2 Merkle trees
     private static String trackerURL = null;           // URL of tracker
+    private static boolean useTracker = true;          // -t off disables
+    private static BitTracker tracker = null;          // HTTP/UDP announces
+    private static int trackerPort = -1;               // -r, embedded tracker
+    private static BitTrackerServer trackerServer = null;
+    private static int dhtPort = -1;                   // -d, DHT node
+    private static BitDHT dht = null;
+    private static ArrayList<InetSocketAddress> dhtBootstrap  // -n addresses
+            = new ArrayList<InetSocketAddress>();
+    private static BitConnectionManager manager        // candidate pool
+            = new BitConnectionManager();
+    private static BitPex pex = null;                  // ut_pex extension
+    private static volatile long totalDownloaded = 0;  // payload bytes
+    private static volatile long totalUploaded = 0;
+    private static volatile long bytesLeft = 0;        // still to download
     private static boolean isSeeder = false;           // client has entire file
+    private static boolean superSeed = false;          // -x super
+    private static BitSuperSeeder superSeeder = null;  // while super-seeding
+    private static boolean isComplete = false;         // has all wanted pieces
     private static boolean runSlowly = false;          // run slowly for testing
+    private static int streamWindow = 0;               // -S, pieces; 0 = off
+    private static String streamOut = null;            // -o, in-order copy
+    private static ArrayList<BitStream> streams        // open BitStreams
+            = new ArrayList<BitStream>();
     private static int welcomePort = 6789;             // port for listening
     private static BitWelcomer welcomer = null;        // welcomes new peers
-    private static LinkedList<Socket> welcomeQ = null; // pending peer conn's
+    private static BitHandshaker handshaker = null;    // async handshakes
+    private static boolean useUtp = false;             // -u on enables uTP
+    private static BitUtpSocket utp = null;            // uTP on welcomePort
+    private static LinkedList<BitPeer> readyQ = null;  // handshaken peers
+    private static BitInbox inbox = null;              // all peers' messages
     private static ArrayList<BitPeer> peerList = null; // connected peers
+    private static ArrayList<InetSocketAddress> knownPeers = null; // -p addrs
     private static int numUnchoked = -1;
+    private static BitTimerWheel timers = null;        // owned by main loop
+    private static boolean slowStep = false;           // -z: may run a step
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("create")) {
+            BitCreate.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         ByteBuffer lenBuf = ByteBuffer.allocate(INT_LEN);
         BitMessage unchoke = new BitMessage(BitMessage.MessageType.UNCHOKE);
         // get client settings from command line, including peerList
@@ -61,213 +135,357 @@ public class BitClient {
             return;
         }
         // guaranteed initialized: fileLength, pieceLength, file, pieces,
-        // welcomer, infoBencoded
-        logOutput(BitLibrary.getTimeString() + ": PARSED .TORRENT INFO");
-        logOutput("\t   LOCATION OF FILE " + savePath);
-        logOutput("\t   FILE OF LENGTH " + fileLength);
-        logOutput("\t   PCS. OF LENGTH " + pieceLength);
-        logOutput("\t   INIT BITFIELD  " + BitLibrary.getBitString(localBitfield));
-        logOutput(BitLibrary.getTimeString() 
-                  + ": LISTENING ON PORT " + welcomePort);
-
-        // open connection and send handshakes to all peers
-        Iterator<BitPeer> it = peerList.iterator();
-        while (it.hasNext()) {
-            BitPeer peer = it.next();
-            if (peer.connect() == -1) {
-                it.remove();
-                continue;
+        // welcomer, handshaker, infoBencoded, infoHash
+        log.log(Level.INFO, "PARSED .TORRENT INFO");
+        log.log(Level.INFO, "\t   LOCATION OF FILE {}", savePath);
+        log.log(Level.INFO, "\t   FILE OF LENGTH {}", fileLength);
+        log.log(Level.INFO, "\t   PCS. OF LENGTH {}", pieceLength);
+        log.log(Level.INFO, "\t   INIT BITFIELD  {}", localBitfield.clone());
+        if (filePaths != null) {
+            for (int i = 0; i < storage.getNumFiles(); ++i) {
+                log.log(Level.INFO, "\t   FILE {} {} ({} BYTES)", i,
+                        filePaths.get(i) == null ? "(padding)"
+                                                 : filePaths.get(i),
+                        storage.getFileLength(i));
             }
-            peer.sendHandshake(infoBencoded);
-            BitMessage bfmsg = new BitMessage(BitMessage.MessageType.BITFIELD,
-                                       BitLibrary.booleanToBits(localBitfield));
-            sendMessage(peer, bfmsg);
-            logOutput(BitLibrary.getTimeString() + ": HANDSHAKE INITIALIZED");
-            peer.receiveHandshake(infoBencoded);
-            logOutput(BitLibrary.getTimeString() + ": HANDSHAKE COMPLETE");
+        }
+        log.log(Level.INFO, "LISTENING ON PORT {}", welcomePort);
+        if (streamOut != null) {
+            startStreamOut();
         }
 
-        // randomly unchoke four peers (all peers if <= 4 are connected)
-        if (peerList.size() <= MAX_UNCHOKED) {
-            for (BitPeer peer : peerList) {
-                sendMessage(peer, unchoke);
-                peer.remoteIsChoked = false;
-            }
-            numUnchoked = peerList.size();
-        } else {
-            Set<Integer> toUnchoke 
-                    = BitLibrary.getRandomSet(MAX_UNCHOKED, 0, peerList.size());
-            for (Integer i : toUnchoke) {
-                sendMessage(peerList.get(i), unchoke);
-                peerList.get(i).remoteIsChoked = false;
+        // known peers go into the candidate pool with everything found
+        // later; connectCandidates dials them and each one joins peerList
+        // through readyQ once validated
+        for (InetSocketAddress addr : knownPeers) {
+            addCandidate(addr);
+        }
+        if (tracker != null) {
+            tracker.start();
+        }
+        if (dht != null) {
+            dht.start();
+            for (InetSocketAddress addr : dhtBootstrap) {
+                dht.bootstrap(addr);
             }
-            numUnchoked = MAX_UNCHOKED;
+            dht.search(infoHash, welcomePort, addr -> addCandidate(addr));
+            log.log(Level.INFO, "DHT LISTENING ON PORT {}", dhtPort);
+        }
+        numUnchoked = 0;
+
+        // periodic jobs, all run on this thread by timers.advance()
+        timers.scheduleRepeating(() -> chokeRound(), CHOKE_INTERVAL);
+        timers.scheduleRepeating(() -> sampleRates(), RATE_INTERVAL);
+        timers.scheduleRepeating(() -> pex.round(), BitPex.PEX_INTERVAL);
+        timers.scheduleRepeating(() -> evictRound(), EVICT_INTERVAL);
+        timers.scheduleRepeating(() -> logDiskStats(), DISK_STATS_INTERVAL);
+        if (runSlowly) {
+            timers.scheduleRepeating(() -> slowStep = true, SLOW_INTERVAL);
         }
 
+        // messages are taken from the inbox a batch at a time
+        ArrayList<BitPeer> batchPeers = new ArrayList<BitPeer>(INBOX_BATCH);
+        ArrayList<BitMessage> batchMsgs
+                = new ArrayList<BitMessage>(INBOX_BATCH);
+        boolean waiting = false;
         while (true) {
-            // accept connection to new peer (if any)
-            synchronized (welcomeQ) {
-                // avoid busy-wait with no peers
-                while (welcomeQ.isEmpty() && peerList.isEmpty()) {
-                    try {
-                        logOutput(BitLibrary.getTimeString() 
-                                  + ": WAITING FOR PEERS");
-                        welcomeQ.wait();
-                    } catch (InterruptedException ex) {
-                    }
+            timers.advance(System.currentTimeMillis());
+            // accept handshaken peers (if any)
+            synchronized (readyQ) {
+                // clear the queue by adding the new peers
+                while (!readyQ.isEmpty()) {
+                    addPeer(readyQ.poll(), unchoke);
                 }
-                // clear the empty queue by accepting new peers
-                while (!welcomeQ.isEmpty()) {
-                    Socket peerSocket = welcomeQ.poll();
-                    BitPeer peer = new BitPeer(peerSocket);
-                    
-                    if (peer.receiveHandshake(infoBencoded) == 0) {
-                        // add to peerList
-                        logOutput(BitLibrary.getTimeString() + ": ADDED PEER AT "
-                                  + peer.getIP());
-                        peerList.add(peer);
-                        // complete the handshake
-                        peer.sendHandshake(infoBencoded);
-                        logOutput(BitLibrary.getTimeString() 
-                                  + ": COMPLETED HANDSHAKE WITH "+peer.getIP());
-                        // send bitfield
-                        BitMessage bitfieldMsg 
-                               = new BitMessage(BitMessage.MessageType.BITFIELD,
-                                       BitLibrary.booleanToBits(localBitfield));
-                        sendMessage(peer, bitfieldMsg);
-                        // unchoke if spots are available
-                        if (numUnchoked < MAX_UNCHOKED) {
-                            peer.remoteIsChoked = false;
-                            sendMessage(peer, unchoke);
-                            numUnchoked++;
-                        }
-                    }
-                    
+            }
+            if (peerList.isEmpty() != waiting) {
+                waiting = !waiting;
+                if (waiting) {
+                    log.log(Level.INFO, "WAITING FOR PEERS");
                 }
             }
-
-            // process one outstanding message for each peer
-            for (BitPeer peer : peerList) {
-                BitMessage msg = peer.getNextMessage();
-                if (msg == null) {
+            connectCandidates();
+            disk.runCompletions();
+            // -z: only run one step of the protocol per SLOW_INTERVAL
+            if (runSlowly) {
+                if (!slowStep) {
+                    LockSupport.parkNanos(1000000L * timers.msUntilNextTick(
+                                              System.currentTimeMillis()));
                     continue;
                 }
+                slowStep = false;
+            }
+
+            // process a batch of messages, in arrival order, from all peers
+            ArrayList<BitPeer> closed = null;    // hung up, nothing left
+            ArrayList<BitPeer> dropped = null;   // misbehaved, see log
+            int numDrained = inbox.drainTo(batchPeers, batchMsgs, INBOX_BATCH);
+            for (int b = 0; b < numDrained; ++b) {
+                BitPeer peer = batchPeers.get(b);
+                BitMessage msg = batchMsgs.get(b);
+                if (!peerList.contains(peer)
+                    || (dropped != null && dropped.contains(peer))) {
+                    continue;    // removed since it was queued, or to be
+                }
 
                 // parse the message type and process accordingly
-                logOutput(BitLibrary.getTimeString() + ": RECEIVED MESSAGE TYPE "
-                                     + msg.getType() + " FROM " + peer.getIP());
+                log.sampled("RECEIVED MESSAGE TYPE {} FROM {}",
+                            msg.getType(), peer.getIP());
                 peer.updateLastUsed();
                 if (msg.getType() == BitMessage.MessageType.KEEP_ALIVE) {
                     // already updated lastUsed
                 } else if (msg.getType() == BitMessage.MessageType.CHOKE) {
-                    logDebug("CHOKE Message");
+                    log.log(Level.DEBUG, "CHOKE Message");
                     peer.localIsChoked = true;
+                    // a choke discards all pending requests, pick them again;
+                    // with the Fast Extension each one is rejected or served
+                    if (!peer.supportsFast()) {
+                        abandonRequests(peer);
+                    }
                 } else if (msg.getType() == BitMessage.MessageType.UNCHOKE) {
-                    logDebug("UNCHOKE Message");
+                    log.log(Level.DEBUG, "UNCHOKE Message");
                     peer.localIsChoked = false;
                 } else if (msg.getType() == BitMessage.MessageType.INTERESTED) {
-                    logDebug("INTERESTED Message");
+                    log.log(Level.DEBUG, "INTERESTED Message");
                     peer.remoteIsInterested = true;
                 } else if (msg.getType() == BitMessage.MessageType.UNINTERESTED) {
-                    logDebug("UNINTERESTED Message");
+                    log.log(Level.DEBUG, "UNINTERESTED Message");
                     peer.remoteIsInterested = false;
                 } else if (msg.getType() == BitMessage.MessageType.HAVE) {
-                    peer.addToBitfield(msg.getIndex());
-                    logOutput(BitLibrary.getTimeString() 
-                              + ": PEER " + peer.getIP()
-                              + " HAS " 
-                              + BitLibrary.getBitString(peer.getBitfield()));
+                    if (msg.getIndex() < 0 || msg.getIndex() >= numPieces) {
+                        log.log(Level.WARN, "warning: {} has bad piece {}",
+                                peer.getIP(), msg.getIndex());
+                        if (dropped == null) {
+                            dropped = new ArrayList<BitPeer>();
+                        }
+                        dropped.add(peer);
+                        continue;
+                    }
+                    if (peer.getBitfield() == null) {    // no BITFIELD sent
+                        peer.setBitfield(new boolean[numPieces]);
+                    }
+                    if (!peer.hasPiece(msg.getIndex())) {
+                        peer.addToBitfield(msg.getIndex());
+                        picker.addHave(msg.getIndex());
+                    }
+                    log.log(Level.INFO, "PEER {} HAS PIECE {}",
+                            peer.getIP(), msg.getIndex());
+                    if (superSeeder != null) {
+                        // pieces that spread earn their holders a new one
+                        for (BitPeer p : superSeeder.pieceSeen(peer,
+                                                        msg.getIndex())) {
+                            superReveal(p);
+                        }
+                        checkSuperSeeding();
+                    }
+                    if (log.isEnabled(Level.DEBUG)) {
+                        log.log(Level.DEBUG, "peer bitfield {}",
+                                peer.getBitfield().clone());
+                    }
                     // say interested if we don't have this piece
-                    if (localBitfield[msg.getIndex()] == false) {
+                    if (!notNeeded[msg.getIndex()]) {
                         sendMessage(peer,
                             new BitMessage(BitMessage.MessageType.INTERESTED));
                     } else if (BitLibrary.isAllTrue(peer.getBitfield())) {
                         // make room for others if peer is now seeder
                         if (peer.remoteIsChoked == false) {
-                            peer.remoteIsChoked = true;
-                            sendMessage(peer, new BitMessage(BitMessage.MessageType.CHOKE));
-                            --numUnchoked;
+                            chokePeer(peer);
                         }
                     }
                 } else if (msg.getType() == BitMessage.MessageType.BITFIELD) {
-                    boolean[] bf = BitLibrary.bitsToBoolean(msg.getBitfield(), numPieces);
-                    peer.setBitfield(bf);
-                    logOutput(BitLibrary.getTimeString() 
-                              + ": PEER " + peer.getIP()
-                              + " HAS " 
-                              + BitLibrary.getBitString(peer.getBitfield()));
+                    setPeerBitfield(peer, BitLibrary.bitsToBoolean(
+                                              msg.getBitfield(), numPieces));
+                } else if (msg.getType() == BitMessage.MessageType.HAVE_ALL) {
+                    boolean[] bf = new boolean[numPieces];
+                    Arrays.fill(bf, true);
+                    setPeerBitfield(peer, bf);
+                } else if (msg.getType() == BitMessage.MessageType.HAVE_NONE) {
+                    setPeerBitfield(peer, new boolean[numPieces]);
+                } else if (msg.getType() == BitMessage.MessageType.ALLOWED_FAST) {
+                    if (msg.getIndex() >= 0 && msg.getIndex() < numPieces) {
+                        peer.allowedFastIn.add(msg.getIndex());
+                    }
+                } else if (msg.getType() == BitMessage.MessageType.REJECT_REQUEST) {
+                    // hand the block back at once instead of waiting it out
+                    BitRequest req = peer.removeRequest(msg.getIndex(),
+                                                        msg.getBegin());
+                    if (req != null) {
+                        picker.returnBlock(req.getBegin());
+                    }
+                    log.log(Level.DEBUG, "REJECT Message: block {} of piece {}",
+                            msg.getBegin(), msg.getIndex());
+                } else if (msg.getType() == BitMessage.MessageType.SUGGEST_PIECE) {
+                    // advisory only; the picker stays rarest-first
                 } else if (msg.getType() == BitMessage.MessageType.REQUEST) {
-                    logDebug("REQUEST Message: Peer wants piece " + msg.getIndex());
-                    if (peer.remoteIsChoked) {
-                        logDebug("But peer is choked, not sending");
-                    } else {
-                        BitMessage reply = null;
-                        // make sure client has this piece
-                        if (localBitfield[msg.getIndex()] == false) {
-                            // peer has incorrect bitfield info, send another
-                            logDebug("warning: peer incorrectly thinks we have " + msg.getIndex());
-                            reply = new BitMessage(BitMessage.MessageType.BITFIELD,
-                                           BitLibrary.booleanToBits(localBitfield));
-                        // read the piece from the file
+                    log.log(Level.DEBUG, "REQUEST Message: Peer wants piece {}",
+                            msg.getIndex());
+                    boolean allowed = (!peer.remoteIsChoked
+                            || peer.allowedFastOut.contains(msg.getIndex()))
+                            && (superSeeder == null
+                                || superSeeder.allows(peer, msg.getIndex()));
+                    if (!inPiece(msg.getIndex(), msg.getBegin(),
+                                 msg.getBlockLength())) {
+                        // permission goes by index, the read by begin: a
+                        // block outside its piece would read other pieces
+                        log.log(Level.WARN, "warning: {} asked for block {} "
+                                + "outside piece {}", peer.getIP(),
+                                msg.getBegin(), msg.getIndex());
+                        if (peer.supportsFast()) {
+                            sendMessage(peer, new BitMessage(
+                                    BitMessage.MessageType.REJECT_REQUEST,
+                                    msg.getIndex(), msg.getBegin(),
+                                    msg.getBlockLength()));
+                        }
+                    } else if (!allowed || (peer.supportsFast()
+                                     && !localBitfield[msg.getIndex()])) {
+                        // tell a Fast Extension peer so it can ask elsewhere
+                        if (peer.supportsFast()) {
+                            sendMessage(peer, new BitMessage(
+                                    BitMessage.MessageType.REJECT_REQUEST,
+                                    msg.getIndex(), msg.getBegin(),
+                                    msg.getBlockLength()));
                         } else {
-                            byte[] replyData = new byte[msg.getBlockLength()];
-                            int numRead = 0;
-                            try {
-                                file.seek(msg.getBegin());
-                                numRead = file.read(replyData, 0, msg.getBlockLength());
-                                logDebug("Read " + numRead + " bytes from file");
-                            } catch (IOException ex) {
-                                ex.printStackTrace();
-                            }
-                            reply = new BitMessage(BitMessage.MessageType.PIECE,
-                                        msg.getIndex(), msg.getBegin(), replyData);
+                            log.log(Level.DEBUG, "But peer is choked, not sending");
+                        }
+                    } else if (localBitfield[msg.getIndex()] == false) {
+                        // peer has incorrect bitfield info, send another
+                        log.log(Level.WARN,
+                                "warning: peer incorrectly thinks we have {}",
+                                msg.getIndex());
+                        sendMessage(peer, new BitMessage(
+                                BitMessage.MessageType.BITFIELD,
+                                BitLibrary.booleanToBits(localBitfield)));
+                    } else if (uploader.enqueue(peer, new BitRequest(
+                                   msg.getIndex(), msg.getBegin(),
+                                   msg.getBlockLength(),
+                                   System.currentTimeMillis(), 0)) == -1) {
+                        // queue full (or an absurd length): refuse it
+                        log.log(Level.DEBUG, "refusing request from {}, {} "
+                                + "queued", peer.getIP(),
+                                uploader.getQueued(peer));
+                        if (peer.supportsFast()) {
+                            sendMessage(peer, new BitMessage(
+                                    BitMessage.MessageType.REJECT_REQUEST,
+                                    msg.getIndex(), msg.getBegin(),
+                                    msg.getBlockLength()));
                         }
-
-                        sendMessage(peer, reply);
-                        logOutput(BitLibrary.getTimeString() 
-                              + ": SENT PIECE " + msg.getIndex() 
-                              + " TO " + peer.getIP());
                     }
                 } else if (msg.getType() == BitMessage.MessageType.PIECE) {
-                    if (localBitfield[msg.getIndex()]) {
-                        logDebug("warning: received piece already had");
+                    int begin = msg.getBegin();
+                    BitRequest req = peer.removeRequest(msg.getIndex(), begin);
+                    if (req != null) {
+                        // peer delivers again: not (or no longer) snubbed
+                        peer.numTimeouts = 0;
+                        peer.isSnubbed = false;
+                    }
+                    if (msg.getIndex() != begin / pieceLength
+                        || !picker.needsBlock(begin) || msg.getBlock().length
+                                              != picker.getBlockLength(begin)) {
+                        log.log(Level.DEBUG, "ignoring block {} of piece {}",
+                                begin, msg.getIndex());
                         continue;
                     }
-                    // seek and write in the file
-                    try {
-                        file.seek(msg.getBegin());
-                        file.write(msg.getBlock());
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
+                    int index = begin / pieceLength;
+                    if (hashTree != null && hashTree.verifyBlock(index,
+                            (begin - index * pieceLength) / BitPicker.BLOCK_LENGTH,
+                            msg.getBlock()) == -1) {
+                        // v2: only this block is fetched again, and we know
+                        // who sent it
+                        log.log(Level.WARN, "warning: block {} of piece {} "
+                                + "from {} failed its hash check", begin,
+                                index, peer.getIP());
+                        picker.returnBlock(begin);
+                        if (++peer.numBadBlocks == MAX_BAD_BLOCKS) {
+                            log.log(Level.WARN, "warning: {} sent {} bad "
+                                    + "blocks", peer.getIP(), MAX_BAD_BLOCKS);
+                            if (dropped == null) {
+                                dropped = new ArrayList<BitPeer>();
+                            }
+                            dropped.add(peer);
+                        }
+                        continue;
+                    }
+                    if (req == null) {
+                        // late answer to a timed-out request; whoever was
+                        // asked again for the block need not send it now
+                        cancelElsewhere(peer, msg.getIndex(), begin);
                     }
-                    // update bitfield, send HAVE response to ALL peers
-                    localBitfield[msg.getIndex()] = true;
-                    BitMessage haveMsg 
-                                   = new BitMessage(BitMessage.MessageType.HAVE,
-                                                    msg.getIndex());
-                    for (BitPeer p : peerList) {
-                        sendMessage(p, haveMsg);
+                    peer.addDownloaded(msg.getBlock().length);
+                    totalDownloaded += msg.getBlock().length;
+                    if (req != null) {
+                        peer.sampleDelivery(req, System.currentTimeMillis());
                     }
-                    logOutput(BitLibrary.getTimeString() + ": NOW HAVE "
-                                + BitLibrary.getBitString(localBitfield));
-
-                    // become a seeder if all downloaded
-                    if (BitLibrary.isAllTrue(localBitfield)) {
-                        logOutput(BitLibrary.getTimeString() + ": DOWNLOAD COMPLETE");
-                        logDebug("local bitfield " 
-                                 + BitLibrary.getBitString(localBitfield));
-                        isSeeder = true;
+                    // write at its offset in the torrent's file(s), on the
+                    // disk stage; a completed piece is hash checked there
+                    // once its writes are done
+                    disk.write(begin, msg.getBlock(), ok -> {
+                        if (!ok) {
+                            logError("error: cannot write block " + begin);
+                        }
+                    });
+                    if (!picker.blockReceived(begin)) {
+                        continue;    // piece still has missing blocks
                     }
+                    disk.hash(index, ok -> pieceChecked(index, ok));
                 } else if (msg.getType() == BitMessage.MessageType.CANCEL) {
-                    // used in "end game" mode, not implemented in this project
+                    // a request still queued is not served
+                    uploader.cancel(peer, msg.getIndex(), msg.getBegin());
+                } else if (msg.getType() == BitMessage.MessageType.HASH_REQUEST) {
+                    answerHashRequest(peer, msg);
+                } else if (msg.getType() == BitMessage.MessageType.HASHES) {
+                    int index = hashTree == null ? -1
+                                                 : hashTree.acceptHashes(msg);
+                    if (index == -1) {
+                        log.log(Level.WARN, "warning: bad hashes from {}",
+                                peer.getIP());
+                    } else {
+                        log.log(Level.DEBUG, "got block hashes of piece {}",
+                                index);
+                    }
+                } else if (msg.getType() == BitMessage.MessageType.HASH_REJECT) {
+                    if (hashTree != null) {
+                        hashTree.rejected(msg);
+                    }
+                } else if (msg.getType() == BitMessage.MessageType.EXTENDED) {
+                    if (BitMessage.dispatchExtended(peer, msg) == -1) {
+                        log.log(Level.WARN, "warning: bad extended message {} "
+                                + "from {}", msg.getExtendedId(), peer.getIP());
+                    }
                 } else {
                     throw new RuntimeException("Invalid MessageType received");
                 }
             }
+            batchPeers.clear();
+            batchMsgs.clear();
+            for (BitPeer peer : peerList) {
+                if (peer.isClosed() && peer.inboxed.get() == 0) {
+                    if (closed == null) {
+                        closed = new ArrayList<BitPeer>();
+                    }
+                    closed.add(peer);
+                }
+            }
+            if (closed != null) {
+                for (BitPeer peer : closed) {
+                    log.log(Level.INFO, "PEER {} CLOSED THE CONNECTION",
+                            peer.getIP());
+                    removePeer(peer, false);
+                }
+            }
+            if (dropped != null) {
+                for (BitPeer peer : dropped) {
+                    if (!peerList.contains(peer)) {
+                        continue;    // also closed, or listed twice
+                    }
+                    log.log(Level.INFO, "DROPPING PEER {}", peer.getIP());
+                    removePeer(peer, true);
+                }
+            }
+            // serve queued requests, fairly across peers
+            uploader.run();
             // (ii): update interested status
             for (BitPeer peer : peerList) {
                 if (!peer.localIsInterested 
-                    && peer.getRarePiece(localBitfield) > -1) {
+                    && peer.getRarePiece(notNeeded) > -1) {
                     peer.localIsInterested = true;
                     BitMessage msg 
                             = new BitMessage(BitMessage.MessageType.INTERESTED);
@@ -275,64 +493,631 @@ public class BitClient {
                 }
             }
 
-            // (iii): request pieces from all unchoked peers
-            if (!isSeeder) {    // missing at least one piece
+            // (iii): request blocks from all unchoked peers, keeping as
+            // many in flight as the peer's bandwidth-delay product calls
+            // for (a single one to a snubbed peer);
+            // choking peers only for their allowed-fast pieces
+            // (none while the disk is behind on writes)
+            if (!isComplete && !disk.isBacklogged()) {
                 for (BitPeer peer : peerList) {
-                    int index;
-                    if (!peer.localIsChoked && peer.localIsInterested
-                        && (index = peer.getRarePiece(localBitfield)) > -1
-                        && !peer.outstandingRequests.contains(index)) {
-                        int indexLength = pieceLength;
-                        if (index ==numPieces-1 && fileLength%pieceLength > 0) {
-                            indexLength = fileLength % pieceLength;
+                    if (!peer.localIsInterested) {
+                        continue;
+                    }
+                    boolean[] has = peer.getBitfield();
+                    if (peer.localIsChoked) {
+                        has = peer.getFastBitfield();
+                        if (has == null) {
+                            continue;
+                        }
+                    }
+                    int depth = peer.isSnubbed ? 1 : peer.getQueueDepth();
+                    while (peer.outstandingRequests.size() < depth) {
+                        int begin = picker.pickBlock(has, peer.isFast);
+                        if (begin == -1) {
+                            break;
                         }
-                        BitMessage request 
-                                = new BitMessage(BitMessage.MessageType.REQUEST,
-                                       index, index * pieceLength, indexLength);
-                        peer.outstandingRequests.add(index);
-                        sendMessage(peer, request);
+                        sendRequest(peer, begin);
                     }
                 }
             }
-            // insert pauses for debugging
-            if (runSlowly) {
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ex) {
 
+            // nothing came in: sleep until something does (a message, a
+            // new peer, a disk completion) or the next timer tick
+            if (numDrained == 0) {
+                inbox.await(timers.msUntilNextTick(
+                                System.currentTimeMillis()));
+            }
+        }
+    }
+
+    /* inPiece:  INDEX is a piece and the LENGTH bytes at absolute offset */
+    /* BEGIN lie within it */
+    private static boolean inPiece(int index, int begin, int length) {
+        if (index < 0 || index >= numPieces || length <= 0) {
+            return false;
+        }
+        long start = (long) index * pieceLength;
+        return begin >= start && (long) begin + length
+                                 <= start + picker.getPieceLength(index);
+    }
+
+    /* sendBlock:  disk read done, send the block to a peer still here */
+    private static void sendBlock(BitPeer peer, int index, int begin,
+                                  byte[] data) {
+        if (data == null) {
+            logError("error: cannot read block " + begin);
+            return;
+        }
+        if (!peerList.contains(peer)) {
+            return;
+        }
+        log.log(Level.DEBUG, "Read {} bytes from file", data.length);
+        sendMessage(peer, new BitMessage(BitMessage.MessageType.PIECE,
+                                         index, begin, data));
+        peer.addUploaded(data.length);
+        totalUploaded += data.length;
+    }
+
+    /* pieceChecked:  hash check of a completed piece is done; a good one */
+    /* is had and announced, a bad one is downloaded again */
+    private static void pieceChecked(int index, boolean ok) {
+        picker.pieceChecked(index);
+        if (!ok) {
+            log.log(Level.WARN, "warning: piece {} failed its hash check",
+                    index);
+            return;
+        }
+        // update bitfield, send HAVE response to ALL peers
+        localBitfield[index] = true;
+        notNeeded[index] = true;
+        bytesLeft -= picker.getPieceLength(index);
+        synchronized (streams) {
+            for (BitStream stream : streams) {
+                stream.pieceDone(index);
+            }
+        }
+        BitMessage haveMsg = new BitMessage(BitMessage.MessageType.HAVE, index);
+        for (BitPeer p : peerList) {
+            sendMessage(p, haveMsg);
+        }
+        log.log(Level.INFO, "NOW HAVE PIECE {} ({} OF {})", index,
+                BitLibrary.countTrue(localBitfield), numPieces);
+
+        // done once every wanted piece is had; a seeder only if no file
+        // was skipped
+        if (!isComplete && BitLibrary.isAllTrue(notNeeded)) {
+            log.log(Level.INFO, "DOWNLOAD COMPLETE");
+            isComplete = true;
+            isSeeder = BitLibrary.isAllTrue(localBitfield);
+            if (tracker != null && isSeeder) {
+                tracker.announceCompleted();
+            }
+        }
+    }
+
+    /* answerHashRequest:  send a peer the hashes it asked for, or reject; */
+    /* block hashes not known yet come from reading the piece, if had */
+    private static void answerHashRequest(BitPeer peer, BitMessage req) {
+        BitMessage reply = hashTree == null ? BitHashTree.reject(req)
+                                            : hashTree.answer(req);
+        if (reply != null) {
+            sendMessage(peer, reply);
+            return;
+        }
+        int index = hashTree.pieceOf(req);
+        if (index == -1 || !localBitfield[index]) {
+            sendMessage(peer, BitHashTree.reject(req));
+            return;
+        }
+        disk.read((long) index * pieceLength, picker.getPieceLength(index),
+                  data -> {
+            if (!peerList.contains(peer)) {
+                return;
+            }
+            BitMessage r = data != null && hashTree.verifyPiece(index, data)
+                           ? hashTree.answer(req) : null;
+            sendMessage(peer, r != null ? r : BitHashTree.reject(req));
+        });
+    }
+
+    /* logDiskStats:  timer task, report the disk stage when it was busy */
+    private static void logDiskStats() {
+        long completed = disk.getCompleted();
+        if (completed != diskCompletedLogged) {
+            log.log(Level.INFO, "DISK {}", disk.getStats());
+            diskCompletedLogged = completed;
+        }
+    }
+
+    /* sendRequest:  request the block at begin, with a deadline derived */
+    /* from the peer's measured round trip and download rate */
+    private static void sendRequest(BitPeer peer, int begin) {
+        long now = System.currentTimeMillis();
+        int index = begin / pieceLength;
+        int length = picker.getBlockLength(begin);
+        // time to answer = round trips + time to send everything queued
+        long rtt = peer.getSrtt() >= 0 ? peer.getSrtt() : DEFAULT_RTT;
+        double rate = Math.max(peer.getDownloadRate(), MIN_RATE);
+        long queued = peer.getOutstandingBytes() + length;
+        long timeout = 2 * rtt + (long) (queued * 1000 / rate);
+        timeout = Math.max(MIN_REQUEST_TIMEOUT,
+                           Math.min(MAX_REQUEST_TIMEOUT, timeout));
+
+        // v2: ask the first peer we fetch a piece from for its block
+        // hashes, so its blocks are checked as they arrive
+        if (hashTree != null && peer.supportsV2()) {
+            BitMessage hashReq = hashTree.requestFor(index);
+            if (hashReq != null) {
+                sendMessage(peer, hashReq);
+            }
+        }
+        BitRequest req = new BitRequest(index, begin, length, now,
+                                        now + timeout, peer.getDownloaded());
+        peer.outstandingRequests.add(req);
+        sendMessage(peer, new BitMessage(BitMessage.MessageType.REQUEST,
+                                         index, begin, length));
+        if (!peer.requestTimer.isScheduled()) {
+            timers.reschedule(peer.requestTimer, timeout);
+        }
+    }
+
+    /* checkRequests:  timer task, give timed-out blocks back to the picker */
+    /* and mark the peer snubbed after SNUB_TIMEOUTS in a row */
+    private static void checkRequests(BitPeer peer) {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        Iterator<BitRequest> it = peer.outstandingRequests.iterator();
+        while (it.hasNext()) {
+            BitRequest req = it.next();
+            if (req.getDeadline() > now) {
+                next = Math.min(next, req.getDeadline());
+                continue;
+            }
+            it.remove();
+            picker.returnBlock(req.getBegin());
+            sendMessage(peer, new BitMessage(BitMessage.MessageType.CANCEL,
+                          req.getIndex(), req.getBegin(), req.getLength()));
+            ++peer.numTimeouts;
+            peer.requestTimedOut();
+            log.log(Level.DEBUG, "request for block {} of piece {} timed out",
+                    req.getBegin(), req.getIndex());
+        }
+        if (peer.numTimeouts >= SNUB_TIMEOUTS && !peer.isSnubbed) {
+            peer.isSnubbed = true;
+            log.log(Level.INFO, "PEER {} IS SNUBBING US", peer.getIP());
+        }
+        if (next != Long.MAX_VALUE) {
+            timers.reschedule(peer.requestTimer, next - now);
+        }
+    }
+
+    /* abandonRequests:  return all of a peer's pending blocks to the picker */
+    private static void abandonRequests(BitPeer peer) {
+        for (BitRequest req : peer.outstandingRequests) {
+            picker.returnBlock(req.getBegin());
+        }
+        peer.outstandingRequests.clear();
+        timers.cancel(peer.requestTimer);
+    }
+
+    /* cancelElsewhere:  withdraw requests for a block already received */
+    private static void cancelElsewhere(BitPeer from, int index, int begin) {
+        for (BitPeer peer : peerList) {
+            if (peer == from) {
+                continue;
+            }
+            BitRequest req = peer.removeRequest(index, begin);
+            if (req != null) {
+                sendMessage(peer, new BitMessage(BitMessage.MessageType.CANCEL,
+                                  index, begin, req.getLength()));
+            }
+        }
+    }
+
+    /* addCandidate:  add a peer address learned at runtime (tracker, */
+    /* DHT, PEX) or from the command line to the connection manager's */
+    /* pool; safe to call from any thread, the main loop dials it */
+    public static void addCandidate(InetSocketAddress addr) {
+        if (!isSelf(addr)) {
+            manager.addCandidate(addr);
+        }
+    }
+
+    /* connectCandidates:  start handshakes with the candidates that are */
+    /* due, as fast and as many as the connection manager allows */
+    private static void connectCandidates() {
+        long now = System.currentTimeMillis();
+        InetSocketAddress addr;
+        while ((addr = manager.nextCandidate(now, handshaker.getHalfOpen()))
+               != null) {
+            log.log(Level.INFO, "HANDSHAKE INITIALIZED WITH {}", addr);
+            handshaker.outbound(new BitPeer(addr.getAddress(), addr.getPort()));
+        }
+    }
+
+    /* isSelf:  true if addr is this client's own welcome socket */
+    private static boolean isSelf(InetSocketAddress addr) {
+        if (addr.getPort() != welcomePort) {
+            return false;
+        }
+        InetAddress ip = addr.getAddress();
+        try {
+            return ip.isLoopbackAddress() || ip.isAnyLocalAddress()
+                   || NetworkInterface.getByInetAddress(ip) != null;
+        } catch (SocketException ex) {
+            return false;
+        }
+    }
+
+    public static long getDownloaded() {
+        return totalDownloaded;
+    }
+
+    public static long getUploaded() {
+        return totalUploaded;
+    }
+
+    public static long getLeft() {
+        return bytesLeft;
+    }
+
+    /* openStream:  a blocking, seekable view of the torrent's data that */
+    /* waits for pieces as it reads them; turns on streaming mode (-S) */
+    /* if it is off.  Safe to call from any thread once the client is */
+    /* running.  With several streams open, the one read last sets the */
+    /* read head; pieces of skipped files are never fetched. */
+    public static BitStream openStream() {
+        if (picker.getWindow() == 0) {
+            picker.setWindow(STREAM_WINDOW);
+        }
+        synchronized (streams) {
+            BitStream stream = new BitStream(storage, pieceLength,
+                                             localBitfield, picker);
+            streams.add(stream);
+            return stream;
+        }
+    }
+
+    /* startStreamOut:  -o, copy the torrent front to back into */
+    /* streamOut (a file, or a FIFO a player reads) as pieces arrive */
+    private static void startStreamOut() {
+        BitStream stream = openStream();
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[65536];
+            long copied = 0;
+            try (InputStream in = stream.getInputStream();
+                 OutputStream out = new FileOutputStream(streamOut)) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                    copied += n;
+                }
+            } catch (IOException ex) {
+                logError("error: streaming to " + streamOut + " failed");
+                return;
+            }
+            log.log(Level.INFO, "STREAMED {} BYTES TO {}", copied, streamOut);
+        }, "BitStreamOut");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /* addPeer:  start transferring with a peer that completed a handshake */
+    private static void addPeer(BitPeer peer, BitMessage unchoke) {
+        log.log(Level.INFO, "COMPLETED HANDSHAKE WITH {} ({})", peer.getIP(),
+                peer.getConnection().getTransport());
+        // at the limit, the newcomer replaces the worst established peer
+        if (peerList.size() >= BitConnectionManager.MAX_PEERS) {
+            BitPeer worst = BitConnectionManager.worstPeer(peerList,
+                                System.currentTimeMillis());
+            if (worst == null) {
+                log.log(Level.INFO, "TOO MANY PEERS, DROPPED {}", peer.getIP());
+                peer.close();
+                manager.connectFailed(peer.getListenAddress());
+                return;
+            }
+            log.log(Level.INFO, "REPLACED PEER {} WITH {}", worst.getIP(),
+                    peer.getIP());
+            removePeer(worst, true);
+        }
+        peerList.add(peer);
+        peer.startReader();
+        manager.connected(peer);
+        // extended handshake goes right after the handshake (BEP 10)
+        if (peer.supportsExtensions()) {
+            sendMessage(peer, BitMessage.extendedHandshake(welcomePort));
+        }
+        // send bitfield, or HAVE_ALL/HAVE_NONE in its place (BEP 6)
+        BitMessage bitfieldMsg
+               = new BitMessage(BitMessage.MessageType.BITFIELD,
+                       BitLibrary.booleanToBits(localBitfield));
+        // (a super-seeder has nothing, as far as peers are told)
+        if (superSeeder != null) {
+            bitfieldMsg = new BitMessage(BitMessage.MessageType.BITFIELD,
+                    BitLibrary.booleanToBits(new boolean[numPieces]));
+        }
+        if (peer.supportsFast() && isSeeder && superSeeder == null) {
+            bitfieldMsg = new BitMessage(BitMessage.MessageType.HAVE_ALL);
+        } else if (peer.supportsFast() && (superSeeder != null
+                   || BitLibrary.countTrue(localBitfield) == 0)) {
+            bitfieldMsg = new BitMessage(BitMessage.MessageType.HAVE_NONE);
+        }
+        sendMessage(peer, bitfieldMsg);
+        if (superSeeder != null) {
+            superReveal(peer);
+        }
+        // let a new peer start on a few pieces before its first unchoke
+        if (peer.supportsFast() && superSeeder == null) {
+            for (int index : allowedFastSet(peer.getIP(), ALLOWED_FAST_SET)) {
+                if (localBitfield[index]) {
+                    peer.allowedFastOut.add(index);
+                    sendMessage(peer, new BitMessage(
+                            BitMessage.MessageType.ALLOWED_FAST, index));
+                }
+            }
+        }
+        // unchoke if spots are available
+        if (numUnchoked < MAX_UNCHOKED) {
+            peer.remoteIsChoked = false;
+            sendMessage(peer, unchoke);
+            numUnchoked++;
+        }
+        peer.keepAliveTimer = timers.schedule(() -> keepAlive(peer),
+                                              KEEPALIVE_INTERVAL);
+        peer.idleTimer = timers.schedule(() -> checkIdle(peer), IDLE_TIMEOUT);
+        peer.requestTimer = timers.newTimeout(() -> checkRequests(peer));
+    }
+
+    /* superReveal:  super-seeding, show PEER its next piece */
+    private static void superReveal(BitPeer peer) {
+        int index = superSeeder.reveal(peer);
+        if (index != -1) {
+            log.log(Level.DEBUG, "SHOWING PEER {} PIECE {}", peer.getIP(),
+                    index);
+            sendMessage(peer, new BitMessage(BitMessage.MessageType.HAVE,
+                                             index));
+        }
+    }
+
+    /* checkSuperSeeding:  once the peers hold a full copy between them, */
+    /* stop super-seeding and tell every peer all we have */
+    private static void checkSuperSeeding() {
+        if (superSeeder == null || !superSeeder.isDone()) {
+            return;
+        }
+        log.log(Level.INFO, "SUPER-SEEDING DONE, PEERS HAVE A FULL COPY");
+        for (BitPeer peer : peerList) {
+            for (int i = 0; i < numPieces; ++i) {
+                if (!superSeeder.wasShown(peer).contains(i)
+                    && (peer.getBitfield() == null || !peer.hasPiece(i))) {
+                    sendMessage(peer, new BitMessage(
+                            BitMessage.MessageType.HAVE, i));
+                }
+            }
+        }
+        superSeeder = null;
+    }
+
+    /* setPeerBitfield:  replace what a peer has, from BITFIELD/HAVE_ALL/ */
+    /* HAVE_NONE */
+    private static void setPeerBitfield(BitPeer peer, boolean[] bf) {
+        picker.removeBitfield(peer.getBitfield());
+        peer.setBitfield(bf);
+        picker.addBitfield(bf);
+        log.log(Level.INFO, "PEER {} HAS {} OF {} PIECES",
+                peer.getIP(), BitLibrary.countTrue(bf), numPieces);
+        if (log.isEnabled(Level.DEBUG)) {
+            log.log(Level.DEBUG, "peer bitfield {}", bf.clone());
+        }
+        if (superSeeder != null && superSeeder.bitfieldKnown(peer)) {
+            superReveal(peer);
+        }
+        checkSuperSeeding();
+    }
+
+    /* allowedFastSet:  the canonical allowed-fast pieces for a peer's IP */
+    /* (BEP 6): SHA1 chain over its /24 and the info hash, k distinct */
+    /* pieces; empty for non-IPv4 peers */
+    private static List<Integer> allowedFastSet(InetAddress ip, int k) {
+        List<Integer> set = new ArrayList<Integer>();
+        byte[] addr = ip.getAddress();
+        if (addr.length != 4) {
+            return set;
+        }
+        k = Math.min(k, numPieces);
+        byte[] x = new byte[4 + SHA_LENGTH];
+        System.arraycopy(addr, 0, x, 0, 3);    // mask with 0xffffff00
+        System.arraycopy(infoHash, 0, x, 4, SHA_LENGTH);
+        while (set.size() < k) {
+            x = BitLibrary.getSHA1(x, 0, x.length);
+            for (int i = 0; i < 5 && set.size() < k; ++i) {
+                long y = ByteBuffer.wrap(x, 4 * i, 4).getInt() & 0xffffffffL;
+                int index = (int) (y % numPieces);
+                if (!set.contains(index)) {
+                    set.add(index);
+                }
+            }
+        }
+        return set;
+    }
+
+    /* removePeer:  drop a peer; FAILURE if it misbehaved or was replaced, */
+    /* so the connection manager backs off before redialing it; never */
+    /* call while iterating over peerList */
+    private static void removePeer(BitPeer peer, boolean failure) {
+        timers.cancel(peer.keepAliveTimer);
+        timers.cancel(peer.idleTimer);
+        abandonRequests(peer);
+        picker.removeBitfield(peer.getBitfield());
+        peer.close();
+        peerList.remove(peer);
+        pex.peerRemoved(peer);
+        uploader.peerRemoved(peer);
+        if (superSeeder != null) {
+            superSeeder.peerRemoved(peer);
+        }
+        manager.disconnected(peer, failure);
+        if (!peer.remoteIsChoked) {
+            --numUnchoked;
+        }
+    }
+
+    /* keepAlive:  timer task, send KEEP_ALIVE if nothing was sent lately */
+    /* re-arms itself for KEEPALIVE_INTERVAL after the last send */
+    private static void keepAlive(BitPeer peer) {
+        long quiet = System.currentTimeMillis() - peer.getLastSent();
+        if (quiet >= KEEPALIVE_INTERVAL) {
+            sendMessage(peer, new BitMessage(BitMessage.MessageType.KEEP_ALIVE));
+            quiet = 0;
+        }
+        timers.reschedule(peer.keepAliveTimer, KEEPALIVE_INTERVAL - quiet);
+    }
+
+    /* checkIdle:  timer task, evict a peer that has been silent too long */
+    /* each message only refreshes lastUsed; the timer re-arms lazily */
+    private static void checkIdle(BitPeer peer) {
+        long silent = System.currentTimeMillis() - peer.getLastUsed();
+        if (silent >= IDLE_TIMEOUT) {
+            log.log(Level.INFO, "DROPPED IDLE PEER {}", peer.getIP());
+            removePeer(peer, true);
+        } else {
+            timers.reschedule(peer.idleTimer, IDLE_TIMEOUT - silent);
+        }
+    }
+
+    /* evictRound:  timer task, when at the peer limit with candidates */
+    /* waiting, drop the worst peer past its grace period to make room */
+    private static void evictRound() {
+        long now = System.currentTimeMillis();
+        if (peerList.size() < BitConnectionManager.MAX_PEERS
+            || !manager.hasWaiting(now)) {
+            return;
+        }
+        BitPeer worst = BitConnectionManager.worstPeer(peerList, now);
+        if (worst != null) {
+            log.log(Level.INFO, "EVICTED PEER {} (SCORE {})", worst.getIP(),
+                    BitConnectionManager.score(worst));
+            removePeer(worst, true);
+        }
+    }
+
+    /* chokeRound:  periodically move one unchoke slot to a random choked, */
+    /* interested peer so that every peer eventually gets a turn; a peer */
+    /* that is snubbing us loses its slot first */
+    private static void chokeRound() {
+        ArrayList<BitPeer> choked = new ArrayList<BitPeer>();
+        ArrayList<BitPeer> unchoked = new ArrayList<BitPeer>();
+        BitPeer snubbed = null;
+        for (BitPeer peer : peerList) {
+            if (!peer.remoteIsChoked) {
+                unchoked.add(peer);
+                if (peer.isSnubbed) {
+                    snubbed = peer;
                 }
+            } else if (peer.remoteIsInterested && !peer.isSnubbed) {
+                choked.add(peer);    // snubbing peers get no regular slot
+            }
+        }
+        if (choked.isEmpty()) {
+            return;
+        }
+        if (numUnchoked >= MAX_UNCHOKED && !unchoked.isEmpty()) {
+            BitPeer out = snubbed != null ? snubbed
+                        : unchoked.get(random.nextInt(unchoked.size()));
+            chokePeer(out);
+        }
+        if (numUnchoked < MAX_UNCHOKED) {
+            BitPeer in = choked.get(random.nextInt(choked.size()));
+            in.remoteIsChoked = false;
+            sendMessage(in, new BitMessage(BitMessage.MessageType.UNCHOKE));
+            ++numUnchoked;
+        }
+    }
+
+    /* chokePeer:  choke an unchoked peer; its queued requests are dropped */
+    /* (bar allowed-fast ones), and rejected if it has the Fast Extension */
+    private static void chokePeer(BitPeer peer) {
+        peer.remoteIsChoked = true;
+        sendMessage(peer, new BitMessage(BitMessage.MessageType.CHOKE));
+        --numUnchoked;
+        for (BitRequest req : uploader.choked(peer, peer.allowedFastOut)) {
+            if (peer.supportsFast()) {
+                sendMessage(peer, new BitMessage(
+                        BitMessage.MessageType.REJECT_REQUEST, req.getIndex(),
+                        req.getBegin(), req.getLength()));
+            }
+        }
+    }
+
+    /* sampleRates:  update every peer's smoothed transfer rates; peers */
+    /* within FAST_SHARE of the fastest download rate count as fast */
+    private static void sampleRates() {
+        double down = 0;
+        double up = 0;
+        double top = 0;
+        for (BitPeer peer : peerList) {
+            peer.sampleRates(RATE_INTERVAL);
+            down += peer.getDownloadRate();
+            up += peer.getUploadRate();
+            top = Math.max(top, peer.getDownloadRate());
+        }
+        for (BitPeer peer : peerList) {
+            peer.isFast = peer.getDownloadRate() >= top * FAST_SHARE;
+            if (log.isEnabled(Level.DEBUG)) {
+                log.log(Level.DEBUG, "peer {}: {}", peer.getIP(),
+                        String.format("rtt %d ms (min %d), delivery %d B/s, "
+                                      + "depth %d", peer.getSrtt(),
+                                      peer.getMinRtt(),
+                                      (long) peer.getDeliveryRate(),
+                                      peer.getQueueDepth()));
             }
         }
+        log.log(Level.DEBUG, "rates: down {} B/s, up {} B/s",
+                (long) down, (long) up);
     }
 
     /* sendMessage:  send a BitMessage to the specified peer */
     public static void sendMessage(BitPeer peer, BitMessage msg) {
         byte[] packedMsg = msg.pack();
         peer.write(packedMsg, 0, packedMsg.length);
-        // log sent message event
-        StringBuilder sb = new StringBuilder();
-        sb.append(BitLibrary.getTimeString() + ": SENT " + msg.getType());
+        // log sent message event (formatted later by the logger thread)
         if (msg.getType() == BitMessage.MessageType.REQUEST
             || msg.getType() == BitMessage.MessageType.PIECE) {
-            sb.append(" FOR " + msg.getIndex());
+            log.sampled("SENT {} FOR {} TO {}", msg.getType(), msg.getIndex(),
+                        peer.getIP());
+        } else {
+            log.sampled("SENT {} TO {}", msg.getType(), peer.getIP());
         }
-        sb.append(" TO " + peer.getIP());
-        logOutput(sb.toString());
     }
 
     /* parseArgs:  create saveFile for writing, get torrent metadata */
     /* return -1 on failure and 0 otherwise */
     public static int parseArgs(String[] args) {
         peerList = new ArrayList<BitPeer>();
+        knownPeers = new ArrayList<InetSocketAddress>();
         if (args.length == 0 || args.length % 2 == 0 
             || BitLibrary.hasStr(args, "-h")) {
             logError("usage: java BitClient [FLAGS]* torrentFile");
+            logError("       java BitClient create [-h] [FLAGS]* path");
+            logError("\t-a mode    \t Disk allocation [sparse|full|compact]");
+            logError("\t-d port    \t Run a DHT node on UDP port");
+            logError("\t-f i=prio,..\t File priorities [skip|low|normal|high]");
             logError("\t-h         \t Usage information");
+            logError("\t-l level   \t Log level [error|warn|info|debug|trace]");
+            logError("\t-m rate    \t Log 1 in rate per-message events");
+            logError("\t-o outFile \t Stream the torrent in order to outFile");
             logError("\t-s saveFile\t Specify save location");
+            logError("\t-S pieces  \t Streaming: fetch pieces ahead of reader");
+            logError("\t-t [on|off]\t Announce to the tracker on/off");
+            logError("\t-U KB/s    \t Upload limit (default none)");
+            logError("\t-u [on|off]\t Accept and prefer uTP connections");
+            logError("\t-n IP:port \t Bootstrap the DHT from this node");
             logError("\t-p IP:port \t Include this address as a peer");
+            logError("\t-r port    \t Run an embedded tracker on port");
             logError("\t-v [on|off]\t Verbose on/off");
             logError("\t-w port    \t Welcome socket port number");
-            logError("\t-x seed    \t Start this client as seeder");
+            logError("\t-x seed|super\t Start this client as seeder (super:"
+                     + " super-seeding)");
             logError("\t-z slow    \t Run in slow motion for testing");
             return -1;
         }
@@ -351,18 +1136,50 @@ public class BitClient {
 
                     peerAddr = InetAddress.getByName(ipString);
                     peerPort = Integer.parseInt(portString);
-                    peerList.add(new BitPeer(peerAddr, peerPort));
+                    knownPeers.add(new InetSocketAddress(peerAddr, peerPort));
                 } catch (UnknownHostException|NumberFormatException ex) {
                     logError("error: unknown IP:port " + args[i+1]);
                     return -1;
                 }
                 logDebug("Added Peer: IP = " + peerAddr + ", " 
                          + "Port = " + peerPort);
+            } else if (args[i].equals("-n")) {
+                // a DHT node to join through
+                try {
+                    int delimPos = args[i+1].indexOf(':', 0);
+                    dhtBootstrap.add(new InetSocketAddress(
+                            InetAddress.getByName(args[i+1].substring(0, delimPos)),
+                            Integer.parseInt(args[i+1].substring(delimPos + 1))));
+                } catch (UnknownHostException|RuntimeException ex) {
+                    logError("error: unknown IP:port " + args[i+1]);
+                    return -1;
+                }
+            } else if (args[i].equals("-d")) {
+                try {
+                    dhtPort = Integer.parseInt(args[i+1]);
+                } catch (NumberFormatException ex) {
+                    logError("error: invalid DHT port " + args[i+1]);
+                    return -1;
+                }
             } else if (args[i].equals("-v")) {
                 if (args[i+1].equals("on")) {
-                    _DEBUG = true;
+                    log.setLevel(Level.DEBUG);
                 } else {
-                    _DEBUG = false;
+                    log.setLevel(Level.INFO);
+                }
+            } else if (args[i].equals("-l")) {
+                try {
+                    log.setLevel(Level.valueOf(args[i+1].toUpperCase()));
+                } catch (IllegalArgumentException ex) {
+                    logError("error: unknown log level " + args[i+1]);
+                    return -1;
+                }
+            } else if (args[i].equals("-m")) {
+                try {
+                    log.setSampleRate(Integer.parseInt(args[i+1]));
+                } catch (NumberFormatException ex) {
+                    logError("error: invalid sample rate " + args[i+1]);
+                    return -1;
                 }
             } else if (args[i].equals("-w")) {
                 try {
@@ -371,18 +1188,57 @@ public class BitClient {
                     logError("error: invalid welcome port " + args[i+1]);
                     return -1;
                 }
+            } else if (args[i].equals("-r")) {
+                try {
+                    trackerPort = Integer.parseInt(args[i+1]);
+                } catch (NumberFormatException ex) {
+                    logError("error: invalid tracker port " + args[i+1]);
+                    return -1;
+                }
+            } else if (args[i].equals("-t")) {
+                useTracker = !args[i+1].equals("off");
+            } else if (args[i].equals("-u")) {
+                useUtp = args[i+1].equals("on");
             } else if (args[i].equals("-x")) {
                 isSeeder = true;
+                superSeed = args[i+1].equals("super");
                 // file to transfer found at savePath
             } else if (args[i].equals("-z")) {
                 runSlowly = true;
+            } else if (args[i].equals("-U")) {
+                try {
+                    uploadLimit = Integer.parseInt(args[i+1]) * 1024;
+                } catch (NumberFormatException ex) {
+                    logError("error: invalid upload limit " + args[i+1]);
+                    return -1;
+                }
+            } else if (args[i].equals("-S")) {
+                try {
+                    streamWindow = Integer.parseInt(args[i+1]);
+                } catch (NumberFormatException ex) {
+                    logError("error: invalid stream window " + args[i+1]);
+                    return -1;
+                }
+            } else if (args[i].equals("-f")) {
+                filePriorities = args[i+1];
+            } else if (args[i].equals("-o")) {
+                streamOut = args[i+1];
+            } else if (args[i].equals("-a")) {
+                try {
+                    allocation = BitStorage.Allocation.valueOf(
+                            args[i+1].toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    logError("error: unknown allocation mode " + args[i+1]);
+                    return -1;
+                }
             }
         }
         /* read torrent file data */
         try {
             String torrentName = TRNT_DIR + args[args.length - 1];
             byte[] torrentData = Files.readAllBytes(Paths.get(torrentName));
-            encoded = new String(torrentData, "US-ASCII");
+            // one char per byte keeps binary strings (piece hashes) intact
+            encoded = new String(torrentData, StandardCharsets.ISO_8859_1);
             encoded = encoded.trim();
         } catch (IOException ex) {
             logError("error: cannot open " + args[args.length - 1]);
@@ -392,6 +1248,221 @@ public class BitClient {
         return 0;
     }
 
+    /* parseFiles:  the "files" list of a multi-file torrent into */
+    /* filePaths, fileLengths and their total, fileLength */
+    /* return -1 on failure and 0 otherwise */
+    private static int parseFiles(BList files) {
+        filePaths = new ArrayList<String>();
+        fileLengths = new long[files.size()];
+        long total = 0;
+        for (int i = 0; i < files.size(); ++i) {
+            if (!(files.get(i) instanceof BDict)) {
+                logError("error: invalid files list in .torrent file");
+                return -1;
+            }
+            BDict f = (BDict) files.get(i);
+            BObject len = f.get("length");
+            BObject path = f.get("path");
+            if (!(len instanceof BNumber) || !(path instanceof BList)
+                || ((BList) path).isEmpty()) {
+                logError("error: invalid file " + i + " in .torrent file");
+                return -1;
+            }
+            fileLengths[i] = ((BNumber) len).getLong();
+            total += fileLengths[i];
+            // padding files (attr "p") align the next file to a piece;
+            // they have no data and are never created
+            BObject attr = f.get("attr");
+            if (attr instanceof BString && attr.print().contains("p")) {
+                filePaths.add(null);
+                continue;
+            }
+            StringBuilder rel = new StringBuilder();
+            for (BObject elem : (BList) path) {
+                String name = pathElement(elem);
+                if (name == null) {
+                    return -1;
+                }
+                if (rel.length() > 0) {
+                    rel.append(File.separator);
+                }
+                rel.append(name);
+            }
+            filePaths.add(rel.toString());
+        }
+        if (total > Integer.MAX_VALUE) {
+            logError("error: torrents over 2 GiB are not supported");
+            return -1;
+        }
+        fileLength = (int) total;
+        return 0;
+    }
+
+    /* pathElement:  one element of a file's path, which is UTF-8; never */
+    /* let one climb out of savePath */
+    /* return null (after printing an error) if it is unsafe */
+    private static String pathElement(BObject elem) {
+        if (!(elem instanceof BString)) {
+            logError("error: invalid path in .torrent file");
+            return null;
+        }
+        String name = new String(((BString) elem).getBytes(),
+                                 StandardCharsets.UTF_8);
+        if (name.isEmpty() || name.equals(".") || name.equals("..")
+            || name.contains("/") || name.contains("\\")) {
+            logError("error: unsafe path in .torrent file");
+            return null;
+        }
+        return name;
+    }
+
+    /* parseFileTree:  the "file tree" of a v2 torrent, in path order, */
+    /* into PATHS, LENGTHS and pieces ROOTS (null for empty files) */
+    /* return -1 on failure and 0 otherwise */
+    private static int parseFileTree(BDict dir, String prefix,
+                                     List<String> paths, List<Long> lengths,
+                                     List<byte[]> roots) {
+        BObject leaf = dir.get("");
+        if (leaf != null) {
+            // a file: { "": { length, pieces root } }
+            BObject len = leaf instanceof BDict ? ((BDict) leaf).get("length")
+                                                : null;
+            BObject root = leaf instanceof BDict
+                           ? ((BDict) leaf).get("pieces root") : null;
+            if (prefix.isEmpty() || !(len instanceof BNumber)
+                || ((BNumber) len).getLong() < 0
+                || (((BNumber) len).getLong() > 0
+                    && !(root instanceof BString))) {
+                logError("error: invalid file tree in .torrent file");
+                return -1;
+            }
+            paths.add(prefix);
+            lengths.add(((BNumber) len).getLong());
+            roots.add(((BNumber) len).getLong() > 0
+                      ? ((BString) root).getBytes() : null);
+            return 0;
+        }
+        // a directory; keys in byte order, as the v1 files list is
+        for (String key : new TreeSet<String>(dir.keySet())) {
+            String name = pathElement(new BString(key));
+            if (name == null || !(dir.get(key) instanceof BDict)) {
+                if (name != null) {
+                    logError("error: invalid file tree in .torrent file");
+                }
+                return -1;
+            }
+            String path = prefix.isEmpty() ? name
+                                           : prefix + File.separator + name;
+            if (parseFileTree((BDict) dir.get(key), path, paths, lengths,
+                              roots) == -1) {
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+    /* layoutFileTree:  lay the files of a v2-only torrent out as a v1 */
+    /* torrent would be: a single file if it is the only one and NAME, */
+    /* else filePaths and fileLengths with padding (null paths) starting */
+    /* each file on a piece boundary; sets fileLength */
+    /* return -1 on failure and 0 otherwise */
+    private static int layoutFileTree(List<String> paths, List<Long> lengths,
+                                      String name) {
+        long total = 0;
+        if (paths.size() == 1 && paths.get(0).equals(name)) {
+            total = lengths.get(0);
+        } else {
+            filePaths = new ArrayList<String>();
+            List<Long> laid = new ArrayList<Long>();
+            for (int i = 0; i < paths.size(); ++i) {
+                if (total % pieceLength != 0 && lengths.get(i) > 0) {
+                    filePaths.add(null);
+                    laid.add(pieceLength - total % pieceLength);
+                    total += pieceLength - total % pieceLength;
+                }
+                filePaths.add(paths.get(i));
+                laid.add(lengths.get(i));
+                total += lengths.get(i);
+            }
+            fileLengths = new long[laid.size()];
+            for (int i = 0; i < fileLengths.length; ++i) {
+                fileLengths[i] = laid.get(i);
+            }
+        }
+        if (total > Integer.MAX_VALUE || total == 0) {
+            logError(total == 0 ? "error: empty torrent"
+                     : "error: torrents over 2 GiB are not supported");
+            return -1;
+        }
+        fileLength = (int) total;
+        return 0;
+    }
+
+    /* fileOffsets:  where each of the v2 files PATHS (of LENGTHS) starts */
+    /* in the torrent as laid out, in filePaths or the single file */
+    /* return null if the laid out files, padding aside, are not these */
+    private static long[] fileOffsets(List<String> paths,
+                                      List<Long> lengths) {
+        long[] offsets = new long[paths.size()];
+        if (filePaths == null) {
+            return paths.size() == 1 && lengths.get(0) == fileLength
+                   ? offsets : null;
+        }
+        int f = 0;
+        long offset = 0;
+        for (int i = 0; i < filePaths.size(); ++i) {
+            if (filePaths.get(i) != null) {
+                if (f == paths.size() || !filePaths.get(i).equals(paths.get(f))
+                    || fileLengths[i] != lengths.get(f)) {
+                    return null;
+                }
+                offsets[f++] = offset;
+            }
+            offset += fileLengths[i];
+        }
+        return f == paths.size() ? offsets : null;
+    }
+
+    /* parseFilePriorities:  -f "i=prio,..." into one PRIORITY_* per file, */
+    /* where i is a file index (or * for all) and prio one of skip, low, */
+    /* normal, high; files not named are normal */
+    /* return null (after printing an error) on a bad spec */
+    private static int[] parseFilePriorities(int numFiles) {
+        int[] prio = new int[numFiles];
+        Arrays.fill(prio, BitPicker.PRIORITY_NORMAL);
+        if (filePriorities == null) {
+            return prio;
+        }
+        for (String item : filePriorities.split(",")) {
+            int eq = item.indexOf('=');
+            int p = -1;
+            if (eq > 0) {
+                String name = item.substring(eq + 1);
+                p = name.equals("skip") ? BitPicker.PRIORITY_SKIP
+                    : name.equals("low") ? BitPicker.PRIORITY_LOW
+                    : name.equals("normal") ? BitPicker.PRIORITY_NORMAL
+                    : name.equals("high") ? BitPicker.PRIORITY_HIGH : -1;
+            }
+            if (p == -1) {
+                logError("error: invalid file priority " + item);
+                return null;
+            }
+            String index = item.substring(0, eq);
+            if (index.equals("*")) {
+                Arrays.fill(prio, p);
+                continue;
+            }
+            try {
+                prio[Integer.parseInt(index)] = p;
+            } catch (NumberFormatException
+                     | ArrayIndexOutOfBoundsException ex) {
+                logError("error: no file " + index + " in torrent");
+                return null;
+            }
+        }
+        return prio;
+    }
+
     /* initClient: parse file metadata from METAINFO */
     /* return: 0 on success, -1 on failure */
     /* success ==> initialized: fileLength, pieceLength, saveBuf, pieces */
@@ -406,24 +1477,78 @@ public class BitClient {
         if (metaDict.containsKey("info")) {
             BDict infoDict = (BDict) metaDict.get("info");
             infoBencoded = infoDict.encode();
-
-            // (i) length field
-            BObject len = infoDict.get("length");
-            if (len == null) {
-                logError("error: invalid length in .torrent file");
-                return -1;
+            byte[] infoBytes = infoBencoded.getBytes(StandardCharsets.ISO_8859_1);
+            // a v2 torrent (BEP 52) has a file tree and Merkle roots; a
+            // hybrid one also has the v1 pieces and files, and keeps the
+            // v1 info hash, where a v2-only one uses truncated SHA-256
+            BObject version = infoDict.get("meta version");
+            boolean isV2 = version instanceof BNumber
+                           && ((BNumber) version).getNumber() == 2
+                           && infoDict.get("file tree") instanceof BDict;
+            boolean isHybrid = isV2 && infoDict.get("pieces") != null;
+            if (isV2 && !isHybrid) {
+                infoHash = Arrays.copyOf(BitMerkle.sha256(infoBytes, 0,
+                                             infoBytes.length), SHA_LENGTH);
+            } else {
+                infoHash = BitLibrary.getSHA1(infoBytes, 0, infoBytes.length);
             }
-            fileLength = Integer.parseInt(len.print());
-            logDebug("got fileLength " + fileLength);
+            logDebug("got info hash " + BitLibrary.bytesToHex(infoHash)
+                     + (isHybrid ? " (hybrid)" : isV2 ? " (v2)" : ""));
 
-            // (ii) piece length field
+            // (i) piece length field
             BObject plen = infoDict.get("piece length");
             if (plen == null) {
                 logError("error: invalid piece length in .torrent file");
                 return -1;
             }
             pieceLength = Integer.parseInt(plen.print());
+            if (pieceLength <= 0 || (isV2 && (pieceLength < BitMerkle.BLOCK
+                                   || Integer.bitCount(pieceLength) != 1))) {
+                logError("error: invalid piece length in .torrent file");
+                return -1;
+            }
             logDebug("got pieceLength " + pieceLength);
+
+            // (ii) length field, or the files of a multi-file torrent; a
+            // v2 torrent's file tree, which a v2-only one is laid out from
+            BObject len = infoDict.get("length");
+            BObject files = infoDict.get("files");
+            BObject sname = infoDict.get("name");
+            List<String> v2Paths = new ArrayList<String>();
+            List<Long> v2Lengths = new ArrayList<Long>();
+            List<byte[]> v2Roots = new ArrayList<byte[]>();
+            long[] v2Offsets = null;
+            if (isV2 && parseFileTree((BDict) infoDict.get("file tree"), "",
+                                      v2Paths, v2Lengths, v2Roots) == -1) {
+                return -1;
+            }
+            if (isV2 && !isHybrid) {
+                if (layoutFileTree(v2Paths, v2Lengths, sname == null ? null
+                        : new String(((BString) sname).getBytes(),
+                                     StandardCharsets.UTF_8))
+                    == -1) {
+                    return -1;
+                }
+            } else if (len != null) {
+                fileLength = Integer.parseInt(len.print());
+            } else if (files instanceof BList) {
+                if (parseFiles((BList) files) == -1) {
+                    return -1;
+                }
+            } else {
+                logError("error: invalid length in .torrent file");
+                return -1;
+            }
+            if (isV2) {
+                // a hybrid's v1 files, padding aside, must be the v2 ones
+                v2Offsets = fileOffsets(v2Paths, v2Lengths);
+                if (v2Offsets == null) {
+                    logError("error: v1 and v2 files of hybrid torrent "
+                             + "differ");
+                    return -1;
+                }
+            }
+            logDebug("got fileLength " + fileLength);
             numPieces = fileLength / pieceLength;
             if (fileLength % pieceLength > 0) {
                 ++numPieces;
@@ -431,47 +1556,67 @@ public class BitClient {
             logDebug("got numPieces " + numPieces);
 
             // (iii) suggested save name field ==> save at DNLD_DIR/<sug_name>
-            BObject sname = infoDict.get("name");
+            // (for a multi-file torrent the directory of every file, so it
+            // must not climb out of DNLD_DIR either)
             if (sname != null && savePath == null) {    // -s flag not used
-                savePath = DNLD_DIR + sname.print();
+                String name = pathElement(sname);
+                if (name == null) {
+                    return -1;
+                }
+                savePath = DNLD_DIR + name;
                 logDebug("got savePath " + savePath);
             }
 
-            // (iv) SHA1 values for pieces
+            // (iv) SHA1 values for pieces; a v2-only torrent has none
             BObject sha = infoDict.get("pieces");
-            if (sha == null) {
+            if (sha == null && !isV2) {
                 logError("error: invalid SHA1 encoding of pieces");
                 return -1;
             }
-            String piecesSHA1 = sha.print();
+            String piecesSHA1 = sha == null ? "" : sha.print();
             if (piecesSHA1.length() % SHA_LENGTH != 0) {
                 logError("error: SHA1 length not divisible by 20");
                 return -1;
-            } else {
+            } else if (sha != null) {
                 // split the SHA1 hashes into arrayList
                 pieces = new String[piecesSHA1.length() / SHA_LENGTH];
                 for (int i = 0; i < pieces.length; ++i) {
                     String s = piecesSHA1.substring(SHA_LENGTH * i, 
                                                     SHA_LENGTH * (i + 1));
-                    byte[] hashData;
-                    try {
-                        hashData = s.getBytes("UTF-8");
-                    } catch (UnsupportedEncodingException ex) {
-                        ex.printStackTrace();
-                        return -1;
-                    }
+                    byte[] hashData = s.getBytes(StandardCharsets.ISO_8859_1);
                     pieces[i] = BitLibrary.bytesToHex(hashData);
                 }
-                if (_DEBUG) {
+                if (log.isEnabled(Level.DEBUG)) {
                     logDebug("Got the following SHA1 pieces:");
-                    if (_DEBUG) {
-                        for (int i = 0; i < pieces.length; ++i) {
-                            logDebug(pieces[i]);
-                        }
+                    for (int i = 0; i < pieces.length; ++i) {
+                        logDebug(pieces[i]);
                     }
                 }
             }
 
+            // (iv') v2: each file's Merkle root and piece layer (outside
+            // the info dict); pieces are checked against these, hybrid
+            // ones too
+            if (isV2) {
+                BObject layersObj = metaDict.get("piece layers");
+                BDict pieceLayers = layersObj instanceof BDict
+                                    ? (BDict) layersObj : new BDict();
+                hashTree = new BitHashTree(pieceLength, numPieces);
+                for (int i = 0; i < v2Paths.size(); ++i) {
+                    byte[] root = v2Roots.get(i);
+                    BObject layer = root == null ? null : pieceLayers.get(
+                            new String(root, StandardCharsets.ISO_8859_1));
+                    if (hashTree.addFile(v2Offsets[i], v2Lengths.get(i), root,
+                            layer instanceof BString
+                            ? ((BString) layer).getBytes() : null) == -1) {
+                        logError("error: bad piece layer for "
+                                 + v2Paths.get(i) + " in .torrent file");
+                        return -1;
+                    }
+                }
+                BitPeer.setV2(true);
+            }
+
             // (v) bitfield
             localBitfield = new boolean[numPieces];
             if (isSeeder) {
@@ -480,17 +1625,20 @@ public class BitClient {
             for (int i = 0; i < localBitfield.length; ++i) {
                 localBitfield[i] = isSeeder;   // all true if seeder, else false
             }
+            picker = new BitPicker(fileLength, pieceLength, localBitfield);
+            picker.setWindow(streamWindow);
         } else {
             logError("error: no info field specified in .torrent file");
             return -1;
         }
         // (b) get tracker URL
-        BObject tracker = metaDict.get("announce");
-        if (tracker != null) {
-            trackerURL = tracker.print();
+        BObject announce = metaDict.get("announce");
+        if (announce != null) {
+            trackerURL = announce.print();
         }
         logDebug("got tracker URL " + trackerURL);
-        // (c) initialize torrent file for reading/writing
+        // (c) initialize torrent file(s) for reading/writing; savePath is
+        // the file, or for a multi-file torrent the directory holding them
         if (savePath == null) {
             logError("error: no save location specified");  // .torrent nor CLI
             return -1;
@@ -500,52 +1648,136 @@ public class BitClient {
             savePath = savePath.substring(savePath.lastIndexOf('/') + 1);
             savePath = UPLD_DIR + savePath;
             logDebug("Seeder now has savePath = " + savePath);
-            // make sure file exists and has proper length
-            File source = new File(savePath);
-            if (!source.isFile()) {
-                logError("error: seeder does not have " + savePath);
-                return -1;
-            } else if (source.length() != fileLength) {
-                logError("error: file length differs from torrent file specs");
+        }
+        String[] paths = new String[] { savePath };
+        long[] lengths = new long[] { fileLength };
+        if (filePaths != null) {
+            paths = new String[filePaths.size()];
+            for (int i = 0; i < paths.length; ++i) {
+                paths[i] = filePaths.get(i) == null ? null    // padding
+                           : savePath + File.separator + filePaths.get(i);
+            }
+            lengths = fileLengths;
+        }
+        storage = new BitStorage(paths, lengths, isSeeder);
+        int[] filePrio = parseFilePriorities(paths.length);
+        if (filePrio == null) {
+            return -1;
+        }
+        boolean[] skip = new boolean[paths.length];
+        for (int i = 0; i < paths.length; ++i) {
+            skip[i] = filePrio[i] == BitPicker.PRIORITY_SKIP
+                      && paths[i] != null;
+        }
+        storage.setAllocation(allocation, pieceLength);
+        if (storage.open(isSeeder ? null : skip) == -1) {
+            logError("error: client could not open " + savePath);
+            return -1;
+        }
+        logDebug("opened " + paths.length + " file(s) at " + savePath
+                 + ", " + storage.getAllocation() + " allocation");
+        disk = new BitDiskIO(storage, pieceLength, pieces, hashTree);
+        uploader = new BitUploader(disk, (peer, req, data) ->
+                sendBlock(peer, req.getIndex(), req.getBegin(), data));
+        uploader.setRateLimit(uploadLimit);
+        // piece priorities from file priorities; only wanted pieces count
+        // towards bytesLeft and completion
+        int[] piecePrio = storage.getPiecePriorities(filePrio, pieceLength,
+                                                     numPieces);
+        picker.setPriorities(piecePrio);
+        notNeeded = new boolean[numPieces];
+        bytesLeft = 0;
+        for (int i = 0; i < numPieces; ++i) {
+            notNeeded[i] = localBitfield[i]
+                           || piecePrio[i] == BitPicker.PRIORITY_SKIP;
+            if (!notNeeded[i]) {
+                bytesLeft += picker.getPieceLength(i);
+            }
+        }
+        isComplete = BitLibrary.isAllTrue(notNeeded);
+            
+        // (d) set up timers, handshake stage and welcomer thread
+        random = new Random();
+        timers = new BitTimerWheel(TICK_MS, WHEEL_SLOTS);
+        readyQ = new LinkedList<BitPeer>();
+        inbox = new BitInbox();
+        BitPeer.setInbox(inbox);
+        BitReader.setMaxLength(numPieces);
+        disk.setWakeup(() -> inbox.wakeup());
+        handshaker = new BitHandshaker(infoHash, readyQ);
+        handshaker.setWakeup(() -> inbox.wakeup());
+        handshaker.setManager(manager);
+        welcomer = new BitWelcomer(welcomePort, handshaker);
+        welcomer.start();
+        if (useUtp) {
+            // uTP shares the welcome port number, on UDP
+            utp = new BitUtpSocket(welcomePort);
+            if (utp.bind() == -1) {
                 return -1;
             }
-            try {
-                file = new RandomAccessFile(source, "r");
-                logDebug("Seeder opened file at " + source);
-            } catch (IOException ex) {
-                logError("error: seeder could not open " + savePath);
+            utp.setAcceptor(conn -> handshaker.inbound(conn));
+            utp.start();
+            handshaker.setUtp(utp);
+        }
+        pex = new BitPex(peerList);
+        if (superSeed && isSeeder) {
+            superSeeder = new BitSuperSeeder(numPieces, picker, peerList);
+            logDebug("super-seeding");
+        }
+        BitMessage.registerExtension(BitPex.NAME, pex);
+
+        // (e) embedded tracker, up before our own announce may reach it
+        if (trackerPort != -1) {
+            trackerServer = new BitTrackerServer(trackerPort);
+            if (trackerServer.bind() == -1) {
                 return -1;
             }
-        } else {
-            try {
-                file = new RandomAccessFile(savePath, "rw");
-                file.setLength(fileLength);
-                logDebug("Leecher opened new file at " + savePath);
-            } catch (IOException ex) {
-                logError("error: client could not open " + savePath);
+            trackerServer.start();
+            log.log(Level.INFO, "TRACKER LISTENING ON PORT {}", trackerPort);
+        }
+
+        // (f) DHT node (bootstrapped from main once peers are set up)
+        if (dhtPort != -1) {
+            dht = new BitDHT(dhtPort);
+            if (dht.bind() == -1) {
                 return -1;
             }
         }
-            
-        // (d) set up welcomer thread
-        welcomeQ = new LinkedList<Socket>();
-        welcomer = new BitWelcomer(welcomePort, welcomeQ);
-        welcomer.start();
+
+        // (g) tracker announces (started from main once peers are set up)
+        localPeerID = generatePeerID();
+        if (useTracker && BitTracker.isSupported(trackerURL)) {
+            tracker = new BitTracker(trackerURL, infoHash, localPeerID,
+                                     welcomePort);
+        } else if (useTracker && BitUdpTracker.isSupported(trackerURL)) {
+            tracker = new BitUdpTracker(trackerURL, infoHash, localPeerID,
+                                        welcomePort);
+        } else if (trackerURL != null && useTracker) {
+            logDebug("no support for tracker " + trackerURL);
+        }
 
         return 0;
     }
 
+    /* generatePeerID:  20-byte Azureus-style id, "-BV0001-" + 12 digits */
+    private static byte[] generatePeerID() {
+        StringBuilder sb = new StringBuilder("-BV0001-");
+        Random r = new Random();
+        while (sb.length() < 20) {
+            sb.append((char) ('0' + r.nextInt(10)));
+        }
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
     public static void logError(String str) {
-        System.err.println(str);
+        log.log(Level.ERROR, str);
     }
 
     public static void logDebug(String str) {
-        if (_DEBUG) {
-            System.err.println(str);
-        }
+        log.log(Level.DEBUG, str);
     }
 
     public static void logOutput(String str) {
-        System.out.println(str);
+        log.log(Level.INFO, str);
     }
 }
@@ -0,0 +1,25 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+/* BitConnection:  a reliable byte stream to a peer, so the wire protocol */
+/* runs the same over TCP (BitTcpConnection) and uTP (BitUtpConnection) */
+public interface BitConnection {
+    public InputStream getInputStream() throws IOException;
+
+    public OutputStream getOutputStream() throws IOException;
+
+    public InetAddress getInetAddress();
+
+    public int getPort();
+
+    /* setSoTimeout:  reads block at most ms (0 = forever), then throw */
+    /* SocketTimeoutException */
+    public void setSoTimeout(int ms) throws IOException;
+
+    public void close() throws IOException;
+
+    /* getTransport:  short name for logs, "tcp" or "utp" */
+    public String getTransport();
+}
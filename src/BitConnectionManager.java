@@ -0,0 +1,217 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/* BitConnectionManager:  decides which peers to connect to, and when */
+/* Holds a pool of every address learned from the command line, trackers, */
+/* the DHT and PEX.  New addresses are dialed at most CONNECT_RATE per */
+/* second while under the connection limits; an address that fails or */
+/* drops out waits an exponential backoff before it is dialed again, and */
+/* one that fails MAX_FAILURES times in a row is given up on.  Connected */
+/* peers are scored by throughput, request timeouts and latency, so the */
+/* worst one can make way for a waiting candidate. */
+/* All methods are synchronized: the handshaker, tracker, DHT and PEX */
+/* threads add to the pool while the main loop drains it. */
+public class BitConnectionManager {
+    public static final int MAX_CONNECTIONS = 100;  // connected + half-open
+    public static final int MAX_PEERS = 50;         // connected, per torrent
+    public static final long GRACE = 120000;        // ms before evictable
+    private static final int MAX_POOL = 1000;       // addresses remembered
+    private static final double CONNECT_RATE = 10;  // new connections/s
+    private static final long MIN_BACKOFF = 15000;  // ms, doubles per failure
+    private static final long MAX_BACKOFF = 1800000;
+    private static final int MAX_FAILURES = 8;      // in a row, then give up
+
+    private enum State { WAITING, CONNECTING, CONNECTED, GIVEN_UP }
+
+    /* Candidate:  what is known about one peer address */
+    private static class Candidate {
+        final InetSocketAddress addr;
+        State state = State.WAITING;
+        int failures = 0;          // in a row
+        long nextAttempt = 0;      // ms, while backing off
+
+        Candidate(InetSocketAddress addr) {
+            this.addr = addr;
+        }
+    }
+
+    private final HashMap<InetSocketAddress, Candidate> pool
+            = new HashMap<InetSocketAddress, Candidate>();
+    private final ArrayDeque<Candidate> ready       // due now, in order found
+            = new ArrayDeque<Candidate>();
+    private final PriorityQueue<Candidate> backoff  // by nextAttempt
+            = new PriorityQueue<Candidate>(
+                    (a, b) -> Long.compare(a.nextAttempt, b.nextAttempt));
+    private final Random random = new Random();
+    private double tokens = CONNECT_RATE;           // token bucket
+    private long lastRefill = 0;
+    private int numPeers = 0;                       // connected
+
+    /* addCandidate:  remember a newly learned address; addresses already */
+    /* in the pool keep their state, and new ones are dropped once the */
+    /* pool holds MAX_POOL */
+    public synchronized void addCandidate(InetSocketAddress addr) {
+        if (pool.containsKey(addr) || pool.size() >= MAX_POOL) {
+            return;
+        }
+        Candidate c = new Candidate(addr);
+        pool.put(addr, c);
+        ready.offer(c);
+    }
+
+    /* nextCandidate:  the next address to dial, or null if none is due, */
+    /* the limits are reached, or the connect rate is used up */
+    public synchronized InetSocketAddress nextCandidate(long now, int halfOpen) {
+        tokens = Math.min(CONNECT_RATE,
+                          tokens + (now - lastRefill) * CONNECT_RATE / 1000);
+        lastRefill = now;
+        promote(now);
+        while (!ready.isEmpty()) {
+            Candidate c = ready.peek();
+            if (c.state != State.WAITING) {        // connected inbound since
+                ready.poll();
+                continue;
+            }
+            if (tokens < 1 || numPeers + halfOpen >= MAX_PEERS
+                || numPeers + halfOpen >= MAX_CONNECTIONS) {
+                return null;
+            }
+            tokens -= 1;
+            ready.poll();
+            c.state = State.CONNECTING;
+            return c.addr;
+        }
+        return null;
+    }
+
+    /* hasWaiting:  true if some candidate could be dialed now */
+    public synchronized boolean hasWaiting(long now) {
+        promote(now);
+        for (Candidate c : ready) {
+            if (c.state == State.WAITING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* isFull:  true if no more connections of any kind may be opened */
+    public synchronized boolean isFull(int halfOpen) {
+        return numPeers + halfOpen >= MAX_CONNECTIONS;
+    }
+
+    /* connectFailed:  a dial or handshake to ADDR failed; back off */
+    public synchronized void connectFailed(InetSocketAddress addr) {
+        Candidate c = addr == null ? null : pool.get(addr);
+        if (c != null) {
+            fail(c, System.currentTimeMillis());
+        }
+    }
+
+    /* connected:  a peer finished its handshake and joined the transfer */
+    public synchronized void connected(BitPeer peer) {
+        ++numPeers;
+        peer.connectedAt = System.currentTimeMillis();
+        InetSocketAddress addr = peer.getListenAddress();
+        Candidate c = addr == null ? null : pool.get(addr);
+        if (c != null) {
+            c.state = State.CONNECTED;
+        }
+    }
+
+    /* disconnected:  a connected peer left; FAILURE if it was dropped for */
+    /* misbehaving.  A peer that left early or failed backs off longer */
+    /* each time; one that stayed past GRACE is retried after MIN_BACKOFF */
+    public synchronized void disconnected(BitPeer peer, boolean failure) {
+        --numPeers;
+        InetSocketAddress addr = peer.getListenAddress();
+        if (addr == null) {
+            return;
+        }
+        Candidate c = pool.get(addr);
+        if (c == null) {
+            if (pool.size() >= MAX_POOL) {
+                return;
+            }
+            c = new Candidate(addr);       // inbound peer, listen port known
+            pool.put(addr, c);
+        }
+        long now = System.currentTimeMillis();
+        if (failure || now - peer.connectedAt < GRACE) {
+            fail(c, now);
+        } else {
+            c.failures = 0;
+            retryAt(c, now + MIN_BACKOFF);
+        }
+    }
+
+    /* worstPeer:  the lowest scoring peer connected longer than GRACE, */
+    /* or null if every peer is still new */
+    public static BitPeer worstPeer(List<BitPeer> peers, long now) {
+        BitPeer worst = null;
+        double worstScore = Double.MAX_VALUE;
+        for (BitPeer peer : peers) {
+            if (now - peer.connectedAt < GRACE) {
+                continue;
+            }
+            double s = score(peer);
+            if (s < worstScore) {
+                worst = peer;
+                worstScore = s;
+            }
+        }
+        return worst;
+    }
+
+    /* score:  how useful a peer is; bytes/s exchanged (uploads count */
+    /* half), cut by consecutive request timeouts, snubbing and a long */
+    /* request round trip */
+    public static double score(BitPeer peer) {
+        double s = (peer.getDownloadRate() + peer.getUploadRate() / 2)
+                   / (1 + peer.numTimeouts);
+        if (peer.isSnubbed) {
+            s /= 2;
+        }
+        long srtt = peer.getSrtt();
+        if (srtt > 0) {
+            s /= 1 + srtt / 1000.0;
+        }
+        return s;
+    }
+
+    public synchronized int getPoolSize() {
+        return pool.size();
+    }
+
+    /* fail:  count a failure; back off, or give up after MAX_FAILURES */
+    private void fail(Candidate c, long now) {
+        ++c.failures;
+        if (c.failures >= MAX_FAILURES) {
+            c.state = State.GIVEN_UP;
+            return;
+        }
+        long delay = Math.min(MAX_BACKOFF, MIN_BACKOFF << (c.failures - 1));
+        // jitter so peers dropped together are not redialed together
+        retryAt(c, now + delay + random.nextInt((int) (delay / 4) + 1));
+    }
+
+    private void retryAt(Candidate c, long when) {
+        c.state = State.WAITING;
+        c.nextAttempt = when;
+        backoff.offer(c);
+    }
+
+    /* promote:  move candidates whose backoff has run out to ready */
+    private void promote(long now) {
+        while (!backoff.isEmpty() && backoff.peek().nextAttempt <= now) {
+            Candidate c = backoff.poll();
+            if (c.state == State.WAITING) {
+                ready.offer(c);
+            }
+        }
+    }
+}
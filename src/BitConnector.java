@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/* BitConnector:  opens outbound TCP connections without blocking */
+/* One thread and one Selector drive every outbound attempt at once: */
+/* non-blocking connect with a CONNECT_TIMEOUT deadline, our handshake */
+/* written the moment the connection is up (along with the read for the */
+/* peer's, not after it), then the peer's 68-byte handshake read under */
+/* the HANDSHAKE_TIMEOUT deadline.  At most MAX_IN_FLIGHT attempts run */
+/* at once and the rest queue.  A validated peer is switched to a */
+/* blocking stream and handed back to the handshaker right away, so */
+/* one unreachable address never holds up the others. */
+public class BitConnector extends Thread {
+    private static final int MAX_IN_FLIGHT = 32;        // concurrent attempts
+    private static final int CONNECT_TIMEOUT = 5000;    // ms, TCP connect
+    private static final int HANDSHAKE_TIMEOUT = 10000; // ms, after connect
+    private static final int HANDSHAKE_SIZE = 68;
+    private static final int TICK = 500;                // ms, timeout check
+
+    /* Attempt:  one connection in progress */
+    private static class Attempt {
+        final BitPeer peer;
+        SocketChannel channel = null;
+        ByteBuffer out = null;     // our handshake
+        final ByteBuffer in = ByteBuffer.allocate(HANDSHAKE_SIZE);
+        long deadline = 0;         // ms, for the current phase
+
+        Attempt(BitPeer peer) {
+            this.peer = peer;
+        }
+    }
+
+    private final byte[] infoHash;
+    private final BitHandshaker handshaker;             // gets the results
+    private final LinkedList<Attempt> pending = new LinkedList<Attempt>();
+    private final ArrayList<Attempt> inFlight = new ArrayList<Attempt>();
+    private Selector selector = null;
+    private volatile boolean isStopped = false;
+
+    public BitConnector(byte[] infoHash, BitHandshaker handshaker) {
+        super("BitConnector");
+        setDaemon(true);
+        this.infoHash = infoHash;
+        this.handshaker = handshaker;
+        try {
+            selector = Selector.open();
+        } catch (IOException ex) {
+            BitClient.logError("error: cannot open connector: " + ex);
+        }
+    }
+
+    /* connect:  queue an outbound connection to PEER; the handshaker's */
+    /* finished() is called with the outcome */
+    public void connect(BitPeer peer) {
+        synchronized (pending) {
+            pending.offer(new Attempt(peer));
+        }
+        selector.wakeup();
+    }
+
+    public void stopThread() {
+        isStopped = true;
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (!isStopped) {
+            startPending();
+            try {
+                selector.select(TICK);
+            } catch (IOException ex) {
+                BitClient.logError("warning: connector select failed: " + ex);
+                continue;
+            }
+            ArrayList<Attempt> done = new ArrayList<Attempt>();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Attempt a = (Attempt) key.attachment();
+                if (step(key, a) == -1) {
+                    finish(a, false);
+                } else if (a.out != null && !a.out.hasRemaining()
+                           && !a.in.hasRemaining()) {
+                    key.cancel();
+                    done.add(a);
+                }
+            }
+            // expired attempts
+            long now = System.currentTimeMillis();
+            for (Attempt a : new ArrayList<Attempt>(inFlight)) {
+                if (now >= a.deadline && !done.contains(a)) {
+                    // routine with dead addresses: debug level only
+                    BitClient.logDebug((a.out == null ? "connect to "
+                                                      : "handshake with ")
+                                       + a.peer.getIP() + " timed out");
+                    finish(a, false);
+                }
+            }
+            if (done.isEmpty()) {
+                continue;
+            }
+            // cancelled keys are only deregistered by the next select
+            try {
+                selector.selectNow();
+            } catch (IOException ex) {
+            }
+            for (Attempt a : done) {
+                finish(a, handOver(a) == 0);
+            }
+        }
+    }
+
+    /* startPending:  begin queued attempts while under MAX_IN_FLIGHT */
+    private void startPending() {
+        while (inFlight.size() < MAX_IN_FLIGHT) {
+            Attempt a;
+            synchronized (pending) {
+                a = pending.poll();
+            }
+            if (a == null) {
+                return;
+            }
+            inFlight.add(a);
+            a.deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+            try {
+                a.channel = SocketChannel.open();
+                a.channel.configureBlocking(false);
+                if (a.channel.connect(a.peer.getAddress())) {
+                    a.channel.register(selector, SelectionKey.OP_WRITE, a);
+                } else {
+                    a.channel.register(selector, SelectionKey.OP_CONNECT, a);
+                }
+            } catch (IOException ex) {
+                BitClient.logDebug("failed to connect to peer at "
+                                   + a.peer.getIP() + ": " + ex);
+                finish(a, false);
+            }
+        }
+    }
+
+    /* step:  advance one attempt on a ready key; return -1 on failure */
+    private int step(SelectionKey key, Attempt a) {
+        try {
+            if (key.isConnectable()) {
+                if (!a.channel.finishConnect()) {
+                    return 0;
+                }
+            }
+            if (a.out == null) {
+                // connected: send our handshake and read theirs together
+                a.out = ByteBuffer.wrap(a.peer.generateHandshake(infoHash));
+                a.deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+            }
+            if (a.out.hasRemaining()) {
+                a.channel.write(a.out);
+            }
+            if (key.isReadable() && a.channel.read(a.in) == -1) {
+                BitClient.logDebug("peer at " + a.peer.getIP()
+                                   + " closed during handshake");
+                return -1;
+            }
+            int ops = (a.out.hasRemaining() ? SelectionKey.OP_WRITE : 0)
+                      | (a.in.hasRemaining() ? SelectionKey.OP_READ : 0);
+            if (ops != 0) {
+                key.interestOps(ops);
+            }
+        } catch (IOException ex) {
+            BitClient.logDebug("failed to connect to peer at "
+                               + a.peer.getIP() + ": " + ex);
+            return -1;
+        }
+        return 0;
+    }
+
+    /* handOver:  give a handshaken channel to its peer as a blocking */
+    /* stream and check the handshake; return 0 on success, -1 on failure */
+    private int handOver(Attempt a) {
+        try {
+            a.channel.configureBlocking(true);
+        } catch (IOException ex) {
+            return -1;
+        }
+        a.peer.attach(new BitTcpConnection(a.channel.socket()));
+        return a.peer.acceptHandshake(a.in.array(), infoHash);
+    }
+
+    /* finish:  end an attempt and report it */
+    private void finish(Attempt a, boolean ok) {
+        inFlight.remove(a);
+        if (!ok && a.channel != null) {
+            try {
+                a.channel.close();
+            } catch (IOException ex) {
+            }
+        }
+        handshaker.finished(a.peer, ok);
+    }
+}
@@ -0,0 +1,413 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import util.bencode.*;
+import util.lib.BitLibrary;
+
+/* BitCreate:  makes a .torrent file for a file or a directory */
+/* A directory becomes a multi-file torrent of every regular file under */
+/* it, in path order.  The piece length is the smallest power of two */
+/* that keeps the torrent under TARGET_PIECES pieces (within MIN_PIECE */
+/* and MAX_PIECE) unless given.  Pieces are hashed by THREADS workers, */
+/* each claiming the next run of pieces and reading it with one large */
+/* positional read (READ_SIZE) through a read-only BitStorage, so the */
+/* disk sees a few big, nearly sequential streams; each digest goes to */
+/* its piece's slot, so the result is in order without reordering. */
+/* The metainfo is written with the util.bencode encoder (sorted keys), */
+/* so its info hash is the one BitClient computes when it loads it. */
+/* With -v 2 the torrent is v2 (BEP 52): a file tree with each file's */
+/* SHA-256 Merkle root, and piece layers; every file starts on a piece */
+/* boundary, so the layout has padding between files.  -v hybrid adds */
+/* the v1 pieces and files (padding listed as attr "p" files) to that. */
+/* */
+/*   java BitClient create [-a announceURL] [-p pieceKB] [-t threads] */
+/*                         [-v 1|2|hybrid] [-o out.torrent] path */
+public class BitCreate {
+    private static final int MIN_PIECE = 32768;
+    private static final int MAX_PIECE = 16 << 20;
+    private static final int TARGET_PIECES = 1500;
+    private static final int READ_SIZE = 4 << 20;       // bytes per read
+    private static final int SHA_LENGTH = 20;
+    private static final String CREATED_BY = "Beaver";
+
+    public static void main(String[] args) {
+        String announce = null;
+        String out = null;
+        int pieceLength = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String version = "1";
+        if (args.length == 0 || args.length % 2 == 0
+            || BitLibrary.hasStr(args, "-h")) {
+            System.err.println("usage: java BitClient create [FLAGS]* path");
+            System.err.println("\t-a URL     \t Tracker announce URL");
+            System.err.println("\t-o file    \t Output (default name.torrent)");
+            System.err.println("\t-p KB      \t Piece length (default auto)");
+            System.err.println("\t-t threads \t Hashing threads (default cores)");
+            System.err.println("\t-v version \t 1, 2 or hybrid (default 1)");
+            return;
+        }
+        for (int i = 0; i < args.length - 1; i += 2) {
+            try {
+                if (args[i].equals("-a")) {
+                    announce = args[i+1];
+                } else if (args[i].equals("-o")) {
+                    out = args[i+1];
+                } else if (args[i].equals("-p")) {
+                    pieceLength = Integer.parseInt(args[i+1]) * 1024;
+                } else if (args[i].equals("-t")) {
+                    threads = Math.max(1, Integer.parseInt(args[i+1]));
+                } else if (args[i].equals("-v")) {
+                    version = args[i+1];
+                }
+            } catch (NumberFormatException ex) {
+                System.err.println("error: invalid number " + args[i+1]);
+                return;
+            }
+        }
+        if (!version.equals("1") && !version.equals("2")
+            && !version.equals("hybrid")) {
+            System.err.println("error: version must be 1, 2 or hybrid");
+            return;
+        }
+        if (pieceLength != 0 && (pieceLength < 16384
+                                 || Integer.bitCount(pieceLength) != 1)) {
+            System.err.println("error: piece length must be a power of two "
+                               + "of at least 16 KB");
+            return;
+        }
+        Path root = Paths.get(args[args.length - 1]).normalize();
+        if (root.getFileName() == null) {
+            root = root.toAbsolutePath();
+        }
+        String name = root.getFileName().toString();
+        if (out == null) {
+            out = name + ".torrent";
+        }
+        create(root, name, announce, pieceLength, threads,
+               !version.equals("2"), !version.equals("1"), out);
+    }
+
+    /* create:  hash ROOT and write its metainfo to OUT, with v1 and/or */
+    /* v2 hashes */
+    /* return 0 on success, -1 on failure */
+    public static int create(Path root, String name, String announce,
+                             int pieceLength, int threads, boolean v1,
+                             boolean v2, String out) {
+        // (i) the files, in path order
+        List<Path> files = new ArrayList<Path>();
+        boolean isDir = Files.isDirectory(root);
+        if (isDir) {
+            try (Stream<Path> walk = Files.walk(root)) {
+                files = walk.filter(p -> Files.isRegularFile(p))
+                            .sorted()
+                            .collect(Collectors.toList());
+            } catch (IOException ex) {
+                System.err.println("error: cannot list " + root);
+                return -1;
+            }
+        } else if (Files.isRegularFile(root)) {
+            files.add(root);
+        } else {
+            System.err.println("error: no such file or directory " + root);
+            return -1;
+        }
+        String[] paths = new String[files.size()];
+        long[] lengths = new long[files.size()];
+        long total = 0;
+        for (int i = 0; i < paths.length; ++i) {
+            paths[i] = files.get(i).toString();
+            try {
+                lengths[i] = Files.size(files.get(i));
+            } catch (IOException ex) {
+                System.err.println("error: cannot read " + paths[i]);
+                return -1;
+            }
+            total += lengths[i];
+        }
+        if (total == 0) {
+            System.err.println("error: nothing to share in " + root);
+            return -1;
+        }
+        if (pieceLength == 0) {
+            pieceLength = choosePieceLength(total);
+        }
+
+        // (ii) v2: start every file on a piece boundary, padding (a null
+        // path) before it as needed
+        List<String> laidPaths = new ArrayList<String>();
+        List<Long> laidLengths = new ArrayList<Long>();
+        long[] offsets = new long[paths.length];
+        long laid = 0;
+        for (int i = 0; i < paths.length; ++i) {
+            if (v2 && laid % pieceLength != 0 && lengths[i] > 0) {
+                laidPaths.add(null);
+                laidLengths.add(pieceLength - laid % pieceLength);
+                laid += pieceLength - laid % pieceLength;
+            }
+            offsets[i] = laid;
+            laidPaths.add(paths[i]);
+            laidLengths.add(lengths[i]);
+            laid += lengths[i];
+        }
+
+        // (iii) hash the pieces
+        long start = System.nanoTime();
+        int numPieces = (int) ((laid + pieceLength - 1) / pieceLength);
+        byte[] hashes = v1 ? new byte[numPieces * SHA_LENGTH] : null;
+        byte[] pieceHashes = v2 ? new byte[numPieces * BitMerkle.HASH_LENGTH]
+                                : null;
+        if (hashPieces(laidPaths.toArray(new String[0]),
+                       laidLengths.stream().mapToLong(Long::longValue)
+                                  .toArray(),
+                       laid, pieceLength, threads, hashes, pieceHashes)
+            == -1) {
+            return -1;
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        // (iv) the metainfo
+        BDict info = new BDict();
+        BDict meta = new BDict();
+        info.put("name", new BString(utf8(name)));
+        info.put("piece length", new BNumber(pieceLength));
+        if (v1) {
+            info.put("pieces", new BString(
+                    new String(hashes, StandardCharsets.ISO_8859_1)));
+            if (isDir) {
+                BList list = new BList();
+                int pads = 0;
+                for (int i = 0; i < laidPaths.size(); ++i) {
+                    BList path = new BList();
+                    BDict f = new BDict();
+                    f.put("length", new BNumber(laidLengths.get(i)));
+                    if (laidPaths.get(i) == null) {
+                        f.put("attr", new BString("p"));
+                        path.add(new BString(".pad"));
+                        path.add(new BString(Integer.toString(pads++)));
+                    } else {
+                        for (Path elem : root.relativize(
+                                 Paths.get(laidPaths.get(i)))) {
+                            path.add(new BString(utf8(elem.toString())));
+                        }
+                    }
+                    f.put("path", path);
+                    list.add(f);
+                }
+                info.put("files", list);
+            } else {
+                info.put("length", new BNumber(total));
+            }
+        }
+        if (v2) {
+            BDict tree = new BDict();
+            BDict layers = new BDict();
+            int leavesPerPiece = pieceLength / BitMerkle.BLOCK;
+            int pieceLayer = BitMerkle.log2(leavesPerPiece);
+            for (int i = 0; i < paths.length; ++i) {
+                BDict leaf = new BDict();
+                leaf.put("length", new BNumber(lengths[i]));
+                if (lengths[i] > 0) {
+                    // the root over the file's piece hashes; a one-piece
+                    // file's piece hash is its root
+                    int first = (int) (offsets[i] / pieceLength);
+                    int n = (int) ((lengths[i] + pieceLength - 1)
+                                   / pieceLength);
+                    byte[][] nodes = new byte[n][];
+                    for (int p = 0; p < n; ++p) {
+                        nodes[p] = Arrays.copyOfRange(pieceHashes,
+                                (first + p) * BitMerkle.HASH_LENGTH,
+                                (first + p + 1) * BitMerkle.HASH_LENGTH);
+                    }
+                    byte[] fileRoot = n == 1 ? nodes[0]
+                            : BitMerkle.root(nodes, BitMerkle.nextPow2(n),
+                                             pieceLayer);
+                    String key = new String(fileRoot,
+                                            StandardCharsets.ISO_8859_1);
+                    leaf.put("pieces root", new BString(key));
+                    if (n > 1) {
+                        layers.put(key, new BString(new String(
+                                Arrays.copyOfRange(pieceHashes,
+                                        first * BitMerkle.HASH_LENGTH,
+                                        (first + n) * BitMerkle.HASH_LENGTH),
+                                StandardCharsets.ISO_8859_1)));
+                    }
+                }
+                BDict dir = tree;
+                Path rel = isDir ? root.relativize(files.get(i))
+                                 : Paths.get(name);
+                for (Path elem : rel) {
+                    String key = utf8(elem.toString());
+                    if (!dir.containsKey(key)) {
+                        dir.put(key, new BDict());
+                    }
+                    dir = (BDict) dir.get(key);
+                }
+                dir.put("", leaf);
+            }
+            info.put("meta version", new BNumber(2));
+            info.put("file tree", tree);
+            meta.put("piece layers", layers);
+        }
+        if (announce != null) {
+            meta.put("announce", new BString(announce));
+        }
+        meta.put("created by", new BString(CREATED_BY));
+        meta.put("creation date",
+                 new BNumber(System.currentTimeMillis() / 1000));
+        meta.put("info", info);
+        try {
+            Files.write(Paths.get(out), meta.encode()
+                        .getBytes(StandardCharsets.ISO_8859_1));
+        } catch (IOException ex) {
+            System.err.println("error: cannot write " + out);
+            return -1;
+        }
+
+        // a v2-only torrent's swarm is named by its truncated SHA-256
+        byte[] infoBytes = info.encode().getBytes(StandardCharsets.ISO_8859_1);
+        byte[] infoHash = v1
+                ? BitLibrary.getSHA1(infoBytes, 0, infoBytes.length)
+                : Arrays.copyOf(BitMerkle.sha256(infoBytes, 0,
+                                                 infoBytes.length),
+                                SHA_LENGTH);
+        System.out.println(String.format(
+                "created %s: %d file(s), %d bytes, %d pieces of %d KB%s",
+                out, paths.length, total, numPieces, pieceLength / 1024,
+                v1 && v2 ? ", hybrid" : v2 ? ", v2" : ""));
+        System.out.println("info hash " + BitLibrary.bytesToHex(infoHash));
+        System.out.println(String.format(
+                "hashed %.1f MB in %.2f s (%.1f MB/s) with %d thread(s)",
+                total / 1048576.0, secs, total / 1048576.0 / secs, threads));
+        return 0;
+    }
+
+    /* choosePieceLength:  smallest power of two giving at most */
+    /* TARGET_PIECES pieces, within MIN_PIECE..MAX_PIECE */
+    static int choosePieceLength(long total) {
+        int length = MIN_PIECE;
+        while (length < MAX_PIECE
+               && (total + length - 1) / length > TARGET_PIECES) {
+            length <<= 1;
+        }
+        return length;
+    }
+
+    /* hashPieces:  hash every piece of the files (null paths are padding) */
+    /* into HASHES, their SHA1s in order, and PIECEHASHES, their v2 */
+    /* piece hashes: the Merkle root over the 16 KiB blocks of the piece's */
+    /* file (padded to a full piece, or for a one-piece file to a power */
+    /* of two blocks); either may be null */
+    /* return -1 on failure and 0 otherwise */
+    private static int hashPieces(String[] paths, long[] lengths,
+                                  long total, int pieceLength, int threads,
+                                  byte[] hashes, byte[] pieceHashes) {
+        int numPieces = (int) ((total + pieceLength - 1) / pieceLength);
+        // v2: how much of each piece is its file's, and its leaf width
+        int[] pieceBytes = new int[numPieces];
+        int[] pieceWidth = new int[numPieces];
+        long offset = 0;
+        for (int i = 0; i < paths.length; offset += lengths[i++]) {
+            if (paths[i] == null) {
+                continue;
+            }
+            for (long o = offset; o < offset + lengths[i]; o += pieceLength) {
+                int p = (int) (o / pieceLength);
+                pieceBytes[p] = (int) Math.min(pieceLength,
+                                               offset + lengths[i] - o);
+                pieceWidth[p] = lengths[i] > pieceLength
+                        ? pieceLength / BitMerkle.BLOCK
+                        : BitMerkle.nextPow2((pieceBytes[p] + BitMerkle.BLOCK
+                                              - 1) / BitMerkle.BLOCK);
+            }
+        }
+        BitStorage storage = new BitStorage(paths, lengths, true);
+        if (storage.open(null) == -1) {
+            return -1;
+        }
+        int perRun = Math.max(1, READ_SIZE / pieceLength);
+        int numRuns = (numPieces + perRun - 1) / perRun;
+        AtomicInteger nextRun = new AtomicInteger(0);
+        AtomicInteger failed = new AtomicInteger(0);
+
+        Thread[] workers = new Thread[Math.min(threads, numRuns)];
+        for (int t = 0; t < workers.length; ++t) {
+            workers[t] = new Thread(() -> {
+                MessageDigest md;
+                try {
+                    md = MessageDigest.getInstance("SHA-1");
+                } catch (NoSuchAlgorithmException ex) {
+                    ex.printStackTrace();
+                    failed.incrementAndGet();
+                    return;
+                }
+                byte[] buf = new byte[perRun * pieceLength];
+                int run;
+                while (failed.get() == 0
+                       && (run = nextRun.getAndIncrement()) < numRuns) {
+                    int first = run * perRun;
+                    int last = Math.min(numPieces, first + perRun);
+                    long runStart = (long) first * pieceLength;
+                    int len = (int) Math.min(buf.length, total - runStart);
+                    if (storage.read(runStart, ByteBuffer.wrap(buf, 0, len))
+                        == -1) {
+                        System.err.println("error: cannot read at "
+                                           + runStart);
+                        failed.incrementAndGet();
+                        return;
+                    }
+                    for (int p = first; p < last; ++p) {
+                        int off = (p - first) * pieceLength;
+                        if (pieceHashes != null) {
+                            byte[] root = BitMerkle.root(
+                                    BitMerkle.leaves(buf, off, pieceBytes[p]),
+                                    pieceWidth[p], 0);
+                            System.arraycopy(root, 0, pieceHashes,
+                                             p * BitMerkle.HASH_LENGTH,
+                                             BitMerkle.HASH_LENGTH);
+                        }
+                        if (hashes == null) {
+                            continue;
+                        }
+                        md.update(buf, off, Math.min(pieceLength, len - off));
+                        try {
+                            md.digest(hashes, p * SHA_LENGTH, SHA_LENGTH);
+                        } catch (DigestException ex) {
+                            ex.printStackTrace();
+                            failed.incrementAndGet();
+                            return;
+                        }
+                    }
+                }
+            }, "BitCreate");
+            workers[t].start();
+        }
+        for (Thread w : workers) {
+            try {
+                w.join();
+            } catch (InterruptedException ex) {
+                failed.incrementAndGet();
+            }
+        }
+        storage.close();
+        return failed.get() == 0 ? 0 : -1;
+    }
+
+    /* utf8:  a name as bencode wants it, UTF-8 bytes one char per byte */
+    private static String utf8(String s) {
+        return new String(s.getBytes(StandardCharsets.UTF_8),
+                          StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,696 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import util.bencode.*;
+import util.lib.BitLibrary;
+import util.lib.BitTimerWheel;
+
+/* BitDHT:  mainline DHT node (BEP 5) for trackerless peer discovery */
+/* Runs on one UDP socket and answers ping, find_node, get_peers and */
+/* announce_peer.  Searches are iterative get_peers lookups (at most ALPHA */
+/* queries in flight, converging on the K closest nodes) that report peers */
+/* as they arrive and then announce us to the closest nodes that gave a */
+/* token.  All state belongs to this thread; other threads hand it work */
+/* through bootstrap() and search().  KRPC messages are bencoded with */
+/* util.bencode.  IPv4 only. */
+public class BitDHT extends Thread {
+    private static final int K = BitRoutingTable.K;
+    private static final int ALPHA = 3;                 // queries in flight
+    private static final int MAX_CANDIDATES = 3 * K;    // per lookup
+    private static final int MAX_VALUES = 50;           // peers per reply
+    private static final int MAX_STORED_PEERS = 1000;   // per info hash
+    private static final int MAX_STORED_TORRENTS = 10000;
+    private static final int MAX_PACKET = 2048;
+    private static final long QUERY_TIMEOUT = 2000;     // ms
+    private static final long TOKEN_INTERVAL = 300000;  // ms, secret rotation
+    private static final long PEER_TTL = 1800000;       // ms, announced peers
+    private static final long SEARCH_INTERVAL = 900000; // ms, re-announce
+    private static final long SEARCH_RETRY = 30000;     // ms, if none replied
+    private static final long REFRESH_INTERVAL = 900000;// ms, self lookup
+    private static final int TICK_MS = 100;
+    private static final int WHEEL_SLOTS = 512;
+
+    // states of a lookup candidate
+    private static final int NEW = 0;
+    private static final int PENDING = 1;
+    private static final int DONE = 2;
+    private static final int FAILED = 3;
+
+    private final int port;
+    private final byte[] localId = new byte[20];
+    private final BitRoutingTable table;
+    private final BitTimerWheel timers = new BitTimerWheel(TICK_MS, WHEEL_SLOTS);
+    private final Random random = new Random();
+    private DatagramSocket socket = null;
+    private final Map<String, Call> calls = new HashMap<String, Call>();
+    private final Map<String, LinkedHashMap<InetSocketAddress, Long>> store
+            = new HashMap<String, LinkedHashMap<InetSocketAddress, Long>>();
+    private final List<Search> searches = new ArrayList<Search>();
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    private byte[] secret = new byte[20];               // for tokens
+    private byte[] prevSecret = new byte[20];
+    private int nextTid = 0;
+    private volatile int numNodes = 0;
+    private volatile boolean isStopped = false;
+
+    /* Call:  a query waiting for its reply */
+    private static final class Call {
+        final InetSocketAddress addr;
+        final Lookup lookup;                 // null outside lookups
+        final Candidate cand;
+        BitTimerWheel.Timeout timeout;
+
+        Call(InetSocketAddress addr, Lookup lookup, Candidate cand) {
+            this.addr = addr;
+            this.lookup = lookup;
+            this.cand = cand;
+        }
+    }
+
+    /* Candidate:  a node a lookup may query */
+    private static final class Candidate {
+        byte[] id;                           // null for bootstrap addresses
+        final InetSocketAddress addr;
+        int state = NEW;
+        byte[] token = null;                 // from its get_peers reply
+
+        Candidate(byte[] id, InetSocketAddress addr) {
+            this.id = id;
+            this.addr = addr;
+        }
+    }
+
+    /* Search:  a torrent we look for (and announce to) periodically */
+    private final class Search {
+        final byte[] infoHash;
+        final int port;                      // announced; -1 to only look
+        final Consumer<InetSocketAddress> onPeer;
+        final Set<InetSocketAddress> found = new HashSet<InetSocketAddress>();
+        final BitTimerWheel.Timeout timer;
+        Lookup running = null;
+        int responders = 0;                  // of the last lookup
+
+        Search(byte[] infoHash, int port, Consumer<InetSocketAddress> onPeer) {
+            this.infoHash = infoHash;
+            this.port = port;
+            this.onPeer = onPeer;
+            this.timer = timers.newTimeout(() -> startSearch(this));
+        }
+    }
+
+    public BitDHT(int port) {
+        super("BitDHT");
+        setDaemon(true);
+        this.port = port;
+        random.nextBytes(localId);
+        random.nextBytes(secret);
+        random.nextBytes(prevSecret);
+        table = new BitRoutingTable(localId);
+    }
+
+    /* bind:  open the UDP socket; return 0 on success, -1 on error */
+    public int bind() {
+        try {
+            socket = new DatagramSocket(port);
+            socket.setSoTimeout(TICK_MS);
+        } catch (IOException ex) {
+            BitClient.logError("error: DHT cannot listen on port " + port);
+            ex.printStackTrace();
+            return -1;
+        }
+        timers.scheduleRepeating(() -> rotateSecret(), TOKEN_INTERVAL);
+        timers.scheduleRepeating(() -> refresh(), REFRESH_INTERVAL);
+        return 0;
+    }
+
+    public void stopThread() {
+        isStopped = true;
+    }
+
+    public byte[] getLocalId() {
+        return localId;
+    }
+
+    /* getNumNodes:  size of the routing table */
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    /* bootstrap:  join the DHT through a node whose id is not known yet */
+    public void bootstrap(final InetSocketAddress addr) {
+        submit(() -> {
+            Lookup lookup = new Lookup(localId, null);
+            lookup.add(null, addr);
+            lookup.step();
+        });
+    }
+
+    /* search:  find peers for infoHash, now and every SEARCH_INTERVAL, and */
+    /* announce port for it unless port is -1; new peers go to onPeer on the */
+    /* DHT thread */
+    public void search(byte[] infoHash, int port,
+                       Consumer<InetSocketAddress> onPeer) {
+        final Search search = new Search(infoHash.clone(), port, onPeer);
+        submit(() -> {
+            searches.add(search);
+            startSearch(search);
+        });
+    }
+
+    private void submit(Runnable task) {
+        synchronized (tasks) {
+            tasks.offer(task);
+        }
+    }
+
+    /* run:  receive KRPC messages, run submitted tasks and timers */
+    public void run() {
+        byte[] buf = new byte[MAX_PACKET];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!isStopped) {
+            while (true) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                }
+                if (task == null) {
+                    break;
+                }
+                task.run();
+            }
+            timers.advance(System.currentTimeMillis());
+            if (numNodes == 0 && table.size() > 0) {
+                retrySearches();    // first contact, e.g. a node joined us
+            }
+            numNodes = table.size();
+            try {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+                receive(packet, System.currentTimeMillis());
+            } catch (SocketTimeoutException ex) {
+                // nothing arrived this tick
+            } catch (IOException ex) {
+                BitClient.logError("warning: DHT receive failed: " + ex);
+            }
+        }
+        socket.close();
+    }
+
+    /* receive:  decode one datagram and dispatch it */
+    private void receive(DatagramPacket packet, long now) {
+        if (!(packet.getAddress() instanceof Inet4Address)) {
+            return;
+        }
+        InetSocketAddress from = (InetSocketAddress) packet.getSocketAddress();
+        BDict msg;
+        try {
+            BObject[] objs = BDecoder.read(new String(packet.getData(), 0,
+                    packet.getLength(), StandardCharsets.ISO_8859_1));
+            if (objs.length != 1 || !(objs[0] instanceof BDict)) {
+                return;
+            }
+            msg = (BDict) objs[0];
+        } catch (RuntimeException ex) {
+            return;    // not bencoded; ignore it
+        }
+        if (!(msg.get("t") instanceof BString)
+            || !(msg.get("y") instanceof BString)) {
+            return;
+        }
+        String tid = ((BString) msg.get("t")).getString();
+        String type = ((BString) msg.get("y")).getString();
+        if (type.equals("q")) {
+            handleQuery(msg, tid, from, now);
+        } else if (type.equals("r") || type.equals("e")) {
+            handleReply(msg, tid, type, from, now);
+        }
+    }
+
+    /* handleQuery:  answer ping, find_node, get_peers and announce_peer */
+    private void handleQuery(BDict msg, String tid, InetSocketAddress from,
+                             long now) {
+        if (!(msg.get("q") instanceof BString)
+            || !(msg.get("a") instanceof BDict)) {
+            sendError(tid, from, 203, "Protocol Error");
+            return;
+        }
+        String method = ((BString) msg.get("q")).getString();
+        BDict args = (BDict) msg.get("a");
+        byte[] id = getBytes(args, "id", 20);
+        if (id == null) {
+            sendError(tid, from, 203, "Protocol Error");
+            return;
+        }
+        table.seen(id, from, now);
+
+        BDict r = new BDict();
+        r.put("id", toBString(localId));
+        if (method.equals("ping")) {
+            // the id is the whole answer
+        } else if (method.equals("find_node")) {
+            byte[] target = getBytes(args, "target", 20);
+            if (target == null) {
+                sendError(tid, from, 203, "Protocol Error");
+                return;
+            }
+            r.put("nodes", compactNodes(target));
+        } else if (method.equals("get_peers")) {
+            byte[] infoHash = getBytes(args, "info_hash", 20);
+            if (infoHash == null) {
+                sendError(tid, from, 203, "Protocol Error");
+                return;
+            }
+            r.put("token", toBString(token(from.getAddress(), secret)));
+            // nodes as well as values, so lookups keep converging
+            BList values = storedPeers(infoHash, now);
+            if (!values.isEmpty()) {
+                r.put("values", values);
+            }
+            r.put("nodes", compactNodes(infoHash));
+        } else if (method.equals("announce_peer")) {
+            byte[] infoHash = getBytes(args, "info_hash", 20);
+            byte[] token = getBytes(args, "token", -1);
+            if (infoHash == null || token == null
+                || !(Arrays.equals(token, token(from.getAddress(), secret))
+                     || Arrays.equals(token,
+                                      token(from.getAddress(), prevSecret)))) {
+                sendError(tid, from, 203, "Bad Token");
+                return;
+            }
+            int peerPort = from.getPort();
+            if (!(args.get("implied_port") instanceof BNumber)
+                || ((BNumber) args.get("implied_port")).getNumber() == 0) {
+                if (!(args.get("port") instanceof BNumber)) {
+                    sendError(tid, from, 203, "Protocol Error");
+                    return;
+                }
+                peerPort = ((BNumber) args.get("port")).getNumber();
+            }
+            if (peerPort > 0 && peerPort <= 0xffff) {
+                storePeer(infoHash, new InetSocketAddress(from.getAddress(),
+                                                          peerPort), now);
+            }
+        } else {
+            sendError(tid, from, 204, "Method Unknown");
+            return;
+        }
+        BDict reply = new BDict();
+        reply.put("t", new BString(tid));
+        reply.put("y", new BString("r"));
+        reply.put("r", r);
+        send(reply, from);
+    }
+
+    /* handleReply:  match a response or error to the query it answers */
+    private void handleReply(BDict msg, String tid, String type,
+                             InetSocketAddress from, long now) {
+        Call call = calls.get(tid);
+        if (call == null || !call.addr.equals(from)) {
+            return;    // late, or not from the node we asked
+        }
+        calls.remove(tid);
+        timers.cancel(call.timeout);
+        BDict r = msg.get("r") instanceof BDict ? (BDict) msg.get("r") : null;
+        byte[] id = r == null ? null : getBytes(r, "id", 20);
+        if (type.equals("e") || id == null) {
+            callFailed(call);
+            return;
+        }
+        table.seen(id, from, now);
+        if (call.lookup != null) {
+            call.cand.id = id;
+            call.lookup.answered(call.cand, r);
+        }
+    }
+
+    /* query:  send a KRPC query and expect a reply within QUERY_TIMEOUT */
+    private void query(InetSocketAddress addr, String method, BDict args,
+                       Lookup lookup, Candidate cand) {
+        final String tid = newTid();
+        args.put("id", toBString(localId));
+        BDict msg = new BDict();
+        msg.put("t", new BString(tid));
+        msg.put("y", new BString("q"));
+        msg.put("q", new BString(method));
+        msg.put("a", args);
+        Call call = new Call(addr, lookup, cand);
+        call.timeout = timers.schedule(() -> timedOut(tid), QUERY_TIMEOUT);
+        calls.put(tid, call);
+        send(msg, addr);
+    }
+
+    private void timedOut(String tid) {
+        Call call = calls.remove(tid);
+        if (call != null) {
+            callFailed(call);
+        }
+    }
+
+    private void callFailed(Call call) {
+        table.failed(call.addr);
+        if (call.lookup != null) {
+            call.lookup.failed(call.cand);
+        }
+    }
+
+    private void send(BDict msg, InetSocketAddress addr) {
+        byte[] data = msg.encode().getBytes(StandardCharsets.ISO_8859_1);
+        try {
+            socket.send(new DatagramPacket(data, data.length, addr));
+        } catch (IOException ex) {
+            BitClient.logDebug("DHT send to " + addr + " failed: " + ex);
+        }
+    }
+
+    private void sendError(String tid, InetSocketAddress addr, int code,
+                           String message) {
+        BList e = new BList();
+        e.add(new BNumber(code));
+        e.add(new BString(message));
+        BDict msg = new BDict();
+        msg.put("t", new BString(tid));
+        msg.put("y", new BString("e"));
+        msg.put("e", e);
+        send(msg, addr);
+    }
+
+    /* newTid:  2-byte transaction id */
+    private String newTid() {
+        nextTid = (nextTid + 1) & 0xffff;
+        return new String(new char[] {(char) (nextTid >> 8),
+                                      (char) (nextTid & 0xff)});
+    }
+
+    /* --- searches and lookups ------------------------------------------- */
+
+    private void startSearch(Search search) {
+        if (search.running != null) {
+            return;
+        }
+        search.running = new Lookup(search.infoHash, search);
+        search.running.step();
+    }
+
+    /* searchDone:  schedule the next lookup, sooner if nobody answered */
+    private void searchDone(Search search, int responders) {
+        search.running = null;
+        search.responders = responders;
+        timers.reschedule(search.timer, responders > 0 ? SEARCH_INTERVAL
+                                                       : SEARCH_RETRY);
+    }
+
+    /* refresh:  look up our own id to fill the buckets near us */
+    private void refresh() {
+        new Lookup(localId, null).step();
+    }
+
+    /* retrySearches:  once we know some nodes, rerun searches that had */
+    /* nobody to ask */
+    private void retrySearches() {
+        for (Search search : searches) {
+            if (search.running == null && search.responders == 0) {
+                timers.cancel(search.timer);
+                startSearch(search);
+            }
+        }
+    }
+
+    /* Lookup:  one iterative find_node (search == null) or get_peers */
+    private final class Lookup {
+        final byte[] target;
+        final Search search;
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        final Set<InetSocketAddress> seen = new HashSet<InetSocketAddress>();
+        int inFlight = 0;
+        int responders = 0;
+        boolean done = false;
+
+        Lookup(byte[] target, Search search) {
+            this.target = target;
+            this.search = search;
+            for (BitDHTNode node : table.closest(target, K)) {
+                add(node.getId(), node.getAddress());
+            }
+        }
+
+        /* add:  insert a node in distance order, keeping MAX_CANDIDATES */
+        void add(byte[] id, InetSocketAddress addr) {
+            if ((id != null && Arrays.equals(id, localId)) || !seen.add(addr)) {
+                return;
+            }
+            Candidate c = new Candidate(id, addr);
+            int i = 0;
+            while (i < candidates.size() && closer(candidates.get(i), c)) {
+                ++i;
+            }
+            if (i >= MAX_CANDIDATES) {
+                return;
+            }
+            candidates.add(i, c);
+            if (candidates.size() > MAX_CANDIDATES) {
+                candidates.remove(candidates.size() - 1);
+            }
+        }
+
+        /* closer:  true if a sorts before b; unknown ids go first */
+        boolean closer(Candidate a, Candidate b) {
+            if (a.id == null) {
+                return true;
+            }
+            return b.id != null
+                   && BitRoutingTable.compareDistance(target, a.id, b.id) <= 0;
+        }
+
+        /* step:  query new nodes among the K closest not known to be dead */
+        void step() {
+            if (done) {
+                return;
+            }
+            int considered = 0;
+            for (Candidate c : candidates) {
+                if (c.state == FAILED) {
+                    continue;
+                }
+                if (++considered > K || inFlight >= ALPHA) {
+                    break;
+                }
+                if (c.state == NEW) {
+                    c.state = PENDING;
+                    ++inFlight;
+                    BDict args = new BDict();
+                    if (search != null) {
+                        args.put("info_hash", toBString(target));
+                        query(c.addr, "get_peers", args, this, c);
+                    } else {
+                        args.put("target", toBString(target));
+                        query(c.addr, "find_node", args, this, c);
+                    }
+                }
+            }
+            if (inFlight == 0) {
+                finish();
+            }
+        }
+
+        void answered(Candidate c, BDict r) {
+            --inFlight;
+            c.state = DONE;
+            ++responders;
+            byte[] token = getBytes(r, "token", -1);
+            if (token != null) {
+                c.token = token;
+            }
+            if (search != null && r.get("values") instanceof BList) {
+                for (BObject v : (BList) r.get("values")) {
+                    InetSocketAddress peer = v instanceof BString
+                            ? decodeAddress(((BString) v).getBytes(), 0) : null;
+                    if (peer != null && search.found.add(peer)) {
+                        search.onPeer.accept(peer);
+                    }
+                }
+            }
+            byte[] nodes = getBytes(r, "nodes", -1);
+            if (nodes != null) {
+                for (int off = 0; off + 26 <= nodes.length; off += 26) {
+                    InetSocketAddress addr = decodeAddress(nodes, off + 20);
+                    if (addr != null) {
+                        add(Arrays.copyOfRange(nodes, off, off + 20), addr);
+                    }
+                }
+            }
+            step();
+        }
+
+        void failed(Candidate c) {
+            --inFlight;
+            c.state = FAILED;
+            step();
+        }
+
+        /* finish:  announce to the closest nodes that gave us a token */
+        void finish() {
+            done = true;
+            if (search == null) {
+                if (responders > 0) {
+                    retrySearches();
+                }
+                return;
+            }
+            if (search.port != -1) {
+                int n = 0;
+                for (Candidate c : candidates) {
+                    if (c.state != DONE || c.token == null) {
+                        continue;
+                    }
+                    BDict args = new BDict();
+                    args.put("info_hash", toBString(target));
+                    args.put("port", new BNumber(search.port));
+                    args.put("token", toBString(c.token));
+                    args.put("implied_port", new BNumber(0));
+                    query(c.addr, "announce_peer", args, null, null);
+                    if (++n == K) {
+                        break;
+                    }
+                }
+            }
+            searchDone(search, responders);
+        }
+    }
+
+    /* --- tokens and the peer store -------------------------------------- */
+
+    /* token:  SHA1(secret + ip), truncated; valid for two rotations */
+    private static byte[] token(InetAddress addr, byte[] secret) {
+        byte[] ip = addr.getAddress();
+        byte[] data = Arrays.copyOf(secret, secret.length + ip.length);
+        System.arraycopy(ip, 0, data, secret.length, ip.length);
+        return Arrays.copyOf(BitLibrary.getSHA1(data, 0, data.length), 8);
+    }
+
+    /* rotateSecret:  retire the old secret and expire stored peers */
+    private void rotateSecret() {
+        prevSecret = secret;
+        secret = new byte[20];
+        random.nextBytes(secret);
+        long now = System.currentTimeMillis();
+        Iterator<LinkedHashMap<InetSocketAddress, Long>> it
+                = store.values().iterator();
+        while (it.hasNext()) {
+            LinkedHashMap<InetSocketAddress, Long> peers = it.next();
+            peers.values().removeIf(expiry -> expiry <= now);
+            if (peers.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /* storePeer:  remember an announced peer; IPv4 only, since values */
+    /* are 6-byte compact addresses */
+    private void storePeer(byte[] infoHash, InetSocketAddress peer, long now) {
+        if (!(peer.getAddress() instanceof Inet4Address)) {
+            return;
+        }
+        String key = new String(infoHash, StandardCharsets.ISO_8859_1);
+        LinkedHashMap<InetSocketAddress, Long> peers = store.get(key);
+        if (peers == null) {
+            if (store.size() >= MAX_STORED_TORRENTS) {
+                return;
+            }
+            peers = new LinkedHashMap<InetSocketAddress, Long>();
+            store.put(key, peers);
+        }
+        peers.remove(peer);    // re-insert as most recent
+        if (peers.size() >= MAX_STORED_PEERS) {
+            peers.remove(peers.keySet().iterator().next());
+        }
+        peers.put(peer, now + PEER_TTL);
+    }
+
+    /* storedPeers:  up to MAX_VALUES most recently announced live peers */
+    private BList storedPeers(byte[] infoHash, long now) {
+        BList values = new BList();
+        LinkedHashMap<InetSocketAddress, Long> peers
+                = store.get(new String(infoHash, StandardCharsets.ISO_8859_1));
+        if (peers == null) {
+            return values;
+        }
+        int skip = Math.max(0, peers.size() - MAX_VALUES);
+        for (Map.Entry<InetSocketAddress, Long> e : peers.entrySet()) {
+            if (skip-- > 0 || e.getValue() <= now) {
+                continue;
+            }
+            values.add(toBString(encodeAddress(e.getKey())));
+        }
+        return values;
+    }
+
+    /* --- compact encodings ---------------------------------------------- */
+
+    /* compactNodes:  26 bytes (id, ip, port) for each of the K closest */
+    private BString compactNodes(byte[] target) {
+        StringBuilder sb = new StringBuilder();
+        for (BitDHTNode node : table.closest(target, K)) {
+            if (node.getAddress().getAddress() instanceof Inet4Address) {
+                sb.append(new String(node.getId(), StandardCharsets.ISO_8859_1));
+                sb.append(new String(encodeAddress(node.getAddress()),
+                                     StandardCharsets.ISO_8859_1));
+            }
+        }
+        return new BString(sb.toString());
+    }
+
+    private static byte[] encodeAddress(InetSocketAddress addr) {
+        byte[] ip = addr.getAddress().getAddress();
+        return new byte[] {ip[0], ip[1], ip[2], ip[3],
+                           (byte) (addr.getPort() >> 8), (byte) addr.getPort()};
+    }
+
+    /* decodeAddress:  6-byte ip and port at off, or null if invalid */
+    private static InetSocketAddress decodeAddress(byte[] data, int off) {
+        if (off + 6 > data.length) {
+            return null;
+        }
+        int port = (data[off + 4] & 0xff) << 8 | (data[off + 5] & 0xff);
+        if (port == 0) {
+            return null;
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(
+                    Arrays.copyOfRange(data, off, off + 4)), port);
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+
+    private static BString toBString(byte[] data) {
+        return new BString(new String(data, StandardCharsets.ISO_8859_1));
+    }
+
+    /* getBytes:  raw bytes of a string value; length -1 accepts any */
+    private static byte[] getBytes(BDict dict, String key, int length) {
+        if (!(dict.get(key) instanceof BString)) {
+            return null;
+        }
+        byte[] data = ((BString) dict.get(key)).getBytes();
+        return length == -1 || data.length == length ? data : null;
+    }
+}
@@ -0,0 +1,42 @@
+import java.net.InetSocketAddress;
+
+/* BitDHTNode:  a contact in the DHT, as kept in the routing table */
+public class BitDHTNode {
+    private final byte[] id;                 // 160-bit node id, null if unknown
+    private final InetSocketAddress addr;    // where it answers KRPC
+    private long lastSeen;                   // currentTimeMillis of last reply
+    private int failures = 0;                // queries unanswered in a row
+
+    public BitDHTNode(byte[] id, InetSocketAddress addr, long lastSeen) {
+        this.id = id;
+        this.addr = addr;
+        this.lastSeen = lastSeen;
+    }
+
+    public byte[] getId() {
+        return id;
+    }
+
+    public InetSocketAddress getAddress() {
+        return addr;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public int getFailures() {
+        return failures;
+    }
+
+    /* seen:  the node answered or queried us */
+    public void seen(long now) {
+        lastSeen = now;
+        failures = 0;
+    }
+
+    /* failed:  a query to the node timed out */
+    public void failed() {
+        ++failures;
+    }
+}
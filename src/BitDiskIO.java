@@ -0,0 +1,349 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import util.lib.BitLibrary;
+
+/* BitDiskIO:  the disk stage between the network loop and BitStorage */
+/* Block reads (uploads), block writes (downloads) and piece hash checks */
+/* are queued as jobs and run by THREADS worker threads, so a slow disk */
+/* delays only the jobs waiting on it, never message processing. */
+/* Workers take jobs in elevator order: sweeping up through the torrent */
+/* by offset and wrapping around (C-SCAN).  Contiguous writes, and */
+/* contiguous or identical reads, are coalesced into one storage call of */
+/* up to MAX_COALESCE bytes.  A piece's hash check waits until all of */
+/* its queued writes are done (SHA1 for v1 torrents, the Merkle piece */
+/* hash of a BitHashTree for v2 and hybrid ones).  Completions are */
+/* queued back, the loop is woken (setWakeup) and their callbacks run */
+/* on it from runCompletions(). */
+/* Queue depth and per-kind latency (queued to done) are kept for */
+/* getStats(), so a disk-bound client can be told from a network-bound */
+/* one; isBacklogged() tells the loop to stop requesting more blocks. */
+public class BitDiskIO {
+    private static final int THREADS = 2;
+    private static final int MAX_COALESCE = 1 << 20;   // bytes per disk call
+    private static final long MAX_WRITE_BACKLOG = 16 << 20;  // bytes queued
+    private static final double ALPHA = 0.125;         // latency EWMA weight
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    private static final int HASH = 2;
+    private static final String[] KIND = { "read", "write", "hash" };
+
+    /* Job:  one queued disk operation */
+    private static class Job {
+        final int kind;
+        final long offset;
+        final int length;
+        final long seq;            // keeps equal offsets apart, FIFO
+        final long queuedAt;       // ns
+        byte[] data = null;        // written, or read into
+        boolean ok = false;
+        Runnable callback = null;  // on the network loop
+
+        Job(int kind, long offset, int length, long seq) {
+            this.kind = kind;
+            this.offset = offset;
+            this.length = length;
+            this.seq = seq;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    private final BitStorage storage;
+    private volatile Runnable wakeup = null;           // completions queued
+    private final int pieceLength;
+    private final String[] pieceHashes;                // hex SHA1s (v1)
+    private final BitHashTree hashTree;                // or null (v1)
+    private final TreeSet<Job> queue = new TreeSet<Job>((a, b) ->
+            a.offset != b.offset ? Long.compare(a.offset, b.offset)
+                                 : Long.compare(a.seq, b.seq));
+    private final int[] pendingWrites;                 // per piece
+    private final ConcurrentLinkedQueue<Job> done
+            = new ConcurrentLinkedQueue<Job>();
+    private long seq = 0;
+    private long head = 0;                             // elevator position
+    private long queuedWriteBytes = 0;
+    private int inFlight = 0;
+    // stats, guarded by queue
+    private final long[] completed = new long[3];
+    private final double[] avgLatency = new double[3]; // ms
+    private final double[] maxLatency = new double[3];
+    private long coalesced = 0;                        // jobs merged away
+    private long failed = 0;
+
+    /* BitDiskIO:  pieces are checked against HASHTREE if there is one, */
+    /* else against PIECEHASHES */
+    public BitDiskIO(BitStorage storage, int pieceLength,
+                     String[] pieceHashes, BitHashTree hashTree) {
+        this.storage = storage;
+        this.pieceLength = pieceLength;
+        this.pieceHashes = pieceHashes;
+        this.hashTree = hashTree;
+        this.pendingWrites = new int[(int) ((storage.getLength()
+                                             + pieceLength - 1)
+                                            / pieceLength)];
+        for (int i = 0; i < THREADS; ++i) {
+            Thread t = new Thread(() -> work(), "BitDiskIO");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /* read:  read LENGTH bytes at OFFSET; CALLBACK gets them, or null */
+    public void read(long offset, int length, Consumer<byte[]> callback) {
+        Job job = newJob(READ, offset, length);
+        job.callback = () -> callback.accept(job.ok ? job.data : null);
+        submit(job);
+    }
+
+    /* write:  write DATA at OFFSET; CALLBACK gets whether it worked */
+    public void write(long offset, byte[] data, Consumer<Boolean> callback) {
+        Job job = newJob(WRITE, offset, data.length);
+        job.data = data;
+        job.callback = () -> callback.accept(job.ok);
+        submit(job);
+    }
+
+    /* hash:  check piece INDEX against its SHA1 once its writes are */
+    /* done; CALLBACK gets whether it matched */
+    public void hash(int index, Consumer<Boolean> callback) {
+        long offset = (long) index * pieceLength;
+        int length = (int) Math.min(pieceLength, storage.getLength() - offset);
+        Job job = newJob(HASH, offset, length);
+        job.callback = () -> callback.accept(job.ok);
+        submit(job);
+    }
+
+    /* setWakeup:  run WAKEUP (on a worker) whenever completions are */
+    /* queued, so an idle loop comes to run them */
+    public void setWakeup(Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    /* runCompletions:  run the callbacks of finished jobs; call from the */
+    /* network loop only; returns how many ran */
+    public int runCompletions() {
+        int n = 0;
+        Job job;
+        while ((job = done.poll()) != null) {
+            job.callback.run();
+            ++n;
+        }
+        return n;
+    }
+
+    /* isBacklogged:  more than MAX_WRITE_BACKLOG bytes wait to be written */
+    public boolean isBacklogged() {
+        synchronized (queue) {
+            return queuedWriteBytes > MAX_WRITE_BACKLOG;
+        }
+    }
+
+    /* getQueueDepth:  jobs queued or running */
+    public int getQueueDepth() {
+        synchronized (queue) {
+            return queue.size() + inFlight;
+        }
+    }
+
+    public long getCompleted() {
+        synchronized (queue) {
+            return completed[READ] + completed[WRITE] + completed[HASH];
+        }
+    }
+
+    /* getStats:  one line for the log: depth, backlog, and per kind the */
+    /* jobs done and average/max latency in ms */
+    public String getStats() {
+        synchronized (queue) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("queue %d (%d KB to write)",
+                                    queue.size() + inFlight,
+                                    queuedWriteBytes / 1024));
+            for (int k = READ; k <= HASH; ++k) {
+                sb.append(String.format(", %s %d avg %.1f max %.1f ms",
+                                        KIND[k], completed[k], avgLatency[k],
+                                        maxLatency[k]));
+            }
+            sb.append(String.format(", %d coalesced, %d failed",
+                                    coalesced, failed));
+            return sb.toString();
+        }
+    }
+
+    private Job newJob(int kind, long offset, int length) {
+        synchronized (queue) {
+            return new Job(kind, offset, length, seq++);
+        }
+    }
+
+    private void submit(Job job) {
+        synchronized (queue) {
+            if (job.kind == WRITE) {
+                ++pendingWrites[(int) (job.offset / pieceLength)];
+                queuedWriteBytes += job.length;
+            }
+            queue.add(job);
+            queue.notify();
+        }
+    }
+
+    /* work:  worker thread, run batches of jobs forever */
+    private void work() {
+        while (true) {
+            List<Job> batch;
+            synchronized (queue) {
+                while ((batch = take()) == null) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                inFlight += batch.size();
+            }
+            boolean ok = run(batch);
+            synchronized (queue) {
+                inFlight -= batch.size();
+                long now = System.nanoTime();
+                for (Job job : batch) {
+                    job.ok = ok;
+                    if (job.kind == WRITE) {
+                        --pendingWrites[(int) (job.offset / pieceLength)];
+                        queuedWriteBytes -= job.length;
+                    }
+                    double ms = (now - job.queuedAt) / 1e6;
+                    avgLatency[job.kind] += completed[job.kind] == 0
+                            ? ms : ALPHA * (ms - avgLatency[job.kind]);
+                    maxLatency[job.kind] = Math.max(maxLatency[job.kind], ms);
+                    ++completed[job.kind];
+                }
+                if (!ok) {
+                    failed += batch.size();
+                }
+                coalesced += batch.size() - 1;
+                queue.notifyAll();    // a hash may have become runnable
+            }
+            done.addAll(batch);
+            Runnable w = wakeup;
+            if (w != null) {
+                w.run();
+            }
+        }
+    }
+
+    /* take:  remove the next job in elevator order, plus the jobs it can */
+    /* be coalesced with; null if nothing can run now */
+    private List<Job> take() {
+        Job first = null;
+        for (Job job : queue.tailSet(probe(head), true)) {
+            if (isRunnable(job)) {
+                first = job;
+                break;
+            }
+        }
+        if (first == null) {
+            for (Job job : queue) {    // wrap around
+                if (isRunnable(job)) {
+                    first = job;
+                    break;
+                }
+            }
+        }
+        if (first == null) {
+            return null;
+        }
+        List<Job> batch = new ArrayList<Job>();
+        batch.add(first);
+        long end = first.offset + first.length;
+        if (first.kind != HASH) {
+            Iterator<Job> it = queue.tailSet(first, false).iterator();
+            while (it.hasNext()) {
+                Job job = it.next();
+                if (job.offset > end || job.kind != first.kind) {
+                    break;
+                }
+                boolean same = job.kind == READ && job.offset == first.offset
+                               && job.length == first.length;
+                if (!same && (job.offset != end
+                              || end + job.length - first.offset
+                                 > MAX_COALESCE)) {
+                    break;
+                }
+                batch.add(job);
+                end = Math.max(end, job.offset + job.length);
+            }
+        }
+        queue.removeAll(batch);
+        head = end;
+        return batch;
+    }
+
+    private boolean isRunnable(Job job) {
+        return job.kind != HASH
+               || pendingWrites[(int) (job.offset / pieceLength)] == 0;
+    }
+
+    /* probe:  a key that sorts before every job at OFFSET */
+    private Job probe(long offset) {
+        return new Job(READ, offset, 0, -1);
+    }
+
+    /* run:  do a batch as one storage call; false if it failed */
+    private boolean run(List<Job> batch) {
+        Job first = batch.get(0);
+        if (first.kind == HASH) {
+            byte[] piece = new byte[first.length];
+            if (storage.read(first.offset, ByteBuffer.wrap(piece)) == -1) {
+                return false;
+            }
+            int index = (int) (first.offset / pieceLength);
+            if (hashTree != null) {
+                if (!hashTree.verifyPiece(index, piece)) {
+                    return false;
+                }
+            } else {
+                byte[] sha = BitLibrary.getSHA1(piece, 0, piece.length);
+                if (!BitLibrary.bytesToHex(sha).equals(pieceHashes[index])) {
+                    return false;
+                }
+            }
+            storage.pieceDone(index);     // compact allocation moves it
+            return true;
+        }
+        long start = first.offset;
+        long end = start;
+        for (Job job : batch) {
+            end = Math.max(end, job.offset + job.length);
+        }
+        int length = (int) (end - start);
+        if (batch.size() == 1) {
+            if (first.kind == READ) {
+                first.data = new byte[length];
+                return storage.read(start, ByteBuffer.wrap(first.data)) == 0;
+            }
+            return storage.write(start, ByteBuffer.wrap(first.data)) == 0;
+        }
+        byte[] buf = new byte[length];
+        if (first.kind == READ) {
+            if (storage.read(start, ByteBuffer.wrap(buf)) == -1) {
+                return false;
+            }
+            for (Job job : batch) {
+                int off = (int) (job.offset - start);
+                job.data = Arrays.copyOfRange(buf, off, off + job.length);
+            }
+            return true;
+        }
+        for (Job job : batch) {
+            System.arraycopy(job.data, 0, buf, (int) (job.offset - start),
+                             job.length);
+        }
+        return storage.write(start, ByteBuffer.wrap(buf)) == 0;
+    }
+}
@@ -0,0 +1,12 @@
+/* BitExtension:  a message type carried by the extension protocol (BEP 10) */
+/* Registered by name with BitMessage.registerExtension, which assigns it */
+/* a local message id and routes matching EXTENDED messages to it.  Both */
+/* calls are made on the main loop thread. */
+public interface BitExtension {
+    /* onHandshake:  peer sent (or updated) its extended handshake */
+    public void onHandshake(BitPeer peer);
+
+    /* onMessage:  peer sent an extension message meant for this handler */
+    /* return 0 on success, -1 if the payload is malformed */
+    public int onMessage(BitPeer peer, byte[] payload);
+}
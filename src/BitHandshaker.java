@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* BitHandshaker:  performs inbound and outbound handshakes on a dedicated */
+/* pool so a slow or malicious peer can never stall the transfer loop. */
+/* Every handshake has a hard deadline, at most MAX_HALF_OPEN inbound (and */
+/* uTP) handshakes run at once, and only peers that completed a valid */
+/* handshake are put on readyQ.  Outbound TCP connections and their */
+/* handshakes run concurrently on the non-blocking BitConnector. */
+public class BitHandshaker {
+    private static final int MAX_HALF_OPEN = 16;        // concurrent handshakes
+    private static final int HANDSHAKE_TIMEOUT = 10000; // ms, whole exchange
+
+    private final byte[] infoHash;                      // identifies torrent
+    private final LinkedList<BitPeer> readyQ;           // validated peers
+    private final ExecutorService pool;
+    private final AtomicInteger halfOpen = new AtomicInteger(0);  // all
+    private final AtomicInteger inboundOpen = new AtomicInteger(0);
+    private final BitConnector connector;               // outbound TCP
+    private volatile BitUtpSocket utp = null;           // try uTP first
+    private volatile BitConnectionManager manager = null; // limits, backoff
+    private volatile Runnable wakeup = null;            // peer is ready
+
+    public BitHandshaker(byte[] infoHash, final LinkedList<BitPeer> readyQ) {
+        this.infoHash = infoHash;
+        this.readyQ = readyQ;
+        this.pool = Executors.newFixedThreadPool(MAX_HALF_OPEN, r -> {
+            Thread t = new Thread(r, "BitHandshaker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.connector = new BitConnector(infoHash, this);
+        this.connector.start();
+    }
+
+    /* setUtp:  make outbound connections try uTP before TCP */
+    public void setUtp(BitUtpSocket utp) {
+        this.utp = utp;
+    }
+
+    /* setManager:  report outbound failures to MANAGER, and refuse */
+    /* inbound connections once it says the connection limit is reached */
+    public void setManager(BitConnectionManager manager) {
+        this.manager = manager;
+    }
+
+    /* setWakeup:  run WAKEUP whenever a peer is queued ready, so an */
+    /* idle loop comes to add it */
+    public void setWakeup(Runnable wakeup) {
+        this.wakeup = wakeup;
+    }
+
+    /* inbound:  handshake with a peer that connected to us */
+    /* connections beyond the half-open cap or the manager's connection */
+    /* limit are closed immediately */
+    public void inbound(final BitConnection conn) {
+        if (inboundOpen.incrementAndGet() > MAX_HALF_OPEN
+            || (manager != null && manager.isFull(halfOpen.get()))) {
+            inboundOpen.decrementAndGet();
+            BitClient.logError("warning: too many connections, "
+                               + "dropping " + conn.getInetAddress());
+            try {
+                conn.close();
+            } catch (IOException ex) {
+            }
+            return;
+        }
+        halfOpen.incrementAndGet();
+        pool.execute(() -> {
+            try {
+                BitPeer peer = new BitPeer(conn);
+                long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+                if (peer.receiveHandshake(infoHash, deadline) == 0
+                    && peer.sendHandshake(infoHash) == 0) {
+                    ready(peer);
+                } else {
+                    peer.close();
+                }
+            } finally {
+                inboundOpen.decrementAndGet();
+                halfOpen.decrementAndGet();
+            }
+        });
+    }
+
+    /* outbound:  connect to a known peer and handshake with it */
+    /* over uTP first if enabled (on the pool, as uTP connects block), */
+    /* otherwise or if the peer does not answer, over TCP on the */
+    /* connector; attempts queue for a slot instead of being dropped */
+    public void outbound(final BitPeer peer) {
+        halfOpen.incrementAndGet();
+        if (utp == null) {
+            connector.connect(peer);
+            return;
+        }
+        pool.execute(() -> {
+            if (peer.connectUtp(utp) == -1) {
+                connector.connect(peer);
+                return;
+            }
+            long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+            finished(peer, peer.sendHandshake(infoHash) == 0
+                           && peer.receiveHandshake(infoHash, deadline) == 0);
+        });
+    }
+
+    /* finished:  outcome of an outbound attempt; OK puts the peer on */
+    /* readyQ, a failure is closed and reported to the manager */
+    void finished(BitPeer peer, boolean ok) {
+        if (ok) {
+            ready(peer);
+        } else {
+            peer.close();
+            if (manager != null) {
+                manager.connectFailed(peer.getListenAddress());
+            }
+        }
+        halfOpen.decrementAndGet();
+    }
+
+    /* getHalfOpen:  number of handshakes queued or in progress */
+    public int getHalfOpen() {
+        return halfOpen.get();
+    }
+
+    /* ready:  hand a validated peer to the transfer loop */
+    private void ready(BitPeer peer) {
+        synchronized (readyQ) {
+            readyQ.offer(peer);
+        }
+        if (wakeup != null) {
+            wakeup.run();
+        }
+    }
+}
@@ -0,0 +1,320 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* BitHashTree:  what a v2 (BEP 52) torrent's Merkle trees tell us */
+/* Every file starts on a piece boundary, so each piece belongs to one */
+/* file.  The metainfo gives each file's root and, for files longer than */
+/* a piece, its piece layer: one hash per piece, each the root of that */
+/* piece's leavesPerPiece block hashes.  A whole piece is checked against */
+/* its piece-layer hash (the root itself for a one-piece file).  A */
+/* piece's block hashes are fetched with a hash request and checked */
+/* against the same hash; with them each 16 KiB block is checked on */
+/* arrival, so a bad block is refetched alone and its sender is known. */
+/* Block hashes of pieces that pass their check are kept, and answer */
+/* peers' hash requests, as the piece layers do. */
+/* Called from the transfer loop and (verifyPiece) the disk threads. */
+public class BitHashTree {
+    private final int pieceLength;
+    private final int leavesPerPiece;
+    private final int pieceLayer;                 // layer of piece hashes
+    // per file with data
+    private final List<byte[]> roots = new ArrayList<byte[]>();
+    private final List<byte[][]> layers = new ArrayList<byte[][]>();
+    private final List<List<byte[][]>> upper      // piece layer and above,
+            = new ArrayList<List<byte[][]>>();     // built when first asked
+    private final List<Integer> firstPiece = new ArrayList<Integer>();
+    private final List<Long> lengths = new ArrayList<Long>();
+    private final Map<String, Integer> fileOfRoot
+            = new HashMap<String, Integer>();
+    // per piece
+    private final int[] fileOf;                   // -1 if no file's data
+    private final byte[][][] blockHashes;         // null until known
+    private final boolean[] requested;            // hash request out
+
+    public BitHashTree(int pieceLength, int numPieces) {
+        this.pieceLength = pieceLength;
+        this.leavesPerPiece = pieceLength / BitMerkle.BLOCK;
+        this.pieceLayer = BitMerkle.log2(leavesPerPiece);
+        this.fileOf = new int[numPieces];
+        this.blockHashes = new byte[numPieces][][];
+        this.requested = new boolean[numPieces];
+        Arrays.fill(fileOf, -1);
+    }
+
+    /* addFile:  a file of LENGTH at torrent OFFSET (piece aligned) with */
+    /* pieces ROOT and, if longer than a piece, its piece LAYER */
+    /* return -1 if they do not fit together, 0 otherwise */
+    public synchronized int addFile(long offset, long length, byte[] root,
+                                    byte[] layer) {
+        if (length == 0) {
+            return 0;
+        }
+        if (offset % pieceLength != 0 || root == null
+            || root.length != BitMerkle.HASH_LENGTH) {
+            return -1;
+        }
+        int first = (int) (offset / pieceLength);
+        int n = (int) ((length + pieceLength - 1) / pieceLength);
+        if (first + n > fileOf.length) {
+            return -1;
+        }
+        byte[][] nodes = null;
+        if (n > 1) {
+            if (layer == null || layer.length != n * BitMerkle.HASH_LENGTH) {
+                return -1;
+            }
+            nodes = new byte[n][];
+            for (int i = 0; i < n; ++i) {
+                nodes[i] = Arrays.copyOfRange(layer, i * BitMerkle.HASH_LENGTH,
+                                              (i + 1) * BitMerkle.HASH_LENGTH);
+            }
+            if (!Arrays.equals(BitMerkle.root(nodes, BitMerkle.nextPow2(n),
+                                              pieceLayer), root)) {
+                return -1;
+            }
+        }
+        int f = roots.size();
+        roots.add(root);
+        layers.add(nodes);
+        upper.add(null);
+        firstPiece.add(first);
+        lengths.add(length);
+        fileOfRoot.put(new String(root, StandardCharsets.ISO_8859_1), f);
+        for (int p = first; p < first + n; ++p) {
+            fileOf[p] = f;
+            if (leafWidth(p) == 1) {
+                blockHashes[p] = new byte[][] { pieceHash(p) };
+            }
+        }
+        return 0;
+    }
+
+    /* verifyPiece:  check piece INDEX as read (padding after its file's */
+    /* bytes is ignored); a good piece's block hashes are kept */
+    public boolean verifyPiece(int index, byte[] data) {
+        int n = fileBytes(index);
+        if (n < 0 || data.length < n) {
+            return false;
+        }
+        byte[][] leaves = BitMerkle.leaves(data, 0, n);
+        byte[] root = BitMerkle.root(leaves, leafWidth(index), 0);
+        if (!Arrays.equals(root, pieceHash(index))) {
+            return false;
+        }
+        synchronized (this) {
+            blockHashes[index] = leaves;
+        }
+        return true;
+    }
+
+    /* verifyBlock:  check block B of piece INDEX on arrival */
+    /* return 1 if it matches, -1 if not, 0 if its hash is not known yet */
+    public int verifyBlock(int index, int b, byte[] data) {
+        byte[][] leaves;
+        synchronized (this) {
+            leaves = blockHashes[index];
+        }
+        if (leaves == null || b >= leaves.length) {
+            return 0;                 // unknown, or padding
+        }
+        int n = Math.min(data.length, fileBytes(index) - b * BitMerkle.BLOCK);
+        return Arrays.equals(BitMerkle.sha256(data, 0, n), leaves[b]) ? 1 : -1;
+    }
+
+    /* requestFor:  a hash request for piece INDEX's block hashes, or */
+    /* null if they are known or already asked for */
+    public synchronized BitMessage requestFor(int index) {
+        if (fileOf[index] == -1 || blockHashes[index] != null
+            || requested[index]) {
+            return null;
+        }
+        requested[index] = true;
+        int f = fileOf[index];
+        int width = leafWidth(index);
+        return new BitMessage(BitMessage.MessageType.HASH_REQUEST,
+                              roots.get(f), 0,
+                              (index - firstPiece.get(f)) * width, width, 0,
+                              null);
+    }
+
+    /* acceptHashes:  block hashes from a HASHES message, if they match */
+    /* the piece hash; return the piece, or -1 if they are wrong or were */
+    /* not for one piece */
+    public synchronized int acceptHashes(BitMessage msg) {
+        int index = pieceOf(msg);
+        byte[] hashes = msg.getHashes();
+        if (index == -1
+            || hashes.length < msg.getLength() * BitMerkle.HASH_LENGTH) {
+            return -1;
+        }
+        requested[index] = false;
+        int n = (fileBytes(index) + BitMerkle.BLOCK - 1) / BitMerkle.BLOCK;
+        byte[][] leaves = new byte[msg.getLength()][];
+        for (int i = 0; i < leaves.length; ++i) {
+            leaves[i] = Arrays.copyOfRange(hashes, i * BitMerkle.HASH_LENGTH,
+                                           (i + 1) * BitMerkle.HASH_LENGTH);
+        }
+        if (!Arrays.equals(BitMerkle.root(leaves, leaves.length, 0),
+                           pieceHash(index))) {
+            return -1;
+        }
+        blockHashes[index] = Arrays.copyOf(leaves, n);
+        return index;
+    }
+
+    /* rejected:  a peer would not answer our request MSG; ask again */
+    public synchronized void rejected(BitMessage msg) {
+        int index = pieceOf(msg);
+        if (index != -1) {
+            requested[index] = false;
+        }
+    }
+
+    /* pieceOf:  the piece whose block hashes request (or answer) MSG is */
+    /* for, or -1 if it is not for exactly one piece's */
+    public synchronized int pieceOf(BitMessage msg) {
+        Integer f = fileOfRoot.get(new String(msg.getPiecesRoot(),
+                                              StandardCharsets.ISO_8859_1));
+        if (f == null || msg.getBaseLayer() != 0 || msg.getIndex() < 0) {
+            return -1;
+        }
+        int width = leafWidth(firstPiece.get(f));
+        int index = firstPiece.get(f) + msg.getIndex() / width;
+        if (msg.getLength() != width || msg.getIndex() % width != 0
+            || index >= fileOf.length || fileOf[index] != f) {
+            return -1;
+        }
+        return index;
+    }
+
+    /* hasBlockHashes:  piece INDEX's block hashes are known */
+    public synchronized boolean hasBlockHashes(int index) {
+        return blockHashes[index] != null;
+    }
+
+    /* answer:  the HASHES (or HASH_REJECT) reply to a peer's request; */
+    /* null if it is for block hashes we do not know yet, which reading */
+    /* the piece through verifyPiece() teaches us.  Served are one */
+    /* piece's block hashes (base layer 0) and ranges of a piece layer, */
+    /* each with up to proof layers uncle hashes */
+    public synchronized BitMessage answer(BitMessage req) {
+        Integer f = fileOfRoot.get(new String(req.getPiecesRoot(),
+                                              StandardCharsets.ISO_8859_1));
+        int length = req.getLength();
+        int index = req.getIndex();
+        if (f == null || length < 1 || Integer.bitCount(length) != 1
+            || index < 0 || index % length != 0 || req.getProofLayers() < 0) {
+            return reject(req);
+        }
+        List<byte[][]> up = upperLayers(f);
+        byte[][] nodes;
+        int level;                   // of the subtree root, in upperLayers
+        int pos;                     // and its position there
+        if (req.getBaseLayer() == 0) {
+            int piece = pieceOf(req);
+            if (piece == -1) {
+                return reject(req);
+            }
+            if (blockHashes[piece] == null) {
+                return null;
+            }
+            nodes = blockHashes[piece];
+            level = 0;
+            pos = piece - firstPiece.get(f);
+        } else if (req.getBaseLayer() == pieceLayer && layers.get(f) != null
+                   && index + length
+                      <= BitMerkle.nextPow2(layers.get(f).length)) {
+            nodes = Arrays.copyOfRange(layers.get(f),
+                                       Math.min(index, layers.get(f).length),
+                                       Math.min(index + length,
+                                                layers.get(f).length));
+            level = BitMerkle.log2(length);
+            pos = index / length;
+        } else {
+            return reject(req);
+        }
+
+        // the requested hashes, padded, then the uncles from the subtree
+        // root's layer up to (not including) the root
+        List<byte[]> out = new ArrayList<byte[]>();
+        for (int i = 0; i < length; ++i) {
+            out.add(i < nodes.length ? nodes[i]
+                                     : BitMerkle.padHash(req.getBaseLayer()));
+        }
+        for (int k = 0; k < req.getProofLayers() && level + k < up.size() - 1;
+             ++k) {
+            byte[][] nodesUp = up.get(level + k);
+            int sibling = (pos >> k) ^ 1;
+            out.add(sibling < nodesUp.length ? nodesUp[sibling]
+                    : BitMerkle.padHash(pieceLayer + level + k));
+        }
+        byte[] hashes = new byte[out.size() * BitMerkle.HASH_LENGTH];
+        for (int i = 0; i < out.size(); ++i) {
+            System.arraycopy(out.get(i), 0, hashes,
+                             i * BitMerkle.HASH_LENGTH, BitMerkle.HASH_LENGTH);
+        }
+        return new BitMessage(BitMessage.MessageType.HASHES,
+                              req.getPiecesRoot(), req.getBaseLayer(), index,
+                              length, req.getProofLayers(), hashes);
+    }
+
+    /* upperLayers:  file F's tree from the piece layer to the root */
+    private List<byte[][]> upperLayers(int f) {
+        if (upper.get(f) == null) {
+            List<byte[][]> up = new ArrayList<byte[][]>();
+            byte[][] level = layers.get(f) != null ? layers.get(f)
+                                                   : new byte[][] { roots.get(f) };
+            int layer = pieceLayer;
+            up.add(level);
+            while (level.length > 1) {
+                level = BitMerkle.layerUp(level, layer++);
+                up.add(level);
+            }
+            upper.set(f, up);
+        }
+        return upper.get(f);
+    }
+
+    /* reject:  the HASH_REJECT reply to a request REQ */
+    public static BitMessage reject(BitMessage req) {
+        return new BitMessage(BitMessage.MessageType.HASH_REJECT,
+                              req.getPiecesRoot(), req.getBaseLayer(),
+                              req.getIndex(), req.getLength(),
+                              req.getProofLayers(), null);
+    }
+
+    /* pieceHash:  the hash piece INDEX is checked against */
+    private byte[] pieceHash(int index) {
+        int f = fileOf[index];
+        byte[][] layer = layers.get(f);
+        return layer == null ? roots.get(f)
+                             : layer[index - firstPiece.get(f)];
+    }
+
+    /* leafWidth:  the leaves under piece INDEX's hash: a full piece's */
+    /* worth, or for a one-piece file its blocks rounded up to a power */
+    /* of two */
+    private int leafWidth(int index) {
+        int f = fileOf[index];
+        if (layers.get(f) != null) {
+            return leavesPerPiece;
+        }
+        int blocks = (int) ((lengths.get(f) + BitMerkle.BLOCK - 1)
+                            / BitMerkle.BLOCK);
+        return BitMerkle.nextPow2(blocks);
+    }
+
+    /* fileBytes:  how much of piece INDEX is its file's data; -1 if none */
+    private int fileBytes(int index) {
+        int f = fileOf[index];
+        if (f == -1) {
+            return -1;
+        }
+        long start = (long) (index - firstPiece.get(f)) * pieceLength;
+        return (int) Math.min(pieceLength, lengths.get(f) - start);
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/* BitInbox:  the one queue all peers' readers feed the transfer loop */
+/* A bounded, lock-free ring of (peer, message) entries with many */
+/* producers (the BitReader threads) and one consumer (the loop).  Each */
+/* slot has a sequence number: a producer claims the slot at the tail */
+/* by advancing the tail with compare-and-set, fills it, then publishes */
+/* it by setting its sequence; the loop takes published slots in order */
+/* at the head and hands each back by moving its sequence a lap ahead. */
+/* There are no locks or monitors.  A producer whose peer already has */
+/* PEER_BACKLOG messages waiting, or that finds the ring full, parks */
+/* for a backoff that doubles up to MAX_BACKOFF and tries again; its */
+/* reader stops reading meanwhile, so TCP pushes back on the peer. */
+/* The loop drains up to a batch at a time and, when there is nothing */
+/* to do, parks until a producer publishes, wakeup() is called (new */
+/* peers, disk completions) or its timeout ends. */
+public class BitInbox {
+    public static final int CAPACITY = 1024;           // entries, power of 2
+    public static final int PEER_BACKLOG = 64;         // messages per peer
+    private static final long MIN_BACKOFF = 10000;     // ns, producer park
+    private static final long MAX_BACKOFF = 1000000;
+
+    private final BitPeer[] peers = new BitPeer[CAPACITY];
+    private final BitMessage[] msgs = new BitMessage[CAPACITY];
+    private final AtomicLongArray seqs = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head = 0;                             // consumer only
+    private volatile Thread consumer = null;
+    private volatile boolean isWaiting = false;        // consumer parked
+
+    public BitInbox() {
+        // slot i is free for the producer at position i
+        for (int i = 0; i < CAPACITY; ++i) {
+            seqs.set(i, i);
+        }
+    }
+
+    /* put:  queue MSG from PEER, waiting while its backlog or the ring */
+    /* is full; call from the peer's reader only */
+    public void put(BitPeer peer, BitMessage msg) {
+        long backoff = MIN_BACKOFF;
+        while (peer.inboxed.get() >= PEER_BACKLOG || !offer(peer, msg)) {
+            LockSupport.parkNanos(backoff);
+            backoff = Math.min(2 * backoff, MAX_BACKOFF);
+        }
+    }
+
+    /* offer:  queue MSG from PEER if there is room */
+    /* return true if it was queued */
+    public boolean offer(BitPeer peer, BitMessage msg) {
+        long pos = tail.get();
+        while (true) {
+            int i = (int) (pos & (CAPACITY - 1));
+            long dif = seqs.get(i) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    peers[i] = peer;
+                    msgs[i] = msg;
+                    peer.inboxed.incrementAndGet();
+                    // a volatile store, ordered before the isWaiting load
+                    // (await() does the opposite), so a parking loop is
+                    // never missed
+                    seqs.set(i, pos + 1);
+                    if (isWaiting) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+                pos = tail.get();       // another producer took it
+            } else if (dif < 0) {
+                return false;           // a lap behind: full
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /* drainTo:  move up to MAX queued entries, oldest first, onto PEERLIST */
+    /* and MSGLIST; call from the loop only */
+    /* return the number moved */
+    public int drainTo(List<BitPeer> peerList, List<BitMessage> msgList,
+                       int max) {
+        int n = 0;
+        while (n < max) {
+            int i = (int) (head & (CAPACITY - 1));
+            if (seqs.get(i) != head + 1) {
+                break;                  // empty, or not yet published
+            }
+            BitPeer peer = peers[i];
+            peerList.add(peer);
+            msgList.add(msgs[i]);
+            peer.inboxed.decrementAndGet();
+            peers[i] = null;
+            msgs[i] = null;
+            seqs.lazySet(i, head + CAPACITY);
+            ++head;
+            ++n;
+        }
+        return n;
+    }
+
+    /* await:  park the loop for up to TIMEOUTMS unless something is */
+    /* queued; returns early on a put or wakeup() */
+    public void await(long timeoutMs) {
+        consumer = Thread.currentThread();
+        isWaiting = true;
+        if (seqs.get((int) (head & (CAPACITY - 1))) != head + 1) {
+            LockSupport.parkNanos(this, timeoutMs * 1000000L);
+        }
+        isWaiting = false;
+    }
+
+    /* wakeup:  end the loop's await() now, or make its next one return */
+    /* at once; safe from any thread */
+    public void wakeup() {
+        Thread t = consumer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/* BitMerkle:  SHA-256 Merkle trees of BitTorrent v2 (BEP 52) */
+/* A file's tree has one leaf per 16 KiB block (the last may be short), */
+/* hashed with SHA-256; each node above is the hash of its two children. */
+/* The leaf layer is padded to a power of two with zero hashes, so a */
+/* padding node on layer k is the root of 2^k zero leaves (padHash). */
+/* Layers are counted from the leaves (0) up. */
+public class BitMerkle {
+    public static final int BLOCK = 16384;
+    public static final int HASH_LENGTH = 32;
+    private static final List<byte[]> padHashes = new ArrayList<byte[]>();
+
+    /* sha256:  hash LEN bytes of DATA at OFF */
+    public static byte[] sha256(byte[] data, int off, int len) {
+        MessageDigest md = digest();
+        md.update(data, off, len);
+        return md.digest();
+    }
+
+    /* hashPair:  the parent of nodes A and B */
+    public static byte[] hashPair(byte[] a, byte[] b) {
+        MessageDigest md = digest();
+        md.update(a);
+        md.update(b);
+        return md.digest();
+    }
+
+    /* padHash:  the padding node on LAYER */
+    public static synchronized byte[] padHash(int layer) {
+        if (padHashes.isEmpty()) {
+            padHashes.add(new byte[HASH_LENGTH]);
+        }
+        while (padHashes.size() <= layer) {
+            byte[] below = padHashes.get(padHashes.size() - 1);
+            padHashes.add(hashPair(below, below));
+        }
+        return padHashes.get(layer);
+    }
+
+    /* leaves:  the leaf hashes of LEN bytes of DATA at OFF, one per block */
+    public static byte[][] leaves(byte[] data, int off, int len) {
+        byte[][] leaves = new byte[(len + BLOCK - 1) / BLOCK][];
+        MessageDigest md = digest();
+        for (int i = 0; i < leaves.length; ++i) {
+            md.update(data, off + i * BLOCK, Math.min(BLOCK, len - i * BLOCK));
+            leaves[i] = md.digest();
+        }
+        return leaves;
+    }
+
+    /* root:  the root over WIDTH (a power of two) nodes on LAYER, of */
+    /* which NODES are the first; the rest are padding */
+    public static byte[] root(byte[][] nodes, int width, int layer) {
+        byte[][] level = nodes;
+        while (width > 1) {
+            level = layerUp(level, layer);
+            width /= 2;
+            ++layer;
+        }
+        return level.length == 0 ? padHash(layer) : level[0];
+    }
+
+    /* layerUp:  the layer above NODES on LAYER; an odd node out is paired */
+    /* with padding */
+    public static byte[][] layerUp(byte[][] nodes, int layer) {
+        byte[][] up = new byte[(nodes.length + 1) / 2][];
+        for (int i = 0; i < up.length; ++i) {
+            byte[] right = 2 * i + 1 < nodes.length ? nodes[2 * i + 1]
+                                                    : padHash(layer);
+            up[i] = hashPair(nodes[2 * i], right);
+        }
+        return up;
+    }
+
+    /* nextPow2:  smallest power of two >= N (1 for N <= 1) */
+    public static int nextPow2(int n) {
+        int p = 1;
+        while (p < n) {
+            p <<= 1;
+        }
+        return p;
+    }
+
+    /* log2:  of a power of two */
+    public static int log2(int n) {
+        return Integer.numberOfTrailingZeros(n);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -1,8 +1,33 @@
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import util.bencode.*;
 
 public class BitMessage {
     private static final int INTEGER_LENGTH = 4;
+    /* Extension protocol (BEP 10): message id 20 as a raw byte, as in the */
+    /* spec; it cannot collide with the ASCII ids '0'..'8' used above */
+    public static final byte EXTENDED_ID = 20;
+    public static final int EXT_HANDSHAKE = 0;     // extended message id 0
+    /* Fast Extension (BEP 6): raw byte ids as well */
+    public static final byte SUGGEST_PIECE_ID = 0x0D;
+    public static final byte HAVE_ALL_ID = 0x0E;
+    public static final byte HAVE_NONE_ID = 0x0F;
+    public static final byte REJECT_REQUEST_ID = 0x10;
+    public static final byte ALLOWED_FAST_ID = 0x11;
+    /* BitTorrent v2 (BEP 52) Merkle hash transfer: raw byte ids */
+    public static final byte HASH_REQUEST_ID = 21;
+    public static final byte HASHES_ID = 22;
+    public static final byte HASH_REJECT_ID = 23;
+    private static final int ROOT_LENGTH = 32;
+    private static final String CLIENT_VERSION = "Beaver 0.1";
+    private static final List<String> extNames = new ArrayList<String>();
+    private static final List<BitExtension> extHandlers
+            = new ArrayList<BitExtension>();
     /* Unpacked Message: info about the contents of the message payload */
     private MessageType type;      // type of BitMessage, cf. client protocol
     private int blockLength = -1;  // length of a requested block
@@ -10,6 +35,13 @@ public class BitMessage {
     private int begin = -1;        // offset within piece of a requested block
     private byte[] block = null;   // block data itself, contiguous subset of a piece
     private byte[] bitfield = null;// for bitfield message
+    private int extendedId = -1;   // for extended message, 0 = handshake
+    private byte[] payload = null; // bencoded extended message body
+    private byte[] piecesRoot = null; // v2 hash messages: the file's root,
+    private int baseLayer = -1;    // the layer, index (in index) and
+    private int length = -1;       // number of hashes asked for,
+    private int proofLayers = -1;  // how many uncle layers to add,
+    private byte[] hashes = null;  // and the hashes (HASHES only)
 
     /* MessageType: all possible message types in client protocol */
     public enum MessageType {
@@ -22,16 +54,27 @@ public class BitMessage {
         BITFIELD,
         REQUEST,
         PIECE,
-        CANCEL
+        CANCEL,
+        SUGGEST_PIECE,
+        HAVE_ALL,
+        HAVE_NONE,
+        REJECT_REQUEST,
+        ALLOWED_FAST,
+        EXTENDED,
+        HASH_REQUEST,
+        HASHES,
+        HASH_REJECT
     }
 
     /* BitMessage(MessageType): constructor for messages with no payload */
-    /* MessageType: KEEP_ALIVE, CHOKE, UNCHOKE, INTERESTED, UNINTERESTED */
+    /* MessageType: KEEP_ALIVE, CHOKE, UNCHOKE, INTERESTED, UNINTERESTED, */
+    /* HAVE_ALL, HAVE_NONE */
     public BitMessage(MessageType type) {
         this.type = type;
     }
 
     /* BitMessage(MessageType, int): constructor for a HAVE message */
+    /* (also SUGGEST_PIECE and ALLOWED_FAST) */
     public BitMessage(MessageType type, int index) {
         this.type = type;
         this.index = index;
@@ -44,7 +87,7 @@ public class BitMessage {
     }
 
     /* BitMessage(MessageType, int, int, int): block transfer msgs */
-    /* MessageType: REQUEST or CANCEL */
+    /* MessageType: REQUEST, CANCEL or REJECT_REQUEST */
     public BitMessage(MessageType type, int index, int begin, int blockLength) {
         this.type = type;
         this.index = index;
@@ -61,6 +104,27 @@ public class BitMessage {
         this.block = block;
     }
 
+    /* BitMessage(MessageType, int, byte[]): an EXTENDED message */
+    public BitMessage(MessageType type, int extendedId, byte[] payload) {
+        this.type = type;
+        this.extendedId = extendedId;
+        this.payload = payload;
+    }
+
+    /* BitMessage(MessageType, byte[], int, int, int, int, byte[]): v2 */
+    /* hash msgs.  MessageType: HASH_REQUEST, HASHES or HASH_REJECT; */
+    /* HASHES is null except for HASHES */
+    public BitMessage(MessageType type, byte[] piecesRoot, int baseLayer,
+                      int index, int length, int proofLayers, byte[] hashes) {
+        this.type = type;
+        this.piecesRoot = piecesRoot;
+        this.baseLayer = baseLayer;
+        this.index = index;
+        this.length = length;
+        this.proofLayers = proofLayers;
+        this.hashes = hashes;
+    }
+
     public MessageType getType() {
         return type;
     }
@@ -91,6 +155,127 @@ public class BitMessage {
         return bitfield;
     }
 
+    public int getExtendedId() {
+        return extendedId;
+    }
+
+    public byte[] getPayload() {
+        if (type != MessageType.EXTENDED) {
+            throw new RuntimeException("error: getPayload called on non-EXTENDED");
+        }
+        return payload;
+    }
+
+    public byte[] getPiecesRoot() {
+        return piecesRoot;
+    }
+
+    public int getBaseLayer() {
+        return baseLayer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getProofLayers() {
+        return proofLayers;
+    }
+
+    public byte[] getHashes() {
+        if (type != MessageType.HASHES) {
+            throw new RuntimeException("error: getHashes called on non-HASHES");
+        }
+        return hashes;
+    }
+
+    /* registerExtension:  make an extension available to every peer; */
+    /* its local message id is its position in the registry, from 1 */
+    public static synchronized void registerExtension(String name,
+                                                      BitExtension handler) {
+        extNames.add(name);
+        extHandlers.add(handler);
+    }
+
+    /* extendedHandshake:  announce our extensions, listen port and how */
+    /* many requests we queue */
+    public static synchronized BitMessage extendedHandshake(int listenPort) {
+        BDict m = new BDict();
+        for (int i = 0; i < extNames.size(); ++i) {
+            m.put(extNames.get(i), new BNumber(i + 1));
+        }
+        BDict dict = new BDict();
+        dict.put("m", m);
+        dict.put("p", new BNumber(listenPort));
+        dict.put("v", new BString(CLIENT_VERSION));
+        dict.put("reqq", new BNumber(BitUploader.MAX_QUEUED));
+        return new BitMessage(MessageType.EXTENDED, EXT_HANDSHAKE,
+                dict.encode().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /* extended:  an extension message for peer, using the id the peer */
+    /* assigned to name; null if the peer does not support it */
+    public static BitMessage extended(BitPeer peer, String name,
+                                      byte[] payload) {
+        int id = peer.getExtensionId(name);
+        if (id <= 0) {
+            return null;
+        }
+        return new BitMessage(MessageType.EXTENDED, id, payload);
+    }
+
+    /* dispatchExtended:  record a peer's extended handshake, or hand an */
+    /* extension message to the handler registered for it */
+    /* return 0 on success, -1 if the message is malformed or unknown */
+    public static int dispatchExtended(BitPeer peer, BitMessage msg) {
+        if (msg.getExtendedId() != EXT_HANDSHAKE) {
+            BitExtension handler;
+            synchronized (BitMessage.class) {
+                if (msg.getExtendedId() > extHandlers.size()) {
+                    return -1;
+                }
+                handler = extHandlers.get(msg.getExtendedId() - 1);
+            }
+            return handler.onMessage(peer, msg.getPayload());
+        }
+        BDict dict;
+        try {
+            BObject[] objs = BDecoder.read(msg.getPayload());
+            if (objs.length < 1 || !(objs[0] instanceof BDict)) {
+                return -1;
+            }
+            dict = (BDict) objs[0];
+        } catch (RuntimeException ex) {
+            return -1;
+        }
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        if (dict.get("m") instanceof BDict) {
+            for (Map.Entry<String, BObject> e : ((BDict) dict.get("m")).entrySet()) {
+                // ids are one byte on the wire; others are ignored
+                if (e.getValue() instanceof BNumber
+                    && ((BNumber) e.getValue()).getLong() >= 0
+                    && ((BNumber) e.getValue()).getLong() <= 0xff) {
+                    ids.put(e.getKey(), ((BNumber) e.getValue()).getNumber());
+                }
+            }
+        }
+        peer.setExtensionIds(ids);
+        if (dict.get("p") instanceof BNumber) {
+            peer.setListenPort(((BNumber) dict.get("p")).getNumber());
+        }
+        if (dict.get("reqq") instanceof BNumber) {
+            peer.setMaxRequests(((BNumber) dict.get("reqq")).getNumber());
+        }
+        List<BitExtension> handlers;
+        synchronized (BitMessage.class) {
+            handlers = new ArrayList<BitExtension>(extHandlers);
+        }
+        for (BitExtension handler : handlers) {
+            handler.onHandshake(peer);
+        }
+        return 0;
+    }
+
     /* pack: packs a message into a byte[] to send over network */
     public byte[] pack() {
         ByteBuffer buf = null;
@@ -157,6 +342,56 @@ public class BitMessage {
             buf.putInt(index);
             buf.putInt(begin);
             buf.putInt(blockLength);
+        } else if (type == MessageType.HAVE_ALL) {
+            buf = ByteBuffer.allocate(INTEGER_LENGTH + 1);
+            buf.putInt(1);
+            buf.put(HAVE_ALL_ID);
+        } else if (type == MessageType.HAVE_NONE) {
+            buf = ByteBuffer.allocate(INTEGER_LENGTH + 1);
+            buf.putInt(1);
+            buf.put(HAVE_NONE_ID);
+        } else if (type == MessageType.SUGGEST_PIECE
+                   || type == MessageType.ALLOWED_FAST) {
+            buf = ByteBuffer.allocate(2 * INTEGER_LENGTH + 1);
+            buf.putInt(INTEGER_LENGTH + 1);
+            buf.put(type == MessageType.ALLOWED_FAST ? ALLOWED_FAST_ID
+                                                     : SUGGEST_PIECE_ID);
+            buf.putInt(index);
+        } else if (type == MessageType.REJECT_REQUEST) {
+            if (index == -1 || begin == -1 || blockLength == -1) {
+                throw new RuntimeException("Uninitialized variables for reject");
+            }
+            buf = ByteBuffer.allocate(4 * INTEGER_LENGTH + 1);
+            buf.putInt(3 * INTEGER_LENGTH + 1);
+            buf.put(REJECT_REQUEST_ID);
+            buf.putInt(index);
+            buf.putInt(begin);
+            buf.putInt(blockLength);
+        } else if (type == MessageType.EXTENDED) {      // {len, 20, id, dict}
+            buf = ByteBuffer.allocate(INTEGER_LENGTH + 2 + payload.length);
+            buf.putInt(2 + payload.length);
+            buf.put(EXTENDED_ID);
+            buf.put((byte) extendedId);
+            buf.put(payload, 0, payload.length);
+        } else if (type == MessageType.HASH_REQUEST
+                   || type == MessageType.HASHES
+                   || type == MessageType.HASH_REJECT) {
+            // {len, id, root, base layer, index, length, proof layers,
+            //  hashes (HASHES only)}
+            int n = type == MessageType.HASHES ? hashes.length : 0;
+            buf = ByteBuffer.allocate(INTEGER_LENGTH + 1 + ROOT_LENGTH
+                                      + 4 * INTEGER_LENGTH + n);
+            buf.putInt(1 + ROOT_LENGTH + 4 * INTEGER_LENGTH + n);
+            buf.put(type == MessageType.HASH_REQUEST ? HASH_REQUEST_ID
+                    : type == MessageType.HASHES ? HASHES_ID : HASH_REJECT_ID);
+            buf.put(piecesRoot, 0, ROOT_LENGTH);
+            buf.putInt(baseLayer);
+            buf.putInt(index);
+            buf.putInt(length);
+            buf.putInt(proofLayers);
+            if (n > 0) {
+                buf.put(hashes, 0, n);
+            }
         // NOTE: Full BitTorrent protocol has another PORT message type
         } else {
             throw new RuntimeException("Unrecognized BitMessage type: " + type);
@@ -182,6 +417,53 @@ public class BitMessage {
         buf.get(t, 0, 1);
         String typeStr = new String(t, StandardCharsets.US_ASCII);
 
+        // handle EXTENDED messages (raw id, see EXTENDED_ID)
+        if (t[0] == EXTENDED_ID && len >= 2) {
+            int id = buf.get() & 0xff;
+            byte[] body = new byte[len - 2];
+            buf.get(body, 0, len - 2);
+            return new BitMessage(MessageType.EXTENDED, id, body);
+        }
+
+        // handle Fast Extension messages (raw ids, see HAVE_ALL_ID etc.)
+        if (t[0] == HAVE_ALL_ID && len == 1) {
+            return new BitMessage(MessageType.HAVE_ALL);
+        } else if (t[0] == HAVE_NONE_ID && len == 1) {
+            return new BitMessage(MessageType.HAVE_NONE);
+        } else if (t[0] == SUGGEST_PIECE_ID && len == INTEGER_LENGTH + 1) {
+            return new BitMessage(MessageType.SUGGEST_PIECE, buf.getInt());
+        } else if (t[0] == ALLOWED_FAST_ID && len == INTEGER_LENGTH + 1) {
+            return new BitMessage(MessageType.ALLOWED_FAST, buf.getInt());
+        } else if (t[0] == REJECT_REQUEST_ID && len == 3 * INTEGER_LENGTH + 1) {
+            int i = buf.getInt();    // index
+            int b = buf.getInt();    // begin
+            int l = buf.getInt();    // length
+            return new BitMessage(MessageType.REJECT_REQUEST, i, b, l);
+        }
+
+        // handle v2 hash messages (raw ids, see HASH_REQUEST_ID etc.)
+        int header = 1 + ROOT_LENGTH + 4 * INTEGER_LENGTH;
+        if ((t[0] == HASH_REQUEST_ID || t[0] == HASH_REJECT_ID
+             || t[0] == HASHES_ID) && len >= header) {
+            byte[] root = new byte[ROOT_LENGTH];
+            buf.get(root, 0, ROOT_LENGTH);
+            int base = buf.getInt();
+            int i = buf.getInt();
+            int l = buf.getInt();
+            int proof = buf.getInt();
+            if (t[0] == HASHES_ID) {
+                byte[] h = new byte[len - header];
+                buf.get(h, 0, h.length);
+                return new BitMessage(MessageType.HASHES, root, base, i, l,
+                                      proof, h);
+            } else if (len == header) {
+                return new BitMessage(t[0] == HASH_REQUEST_ID
+                                      ? MessageType.HASH_REQUEST
+                                      : MessageType.HASH_REJECT,
+                                      root, base, i, l, proof, null);
+            }
+        }
+
         // handle status messages (CHOKE, UNCHOKE, INTERESTED, UNINTERESTED)
         if (len == 1) {
             if (typeStr.equals("0")) {
@@ -1,7 +1,7 @@
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.BufferedInputStream;
@@ -9,40 +9,93 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Queue;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import util.lib.BitLibrary;
+import util.lib.BitTimerWheel;
 
 public class BitPeer {
     private static final int HANDSHAKE_SIZE = 68;
+    private static final int UTP_CONNECT_TIMEOUT = 3000;   // ms, then TCP
+    private static final int RESERVED_OFFSET = 20;   // 8 reserved bytes
+    private static final int EXTENSION_BYTE = 5;     // BEP 10 bit: 0x10
+    private static final byte EXTENSION_BIT = 0x10;
+    private static final int FAST_BYTE = 7;          // BEP 6 bit: 0x04
+    private static final byte FAST_BIT = 0x04;
+    private static final int V2_BYTE = 7;            // BEP 52 bit: 0x10
+    private static final byte V2_BIT = 0x10;
+    private static volatile boolean useV2 = false;   // torrent has v2 hashes
+    private static BitInbox inbox = null;            // readers' messages go
+    private static final int BLOCK_LENGTH = 16384;
+    private static final int START_DEPTH = 4;        // blocks, before measured
+    private static final int MIN_DEPTH = 2;
+    private static final int MAX_DEPTH = 128;
+    private static final int QUEUE_DELAY = 100;      // ms queued at the peer
+    private static final long MIN_RTT_WINDOW = 10000; // ms a min RTT holds
+    private static final double RATE_DECAY = 0.125;  // toward lower samples
     private InetSocketAddress peerAddrPort;
     private String peerIDstring;    // hex string of SHA1
     private byte[] peerID;
-    private long lastUsed;
+    private long lastUsed;          // last message received
+    private long lastSent;          // last message sent
+    private long bytesDownloaded = 0;
+    private long bytesUploaded = 0;
+    private long sampledDownloaded = 0;   // totals at the last rate sample
+    private long sampledUploaded = 0;
+    private double downloadRate = 0;      // bytes/s, smoothed
+    private double uploadRate = 0;
+    private long srtt = -1;               // smoothed REQUEST->PIECE time, ms
+    private long minRtt = -1;             // lowest recent one, ms
+    private long minRttAt = 0;            // when it was taken
+    private double deliveryRate = 0;      // bytes/s, from delivery samples
+    private int maxRequests = MAX_DEPTH;  // peer's "reqq", if lower
     private boolean[] remoteBitfield = null;
-    private Socket peerSocket = null;
+    private BitConnection conn = null;    // TCP or uTP stream
     private BufferedOutputStream outToPeer = null;
     private BufferedInputStream inFromPeer = null;
     private BitReader reader = null;
-    private Queue<BitMessage> messageQ = null;
-
-    public HashSet<Integer> outstandingRequests = null;
+    private final boolean isOutbound;     // we connected to the peer
+    private byte[] remoteReserved = new byte[8];
+    private Map<String, Integer> extensionIds
+            = new HashMap<String, Integer>();   // peer's extension ids
+    private int listenPort = -1;          // from extended handshake "p"
+
+    public ArrayList<BitRequest> outstandingRequests = null;
+    public int numTimeouts = 0;         // consecutive timed-out requests
+    public boolean isSnubbed = false;   // peer stopped sending us blocks
+    public int numBadBlocks = 0;        // v2: blocks failing their hash
+    public final AtomicInteger inboxed  // messages waiting in the inbox
+            = new AtomicInteger(0);
+    public BitTimerWheel.Timeout requestTimer = null;
     public boolean localIsChoked;       // peer is choking this client
     public boolean remoteIsChoked;      // this client is choking peer
     public boolean localIsInterested;   // this client is interested
     public boolean remoteIsInterested;  // peer is interested
+    public BitTimerWheel.Timeout keepAliveTimer = null;
+    public BitTimerWheel.Timeout idleTimer = null;
+    public HashSet<Integer> allowedFastIn      // peer serves these choked
+            = new HashSet<Integer>();
+    public HashSet<Integer> allowedFastOut     // we serve these choked
+            = new HashSet<Integer>();
+    public long connectedAt = 0;        // joined the transfer, ms
+    public boolean isFast = true;       // near the top download rate
 
     /* BitPeer(InetAddress, int): constructor for peer from command line/tracker */
     public BitPeer(InetAddress peerAddr, int peerPort) {
         this.peerAddrPort = new InetSocketAddress(peerAddr, peerPort);
+        this.isOutbound = true;
         String stringToHash = getIP().toString() + String.valueOf(getPort());
         peerID = BitLibrary.getSHA1(stringToHash);
         peerIDstring = BitLibrary.bytesToHex(peerID);
         this.lastUsed = System.currentTimeMillis();
-        this.outstandingRequests = new HashSet<Integer>();
+        this.lastSent = lastUsed;
+        this.outstandingRequests = new ArrayList<BitRequest>();
 
         // peers start out choked and uninterested
         this.localIsChoked = true;
@@ -51,15 +104,17 @@ public class BitPeer {
         this.remoteIsInterested = false;
     }
 
-    /* BitPeer(Socket): constructor for receiving peer off welcome socket */
-    public BitPeer(Socket peerSocket) {
-        this.peerSocket = peerSocket;
-        this.peerAddrPort = new InetSocketAddress(peerSocket.getInetAddress(), 
-                                                  peerSocket.getPort());
+    /* BitPeer(BitConnection): constructor for a peer that connected to us */
+    /* (off the welcome socket, or over uTP) */
+    public BitPeer(BitConnection conn) {
+        this.conn = conn;
+        this.isOutbound = false;
+        this.peerAddrPort = new InetSocketAddress(conn.getInetAddress(),
+                                                  conn.getPort());
         String stringToHash = getIP().toString() + String.valueOf(getPort());
         peerID = BitLibrary.getSHA1(stringToHash);
         peerIDstring = BitLibrary.bytesToHex(peerID);
-        this.outstandingRequests = new HashSet<Integer>();
+        this.outstandingRequests = new ArrayList<BitRequest>();
 
         // peers start out choked and uninterested
         this.localIsChoked = true;
@@ -68,34 +123,42 @@ public class BitPeer {
         this.remoteIsInterested = false;
         try {
             this.inFromPeer = new BufferedInputStream(
-                              new DataInputStream(peerSocket.getInputStream()));
+                              new DataInputStream(conn.getInputStream()));
             this.outToPeer = new BufferedOutputStream(
-                             new DataOutputStream(peerSocket.getOutputStream()));
+                             new DataOutputStream(conn.getOutputStream()));
         } catch (IOException ex) {
             ex.printStackTrace();
         }
         // only initialize reader once handshake is complete
 
         this.lastUsed = System.currentTimeMillis();
+        this.lastSent = lastUsed;
     }
 
-    /* connect:  connect to specified peer */
-    public int connect() {
-        // initialize input/output streams
+    /* connectUtp:  connect to the peer over uTP, waiting at most */
+    /* UTP_CONNECT_TIMEOUT for it to answer; return 0 on success, -1 if */
+    /* it does not (the caller falls back to TCP) */
+    public int connectUtp(BitUtpSocket utp) {
         try {
-            peerSocket = new Socket(getIP(), getPort());
-            outToPeer = new BufferedOutputStream(
-                        new DataOutputStream(peerSocket.getOutputStream()));
-            inFromPeer = new BufferedInputStream(
-                         new DataInputStream(peerSocket.getInputStream()));
+            attach(utp.connect(peerAddrPort, UTP_CONNECT_TIMEOUT));
         } catch (IOException ex) {
-            System.err.println("error: failed to connect to peer at " + getIP());
             return -1;
         }
+        return 0;
+    }
 
+    /* attach:  talk to the peer over an established connection */
+    public void attach(BitConnection conn) {
+        this.conn = conn;
+        try {
+            outToPeer = new BufferedOutputStream(
+                        new DataOutputStream(conn.getOutputStream()));
+            inFromPeer = new BufferedInputStream(
+                         new DataInputStream(conn.getInputStream()));
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
         this.lastUsed = System.currentTimeMillis();
-
-        return 0;
     }
 
     /* updateLastUsed: refresh the timestamp for when last used */
@@ -108,14 +171,143 @@ public class BitPeer {
         return lastUsed;
     }
 
+    /* getLastSent: indicate when a message was last sent to the peer */
+    public long getLastSent() {
+        return lastSent;
+    }
+
+    public void addDownloaded(int numBytes) {
+        bytesDownloaded += numBytes;
+    }
+
+    public void addUploaded(int numBytes) {
+        bytesUploaded += numBytes;
+    }
+
+    /* sampleRates: update smoothed transfer rates, every intervalMs */
+    public void sampleRates(long intervalMs) {
+        double down = (bytesDownloaded - sampledDownloaded) * 1000.0 / intervalMs;
+        double up = (bytesUploaded - sampledUploaded) * 1000.0 / intervalMs;
+        downloadRate = 0.7 * downloadRate + 0.3 * down;
+        uploadRate = 0.7 * uploadRate + 0.3 * up;
+        sampledDownloaded = bytesDownloaded;
+        sampledUploaded = bytesUploaded;
+    }
+
+    /* updateRtt:  fold a REQUEST->PIECE sample (ms) into the average */
+    public void updateRtt(long sample) {
+        if (srtt < 0) {
+            srtt = sample;
+        } else {
+            srtt = (7 * srtt + sample) / 8;
+        }
+    }
+
+    /* sampleDelivery:  REQ was answered at NOW (after addDownloaded): */
+    /* fold its round trip into srtt and the recent minimum, and the */
+    /* rate the peer delivered at while it was out (bytes delivered since */
+    /* it was sent over the time since) into deliveryRate, which jumps */
+    /* up to a higher sample and eases down to a lower one */
+    public void sampleDelivery(BitRequest req, long now) {
+        long rtt = Math.max(1, now - req.getSentAt());
+        updateRtt(rtt);
+        if (minRtt < 0 || rtt <= minRtt || now - minRttAt > MIN_RTT_WINDOW) {
+            minRtt = rtt;
+            minRttAt = now;
+        }
+        double rate = (bytesDownloaded - req.getDelivered()) * 1000.0 / rtt;
+        if (rate >= deliveryRate) {
+            deliveryRate = rate;
+        } else {
+            deliveryRate += RATE_DECAY * (rate - deliveryRate);
+        }
+    }
+
+    /* requestTimedOut:  the peer stalled; halve its delivery rate so its */
+    /* queue shrinks at once */
+    public void requestTimedOut() {
+        deliveryRate /= 2;
+    }
+
+    /* getQueueDepth:  blocks to keep in flight: the bandwidth-delay */
+    /* product over the round trip plus QUEUE_DELAY, deliveryRate x */
+    /* (minRtt + QUEUE_DELAY), so the peer always has our next requests */
+    /* queued (peers serve in bursts) but a block waits there no longer */
+    /* than QUEUE_DELAY; as the rate grows so does the depth, which lets */
+    /* it grow further.  Within MIN_DEPTH and MAX_DEPTH (or the peer's */
+    /* reqq); START_DEPTH until measured */
+    public int getQueueDepth() {
+        int depth = START_DEPTH;
+        if (minRtt >= 0 && deliveryRate > 0) {
+            double bdp = deliveryRate * (minRtt + QUEUE_DELAY) / 1000.0;
+            depth = (int) Math.ceil(bdp / BLOCK_LENGTH);
+        }
+        return Math.max(MIN_DEPTH, Math.min(depth,
+                                            Math.min(MAX_DEPTH, maxRequests)));
+    }
+
+    /* setMaxRequests:  the peer's "reqq", requests it will queue */
+    public void setMaxRequests(int n) {
+        if (n > 0) {
+            this.maxRequests = n;
+        }
+    }
+
+    public long getMinRtt() {
+        return minRtt;
+    }
+
+    public double getDeliveryRate() {
+        return deliveryRate;
+    }
+
+    public long getDownloaded() {
+        return bytesDownloaded;
+    }
+
+    /* getSrtt:  smoothed request round trip in ms, -1 if not measured yet */
+    public long getSrtt() {
+        return srtt;
+    }
+
+    /* getOutstandingBytes:  bytes requested but not yet received */
+    public int getOutstandingBytes() {
+        int n = 0;
+        for (BitRequest req : outstandingRequests) {
+            n += req.getLength();
+        }
+        return n;
+    }
+
+    /* removeRequest:  remove and return the request for a block, or null */
+    public BitRequest removeRequest(int index, int begin) {
+        Iterator<BitRequest> it = outstandingRequests.iterator();
+        while (it.hasNext()) {
+            BitRequest req = it.next();
+            if (req.matches(index, begin)) {
+                it.remove();
+                return req;
+            }
+        }
+        return null;
+    }
+
+    public double getDownloadRate() {
+        return downloadRate;
+    }
+
+    public double getUploadRate() {
+        return uploadRate;
+    }
+
     /* close: shut down reader thread and close socket */
     public void close() {
         if (reader != null) {
             reader.stopThread();
         }
-        if (peerSocket != null) {
+        if (conn != null) {
             try {
-                peerSocket.close();
+                conn.close();
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
@@ -138,17 +330,9 @@ public class BitPeer {
         return this.remoteBitfield[index];
     }
 
-    /* getNextMessage: return the next message off the messageQ */
-    public BitMessage getNextMessage() {
-        BitMessage msg = null;
-        if (messageQ == null) {
-            return null;
-        }
-        synchronized (messageQ) {
-            msg = messageQ.poll();
-            messageQ.notifyAll();    // notify reader thread of new space
-        }
-        return msg;
+    /* isClosed: the peer closed the connection (or it broke) */
+    public boolean isClosed() {
+        return reader != null && reader.isClosed();
     }
 
     /* getRarePiece: return index of a piece had by peer and not in */
@@ -183,6 +367,8 @@ public class BitPeer {
         try {
             outToPeer.write(sendData, offset, len);
             outToPeer.flush();
+            numWritten = len;
+            lastSent = System.currentTimeMillis();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -191,11 +377,11 @@ public class BitPeer {
 
     /* sendHandshake: open socket to peer and send handshake message */
     /* return 0 on success, -1 on failure */
-    public int sendHandshake(String encoded) {
+    public int sendHandshake(byte[] infoHash) {
         // open connection socket
         try {
             // send handshake
-            byte[] handshakeMsg = generateHandshake(encoded);
+            byte[] handshakeMsg = generateHandshake(infoHash);
             outToPeer.write(handshakeMsg, 0, handshakeMsg.length);
             outToPeer.flush();
         } catch (IOException ex) {
@@ -207,33 +393,61 @@ public class BitPeer {
     }
 
     /* receiveHandshake: receive, verify, respond to handshake pattern */
+    /* gives up once DEADLINE (in currentTimeMillis) has passed */
     /* return 0 on success, -1 on failure */
-    public int receiveHandshake(String encoded) {
+    public int receiveHandshake(byte[] infoHash, long deadline) {
         if (inFromPeer == null || outToPeer == null) {
             System.err.println("error: receiveHandshake found null socket");
             return -1;
         }
 
-        // read peer handshake message (blocking), compare to expected
+        // read peer handshake message, compare to expected
         byte[] peerHandshakeMsg = new byte[HANDSHAKE_SIZE];
         try {
-            // continue reading until full handshake is read;
+            // continue reading until full handshake is read; each read may
+            // only block for whatever is left of the deadline
             int numRead = 0;
             while (numRead < HANDSHAKE_SIZE) {
-                numRead += inFromPeer.read(peerHandshakeMsg, numRead, 
-                                           HANDSHAKE_SIZE - numRead);
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException();
+                }
+                conn.setSoTimeout((int) remaining);
+                int n = inFromPeer.read(peerHandshakeMsg, numRead,
+                                        HANDSHAKE_SIZE - numRead);
+                if (n == -1) {
+                    System.err.println("error: peer at " + getIP()
+                                       + " closed during handshake");
+                    return -1;
+                }
+                numRead += n;
             }
+            conn.setSoTimeout(0);    // reader thread blocks freely
+        } catch (SocketTimeoutException ex) {
+            System.err.println("error: handshake with " + getIP()
+                               + " timed out");
+            return -1;
         } catch (IOException ex) {
             System.err.println("error: failed to read entire handshake");
             return -1;
         }
 
-        byte[] myHandshakeMsg = generateHandshake(encoded);
+        return acceptHandshake(peerHandshakeMsg, infoHash);
+    }
+
+    /* acceptHandshake:  verify the handshake the peer sent and set up */
+    /* its reader; return 0 on success, -1 on failure */
+    public int acceptHandshake(byte[] peerHandshakeMsg, byte[] infoHash) {
+        byte[] myHandshakeMsg = generateHandshake(infoHash);
         if (myHandshakeMsg.length != peerHandshakeMsg.length) {
             return -1;
         }
         for (int i = 0; i < myHandshakeMsg.length - 20; ++i) {
-            // note: peerID is not being checked here (see "- 20" above)
+            // note: peerID is not being checked here (see "- 20" above),
+            // nor are the reserved bytes, which each side sets on its own
+            if (i >= RESERVED_OFFSET && i < RESERVED_OFFSET + 8) {
+                continue;
+            }
             if (peerHandshakeMsg[i] != myHandshakeMsg[i]) {
                 System.err.println("error: peer at " + getIP() 
                                    + " has wrong .torrent file");
@@ -241,16 +455,23 @@ public class BitPeer {
             }
         }
 
-        // initialize reader to read from socket
-        this.messageQ = new LinkedList<BitMessage>();
-        this.reader = new BitReader(inFromPeer, messageQ);
-        Thread t = new Thread(reader);
-        t.start();
+        System.arraycopy(peerHandshakeMsg, RESERVED_OFFSET, remoteReserved, 0, 8);
+
+        // initialize reader to read from socket; it runs once the loop
+        // has taken the peer (startReader), so every message in the inbox
+        // is from a known peer
+        this.reader = new BitReader(inFromPeer, this, inbox);
 
         return 0;
     }
 
-    public byte[] generateHandshake(String encoded) {
+    /* startReader:  start reading the peer's messages into the inbox */
+    public void startReader() {
+        Thread t = new Thread(reader);
+        t.start();
+    }
+
+    public byte[] generateHandshake(byte[] infoHash) {
         ByteBuffer handshakeMsg = ByteBuffer.allocate(HANDSHAKE_SIZE);
 
         // construct 48-byte handshake message
@@ -263,14 +484,20 @@ public class BitPeer {
             ex.printStackTrace();
             return null;
         }
-        // (ii) 8-byte extension (here we use all zeroes)
+        // (ii) 8-byte extension: extension protocol (BEP 10), Fast Extension
+        // (BEP 6) and, for v2 torrents, BEP 52 bits
         byte[] pad = new byte[8];
         for (int i = 0; i < 8; ++i) {
             pad[i] = 0;
         }
+        pad[EXTENSION_BYTE] |= EXTENSION_BIT;
+        pad[FAST_BYTE] |= FAST_BIT;
+        if (useV2) {
+            pad[V2_BYTE] |= V2_BIT;
+        }
         handshakeMsg.put(pad);
-        // (iii) 20-byte SHA1 encoding of bencoded metainfo (diff. from protocol)
-        handshakeMsg.put(BitLibrary.getSHA1(encoded));
+        // (iii) 20-byte info hash: SHA1 of the bencoded info dictionary
+        handshakeMsg.put(infoHash);
         // (iv) 20-byte peer ID (SHA1 encoding of IP and port)
         handshakeMsg.put(peerID);
         handshakeMsg.flip();    // prepare for writing
@@ -278,8 +505,12 @@ public class BitPeer {
         return handshakeMsg.array();
     }
 
-    public Socket getSocket() {
-        return peerSocket;
+    public BitConnection getConnection() {
+        return conn;
+    }
+
+    public InetSocketAddress getAddress() {
+        return peerAddrPort;
     }
 
     public InetAddress getIP() {
@@ -293,4 +524,76 @@ public class BitPeer {
     public String getHostName() {
         return peerAddrPort.getHostName();
     }
+
+    /* supportsExtensions:  peer set the BEP 10 bit in its handshake */
+    public boolean supportsExtensions() {
+        return (remoteReserved[EXTENSION_BYTE] & EXTENSION_BIT) != 0;
+    }
+
+    /* supportsFast:  both sides set the BEP 6 bit, so the Fast Extension */
+    /* is in use on this connection */
+    public boolean supportsFast() {
+        return (remoteReserved[FAST_BYTE] & FAST_BIT) != 0;
+    }
+
+    /* setInbox:  where every peer's reader puts its messages */
+    public static void setInbox(BitInbox in) {
+        inbox = in;
+    }
+
+    /* setV2:  set the BEP 52 bit in our handshakes (a v2 or hybrid */
+    /* torrent, so hash requests can be answered) */
+    public static void setV2(boolean v2) {
+        useV2 = v2;
+    }
+
+    /* supportsV2:  peer set the BEP 52 bit, so it takes hash requests */
+    public boolean supportsV2() {
+        return (remoteReserved[V2_BYTE] & V2_BIT) != 0;
+    }
+
+    /* getFastBitfield:  the peer's bitfield limited to the pieces it lets */
+    /* us request while choked; null if there are none */
+    public boolean[] getFastBitfield() {
+        if (remoteBitfield == null || allowedFastIn.isEmpty()) {
+            return null;
+        }
+        boolean[] fast = new boolean[remoteBitfield.length];
+        boolean any = false;
+        for (int index : allowedFastIn) {
+            if (remoteBitfield[index]) {
+                fast[index] = true;
+                any = true;
+            }
+        }
+        return any ? fast : null;
+    }
+
+    /* getExtensionId:  id the peer wants for extension NAME, 0 if none */
+    public int getExtensionId(String name) {
+        Integer id = extensionIds.get(name);
+        return id == null ? 0 : id;
+    }
+
+    public void setExtensionIds(Map<String, Integer> ids) {
+        this.extensionIds = ids;
+    }
+
+    public void setListenPort(int port) {
+        if (port > 0 && port < 65536) {
+            this.listenPort = port;
+        }
+    }
+
+    /* getListenAddress:  where other peers can connect to this peer; */
+    /* null for an incoming peer that never told us its listen port */
+    public InetSocketAddress getListenAddress() {
+        if (isOutbound) {
+            return peerAddrPort;
+        }
+        if (listenPort == -1) {
+            return null;
+        }
+        return new InetSocketAddress(getIP(), listenPort);
+    }
 }
@@ -0,0 +1,317 @@
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/* BitPeerTable:  in-memory peer table of the embedded tracker */
+/* One swarm per info hash, each an open-addressing table of IPv4 peers */
+/* keyed by (ip << 16 | port), with an expiry time and a seeding flag. */
+/* Announcing and writing the compact peer list allocate nothing; expired */
+/* peers are skipped at once and removed by the periodic sweep().  Not */
+/* thread-safe: the tracker server calls it from its one thread. */
+public class BitPeerTable {
+    private static final int MIN_CAPACITY = 16;         // slots, power of 2
+    private static final int MAX_SWARMS = 65536;
+    private static final int MAX_PEERS = 1 << 20;       // per swarm
+
+    // announce events, numbered as in the UDP tracker protocol
+    public static final int NONE = 0;
+    public static final int COMPLETED = 1;
+    public static final int STARTED = 2;
+    public static final int STOPPED = 3;
+
+    /* Swarm:  the peers of one info hash */
+    private static final class Swarm {
+        final byte[] infoHash = new byte[20];
+        long[] keys = new long[MIN_CAPACITY];            // 0 marks empty
+        long[] expiry = new long[MIN_CAPACITY];
+        boolean[] seeding = new boolean[MIN_CAPACITY];
+        int size = 0;
+        int seeders = 0;
+        int completed = 0;                               // "completed" events
+    }
+
+    private final long ttl;                              // ms a peer is kept
+    private final Random random = new Random();
+    private Swarm[] swarms = new Swarm[MIN_CAPACITY];
+    private int numSwarms = 0;
+    private int complete = 0;                            // of the last lookup
+    private int incomplete = 0;
+    private int downloaded = 0;
+
+    public BitPeerTable(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /* getComplete / getIncomplete / getDownloaded:  swarm counts as of the */
+    /* last announce() or scrape() */
+    public int getComplete() {
+        return complete;
+    }
+
+    public int getIncomplete() {
+        return incomplete;
+    }
+
+    public int getDownloaded() {
+        return downloaded;
+    }
+
+    public int getNumSwarms() {
+        return numSwarms;
+    }
+
+    /* announce:  record a peer and write up to numWant other live peers to */
+    /* out as 6-byte compact entries; returns the number written, -1 if the */
+    /* table is full.  Loopback peers are only given to loopback peers. */
+    public int announce(byte[] hash, int hashOff, int ip, int port,
+                        boolean seeding, int event, int numWant,
+                        long now, ByteBuffer out) {
+        Swarm s = findSwarm(hash, hashOff, event != STOPPED);
+        if (s == null) {
+            complete = incomplete = downloaded = 0;
+            return event == STOPPED ? 0 : -1;
+        }
+        long key = ((ip & 0xffffffffL) << 16) | (port & 0xffff);
+        if (event == STOPPED) {
+            int i = find(s, key);
+            if (i >= 0) {
+                remove(s, i);
+            }
+        } else if (put(s, key, seeding, now + ttl) == -1) {
+            return -1;
+        }
+        if (event == COMPLETED) {
+            ++s.completed;
+        }
+        complete = s.seeders;
+        incomplete = s.size - s.seeders;
+        downloaded = s.completed;
+
+        // walk the table from a random slot; seeders need no seeders
+        boolean loopback = (ip >>> 24) == 127;
+        int written = 0;
+        int mask = s.keys.length - 1;
+        int start = random.nextInt(s.keys.length);
+        for (int n = 0; n < s.keys.length && written < numWant; ++n) {
+            int i = (start + n) & mask;
+            long k = s.keys[i];
+            if (k == 0 || k == key || s.expiry[i] <= now
+                || (seeding && s.seeding[i])
+                || (!loopback && (k >>> 40) == 127)) {
+                continue;
+            }
+            if (out.remaining() < 6) {
+                break;
+            }
+            out.putInt((int) (k >>> 16));
+            out.putShort((short) k);
+            ++written;
+        }
+        return written;
+    }
+
+    /* scrape:  load the counts of one swarm; false if it is unknown */
+    public boolean scrape(byte[] hash, int hashOff) {
+        Swarm s = findSwarm(hash, hashOff, false);
+        complete = s == null ? 0 : s.seeders;
+        incomplete = s == null ? 0 : s.size - s.seeders;
+        downloaded = s == null ? 0 : s.completed;
+        return s != null;
+    }
+
+    /* sweep:  drop expired peers, shrink tables, and forget empty swarms */
+    public void sweep(long now) {
+        Swarm[] old = swarms;
+        swarms = new Swarm[MIN_CAPACITY];
+        numSwarms = 0;
+        for (Swarm s : old) {
+            if (s == null) {
+                continue;
+            }
+            rebuild(s, now);
+            if (s.size > 0) {
+                insertSwarm(s);
+            }
+        }
+    }
+
+    /* findSwarm:  the swarm of an info hash, created if create is set */
+    private Swarm findSwarm(byte[] hash, int hashOff, boolean create) {
+        int mask = swarms.length - 1;
+        int i = hashSlot(hash, hashOff) & mask;
+        for (Swarm s; (s = swarms[i]) != null; i = (i + 1) & mask) {
+            if (sameHash(s.infoHash, hash, hashOff)) {
+                return s;
+            }
+        }
+        if (!create || numSwarms >= MAX_SWARMS) {
+            return null;
+        }
+        Swarm s = new Swarm();
+        System.arraycopy(hash, hashOff, s.infoHash, 0, 20);
+        insertSwarm(s);
+        return s;
+    }
+
+    private void insertSwarm(Swarm s) {
+        if (2 * (numSwarms + 1) > swarms.length) {
+            Swarm[] old = swarms;
+            swarms = new Swarm[old.length * 2];
+            numSwarms = 0;
+            for (Swarm o : old) {
+                if (o != null) {
+                    insertSwarm(o);
+                }
+            }
+        }
+        int mask = swarms.length - 1;
+        int i = hashSlot(s.infoHash, 0) & mask;
+        while (swarms[i] != null) {
+            i = (i + 1) & mask;
+        }
+        swarms[i] = s;
+        ++numSwarms;
+    }
+
+    /* put:  insert or refresh a peer; returns its slot, -1 if full */
+    private int put(Swarm s, long key, boolean seeding, long expires) {
+        int i = find(s, key);
+        if (i < 0) {
+            if (s.size >= MAX_PEERS) {
+                return -1;
+            }
+            if (2 * (s.size + 1) > s.keys.length) {
+                grow(s);
+            }
+            int mask = s.keys.length - 1;
+            i = slot(key) & mask;
+            while (s.keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            s.keys[i] = key;
+            s.seeding[i] = false;
+            ++s.size;
+        }
+        if (s.seeding[i] != seeding) {
+            s.seeders += seeding ? 1 : -1;
+            s.seeding[i] = seeding;
+        }
+        s.expiry[i] = expires;
+        return i;
+    }
+
+    private static int find(Swarm s, long key) {
+        int mask = s.keys.length - 1;
+        for (int i = slot(key) & mask; s.keys[i] != 0; i = (i + 1) & mask) {
+            if (s.keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* remove:  clear slot i, shifting later entries back into the hole */
+    private static void remove(Swarm s, int i) {
+        if (s.seeding[i]) {
+            --s.seeders;
+        }
+        --s.size;
+        int mask = s.keys.length - 1;
+        int hole = i;
+        s.keys[hole] = 0;
+        for (int j = (hole + 1) & mask; s.keys[j] != 0; j = (j + 1) & mask) {
+            int home = slot(s.keys[j]) & mask;
+            // move j back unless its home lies cyclically in (hole, j]
+            boolean stays = hole <= j ? (hole < home && home <= j)
+                                      : (hole < home || home <= j);
+            if (!stays) {
+                s.keys[hole] = s.keys[j];
+                s.expiry[hole] = s.expiry[j];
+                s.seeding[hole] = s.seeding[j];
+                s.keys[j] = 0;
+                hole = j;
+            }
+        }
+    }
+
+    private static void grow(Swarm s) {
+        long[] keys = s.keys;
+        long[] expiry = s.expiry;
+        boolean[] seeding = s.seeding;
+        resize(s, keys.length * 2);
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != 0) {
+                reinsert(s, keys[i], expiry[i], seeding[i]);
+            }
+        }
+    }
+
+    /* rebuild:  re-insert only live peers into a table sized to fit them */
+    private static void rebuild(Swarm s, long now) {
+        long[] keys = s.keys;
+        long[] expiry = s.expiry;
+        boolean[] seeding = s.seeding;
+        int live = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != 0 && expiry[i] > now) {
+                ++live;
+            }
+        }
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * live) {
+            capacity *= 2;
+        }
+        resize(s, capacity);
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != 0 && expiry[i] > now) {
+                reinsert(s, keys[i], expiry[i], seeding[i]);
+            }
+        }
+    }
+
+    private static void resize(Swarm s, int capacity) {
+        s.keys = new long[capacity];
+        s.expiry = new long[capacity];
+        s.seeding = new boolean[capacity];
+        s.size = 0;
+        s.seeders = 0;
+    }
+
+    private static void reinsert(Swarm s, long key, long expires,
+                                 boolean seeding) {
+        int mask = s.keys.length - 1;
+        int i = slot(key) & mask;
+        while (s.keys[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        s.keys[i] = key;
+        s.expiry[i] = expires;
+        s.seeding[i] = seeding;
+        ++s.size;
+        if (seeding) {
+            ++s.seeders;
+        }
+    }
+
+    /* slot:  spread a peer key over the table (murmur3 finalizer) */
+    private static int slot(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /* hashSlot:  info hashes are already uniform, use the first bytes */
+    private static int hashSlot(byte[] hash, int off) {
+        return (hash[off] & 0xff) << 24 | (hash[off + 1] & 0xff) << 16
+               | (hash[off + 2] & 0xff) << 8 | (hash[off + 3] & 0xff);
+    }
+
+    private static boolean sameHash(byte[] a, byte[] b, int off) {
+        for (int i = 0; i < 20; ++i) {
+            if (a[i] != b[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
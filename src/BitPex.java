@@ -0,0 +1,176 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.bencode.*;
+import util.lib.BitLibrary;
+
+/* BitPex:  Peer Exchange (BEP 11) as the "ut_pex" extension */
+/* Every connected peer that supports it is told which peers we are */
+/* connected to, as the difference from what it was told last time: */
+/* once right after the extended handshake, then every PEX_INTERVAL. */
+/* Addresses learned from a peer go to BitClient as candidates, at most */
+/* MAX_ADDED per message and one message per MIN_RECEIVE_INTERVAL, so a */
+/* churning swarm cannot trigger a storm of new connections. */
+public class BitPex implements BitExtension {
+    public static final String NAME = "ut_pex";
+    public static final int PEX_INTERVAL = 60000;           // ms between sends
+    private static final int MIN_RECEIVE_INTERVAL = 45000;  // ms, else ignored
+    private static final int MAX_ADDED = 50;        // per message, both ways
+    private static final int MAX_DROPPED = 50;
+    private static final int COMPACT_LEN = 6;       // IPv4 address + port
+    private static final byte FLAG_SEED = 0x02;     // added.f: peer is a seed
+
+    private final Map<BitPeer, PexState> states
+            = new HashMap<BitPeer, PexState>();
+    private final List<BitPeer> peerList;           // BitClient's peers
+
+    /* PexState:  what one peer was told, and when it last told us */
+    private static class PexState {
+        private final Set<InetSocketAddress> sent
+                = new HashSet<InetSocketAddress>();
+        private long lastReceived = -1;
+    }
+
+    public BitPex(List<BitPeer> peerList) {
+        this.peerList = peerList;
+    }
+
+    /* onHandshake:  send the first (full) peer list to a new PEX peer */
+    public void onHandshake(BitPeer peer) {
+        if (peer.getExtensionId(NAME) <= 0 || states.containsKey(peer)) {
+            return;
+        }
+        PexState state = new PexState();
+        states.put(peer, state);
+        send(peer, state);
+    }
+
+    /* onMessage:  take new candidates from a peer's added list */
+    public int onMessage(BitPeer peer, byte[] payload) {
+        PexState state = states.get(peer);
+        if (state == null) {
+            state = new PexState();
+            states.put(peer, state);
+        }
+        long now = System.currentTimeMillis();
+        if (state.lastReceived != -1
+            && now - state.lastReceived < MIN_RECEIVE_INTERVAL) {
+            BitClient.logDebug("ignoring early PEX message from "
+                               + peer.getIP());
+            return 0;
+        }
+        state.lastReceived = now;
+
+        BDict dict;
+        try {
+            BObject[] objs = BDecoder.read(payload);
+            if (objs.length < 1 || !(objs[0] instanceof BDict)) {
+                return -1;
+            }
+            dict = (BDict) objs[0];
+        } catch (RuntimeException ex) {
+            return -1;
+        }
+        if (!(dict.get("added") instanceof BString)) {
+            return 0;    // nothing new (dropped peers are left to time out)
+        }
+        byte[] added = ((BString) dict.get("added")).getBytes();
+        int count = Math.min(added.length / COMPACT_LEN, MAX_ADDED);
+        for (int i = 0; i < count; ++i) {
+            int off = i * COMPACT_LEN;
+            int port = ((added[off + 4] & 0xff) << 8) | (added[off + 5] & 0xff);
+            if (port == 0) {
+                continue;
+            }
+            try {
+                byte[] ip = new byte[] { added[off], added[off + 1],
+                                         added[off + 2], added[off + 3] };
+                BitClient.addCandidate(new InetSocketAddress(
+                        InetAddress.getByAddress(ip), port));
+            } catch (UnknownHostException ex) {
+                return -1;
+            }
+        }
+        BitClient.logDebug("PEX: " + count + " peers from " + peer.getIP());
+        return 0;
+    }
+
+    /* round:  timer task, send every PEX peer what changed since last time */
+    public void round() {
+        for (Map.Entry<BitPeer, PexState> e : states.entrySet()) {
+            send(e.getKey(), e.getValue());
+        }
+    }
+
+    /* peerRemoved:  forget a disconnected peer */
+    public void peerRemoved(BitPeer peer) {
+        states.remove(peer);
+    }
+
+    /* send:  diff the current peers against what PEER was last told */
+    private void send(BitPeer peer, PexState state) {
+        Map<InetSocketAddress, BitPeer> current
+                = new HashMap<InetSocketAddress, BitPeer>();
+        for (BitPeer p : peerList) {
+            InetSocketAddress addr = p.getListenAddress();
+            if (p != peer && addr != null
+                && addr.getAddress() instanceof Inet4Address) {
+                current.put(addr, p);
+            }
+        }
+
+        ByteBuffer added = ByteBuffer.allocate(MAX_ADDED * COMPACT_LEN);
+        ByteBuffer flags = ByteBuffer.allocate(MAX_ADDED);
+        for (Map.Entry<InetSocketAddress, BitPeer> e : current.entrySet()) {
+            if (!added.hasRemaining()) {
+                break;
+            }
+            if (state.sent.add(e.getKey())) {
+                added.put(e.getKey().getAddress().getAddress());
+                added.putShort((short) e.getKey().getPort());
+                boolean[] bf = e.getValue().getBitfield();
+                flags.put(bf != null && BitLibrary.isAllTrue(bf)
+                          ? FLAG_SEED : 0);
+            }
+        }
+        ByteBuffer dropped = ByteBuffer.allocate(MAX_DROPPED * COMPACT_LEN);
+        for (InetSocketAddress addr : new ArrayList<InetSocketAddress>(state.sent)) {
+            if (!dropped.hasRemaining()) {
+                break;
+            }
+            if (!current.containsKey(addr)) {
+                state.sent.remove(addr);
+                dropped.put(addr.getAddress().getAddress());
+                dropped.putShort((short) addr.getPort());
+            }
+        }
+        if (added.position() == 0 && dropped.position() == 0) {
+            return;
+        }
+
+        BDict dict = new BDict();
+        dict.put("added", compact(added));
+        dict.put("added.f", compact(flags));
+        dict.put("dropped", compact(dropped));
+        BitMessage msg = BitMessage.extended(peer, NAME,
+                dict.encode().getBytes(StandardCharsets.ISO_8859_1));
+        if (msg != null) {
+            BitClient.sendMessage(peer, msg);
+        }
+    }
+
+    private static BString compact(ByteBuffer buf) {
+        return new BString(new String(buf.array(), 0, buf.position(),
+                                      StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,302 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/* BitPicker:  chooses which block to request next, at block granularity */
+/* Pieces already in progress are finished first; otherwise a new piece */
+/* is started rarest-first (ties broken at random).  Blocks whose request */
+/* timed out or was choked are handed back and picked again.  A piece */
+/* whose blocks have all arrived is left alone while its hash is checked, */
+/* then either had or started over. */
+/* Pieces have priorities (from their files): SKIP pieces are never */
+/* picked and higher priorities are started before rarer pieces. */
+/* In streaming mode the window of pieces from the read head on comes */
+/* first, nearest the head first.  Each piece gets a deadline when it */
+/* enters the window (DEADLINE_STEP per piece from the head); until it */
+/* is due, only fast peers are given it, afterwards any peer is. */
+/* Offsets ("begin") are absolute file offsets, as used on the wire. */
+public class BitPicker {
+    public static final int BLOCK_LENGTH = 16384;      // 16 KiB per request
+    public static final int PRIORITY_SKIP = 0;         // piece priorities
+    public static final int PRIORITY_LOW = 1;
+    public static final int PRIORITY_NORMAL = 4;
+    public static final int PRIORITY_HIGH = 7;
+    private static final byte FREE = 0;
+    private static final byte REQUESTED = 1;
+    private static final byte RECEIVED = 2;
+    private static final int DEADLINE_STEP = 1000;    // ms per piece from head
+
+    private final int fileLength;
+    private final int pieceLength;
+    private final int numPieces;
+    private final boolean[] have;                      // the local bitfield
+    private final int[] availability;                  // peers having piece
+    private final int[] priority;                      // PRIORITY_*
+    private final boolean[] verifying;                 // hash being checked
+    private final Map<Integer, byte[]> partial         // block states of
+            = new HashMap<Integer, byte[]>();          // pieces in progress
+    private final Random random = new Random();
+    private volatile int window = 0;                   // streaming: pieces
+    private volatile int readHead = 0;                 // set by BitStreams
+    private final long[] deadline;                     // ms, 0 if not in window
+    private int windowStart = 0;                       // what deadline covers
+    private int windowEnd = 0;
+
+    public BitPicker(int fileLength, int pieceLength, boolean[] have) {
+        this.fileLength = fileLength;
+        this.pieceLength = pieceLength;
+        this.numPieces = have.length;
+        this.have = have;
+        this.availability = new int[numPieces];
+        this.deadline = new long[numPieces];
+        this.priority = new int[numPieces];
+        this.verifying = new boolean[numPieces];
+        Arrays.fill(priority, PRIORITY_NORMAL);
+    }
+
+    /* setPriorities:  one PRIORITY_* per piece */
+    public void setPriorities(int[] prio) {
+        System.arraycopy(prio, 0, priority, 0, numPieces);
+    }
+
+    public int getPriority(int index) {
+        return priority[index];
+    }
+
+    /* setWindow:  turn on streaming mode with a window of PIECES from */
+    /* the read head (0 turns it off); safe from any thread */
+    public void setWindow(int pieces) {
+        this.window = pieces;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /* setReadHead:  first piece a streaming reader needs; safe from any */
+    /* thread */
+    public void setReadHead(int index) {
+        this.readHead = index;
+    }
+
+    /* getPieceLength:  all pieces are pieceLength except maybe the last */
+    public int getPieceLength(int index) {
+        if (index == numPieces - 1 && fileLength % pieceLength > 0) {
+            return fileLength % pieceLength;
+        }
+        return pieceLength;
+    }
+
+    public int getNumBlocks(int index) {
+        return (getPieceLength(index) + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+    }
+
+    /* getBlockLength:  length of the block starting at begin */
+    public int getBlockLength(int begin) {
+        int index = begin / pieceLength;
+        int end = index * pieceLength + getPieceLength(index);
+        return Math.min(BLOCK_LENGTH, end - begin);
+    }
+
+    /* addBitfield / removeBitfield / addHave:  track piece availability */
+    public void addBitfield(boolean[] bitfield) {
+        for (int i = 0; i < numPieces; ++i) {
+            if (bitfield[i]) {
+                ++availability[i];
+            }
+        }
+    }
+
+    public void removeBitfield(boolean[] bitfield) {
+        if (bitfield == null) {
+            return;
+        }
+        for (int i = 0; i < numPieces; ++i) {
+            if (bitfield[i]) {
+                --availability[i];
+            }
+        }
+    }
+
+    public void addHave(int index) {
+        ++availability[index];
+    }
+
+    public int getAvailability(int index) {
+        return availability[index];
+    }
+
+    /* pickBlock:  claim a block the peer has and nobody is fetching */
+    /* returns its begin offset, or -1 if the peer has nothing we need */
+    public int pickBlock(boolean[] peerHas) {
+        return pickBlock(peerHas, true);
+    }
+
+    /* pickBlock:  the same, where ISFAST says whether the peer is among */
+    /* the fastest, which alone get streaming pieces not yet due */
+    public int pickBlock(boolean[] peerHas, boolean isFast) {
+        if (peerHas == null) {
+            return -1;
+        }
+        // (o) streaming: the read-head window, nearest the head first
+        int start = 0;
+        int end = 0;
+        if (window > 0) {
+            long now = System.currentTimeMillis();
+            start = Math.min(readHead, numPieces);
+            end = Math.min(numPieces, start + window);
+            setDeadlines(start, end, now);
+            for (int i = start; i < end; ++i) {
+                if (have[i] || verifying[i] || !peerHas[i]
+                    || priority[i] == PRIORITY_SKIP
+                    || (!isFast && now < deadline[i])) {
+                    continue;
+                }
+                int begin = claimBlock(i);
+                if (begin != -1) {
+                    return begin;
+                }
+            }
+        }
+        // (i) continue a piece already in progress
+        for (Map.Entry<Integer, byte[]> e : partial.entrySet()) {
+            int index = e.getKey();
+            if (!peerHas[index] || priority[index] == PRIORITY_SKIP
+                || (index >= start && index < end)) {
+                continue;
+            }
+            byte[] blocks = e.getValue();
+            for (int b = 0; b < blocks.length; ++b) {
+                if (blocks[b] == FREE) {
+                    blocks[b] = REQUESTED;
+                    return index * pieceLength + b * BLOCK_LENGTH;
+                }
+            }
+        }
+        // (ii) start the highest priority, then rarest, piece the peer
+        // has, random among equals
+        int best = -1;
+        int ties = 0;
+        for (int i = 0; i < numPieces; ++i) {
+            if (have[i] || verifying[i] || !peerHas[i]
+                || partial.containsKey(i) || priority[i] == PRIORITY_SKIP
+                || (i >= start && i < end)) {
+                continue;
+            }
+            if (best == -1 || priority[i] > priority[best]
+                || (priority[i] == priority[best]
+                    && availability[i] < availability[best])) {
+                best = i;
+                ties = 1;
+            } else if (priority[i] == priority[best]
+                       && availability[i] == availability[best]
+                       && random.nextInt(++ties) == 0) {
+                best = i;
+            }
+        }
+        if (best == -1) {
+            return -1;
+        }
+        byte[] blocks = new byte[getNumBlocks(best)];
+        blocks[0] = REQUESTED;
+        partial.put(best, blocks);
+        return best * pieceLength;
+    }
+
+    /* claimBlock:  claim the first free block of piece INDEX, starting */
+    /* the piece if need be; -1 if all its blocks are taken */
+    private int claimBlock(int index) {
+        byte[] blocks = partial.get(index);
+        if (blocks == null) {
+            blocks = new byte[getNumBlocks(index)];
+            partial.put(index, blocks);
+        }
+        for (int b = 0; b < blocks.length; ++b) {
+            if (blocks[b] == FREE) {
+                blocks[b] = REQUESTED;
+                return index * pieceLength + b * BLOCK_LENGTH;
+            }
+        }
+        return -1;
+    }
+
+    /* setDeadlines:  give pieces entering the window [start, end) their */
+    /* deadlines and clear those of pieces that left it */
+    private void setDeadlines(int start, int end, long now) {
+        if (start == windowStart && end == windowEnd) {
+            return;
+        }
+        for (int i = windowStart; i < windowEnd; ++i) {
+            if (i < start || i >= end) {
+                deadline[i] = 0;
+            }
+        }
+        for (int i = start; i < end; ++i) {
+            if (deadline[i] == 0) {
+                deadline[i] = now + (long) (i - start + 1) * DEADLINE_STEP;
+            }
+        }
+        windowStart = start;
+        windowEnd = end;
+    }
+
+    /* needsBlock:  true if the block at begin has not been received yet */
+    /* (false if begin is not the start of a block) */
+    public boolean needsBlock(int begin) {
+        int index = begin / pieceLength;
+        if (begin < 0 || (begin - index * pieceLength) % BLOCK_LENGTH != 0
+            || index >= numPieces || have[index] || verifying[index]) {
+            return false;
+        }
+        byte[] blocks = partial.get(index);
+        return blocks == null
+               || blocks[(begin - index * pieceLength) / BLOCK_LENGTH] != RECEIVED;
+    }
+
+    /* blockReceived:  mark a block as received */
+    /* returns true when this completes its piece, which is then left */
+    /* alone until pieceChecked() */
+    public boolean blockReceived(int begin) {
+        int index = begin / pieceLength;
+        byte[] blocks = partial.get(index);
+        if (blocks == null) {    // late block of a piece that was reset
+            blocks = new byte[getNumBlocks(index)];
+            partial.put(index, blocks);
+        }
+        blocks[(begin - index * pieceLength) / BLOCK_LENGTH] = RECEIVED;
+        for (byte state : blocks) {
+            if (state != RECEIVED) {
+                return false;
+            }
+        }
+        partial.remove(index);
+        verifying[index] = true;
+        return true;
+    }
+
+    /* pieceChecked:  the hash check of a completed piece is done; the */
+    /* caller marks a good piece had, a bad one is picked again from */
+    /* scratch */
+    public void pieceChecked(int index) {
+        verifying[index] = false;
+    }
+
+    /* returnBlock:  a request was abandoned, make the block pickable again */
+    public void returnBlock(int begin) {
+        int index = begin / pieceLength;
+        byte[] blocks = partial.get(index);
+        if (blocks == null) {
+            return;
+        }
+        int b = (begin - index * pieceLength) / BLOCK_LENGTH;
+        if (blocks[b] == REQUESTED) {
+            blocks[b] = FREE;
+        }
+    }
+
+    /* resetPiece:  forget all progress on a piece, e.g. after a bad hash */
+    public void resetPiece(int index) {
+        partial.remove(index);
+    }
+}
@@ -1,42 +1,66 @@
 import java.nio.ByteBuffer;
 import java.io.InputStream;
 import java.io.IOException;
-import java.util.Queue;
-import java.util.LinkedList;
 
+/* BitReader:  reads a peer's messages into the shared BitInbox, which */
+/* holds back a peer with a backlog (BitInbox.PEER_BACKLOG) */
+/* A message longer than maxLength, or one that does not parse, ends */
+/* the connection as if the peer had hung up. */
 public class BitReader implements Runnable {
     private static final int INT_LEN = 4;
-    private static final int MSG_BACKLOG = 10;    // max outstanding messages
+    private static final int HEADER_LEN = 13;     // id, index, begin / length
+    private static volatile int maxLength         // longest message body
+            = BitUploader.MAX_LENGTH + HEADER_LEN;
 
     private InputStream inFromPeer = null;        // incoming messages
-    private Queue<BitMessage> messageQ = null;    // queue of messages
+    private final BitPeer peer;                   // whose messages
+    private final BitInbox inbox;                 // the loop's queue
     private volatile boolean isStopped = false;   // for killing thread
+    private volatile boolean isClosed = false;    // peer hung up
 
-    public BitReader(final InputStream inp, final Queue<BitMessage> queue) {
+    public BitReader(final InputStream inp, final BitPeer peer,
+                     final BitInbox inbox) {
         this.inFromPeer = inp;
-        this.messageQ = queue;
+        this.peer = peer;
+        this.inbox = inbox;
+    }
+
+    /* setMaxLength:  accept message bodies (after the length) of up to */
+    /* the longest request or a BITFIELD of NUMPIECES, plus headers */
+    public static void setMaxLength(int numPieces) {
+        maxLength = Math.max(BitUploader.MAX_LENGTH, (numPieces + 7) / 8)
+                    + HEADER_LEN;
     }
 
     public void stopThread() {
         this.isStopped = true;
     }
 
+    /* isClosed:  the stream ended or broke, no more messages will come */
+    public boolean isClosed() {
+        return isClosed;
+    }
+
     public void run() {
+        readMessages();
+        inbox.wakeup();    // let the loop see the peer has gone
+    }
+
+    private void readMessages() {
         byte[] lenBuf = new byte[INT_LEN];
         while (!isStopped) {
             // read length of message
-            int numRead = 0;
-            try {
-                numRead = inFromPeer.read(lenBuf, 0, INT_LEN);
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-            if (numRead != INT_LEN) {
-                throw new RuntimeException("error: reader thread misaligned");
+            if (readFully(lenBuf, 0, INT_LEN) == -1) {
+                break;
             }
             // NOTE: use ByteBuffer for integer encoding
             ByteBuffer buf = ByteBuffer.wrap(lenBuf);    
             int msgLen = buf.getInt();
+            if (msgLen < 0 || msgLen > maxLength) {
+                System.err.format("warning: bad message length %d\n", msgLen);
+                isClosed = true;
+                break;
+            }
 
             // read rest of message
             byte[] rcvData = new byte[INT_LEN + msgLen];
@@ -45,31 +69,42 @@ public class BitReader implements Runnable {
                 rcvData[i] = lenBuf[i];
             }
             // (ii) read rest of message from inFromPeer
-            try {
-                // continue reading until entire message is read
-                for (numRead = 0; numRead < msgLen; ) {
-                    numRead += inFromPeer.read(rcvData, INT_LEN + numRead, msgLen - numRead);
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            if (readFully(rcvData, INT_LEN, msgLen) == -1) {
+                break;
             }
-            if (numRead != msgLen) {
-                System.err.format("warning: msgLen was %d but only got %d\n", msgLen, numRead);
+
+            BitMessage msg = null;
+            try {
+                msg = BitMessage.unpack(rcvData);
+            } catch (RuntimeException ex) {
+                // unknown id or short body: we cannot follow the peer
+                System.err.format("warning: bad message from %s: %s\n",
+                                  peer.getIP(), ex.getMessage());
+                isClosed = true;
+                break;
             }
 
-            BitMessage msg = BitMessage.unpack(rcvData);
+            // hand it to the loop, waiting if there's a backlog
+            inbox.put(peer, msg);
+        }
+    }
 
-            // add message to the messageQ, wait if there's a backlog
-            synchronized (messageQ) {
-                while (messageQ.size() >= MSG_BACKLOG) {
-                    try {
-                        messageQ.wait();
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
-                    }
+    /* readFully:  read exactly LEN bytes into BUF at OFF; return 0, or -1 */
+    /* (and mark the reader closed) if the stream ends or breaks first */
+    private int readFully(byte[] buf, int off, int len) {
+        try {
+            for (int numRead = 0; numRead < len; ) {
+                int n = inFromPeer.read(buf, off + numRead, len - numRead);
+                if (n == -1) {
+                    isClosed = true;
+                    return -1;
                 }
-                messageQ.offer(msg);
+                numRead += n;
             }
+        } catch (IOException ex) {
+            isClosed = true;    // reset, or closed by us
+            return -1;
         }
+        return 0;
     }
 }
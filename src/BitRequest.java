@@ -0,0 +1,53 @@
+/* BitRequest:  one outstanding REQUEST for a block, as tracked by a peer */
+public class BitRequest {
+    private final int index;       // piece containing the block
+    private final int begin;       // offset of the block (as sent on the wire)
+    private final int length;      // length of the block
+    private final long sentAt;     // currentTimeMillis when requested
+    private final long deadline;   // time out the request after this
+    private final long delivered;  // bytes the peer had sent us by sentAt
+
+    public BitRequest(int index, int begin, int length, long sentAt,
+                      long deadline) {
+        this(index, begin, length, sentAt, deadline, 0);
+    }
+
+    public BitRequest(int index, int begin, int length, long sentAt,
+                      long deadline, long delivered) {
+        this.index = index;
+        this.begin = begin;
+        this.length = length;
+        this.sentAt = sentAt;
+        this.deadline = deadline;
+        this.delivered = delivered;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getBegin() {
+        return begin;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getSentAt() {
+        return sentAt;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /* matches:  true if msg (a PIECE, REJECT or CANCEL) refers to this block */
+    public boolean matches(int index, int begin) {
+        return this.index == index && this.begin == begin;
+    }
+}
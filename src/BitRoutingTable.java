@@ -0,0 +1,140 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* BitRoutingTable:  Kademlia routing table of k-buckets (BEP 5) */
+/* Bucket i holds the nodes whose ids share exactly i leading bits with */
+/* ours; the last bucket holds all nodes sharing at least that many, and is */
+/* the only one split when it fills up.  A full bucket takes a new node */
+/* only in place of a bad one (MAX_FAILURES unanswered queries in a row). */
+public class BitRoutingTable {
+    public static final int K = 8;                      // nodes per bucket
+    public static final int MAX_FAILURES = 2;           // then node is bad
+
+    private final byte[] localId;
+    private final List<List<BitDHTNode>> buckets
+            = new ArrayList<List<BitDHTNode>>();
+    private final Map<InetSocketAddress, BitDHTNode> byAddr
+            = new HashMap<InetSocketAddress, BitDHTNode>();
+
+    public BitRoutingTable(byte[] localId) {
+        this.localId = localId;
+        buckets.add(new ArrayList<BitDHTNode>());
+    }
+
+    public int size() {
+        return byAddr.size();
+    }
+
+    public int getNumBuckets() {
+        return buckets.size();
+    }
+
+    /* seen:  record that a node with this id answered from addr */
+    public void seen(byte[] id, InetSocketAddress addr, long now) {
+        if (Arrays.equals(id, localId)) {
+            return;
+        }
+        BitDHTNode node = byAddr.get(addr);
+        if (node != null) {
+            if (Arrays.equals(node.getId(), id)) {
+                node.seen(now);
+                return;
+            }
+            remove(node);    // a different node now lives at addr
+        }
+        while (true) {
+            int index = bucketIndex(id);
+            List<BitDHTNode> bucket = buckets.get(index);
+            if (bucket.size() < K) {
+                add(bucket, new BitDHTNode(id, addr, now));
+                return;
+            }
+            if (index == buckets.size() - 1 && buckets.size() < 160) {
+                split();
+                continue;
+            }
+            for (BitDHTNode old : bucket) {
+                if (old.getFailures() >= MAX_FAILURES) {
+                    remove(old);
+                    add(bucket, new BitDHTNode(id, addr, now));
+                    return;
+                }
+            }
+            return;          // bucket of good nodes: keep them
+        }
+    }
+
+    /* failed:  a query to the node at addr timed out */
+    public void failed(InetSocketAddress addr) {
+        BitDHTNode node = byAddr.get(addr);
+        if (node != null) {
+            node.failed();
+        }
+    }
+
+    /* closest:  up to n good nodes, nearest to target first */
+    public List<BitDHTNode> closest(final byte[] target, int n) {
+        List<BitDHTNode> nodes = new ArrayList<BitDHTNode>();
+        for (BitDHTNode node : byAddr.values()) {
+            if (node.getFailures() < MAX_FAILURES) {
+                nodes.add(node);
+            }
+        }
+        nodes.sort((a, b) -> compareDistance(target, a.getId(), b.getId()));
+        return nodes.size() > n ? nodes.subList(0, n) : nodes;
+    }
+
+    /* compareDistance:  sign of (a XOR target) - (b XOR target) */
+    public static int compareDistance(byte[] target, byte[] a, byte[] b) {
+        for (int i = 0; i < 20; ++i) {
+            int da = (a[i] ^ target[i]) & 0xff;
+            int db = (b[i] ^ target[i]) & 0xff;
+            if (da != db) {
+                return da < db ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /* commonPrefix:  number of leading bits two ids share, 0..160 */
+    public static int commonPrefix(byte[] a, byte[] b) {
+        for (int i = 0; i < 20; ++i) {
+            int x = (a[i] ^ b[i]) & 0xff;
+            if (x != 0) {
+                return 8 * i + Integer.numberOfLeadingZeros(x) - 24;
+            }
+        }
+        return 160;
+    }
+
+    private int bucketIndex(byte[] id) {
+        return Math.min(commonPrefix(localId, id), buckets.size() - 1);
+    }
+
+    /* split:  divide the last bucket by the next bit of the id */
+    private void split() {
+        int depth = buckets.size() - 1;
+        List<BitDHTNode> last = buckets.get(depth);
+        List<BitDHTNode> deeper = new ArrayList<BitDHTNode>();
+        for (int i = last.size() - 1; i >= 0; --i) {
+            if (commonPrefix(localId, last.get(i).getId()) > depth) {
+                deeper.add(last.remove(i));
+            }
+        }
+        buckets.add(deeper);
+    }
+
+    private void add(List<BitDHTNode> bucket, BitDHTNode node) {
+        bucket.add(node);
+        byAddr.put(node.getAddress(), node);
+    }
+
+    private void remove(BitDHTNode node) {
+        buckets.get(bucketIndex(node.getId())).remove(node);
+        byAddr.remove(node.getAddress());
+    }
+}
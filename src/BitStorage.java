@@ -0,0 +1,559 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/* BitStorage:  the torrent's bytes laid out over its files */
+/* A single-file torrent is one file; a multi-file torrent is its files */
+/* back to back in the order of the info dictionary, so a piece can span */
+/* several.  Reads and writes are positional (FileChannel), so the */
+/* transfer loop and BitStreams can share one instance.  Skipped files */
+/* are neither created nor preallocated; one is only opened if a piece */
+/* shared with a wanted file writes into it.  A null path is a padding */
+/* file (BEP 47, v2 piece alignment): it reads as zeros and is never */
+/* stored. */
+/* A leecher allocates its files in one of three ways (setAllocation): */
+/*   SPARSE   files are set to full length up front and filled in */
+/*            whatever order pieces arrive (the filesystem allocates as */
+/*            they do, so a random order fragments the file); */
+/*   FULL     a background thread zero-fills the files front to back in */
+/*            FILL_CHUNK writes; a block write waits until the fill has */
+/*            passed it, so the files are allocated in order; */
+/*   COMPACT  the files grow only as pieces arrive: each new piece takes */
+/*            the next slot at the end (or its own slot, moving the piece */
+/*            there out of the way), a piece that passes its hash check is */
+/*            swapped into its own slot, and once all are had the rest are */
+/*            put in place.  Needs every file, so not with skipped files. */
+public class BitStorage {
+    public enum Allocation { SPARSE, FULL, COMPACT }
+
+    private static final int FILL_CHUNK = 1 << 20;   // bytes per zero write
+
+    private final String[] paths;
+    private final long[] lengths;
+    private final long[] offsets;         // of each file in the torrent
+    private final long totalLength;
+    private final boolean readOnly;
+    private final RandomAccessFile[] files;  // null until opened
+    private final FileChannel[] channels;    // guarded by this
+    private Allocation allocation = Allocation.SPARSE;
+    private volatile boolean isClosed = false;
+    // FULL: the files are allocated up to filledTo, guarded by fillLock
+    private final Object fillLock = new Object();
+    private long filledTo = 0;
+    private boolean[] fillFile = null;       // wanted files, zero-filled
+    // COMPACT: where each piece is; guarded by moveLock (block I/O takes
+    // the read lock, allocating and moving slots the write lock)
+    private final ReentrantReadWriteLock moveLock
+            = new ReentrantReadWriteLock();
+    private int pieceLength = 0;
+    private int numPieces = 0;
+    private int[] slotOf = null;             // piece -> slot, -1 if none
+    private int[] pieceIn = null;            // slot -> piece
+    private int numSlots = 0;                // slots 0..numSlots-1 in use
+    private boolean[] isDone = null;         // passed its hash check
+    private int numDone = 0;
+
+    /* BitStorage:  files PATHS of LENGTHS; READONLY for a seeder */
+    public BitStorage(String[] paths, long[] lengths, boolean readOnly) {
+        this.paths = paths;
+        this.lengths = lengths;
+        this.readOnly = readOnly;
+        this.offsets = new long[paths.length];
+        this.files = new RandomAccessFile[paths.length];
+        this.channels = new FileChannel[paths.length];
+        long total = 0;
+        for (int i = 0; i < paths.length; ++i) {
+            offsets[i] = total;
+            total += lengths[i];
+        }
+        this.totalLength = total;
+    }
+
+    /* setAllocation:  how a leecher allocates its files; call before */
+    /* open().  PIECELENGTH is needed for COMPACT */
+    public void setAllocation(Allocation allocation, int pieceLength) {
+        this.allocation = readOnly ? Allocation.SPARSE : allocation;
+        this.pieceLength = pieceLength;
+    }
+
+    public Allocation getAllocation() {
+        return allocation;
+    }
+
+    /* open:  open the files; a seeder needs every file at its full */
+    /* length, a leecher creates and allocates those not in SKIP (null */
+    /* skips none); return 0 on success, -1 on failure */
+    public synchronized int open(boolean[] skip) {
+        if (allocation == Allocation.COMPACT && skip != null) {
+            for (boolean b : skip) {
+                if (b) {
+                    System.err.println("warning: compact allocation needs "
+                                       + "every file, using sparse");
+                    allocation = Allocation.SPARSE;
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < paths.length; ++i) {
+            if (paths[i] == null) {
+                continue;
+            } else if (readOnly) {
+                File f = new File(paths[i]);
+                if (!f.isFile()) {
+                    System.err.println("error: seeder does not have "
+                                       + paths[i]);
+                    return -1;
+                } else if (f.length() != lengths[i]) {
+                    System.err.println("error: " + paths[i] + " differs "
+                                       + "from torrent file specs");
+                    return -1;
+                }
+            } else if (skip != null && skip[i]) {
+                continue;
+            }
+            if (openFile(i) == -1) {
+                return -1;
+            }
+            if (!readOnly) {
+                try {
+                    // FULL and COMPACT grow the file from empty
+                    files[i].setLength(allocation == Allocation.SPARSE
+                                       ? lengths[i] : 0);
+                } catch (IOException ex) {
+                    System.err.println("error: cannot allocate " + paths[i]);
+                    return -1;
+                }
+            }
+        }
+        if (allocation == Allocation.FULL) {
+            fillFile = new boolean[paths.length];
+            for (int i = 0; i < paths.length; ++i) {
+                fillFile[i] = skip == null || !skip[i];
+            }
+            Thread filler = new Thread(() -> fill(), "BitStorageFill");
+            filler.setDaemon(true);
+            filler.start();
+        } else if (allocation == Allocation.COMPACT) {
+            numPieces = (int) ((totalLength + pieceLength - 1) / pieceLength);
+            slotOf = new int[numPieces];
+            pieceIn = new int[numPieces];
+            Arrays.fill(slotOf, -1);
+            isDone = new boolean[numPieces];
+        }
+        return 0;
+    }
+
+    /* read:  fill DST from torrent offset OFFSET */
+    /* return 0 on success, -1 on failure (e.g. a skipped file) */
+    public int read(long offset, ByteBuffer dst) {
+        if (allocation == Allocation.COMPACT) {
+            return transferPieces(offset, dst, false);
+        }
+        return transfer(offset, dst, false);
+    }
+
+    /* write:  write SRC at torrent offset OFFSET */
+    /* return 0 on success, -1 on failure */
+    public int write(long offset, ByteBuffer src) {
+        if (readOnly) {
+            return -1;
+        }
+        if (allocation == Allocation.COMPACT) {
+            return transferPieces(offset, src, true);
+        }
+        if (allocation == Allocation.FULL
+            && awaitFilled(offset + src.remaining()) == -1) {
+            return -1;
+        }
+        return transfer(offset, src, true);
+    }
+
+    /* pieceDone:  piece INDEX passed its hash check; with COMPACT move */
+    /* it into its own slot, and every piece once all are done */
+    public void pieceDone(int index) {
+        if (allocation != Allocation.COMPACT) {
+            return;
+        }
+        moveLock.writeLock().lock();
+        try {
+            if (isDone[index]) {
+                return;
+            }
+            isDone[index] = true;
+            ++numDone;
+            if (slotOf[index] != index && index < numSlots) {
+                swapSlots(slotOf[index], index);
+            }
+            if (numDone == numPieces) {
+                // every slot is in use; follow each cycle of misplaced
+                // pieces, each swap puts one in its own slot
+                for (int s = 0; s < numSlots; ++s) {
+                    while (pieceIn[s] != s) {
+                        if (swapSlots(s, pieceIn[s]) == -1) {
+                            return;
+                        }
+                    }
+                }
+            }
+        } finally {
+            moveLock.writeLock().unlock();
+        }
+    }
+
+    public synchronized void close() {
+        isClosed = true;
+        synchronized (fillLock) {
+            fillLock.notifyAll();
+        }
+        for (int i = 0; i < channels.length; ++i) {
+            if (files[i] != null) {
+                try {
+                    files[i].close();
+                } catch (IOException ex) {
+                }
+                files[i] = null;
+                channels[i] = null;
+            }
+        }
+    }
+
+    public long getLength() {
+        return totalLength;
+    }
+
+    public int getNumFiles() {
+        return paths.length;
+    }
+
+    public String getPath(int i) {
+        return paths[i];
+    }
+
+    public long getFileLength(int i) {
+        return lengths[i];
+    }
+
+    public long getFileOffset(int i) {
+        return offsets[i];
+    }
+
+    /* getPiecePriorities:  each piece gets the highest priority of the */
+    /* files it overlaps (FILEPRIORITY, one per file) */
+    public int[] getPiecePriorities(int[] filePriority, int pieceLength,
+                                    int numPieces) {
+        int[] prio = new int[numPieces];
+        for (int i = 0; i < paths.length; ++i) {
+            if (lengths[i] == 0 || paths[i] == null) {
+                continue;
+            }
+            int first = (int) (offsets[i] / pieceLength);
+            int last = (int) ((offsets[i] + lengths[i] - 1) / pieceLength);
+            for (int p = first; p <= last; ++p) {
+                prio[p] = Math.max(prio[p], filePriority[i]);
+            }
+        }
+        return prio;
+    }
+
+    /* fill:  FULL allocation thread, zero-fill the wanted files from the */
+    /* front; on failure the rest is left sparse */
+    private void fill() {
+        byte[] zeros = new byte[FILL_CHUNK];
+        long pos = 0;
+        while (pos < totalLength && !isClosed) {
+            int n = (int) Math.min(FILL_CHUNK, totalLength - pos);
+            if (zeroFill(pos, n, zeros) == -1) {
+                System.err.println("error: cannot preallocate at " + pos
+                                   + ", leaving the rest sparse");
+                pos = totalLength;
+            } else {
+                pos += n;
+            }
+            synchronized (fillLock) {
+                filledTo = pos;
+                fillLock.notifyAll();
+            }
+        }
+    }
+
+    /* zeroFill:  write N zero bytes at torrent offset OFFSET, in wanted */
+    /* files only; return 0 on success, -1 on failure */
+    private int zeroFill(long offset, int n, byte[] zeros) {
+        long end = offset + n;
+        for (int i = fileAt(offset); i < paths.length && offsets[i] < end;
+             ++i) {
+            long from = Math.max(offset, offsets[i]) - offsets[i];
+            long to = Math.min(end, offsets[i] + lengths[i]) - offsets[i];
+            FileChannel ch;
+            synchronized (this) {
+                ch = channels[i];
+            }
+            if (!fillFile[i] || ch == null || from >= to) {
+                continue;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(zeros, 0, (int) (to - from));
+            try {
+                while (buf.hasRemaining()) {
+                    ch.write(buf, from + buf.position());
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+    /* awaitFilled:  wait until the fill has passed torrent offset END */
+    private int awaitFilled(long end) {
+        synchronized (fillLock) {
+            while (filledTo < end) {
+                if (isClosed) {
+                    return -1;
+                }
+                try {
+                    fillLock.wait();
+                } catch (InterruptedException ex) {
+                    return -1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /* transferPieces:  COMPACT read or write, piece by piece through */
+    /* the slot each piece is in; a write gives pieces without one a slot */
+    private int transferPieces(long offset, ByteBuffer buf, boolean isWrite) {
+        if (offset < 0 || offset + buf.remaining() > totalLength) {
+            return -1;
+        }
+        int first = (int) (offset / pieceLength);
+        int last = (int) ((offset + buf.remaining() - 1) / pieceLength);
+        if (isWrite && assignSlots(first, last) == -1) {
+            return -1;
+        }
+        moveLock.readLock().lock();
+        try {
+            while (buf.hasRemaining()) {
+                int piece = (int) (offset / pieceLength);
+                int inPiece = (int) (offset - (long) piece * pieceLength);
+                int n = Math.min(buf.remaining(), pieceLength - inPiece);
+                if (slotOf[piece] == -1) {
+                    return -1;            // never written
+                }
+                ByteBuffer part = buf.duplicate();
+                part.limit(part.position() + n);
+                long at = (long) slotOf[piece] * pieceLength + inPiece;
+                if (transfer(at, part, isWrite) == -1) {
+                    return -1;
+                }
+                buf.position(buf.position() + n);
+                offset += n;
+            }
+        } finally {
+            moveLock.readLock().unlock();
+        }
+        return 0;
+    }
+
+    /* assignSlots:  give pieces FIRST..LAST a slot if they have none */
+    private int assignSlots(int first, int last) {
+        moveLock.writeLock().lock();
+        try {
+            for (int p = first; p <= last; ++p) {
+                if (slotOf[p] != -1) {
+                    continue;
+                }
+                if (p < numSlots) {
+                    // its own slot is in use: move that piece to the end
+                    int q = pieceIn[p];
+                    int s = newSlot(q);
+                    if (s == -1 || copySlot(p, s) == -1) {
+                        return -1;
+                    }
+                    place(q, s);
+                    place(p, p);
+                } else {
+                    int s = newSlot(p);
+                    if (s == -1) {
+                        return -1;
+                    }
+                    place(p, s);
+                }
+            }
+        } finally {
+            moveLock.writeLock().unlock();
+        }
+        return 0;
+    }
+
+    /* newSlot:  the next slot at the end, for PIECE.  The last slot is */
+    /* short and only ever holds the last piece: if PIECE is another one, */
+    /* the last piece moves there and PIECE gets the slot it left */
+    private int newSlot(int piece) {
+        int s = numSlots++;
+        if (extend((long) s * pieceLength
+                   + pieceSize(s == numPieces - 1 ? s : 0)) == -1) {
+            return -1;
+        }
+        if (s != numPieces - 1 || piece == numPieces - 1) {
+            return s;
+        }
+        int t = slotOf[numPieces - 1];    // set: all other slots are in use
+        if (copySlot(t, s) == -1) {
+            return -1;
+        }
+        place(numPieces - 1, s);
+        return t;
+    }
+
+    /* extend:  grow the files (sparsely) to cover torrent offsets up to */
+    /* END, so reading a slot not yet written gives zeros, not EOF */
+    private synchronized int extend(long end) {
+        for (int i = 0; i < paths.length && offsets[i] < end; ++i) {
+            if (paths[i] == null) {
+                continue;
+            }
+            long need = Math.min(end - offsets[i], lengths[i]);
+            try {
+                if (files[i].length() < need) {
+                    files[i].setLength(need);
+                }
+            } catch (IOException ex) {
+                System.err.println("error: cannot extend " + paths[i]);
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+    /* place:  record PIECE as being in SLOT */
+    private void place(int piece, int slot) {
+        slotOf[piece] = slot;
+        pieceIn[slot] = piece;
+    }
+
+    /* copySlot:  copy the piece in slot FROM to slot TO */
+    private int copySlot(int from, int to) {
+        ByteBuffer buf = ByteBuffer.allocate(pieceSize(pieceIn[from]));
+        if (transfer((long) from * pieceLength, buf, false) == -1) {
+            return -1;
+        }
+        buf.flip();
+        return transfer((long) to * pieceLength, buf, true);
+    }
+
+    /* swapSlots:  exchange the pieces in slots A and B */
+    private int swapSlots(int a, int b) {
+        int pa = pieceIn[a];
+        int pb = pieceIn[b];
+        ByteBuffer bufA = ByteBuffer.allocate(pieceSize(pa));
+        ByteBuffer bufB = ByteBuffer.allocate(pieceSize(pb));
+        if (transfer((long) a * pieceLength, bufA, false) == -1
+            || transfer((long) b * pieceLength, bufB, false) == -1) {
+            return -1;
+        }
+        bufA.flip();
+        bufB.flip();
+        if (transfer((long) b * pieceLength, bufA, true) == -1
+            || transfer((long) a * pieceLength, bufB, true) == -1) {
+            return -1;
+        }
+        place(pa, b);
+        place(pb, a);
+        return 0;
+    }
+
+    private int pieceSize(int piece) {
+        return (int) Math.min(pieceLength,
+                              totalLength - (long) piece * pieceLength);
+    }
+
+    /* transfer:  read or write across however many files the range */
+    /* spans, opening a skipped file on first write */
+    private int transfer(long offset, ByteBuffer buf, boolean isWrite) {
+        if (offset < 0 || offset + buf.remaining() > totalLength) {
+            return -1;
+        }
+        int i = fileAt(offset);
+        while (buf.hasRemaining()) {
+            long inFile = offset - offsets[i];
+            int n = (int) Math.min(buf.remaining(), lengths[i] - inFile);
+            if (n == 0) {          // empty file, or at its end
+                ++i;
+                continue;
+            }
+            if (paths[i] == null) {    // padding: zeros, writes dropped
+                if (!isWrite) {
+                    for (int k = 0; k < n; ++k) {
+                        buf.put(buf.position() + k, (byte) 0);
+                    }
+                }
+                buf.position(buf.position() + n);
+                offset += n;
+                ++i;
+                continue;
+            }
+            FileChannel ch;
+            synchronized (this) {
+                if (channels[i] == null && (!isWrite || openFile(i) == -1)) {
+                    return -1;
+                }
+                ch = channels[i];
+            }
+            ByteBuffer part = buf.duplicate();
+            part.limit(part.position() + n);
+            try {
+                while (part.hasRemaining()) {
+                    int k = isWrite
+                            ? ch.write(part, inFile + part.position()
+                                             - buf.position())
+                            : ch.read(part, inFile + part.position()
+                                            - buf.position());
+                    if (k == -1) {
+                        return -1;
+                    }
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return -1;
+            }
+            buf.position(buf.position() + n);
+            offset += n;
+            ++i;
+        }
+        return 0;
+    }
+
+    /* fileAt:  index of the file holding torrent offset OFFSET */
+    private int fileAt(long offset) {
+        int i = Arrays.binarySearch(offsets, offset);
+        if (i < 0) {
+            return -i - 2;
+        }
+        while (i > 0 && offsets[i - 1] == offset) {   // skip back over
+            --i;                                       // empty files
+        }
+        return i;
+    }
+
+    /* openFile:  open (creating parent directories) file I */
+    private int openFile(int i) {
+        try {
+            File f = new File(paths[i]);
+            if (!readOnly && f.getParentFile() != null) {
+                f.getParentFile().mkdirs();
+            }
+            files[i] = new RandomAccessFile(f, readOnly ? "r" : "rw");
+            channels[i] = files[i].getChannel();
+        } catch (IOException ex) {
+            System.err.println("error: cannot open " + paths[i]);
+            return -1;
+        }
+        return 0;
+    }
+}
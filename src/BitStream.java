@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/* BitStream:  read-only view of the torrent's data while it downloads */
+/* A read blocks only until the piece under the position has arrived, */
+/* and every read or seek moves the picker's read head there, so in */
+/* streaming mode the pieces just ahead of the reader are fetched first. */
+/* Reads share the client's BitStorage (positional, so thread-safe); */
+/* the transfer loop calls pieceDone() once a piece is written. */
+public class BitStream implements SeekableByteChannel {
+    private final BitStorage storage;
+    private final long length;
+    private final int pieceLength;
+    private final boolean[] ready;                // guarded by this
+    private final BitPicker picker;               // told the read head
+    private long position = 0;
+    private volatile boolean isOpen = true;
+
+    /* BitStream:  HAVE is copied; later pieces come through pieceDone */
+    public BitStream(BitStorage storage, int pieceLength, boolean[] have,
+                     BitPicker picker) {
+        this.storage = storage;
+        this.length = storage.getLength();
+        this.pieceLength = pieceLength;
+        this.ready = have.clone();
+        this.picker = picker;
+    }
+
+    /* getInputStream:  the same bytes as a blocking InputStream */
+    public InputStream getInputStream() {
+        return Channels.newInputStream(this);
+    }
+
+    /* pieceDone:  piece INDEX is on disk; wake readers waiting for it */
+    public synchronized void pieceDone(int index) {
+        ready[index] = true;
+        notifyAll();
+    }
+
+    /* read:  wait for the piece at the position, then read at most to */
+    /* its end; -1 at the end of the torrent */
+    public int read(ByteBuffer dst) throws IOException {
+        if (!isOpen) {
+            throw new ClosedChannelException();
+        }
+        if (position >= length) {
+            return -1;
+        }
+        int index = (int) (position / pieceLength);
+        picker.setReadHead(index);
+        synchronized (this) {
+            while (!ready[index]) {
+                if (!isOpen) {
+                    throw new ClosedChannelException();
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("waiting for piece "
+                                                     + index);
+                }
+            }
+        }
+        long end = Math.min(length, (long) (index + 1) * pieceLength);
+        int n = (int) Math.min(dst.remaining(), end - position);
+        ByteBuffer slice = dst.duplicate();
+        slice.limit(slice.position() + n);
+        if (storage.read(position, slice) == -1) {
+            throw new IOException("cannot read piece " + index);
+        }
+        dst.position(slice.position());
+        position += n;
+        return n;
+    }
+
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    public long position() {
+        return position;
+    }
+
+    /* position:  seek; the read head moves too, so the pieces there are */
+    /* fetched before the next read asks for them */
+    public SeekableByteChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        position = newPosition;
+        if (position < length) {
+            picker.setReadHead((int) (position / pieceLength));
+        }
+        return this;
+    }
+
+    public long size() {
+        return length;
+    }
+
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    public void close() {
+        isOpen = false;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/* BitSuperSeeder:  super-seeding (BEP 16) for an initial seeder */
+/* The seeder claims to have nothing and shows each peer one piece at a */
+/* time with HAVE: the piece fewest peers have, then the one shown to */
+/* fewest peers so far.  A peer is shown its next piece only once the */
+/* last one shown to it is seen at another peer (that peer's HAVE), so */
+/* the seeder uploads pieces that spread instead of pieces that sit; a */
+/* peer that got its piece when no other peer lacks it is not held up. */
+/* Requests for pieces not shown to a peer are refused.  Once every */
+/* piece is at some peer the swarm holds a full copy between them, and */
+/* the caller goes back to seeding normally (isDone). */
+/* Used from the transfer loop only. */
+public class BitSuperSeeder {
+    private final int numPieces;
+    private final BitPicker picker;                 // peers' availability
+    private final List<BitPeer> peerList;           // BitClient's peers
+    private final int[] shown;                      // peers shown each piece
+    private final Map<BitPeer, SeedState> states
+            = new HashMap<BitPeer, SeedState>();
+    private final Random random = new Random();
+
+    /* SeedState:  what one peer was shown */
+    private static class SeedState {
+        private int last = -1;                      // piece shown last
+        private final Set<Integer> pieces = new HashSet<Integer>();
+    }
+
+    public BitSuperSeeder(int numPieces, BitPicker picker,
+                          List<BitPeer> peerList) {
+        this.numPieces = numPieces;
+        this.picker = picker;
+        this.peerList = peerList;
+        this.shown = new int[numPieces];
+    }
+
+    /* reveal:  choose PEER's next piece and remember it as shown */
+    /* return the piece to announce with HAVE, or -1 if none is left */
+    public int reveal(BitPeer peer) {
+        SeedState state = state(peer);
+        int best = -1;
+        int ties = 0;
+        for (int i = 0; i < numPieces; ++i) {
+            if (state.pieces.contains(i) || peerHas(peer, i)) {
+                continue;
+            }
+            int cmp = best == -1 ? -1 : compare(i, best);
+            if (cmp < 0) {
+                best = i;
+                ties = 1;
+            } else if (cmp == 0 && random.nextInt(++ties) == 0) {
+                best = i;
+            }
+        }
+        if (best != -1) {
+            state.last = best;
+            state.pieces.add(best);
+            ++shown[best];
+        }
+        return best;
+    }
+
+    /* bitfieldKnown:  PEER told us what it has; true if it needs a new */
+    /* piece, having none shown yet or already having the one shown */
+    public boolean bitfieldKnown(BitPeer peer) {
+        SeedState state = state(peer);
+        return state.last == -1 || peerHas(peer, state.last);
+    }
+
+    /* pieceSeen:  FROM announced piece INDEX */
+    /* return the peers to show their next piece: those whose last piece */
+    /* INDEX was, as it has now spread beyond them, and FROM itself if */
+    /* INDEX was its own and no other peer lacks it */
+    public List<BitPeer> pieceSeen(BitPeer from, int index) {
+        List<BitPeer> next = new ArrayList<BitPeer>();
+        for (Map.Entry<BitPeer, SeedState> e : states.entrySet()) {
+            if (e.getKey() != from && e.getValue().last == index) {
+                next.add(e.getKey());
+            }
+        }
+        if (state(from).last == index) {
+            boolean lacked = false;
+            for (BitPeer peer : peerList) {
+                lacked |= peer != from && !peerHas(peer, index);
+            }
+            if (!lacked) {
+                next.add(from);
+            }
+        }
+        return next;
+    }
+
+    /* allows:  PEER may request piece INDEX, which it was shown */
+    public boolean allows(BitPeer peer, int index) {
+        SeedState state = states.get(peer);
+        return state != null && state.pieces.contains(index);
+    }
+
+    /* wasShown:  the pieces shown to PEER */
+    public Set<Integer> wasShown(BitPeer peer) {
+        return state(peer).pieces;
+    }
+
+    /* isDone:  every piece is at some peer */
+    public boolean isDone() {
+        for (int i = 0; i < numPieces; ++i) {
+            if (picker.getAvailability(i) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void peerRemoved(BitPeer peer) {
+        states.remove(peer);
+    }
+
+    /* compare:  order pieces rarest first, then least shown */
+    private int compare(int a, int b) {
+        int cmp = Integer.compare(picker.getAvailability(a),
+                                  picker.getAvailability(b));
+        return cmp != 0 ? cmp : Integer.compare(shown[a], shown[b]);
+    }
+
+    private SeedState state(BitPeer peer) {
+        SeedState state = states.get(peer);
+        if (state == null) {
+            state = new SeedState();
+            states.put(peer, state);
+        }
+        return state;
+    }
+
+    private static boolean peerHas(BitPeer peer, int index) {
+        return peer.getBitfield() != null && peer.hasPiece(index);
+    }
+}
@@ -0,0 +1,42 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/* BitTcpConnection:  BitConnection over a TCP socket */
+public class BitTcpConnection implements BitConnection {
+    private final Socket socket;
+
+    public BitTcpConnection(Socket socket) {
+        this.socket = socket;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    public int getPort() {
+        return socket.getPort();
+    }
+
+    public void setSoTimeout(int ms) throws IOException {
+        socket.setSoTimeout(ms);
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public String getTransport() {
+        return "tcp";
+    }
+}
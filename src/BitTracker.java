@@ -0,0 +1,292 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import util.bencode.*;
+import util.lib.BitLibrary;
+
+/* BitTracker:  thread that periodically announces to an HTTP tracker */
+/* Each announce reports uploaded/downloaded/left, asks for a compact */
+/* (BEP 23) peer list and passes any new addresses to BitClient.  The */
+/* tracker's interval is honoured between announces and its min interval */
+/* also bounds early ones (e.g. the "completed" event). */
+public class BitTracker extends Thread {
+    private static final int NUM_WANT = 50;             // peers per announce
+    private static final int HTTP_TIMEOUT = 15000;      // ms, connect and read
+    private static final int DEFAULT_INTERVAL = 1800;   // s, if tracker omits
+    private static final int MIN_RETRY = 15;            // s, after a failure
+    private static final int MAX_RETRY = 1800;
+    private static final int MAX_RESPONSE = 1 << 20;    // bytes
+
+    protected final String announceURL;
+    protected final byte[] infoHash;
+    protected final byte[] peerID;
+    protected final int port;
+    private String trackerID = null;    // echoed back if the tracker sets it
+    protected int interval = DEFAULT_INTERVAL;
+    protected int minInterval = 0;
+    private long lastAnnounce = 0;      // currentTimeMillis
+    private volatile boolean completed = false;
+    protected volatile boolean isStopped = false;
+
+    public BitTracker(String announceURL, byte[] infoHash, byte[] peerID,
+                      int port) {
+        super("BitTracker " + announceURL);
+        setDaemon(true);
+        this.announceURL = announceURL;
+        this.infoHash = infoHash;
+        this.peerID = peerID;
+        this.port = port;
+    }
+
+    /* isSupported:  true for the URL schemes this class can announce to */
+    public static boolean isSupported(String url) {
+        return url != null
+               && (url.startsWith("http://") || url.startsWith("https://"));
+    }
+
+    /* announceCompleted:  send the "completed" event as soon as allowed */
+    public void announceCompleted() {
+        completed = true;
+        interrupt();
+    }
+
+    public void stopThread() {
+        isStopped = true;
+        interrupt();
+    }
+
+    /* run:  announce "started", then keep re-announcing every interval */
+    public void run() {
+        String event = "started";
+        int retry = MIN_RETRY;
+        boolean sentCompleted = false;
+        while (!isStopped) {
+            // "completed" only once "started" has gone through
+            if (event == null && completed && !sentCompleted) {
+                event = "completed";
+            }
+            int wait;
+            lastAnnounce = System.currentTimeMillis();
+            boolean ok = announce(event) == 0;
+            if (ok) {
+                if ("completed".equals(event)) {
+                    sentCompleted = true;
+                }
+                event = null;
+                retry = MIN_RETRY;
+                wait = interval;
+            } else {
+                wait = retry;    // keep the pending event, back off
+                retry = Math.min(MAX_RETRY, retry * 2);
+            }
+            sleepUntil(lastAnnounce + wait * 1000L, ok && !sentCompleted);
+        }
+        if (lastAnnounce > 0) {
+            lastAnnounce = System.currentTimeMillis();
+            announce("stopped");
+        }
+    }
+
+    /* sleepUntil:  wait for the next announce; if cutShort, completing the */
+    /* download ends the wait early, but never before the min interval */
+    /* (overridden by bench/BitTrackerSim to record the waits instead) */
+    protected void sleepUntil(long time, boolean cutShort) {
+        while (!isStopped) {
+            long now = System.currentTimeMillis();
+            if (completed && cutShort) {
+                time = Math.min(time, lastAnnounce + minInterval * 1000L);
+            }
+            if (now >= time) {
+                return;
+            }
+            try {
+                Thread.sleep(time - now);
+            } catch (InterruptedException ex) {
+                // re-evaluate: completed or stopped
+            }
+        }
+    }
+
+    /* announce:  one HTTP announce; return 0 on success, -1 on failure */
+    public int announce(String event) {
+        StringBuilder url = new StringBuilder(announceURL);
+        url.append(announceURL.indexOf('?') == -1 ? '?' : '&');
+        url.append("info_hash=").append(urlEncode(infoHash));
+        url.append("&peer_id=").append(urlEncode(peerID));
+        url.append("&port=").append(port);
+        url.append("&uploaded=").append(BitClient.getUploaded());
+        url.append("&downloaded=").append(BitClient.getDownloaded());
+        url.append("&left=").append(BitClient.getLeft());
+        url.append("&compact=1&numwant=").append(NUM_WANT);
+        if (event != null) {
+            url.append("&event=").append(event);
+        }
+        if (trackerID != null) {
+            url.append("&trackerid=").append(urlEncode(
+                           trackerID.getBytes(StandardCharsets.ISO_8859_1)));
+        }
+
+        byte[] response;
+        try {
+            response = httpGet(url.toString());
+        } catch (IOException ex) {
+            BitClient.logError("warning: tracker announce failed: " + ex);
+            return -1;
+        }
+        return parseResponse(response);
+    }
+
+    /* parseResponse:  read interval, tracker id and peers from the reply */
+    private int parseResponse(byte[] response) {
+        BDict dict;
+        try {
+            BObject[] objs = BDecoder.read(response);
+            if (objs.length < 1 || !(objs[0] instanceof BDict)) {
+                throw new RuntimeException("not a dictionary");
+            }
+            dict = (BDict) objs[0];
+        } catch (RuntimeException ex) {
+            BitClient.logError("warning: malformed tracker response");
+            return -1;
+        }
+        BObject failure = dict.get("failure reason");
+        if (failure != null) {
+            BitClient.logError("warning: tracker says " + failure.print());
+            return -1;
+        }
+        BObject warning = dict.get("warning message");
+        if (warning != null) {
+            BitClient.logError("warning: tracker warns " + warning.print());
+        }
+        // intervals that are not positive (or do not fit) are ignored
+        if (dict.get("interval") instanceof BNumber
+            && ((BNumber) dict.get("interval")).getNumber() > 0) {
+            interval = ((BNumber) dict.get("interval")).getNumber();
+        }
+        if (dict.get("min interval") instanceof BNumber
+            && ((BNumber) dict.get("min interval")).getNumber() > 0) {
+            minInterval = ((BNumber) dict.get("min interval")).getNumber();
+            interval = Math.max(interval, minInterval);
+        }
+        if (dict.get("tracker id") instanceof BString) {
+            trackerID = ((BString) dict.get("tracker id")).getString();
+        }
+
+        List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+        BObject p = dict.get("peers");
+        if (p instanceof BString) {
+            parseCompact(((BString) p).getBytes(), 4, peers);
+        } else if (p instanceof BList) {
+            parseDictPeers((BList) p, peers);    // non-compact fallback
+        }
+        if (dict.get("peers6") instanceof BString) {
+            parseCompact(((BString) dict.get("peers6")).getBytes(), 16, peers);
+        }
+        addPeers(peers);
+        return 0;
+    }
+
+    /* addPeers:  hand the peers from a successful announce to the client */
+    protected void addPeers(List<InetSocketAddress> peers) {
+        BitClient.logOutput("TRACKER RETURNED " + peers.size() + " PEERS, "
+                            + "NEXT ANNOUNCE IN " + interval + "s");
+        for (InetSocketAddress addr : peers) {
+            BitClient.addCandidate(addr);
+        }
+    }
+
+    /* parseCompact:  (addrLen)-byte address + 2-byte big-endian port each */
+    public static void parseCompact(byte[] data, int addrLen,
+                                    List<InetSocketAddress> out) {
+        int entry = addrLen + 2;
+        for (int off = 0; off + entry <= data.length; off += entry) {
+            byte[] addr = new byte[addrLen];
+            System.arraycopy(data, off, addr, 0, addrLen);
+            int port = ((data[off + addrLen] & 0xff) << 8)
+                       | (data[off + addrLen + 1] & 0xff);
+            try {
+                if (port != 0) {
+                    out.add(new InetSocketAddress(
+                                InetAddress.getByAddress(addr), port));
+                }
+            } catch (UnknownHostException ex) {
+                // cannot happen for 4- or 16-byte addresses
+            }
+        }
+    }
+
+    /* parseDictPeers:  a list of {ip, port} dicts; entries without a */
+    /* usable address or a port in 1..65535 are skipped */
+    private static void parseDictPeers(BList list, List<InetSocketAddress> out) {
+        for (BObject obj : list) {
+            if (!(obj instanceof BDict)) {
+                continue;
+            }
+            BDict d = (BDict) obj;
+            BObject ip = d.get("ip");
+            BObject port = d.get("port");
+            if (!(ip instanceof BString) || !(port instanceof BNumber)) {
+                continue;
+            }
+            long portNum = ((BNumber) port).getLong();
+            if (portNum < 1 || portNum > 65535) {
+                continue;
+            }
+            try {
+                out.add(new InetSocketAddress(
+                            InetAddress.getByName(ip.print()), (int) portNum));
+            } catch (UnknownHostException ex) {
+            }
+        }
+    }
+
+    private static byte[] httpGet(String url) throws IOException {
+        HttpURLConnection conn
+                = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(HTTP_TIMEOUT);
+        conn.setReadTimeout(HTTP_TIMEOUT);
+        try {
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + conn.getResponseCode());
+            }
+            InputStream in = conn.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+                if (out.size() > MAX_RESPONSE) {
+                    throw new IOException("response too large");
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /* urlEncode:  percent-encode raw bytes, keeping unreserved characters */
+    public static String urlEncode(byte[] data) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : data) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9') || c == '-' || c == '_'
+                || c == '.' || c == '~') {
+                sb.append(c);
+            } else {
+                sb.append('%').append(BitLibrary.bytesToHex(new byte[] {b}));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,543 @@
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/* BitTrackerServer:  embedded HTTP and UDP (BEP 15) tracker */
+/* Serves announces and scrapes for any info hash from a BitPeerTable, on */
+/* the same port number over TCP and UDP, with compact peer lists only. */
+/* One thread runs a Selector over both sockets and every HTTP connection */
+/* (keep-alive and pipelining are supported); request and response buffers */
+/* are reused, so an announce allocates next to nothing.  UDP connection */
+/* ids are derived from the client address and a per-minute secret, so no */
+/* state is kept for them. */
+public class BitTrackerServer extends Thread {
+    private static final int INTERVAL = 300;            // s, announce interval
+    private static final int MIN_INTERVAL = 30;         // s
+    private static final long PEER_TTL = 2000L * INTERVAL;  // ms
+    private static final int DEFAULT_NUM_WANT = 50;
+    private static final int MAX_NUM_WANT = 200;
+    private static final int MAX_SCRAPE = 74;           // hashes per request
+    private static final int MAX_REQUEST = 2048;        // bytes of HTTP header
+    private static final long HTTP_IDLE = 30000;        // ms
+    private static final long SWEEP_INTERVAL = 60000;   // ms
+    private static final long ID_PERIOD = 60000;        // ms, conn id lifetime
+    private static final long PROTOCOL_ID = 0x41727101980L;
+    private static final int ACTION_CONNECT = 0;
+    private static final int ACTION_ANNOUNCE = 1;
+    private static final int ACTION_SCRAPE = 2;
+    private static final int ACTION_ERROR = 3;
+
+    private static final byte[] P_INFO_HASH = ascii("info_hash");
+    private static final byte[] P_PORT = ascii("port");
+    private static final byte[] P_LEFT = ascii("left");
+    private static final byte[] P_EVENT = ascii("event");
+    private static final byte[] P_NUM_WANT = ascii("numwant");
+    private static final byte[] E_STARTED = ascii("started");
+    private static final byte[] E_COMPLETED = ascii("completed");
+    private static final byte[] E_STOPPED = ascii("stopped");
+    private static final byte[] ANNOUNCE = ascii("/announce");
+    private static final byte[] SCRAPE = ascii("/scrape");
+
+    private final int port;
+    private final BitPeerTable table = new BitPeerTable(PEER_TTL);
+    private final long secret = new Random().nextLong();
+    private Selector selector = null;
+    private DatagramChannel udp = null;
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(2048);
+    private final ByteBuffer peers = ByteBuffer.allocate(6 * MAX_NUM_WANT);
+    private final ByteBuffer body = ByteBuffer.allocate(8192);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(8448);
+    private final byte[] hashes = new byte[20 * MAX_SCRAPE];
+    private long numAnnounces = 0;
+    private volatile boolean isStopped = false;
+
+    /* Conn:  per-connection input buffer of an HTTP client */
+    private static final class Conn {
+        final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST);
+        long lastActive;
+    }
+
+    public BitTrackerServer(int port) {
+        super("BitTrackerServer");
+        setDaemon(true);
+        this.port = port;
+    }
+
+    /* bind:  open the TCP and UDP sockets; return 0 on success, -1 on error */
+    public int bind() {
+        try {
+            selector = Selector.open();
+            ServerSocketChannel http = ServerSocketChannel.open();
+            http.bind(new InetSocketAddress(port));
+            http.configureBlocking(false);
+            http.register(selector, SelectionKey.OP_ACCEPT);
+            udp = DatagramChannel.open();
+            udp.bind(new InetSocketAddress(port));
+            udp.configureBlocking(false);
+            udp.register(selector, SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            BitClient.logError("error: tracker cannot listen on port " + port);
+            ex.printStackTrace();
+            return -1;
+        }
+        return 0;
+    }
+
+    public void stopThread() {
+        isStopped = true;
+        selector.wakeup();
+    }
+
+    public long getNumAnnounces() {
+        return numAnnounces;
+    }
+
+    /* run:  serve requests until stopped, sweeping the table every minute */
+    public void run() {
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+        while (!isStopped) {
+            try {
+                selector.select(SWEEP_INTERVAL);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (SelectionKey key : selector.selectedKeys()) {
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.channel() == udp) {
+                        receiveUdp(now);
+                    } else if (key.isAcceptable()) {
+                        accept(key, now);
+                    } else if (key.isReadable()) {
+                        readHttp(key, now);
+                    }
+                } catch (IOException ex) {
+                    if (key.channel() != udp) {
+                        close(key);    // a bad datagram never closes udp
+                    }
+                }
+            }
+            selector.selectedKeys().clear();
+            if (now >= nextSweep) {
+                table.sweep(now);
+                closeIdle(now);
+                nextSweep = now + SWEEP_INTERVAL;
+            }
+        }
+    }
+
+    /* --- UDP ------------------------------------------------------------ */
+
+    /* receiveUdp:  answer every datagram waiting on the socket */
+    private void receiveUdp(long now) throws IOException {
+        while (true) {
+            packet.clear();
+            SocketAddress from = udp.receive(packet);
+            if (from == null) {
+                return;
+            }
+            packet.flip();
+            if (packet.remaining() < 16) {
+                continue;
+            }
+            InetSocketAddress addr = (InetSocketAddress) from;
+            long connId = packet.getLong(0);
+            int action = packet.getInt(8);
+            int txid = packet.getInt(12);
+            out.clear();
+            if (action == ACTION_CONNECT) {
+                if (connId != PROTOCOL_ID) {
+                    continue;
+                }
+                out.putInt(ACTION_CONNECT).putInt(txid);
+                out.putLong(connectionId(addr, now / ID_PERIOD));
+            } else if (connId != connectionId(addr, now / ID_PERIOD)
+                       && connId != connectionId(addr, now / ID_PERIOD - 1)) {
+                udpError(txid, "bad connection id");
+            } else if (!(addr.getAddress() instanceof Inet4Address)) {
+                udpError(txid, "IPv4 only");
+            } else if (action == ACTION_ANNOUNCE && packet.remaining() >= 98) {
+                udpAnnounce(addr, txid, now);
+            } else if (action == ACTION_SCRAPE) {
+                udpScrape(txid);
+            } else {
+                udpError(txid, "bad request");
+            }
+            out.flip();
+            udp.send(out, from);
+        }
+    }
+
+    private void udpAnnounce(InetSocketAddress addr, int txid, long now) {
+        packet.position(16);
+        packet.get(hashes, 0, 20);
+        long left = packet.getLong(64);
+        int event = packet.getInt(80);
+        int numWant = packet.getInt(92);
+        int peerPort = packet.getShort(96) & 0xffff;
+        peers.clear();
+        int n = table.announce(hashes, 0, ipv4(addr.getAddress()), peerPort,
+                               left == 0, event, numWant(numWant), now, peers);
+        if (n < 0) {
+            udpError(txid, "tracker full");
+            return;
+        }
+        ++numAnnounces;
+        out.putInt(ACTION_ANNOUNCE).putInt(txid).putInt(INTERVAL);
+        out.putInt(table.getIncomplete()).putInt(table.getComplete());
+        peers.flip();
+        out.put(peers);
+    }
+
+    private void udpScrape(int txid) {
+        int count = Math.min(MAX_SCRAPE, (packet.remaining() - 16) / 20);
+        out.putInt(ACTION_SCRAPE).putInt(txid);
+        packet.position(16);
+        for (int i = 0; i < count; ++i) {
+            packet.get(hashes, 0, 20);
+            table.scrape(hashes, 0);
+            out.putInt(table.getComplete()).putInt(table.getDownloaded());
+            out.putInt(table.getIncomplete());
+        }
+    }
+
+    private void udpError(int txid, String message) {
+        out.clear();
+        out.putInt(ACTION_ERROR).putInt(txid);
+        out.put(message.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /* connectionId:  keyed hash of the client address and time period */
+    private long connectionId(InetSocketAddress addr, long period) {
+        long x = secret ^ ((long) addr.getAddress().hashCode() << 16)
+                 ^ addr.getPort() ^ (period * 0x9e3779b97f4a7c15L);
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        return x ^ (x >>> 33);
+    }
+
+    /* --- HTTP ----------------------------------------------------------- */
+
+    private void accept(SelectionKey key, long now) throws IOException {
+        SocketChannel ch = ((ServerSocketChannel) key.channel()).accept();
+        if (ch == null) {
+            return;
+        }
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Conn conn = new Conn();
+        conn.lastActive = now;
+        ch.register(selector, SelectionKey.OP_READ, conn);
+    }
+
+    /* readHttp:  read, then answer each complete request in the buffer */
+    private void readHttp(SelectionKey key, long now) throws IOException {
+        SocketChannel ch = (SocketChannel) key.channel();
+        Conn conn = (Conn) key.attachment();
+        if (ch.read(conn.in) == -1) {
+            close(key);
+            return;
+        }
+        conn.lastActive = now;
+        byte[] buf = conn.in.array();
+        int end;
+        while ((end = headerEnd(buf, conn.in.position())) != -1) {
+            out.clear();
+            if (handleHttp(buf, end, ipv4(ch.socket().getInetAddress()),
+                           now) == -1) {
+                close(key);
+                return;
+            }
+            out.flip();
+            ch.write(out);
+            if (out.hasRemaining()) {
+                close(key);    // client is not reading; don't buffer for it
+                return;
+            }
+            // keep any pipelined bytes after this request
+            int used = end + 4;
+            System.arraycopy(buf, used, buf, 0, conn.in.position() - used);
+            conn.in.position(conn.in.position() - used);
+        }
+        if (!conn.in.hasRemaining()) {
+            close(key);        // header larger than MAX_REQUEST
+        }
+    }
+
+    /* handleHttp:  write the response to one request into out */
+    /* returns -1 if the connection should just be closed */
+    private int handleHttp(byte[] buf, int end, int ip, long now) {
+        // request line: GET <path>[?<query>] HTTP/1.x
+        if (end < 4 || buf[0] != 'G' || buf[1] != 'E' || buf[2] != 'T'
+            || buf[3] != ' ') {
+            return -1;
+        }
+        int pathEnd = 4;
+        while (pathEnd < end && buf[pathEnd] != ' ' && buf[pathEnd] != '?') {
+            ++pathEnd;
+        }
+        int queryEnd = pathEnd;
+        while (queryEnd < end && buf[queryEnd] != ' ') {
+            ++queryEnd;
+        }
+        body.clear();
+        if (endsWith(buf, 4, pathEnd, ANNOUNCE)) {
+            httpAnnounce(buf, pathEnd + 1, queryEnd, ip, now);
+        } else if (endsWith(buf, 4, pathEnd, SCRAPE)) {
+            httpScrape(buf, pathEnd + 1, queryEnd);
+        } else {
+            failure("unknown path");
+        }
+        body.flip();
+        putAscii(out, "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n"
+                      + "Content-Length: ");
+        putDecimal(out, body.remaining());
+        putAscii(out, "\r\n\r\n");
+        out.put(body);
+        return 0;
+    }
+
+    private void httpAnnounce(byte[] buf, int off, int end, int ip, long now) {
+        boolean hasHash = false;
+        int peerPort = 0;
+        long left = -1;
+        int event = BitPeerTable.NONE;
+        int numWant = -1;
+        while (off < end) {
+            int eq = off;
+            while (eq < end && buf[eq] != '=' && buf[eq] != '&') {
+                ++eq;
+            }
+            int amp = eq;
+            while (amp < end && buf[amp] != '&') {
+                ++amp;
+            }
+            int vOff = Math.min(eq + 1, amp);
+            if (same(buf, off, eq, P_INFO_HASH)) {
+                hasHash = urlDecode(buf, vOff, amp, 0) == 20;
+            } else if (same(buf, off, eq, P_PORT)) {
+                peerPort = (int) parseLong(buf, vOff, amp);
+            } else if (same(buf, off, eq, P_LEFT)) {
+                left = parseLong(buf, vOff, amp);
+            } else if (same(buf, off, eq, P_NUM_WANT)) {
+                numWant = (int) parseLong(buf, vOff, amp);
+            } else if (same(buf, off, eq, P_EVENT)) {
+                event = same(buf, vOff, amp, E_STARTED) ? BitPeerTable.STARTED
+                      : same(buf, vOff, amp, E_COMPLETED) ? BitPeerTable.COMPLETED
+                      : same(buf, vOff, amp, E_STOPPED) ? BitPeerTable.STOPPED
+                      : BitPeerTable.NONE;
+            }
+            off = amp + 1;
+        }
+        if (!hasHash || peerPort <= 0 || peerPort > 0xffff || left < 0) {
+            failure("invalid announce");
+            return;
+        }
+        if (ip == 0) {
+            failure("IPv4 only");
+            return;
+        }
+        peers.clear();
+        int n = table.announce(hashes, 0, ip, peerPort, left == 0,
+                               event, numWant(numWant), now, peers);
+        if (n < 0) {
+            failure("tracker full");
+            return;
+        }
+        ++numAnnounces;
+        putAscii(body, "d8:completei");
+        putDecimal(body, table.getComplete());
+        putAscii(body, "e10:downloadedi");
+        putDecimal(body, table.getDownloaded());
+        putAscii(body, "e10:incompletei");
+        putDecimal(body, table.getIncomplete());
+        putAscii(body, "e8:intervali");
+        putDecimal(body, INTERVAL);
+        putAscii(body, "e12:min intervali");
+        putDecimal(body, MIN_INTERVAL);
+        putAscii(body, "e5:peers");
+        peers.flip();
+        putDecimal(body, peers.remaining());
+        body.put((byte) ':');
+        body.put(peers);
+        body.put((byte) 'e');
+    }
+
+    private void httpScrape(byte[] buf, int off, int end) {
+        int count = 0;
+        while (off < end) {
+            int eq = off;
+            while (eq < end && buf[eq] != '=' && buf[eq] != '&') {
+                ++eq;
+            }
+            int amp = eq;
+            while (amp < end && buf[amp] != '&') {
+                ++amp;
+            }
+            if (same(buf, off, eq, P_INFO_HASH) && count < MAX_SCRAPE
+                && urlDecode(buf, Math.min(eq + 1, amp), amp, count * 20) == 20) {
+                ++count;
+            }
+            off = amp + 1;
+        }
+        putAscii(body, "d5:filesd");
+        for (int i = 0; i < count; ++i) {
+            table.scrape(hashes, i * 20);
+            putAscii(body, "20:");
+            body.put(hashes, i * 20, 20);
+            putAscii(body, "d8:completei");
+            putDecimal(body, table.getComplete());
+            putAscii(body, "e10:downloadedi");
+            putDecimal(body, table.getDownloaded());
+            putAscii(body, "e10:incompletei");
+            putDecimal(body, table.getIncomplete());
+            putAscii(body, "ee");
+        }
+        putAscii(body, "ee");
+    }
+
+    private void failure(String reason) {
+        body.clear();
+        putAscii(body, "d14:failure reason");
+        putDecimal(body, reason.length());
+        body.put((byte) ':');
+        putAscii(body, reason);
+        body.put((byte) 'e');
+    }
+
+    /* closeIdle:  drop HTTP clients that have been quiet for HTTP_IDLE */
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Conn
+                && now - ((Conn) key.attachment()).lastActive > HTTP_IDLE) {
+                close(key);
+            }
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ex) {
+        }
+    }
+
+    /* --- helpers -------------------------------------------------------- */
+
+    private static int numWant(int n) {
+        return n < 0 ? DEFAULT_NUM_WANT : Math.min(n, MAX_NUM_WANT);
+    }
+
+    /* ipv4:  address as an int, or 0 if it is not IPv4 */
+    private static int ipv4(InetAddress addr) {
+        if (!(addr instanceof Inet4Address)) {
+            return 0;
+        }
+        byte[] b = addr.getAddress();
+        return (b[0] & 0xff) << 24 | (b[1] & 0xff) << 16
+               | (b[2] & 0xff) << 8 | (b[3] & 0xff);
+    }
+
+    /* headerEnd:  index of the blank line ending a request, or -1 */
+    private static int headerEnd(byte[] buf, int len) {
+        for (int i = 0; i + 3 < len; ++i) {
+            if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r'
+                && buf[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* urlDecode:  percent-decode buf[off, end) into hashes at dst */
+    /* returns the decoded length, or -1 if it would exceed 20 bytes */
+    private int urlDecode(byte[] buf, int off, int end, int dst) {
+        int n = 0;
+        while (off < end) {
+            if (n == 20) {
+                return -1;
+            }
+            int c = buf[off];
+            if (c == '%' && off + 2 < end) {
+                int hi = Character.digit(buf[off + 1], 16);
+                int lo = Character.digit(buf[off + 2], 16);
+                if (hi < 0 || lo < 0) {
+                    return -1;
+                }
+                c = hi << 4 | lo;
+                off += 3;
+            } else {
+                ++off;
+            }
+            hashes[dst + n++] = (byte) c;
+        }
+        return n;
+    }
+
+    private static long parseLong(byte[] buf, int off, int end) {
+        long v = 0;
+        if (off >= end) {
+            return -1;
+        }
+        for (int i = off; i < end; ++i) {
+            if (buf[i] < '0' || buf[i] > '9' || v > Long.MAX_VALUE / 10 - 1) {
+                return -1;
+            }
+            v = v * 10 + (buf[i] - '0');
+        }
+        return v;
+    }
+
+    private static boolean same(byte[] buf, int off, int end, byte[] s) {
+        if (end - off != s.length) {
+            return false;
+        }
+        for (int i = 0; i < s.length; ++i) {
+            if (buf[off + i] != s[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean endsWith(byte[] buf, int off, int end, byte[] s) {
+        return end - off >= s.length && same(buf, end - s.length, end, s);
+    }
+
+    private static void putAscii(ByteBuffer b, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            b.put((byte) s.charAt(i));
+        }
+    }
+
+    /* putDecimal:  write a non-negative int in ASCII without allocating */
+    private static void putDecimal(ByteBuffer b, int v) {
+        int div = 1;
+        while (div <= v / 10) {
+            div *= 10;
+        }
+        for (; div > 0; div /= 10) {
+            b.put((byte) ('0' + (v / div) % 10));
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* BitUdpTracker:  announces to a UDP tracker (BEP 15) */
+/* Every request is preceded by a connect exchange whose connection id is */
+/* cached per tracker address for a minute.  Unanswered requests are */
+/* retransmitted after 15 * 2^n seconds, n = 0..8.  All trackers in the */
+/* process share one DatagramChannel; a single receiver thread matches */
+/* responses to requests by transaction id. */
+public class BitUdpTracker extends BitTracker {
+    private static final long PROTOCOL_ID = 0x41727101980L;    // magic
+    private static final int ACTION_CONNECT = 0;
+    private static final int ACTION_ANNOUNCE = 1;
+    private static final int ACTION_SCRAPE = 2;
+    private static final int ACTION_ERROR = 3;
+    private static final int NUM_WANT = 50;
+    private static final int MAX_SCRAPE = 74;           // hashes per packet
+    private static final int MAX_RETRANSMIT = 8;        // n in 15 * 2^n
+    private static final long RETRANSMIT_BASE = 15000;  // ms
+    private static final long CONNECTION_TTL = 60000;   // ms, id lifetime
+    private static final int MAX_PACKET = 4096;         // bytes
+
+    // shared by all trackers in the process
+    private static DatagramChannel channel = null;
+    private static final Map<Integer, Transaction> pending
+            = new ConcurrentHashMap<Integer, Transaction>();
+    private static final Map<InetSocketAddress, long[]> connections
+            = new HashMap<InetSocketAddress, long[]>();    // {id, expiry}
+    private static final Random random = new Random();
+    private static volatile long retransmitBase = RETRANSMIT_BASE;
+
+    private final int key = random.nextInt();           // identifies us
+
+    /* Transaction:  a request waiting for its response */
+    private static class Transaction {
+        final InetSocketAddress addr;
+        byte[] response = null;
+
+        Transaction(InetSocketAddress addr) {
+            this.addr = addr;
+        }
+    }
+
+    public BitUdpTracker(String announceURL, byte[] infoHash, byte[] peerID,
+                         int port) {
+        super(announceURL, infoHash, peerID, port);
+    }
+
+    /* setRetransmitBase:  wait MS instead of 15 s before the first */
+    /* retransmit (for bench/BitUdpTrackerSim) */
+    public static void setRetransmitBase(long ms) {
+        retransmitBase = ms;
+    }
+
+    /* isSupported:  true for udp:// announce URLs */
+    public static boolean isSupported(String url) {
+        return url != null && url.startsWith("udp://");
+    }
+
+    /* announce:  one UDP announce; return 0 on success, -1 on failure */
+    public int announce(String event) {
+        ByteBuffer req = ByteBuffer.allocate(82);
+        req.put(infoHash);
+        req.put(peerID);
+        req.putLong(BitClient.getDownloaded());
+        req.putLong(BitClient.getLeft());
+        req.putLong(BitClient.getUploaded());
+        req.putInt(eventCode(event));
+        req.putInt(0);                  // IP address: use the sender's
+        req.putInt(key);
+        req.putInt(NUM_WANT);
+        req.putShort((short) port);
+
+        InetSocketAddress addr;
+        ByteBuffer resp;
+        try {
+            addr = resolve(announceURL);
+            // a "stopped" announce is sent once, not retransmitted for hours
+            int tries = isStopped ? 0 : MAX_RETRANSMIT;
+            resp = request(addr, ACTION_ANNOUNCE, req.array(), 20, tries, this);
+        } catch (IOException ex) {
+            BitClient.logError("warning: tracker announce failed: " + ex);
+            return -1;
+        }
+
+        interval = Math.max(1, resp.getInt(8));
+        BitClient.logDebug("tracker reports " + resp.getInt(16)
+                           + " seeders, " + resp.getInt(12) + " leechers");
+        // peers are IPv6 when the tracker was reached over IPv6
+        int addrLen = addr.getAddress() instanceof Inet6Address ? 16 : 4;
+        byte[] data = new byte[resp.limit() - 20];
+        resp.position(20);
+        resp.get(data);
+        List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+        parseCompact(data, addrLen, peers);
+        addPeers(peers);
+        return 0;
+    }
+
+    /* scrape:  seeders, completed and leechers for each info hash */
+    /* hashes are batched MAX_SCRAPE to a packet; returns {s, c, l} per hash */
+    public static int[][] scrape(String url, List<byte[]> infoHashes)
+            throws IOException {
+        InetSocketAddress addr = resolve(url);
+        int[][] result = new int[infoHashes.size()][];
+        for (int first = 0; first < infoHashes.size(); first += MAX_SCRAPE) {
+            int count = Math.min(MAX_SCRAPE, infoHashes.size() - first);
+            ByteBuffer req = ByteBuffer.allocate(20 * count);
+            for (int i = 0; i < count; ++i) {
+                req.put(infoHashes.get(first + i));
+            }
+            ByteBuffer resp = request(addr, ACTION_SCRAPE, req.array(),
+                                      8 + 12 * count, MAX_RETRANSMIT, null);
+            for (int i = 0; i < count; ++i) {
+                int off = 8 + 12 * i;
+                result[first + i] = new int[] {resp.getInt(off),
+                                               resp.getInt(off + 4),
+                                               resp.getInt(off + 8)};
+            }
+        }
+        return result;
+    }
+
+    private static int eventCode(String event) {
+        if ("completed".equals(event)) {
+            return 1;
+        } else if ("started".equals(event)) {
+            return 2;
+        } else if ("stopped".equals(event)) {
+            return 3;
+        }
+        return 0;
+    }
+
+    /* resolve:  tracker address from udp://host:port[/path] */
+    private static InetSocketAddress resolve(String url) throws IOException {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException ex) {
+            throw new IOException("bad tracker URL " + url);
+        }
+        if (uri.getHost() == null || uri.getPort() == -1) {
+            throw new IOException("bad tracker URL " + url);
+        }
+        InetSocketAddress addr
+                = new InetSocketAddress(uri.getHost(), uri.getPort());
+        if (addr.isUnresolved()) {
+            throw new IOException("unknown host " + uri.getHost());
+        }
+        return addr;
+    }
+
+    /* request:  send an action with a valid connection id and return the */
+    /* response, connecting first if needed and retransmitting with backoff */
+    /* the response is checked to be at least minLength bytes long */
+    private static ByteBuffer request(InetSocketAddress addr, int action,
+                                      byte[] payload, int minLength,
+                                      int maxTries, BitUdpTracker owner)
+            throws IOException {
+        for (int n = 0; n <= maxTries; ++n) {
+            long timeout = retransmitBase << n;
+            long[] conn;
+            synchronized (connections) {
+                conn = connections.get(addr);
+            }
+            if (conn == null || conn[1] <= System.currentTimeMillis()) {
+                int txid = random.nextInt();
+                ByteBuffer req = ByteBuffer.allocate(16);
+                req.putLong(PROTOCOL_ID).putInt(ACTION_CONNECT).putInt(txid);
+                byte[] resp = exchange(addr, req, txid, timeout, owner);
+                if (resp == null) {
+                    continue;
+                }
+                long id = check(resp, ACTION_CONNECT, 16, addr).getLong(8);
+                conn = new long[] {id,
+                                   System.currentTimeMillis() + CONNECTION_TTL};
+                synchronized (connections) {
+                    connections.put(addr, conn);
+                }
+            }
+            int txid = random.nextInt();
+            ByteBuffer req = ByteBuffer.allocate(16 + payload.length);
+            req.putLong(conn[0]).putInt(action).putInt(txid).put(payload);
+            byte[] resp = exchange(addr, req, txid, timeout, owner);
+            if (resp != null) {
+                return check(resp, action, minLength, addr);
+            }
+        }
+        throw new SocketTimeoutException("no response from tracker " + addr);
+    }
+
+    /* check:  validate the action and length of a response */
+    private static ByteBuffer check(byte[] resp, int action, int minLength,
+                                    InetSocketAddress addr)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(resp);
+        if (buf.getInt(0) == ACTION_ERROR) {
+            synchronized (connections) {
+                connections.remove(addr);    // the id may be what it rejects
+            }
+            throw new IOException("tracker says " + new String(
+                    resp, 8, resp.length - 8, StandardCharsets.ISO_8859_1));
+        }
+        if (buf.getInt(0) != action || resp.length < minLength) {
+            throw new IOException("malformed tracker response");
+        }
+        return buf;
+    }
+
+    /* exchange:  send one packet and wait up to timeout ms for the reply */
+    /* returns null on timeout; only the owner being stopped cuts it short */
+    private static byte[] exchange(InetSocketAddress addr, ByteBuffer req,
+                                   int txid, long timeout,
+                                   BitUdpTracker owner) throws IOException {
+        Transaction t = new Transaction(addr);
+        pending.put(txid, t);
+        try {
+            req.flip();
+            getChannel().send(req, addr);
+            long deadline = System.currentTimeMillis() + timeout;
+            synchronized (t) {
+                while (t.response == null) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        return null;
+                    }
+                    try {
+                        t.wait(left);
+                    } catch (InterruptedException ex) {
+                        if (owner != null && owner.isStopped) {
+                            throw new InterruptedIOException("stopped");
+                        }
+                    }
+                }
+                return t.response;
+            }
+        } finally {
+            pending.remove(txid);
+        }
+    }
+
+    /* getChannel:  open the shared channel and its receiver on first use */
+    private static synchronized DatagramChannel getChannel()
+            throws IOException {
+        if (channel == null) {
+            channel = DatagramChannel.open();
+            channel.bind(null);
+            Thread receiver = new Thread(() -> receive(), "BitUdpTracker");
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+        return channel;
+    }
+
+    /* receive:  hand each datagram to the transaction it answers */
+    private static void receive() {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_PACKET);
+        while (true) {
+            SocketAddress from;
+            buf.clear();
+            try {
+                from = channel.receive(buf);
+            } catch (IOException ex) {
+                BitClient.logError("warning: UDP tracker socket failed");
+                ex.printStackTrace();
+                return;
+            }
+            buf.flip();
+            if (buf.remaining() < 8) {
+                continue;
+            }
+            Transaction t = pending.get(buf.getInt(4));
+            if (t == null || !t.addr.equals(from)) {
+                continue;    // late, duplicate or spoofed
+            }
+            byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+            synchronized (t) {
+                t.response = data;
+                t.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* BitUploader:  serves peers' block requests, fairly */
+/* Each peer's REQUESTs wait in its own queue of at most MAX_QUEUED (the */
+/* "reqq" we advertise).  Peers with queued requests take turns in */
+/* deficit round robin: each turn adds QUANTUM times the peer's weight */
+/* to its deficit, and its queued requests are served while the deficit */
+/* covers them.  An unchoked peer weighs 1, a choked one asking for its */
+/* allowed-fast pieces CHOKED_WEIGHT, so a peer pipelining many requests */
+/* gets no more than its share and idle peers cost nothing.  Serving a */
+/* request starts its disk read; at most MAX_IN_FLIGHT bytes are being */
+/* read or waiting to be sent, enough to keep every upload busy without */
+/* reading whole queues ahead.  With a rate limit, a token bucket caps */
+/* the bytes served per second and the round robin shares it out. */
+/* Used from the transfer loop only. */
+public class BitUploader {
+    public static final int MAX_QUEUED = 250;          // requests per peer
+    public static final int MAX_LENGTH = 131072;       // longest request
+    private static final int QUANTUM = 16384;          // bytes per turn
+    private static final double CHOKED_WEIGHT = 0.25;
+    private static final int MAX_IN_FLIGHT = 1 << 20;  // bytes read ahead
+
+    /* Sender:  sends a served block (DATA null if it could not be read) */
+    public interface Sender {
+        void send(BitPeer peer, BitRequest req, byte[] data);
+    }
+
+    private final BitDiskIO disk;
+    private final Sender sender;
+    private final Map<BitPeer, PeerQueue> queues
+            = new HashMap<BitPeer, PeerQueue>();
+    private final ArrayDeque<PeerQueue> active = new ArrayDeque<PeerQueue>();
+    private int inFlight = 0;                          // bytes
+    private int rateLimit = 0;                         // bytes/s, 0 = none
+    private double tokens = 0;
+    private long lastRefill = 0;
+
+    /* PeerQueue:  one peer's waiting requests and deficit */
+    private static class PeerQueue {
+        private final BitPeer peer;
+        private final ArrayDeque<BitRequest> requests
+                = new ArrayDeque<BitRequest>();
+        private double deficit = 0;
+        private boolean inTurn = false;                // deficit added
+
+        private PeerQueue(BitPeer peer) {
+            this.peer = peer;
+        }
+    }
+
+    public BitUploader(BitDiskIO disk, Sender sender) {
+        this.disk = disk;
+        this.sender = sender;
+    }
+
+    /* setRateLimit:  cap uploads at BYTES per second (0: no cap) */
+    public void setRateLimit(int bytes) {
+        this.rateLimit = bytes;
+        this.tokens = bytes;
+    }
+
+    /* enqueue:  queue PEER's request REQ */
+    /* return -1 if its queue is full or REQ is over MAX_LENGTH, 0 */
+    /* otherwise (a duplicate is dropped) */
+    public int enqueue(BitPeer peer, BitRequest req) {
+        PeerQueue q = queues.get(peer);
+        if (q == null) {
+            q = new PeerQueue(peer);
+            queues.put(peer, q);
+        }
+        if (q.requests.size() >= MAX_QUEUED || req.getLength() <= 0
+            || req.getLength() > MAX_LENGTH) {
+            return -1;
+        }
+        for (BitRequest r : q.requests) {
+            if (r.matches(req.getIndex(), req.getBegin())) {
+                return 0;
+            }
+        }
+        if (q.requests.isEmpty()) {
+            q.deficit = 0;
+            q.inTurn = false;
+            active.addLast(q);
+        }
+        q.requests.addLast(req);
+        return 0;
+    }
+
+    /* cancel:  drop PEER's queued request for the block at BEGIN */
+    /* return true if it was still queued */
+    public boolean cancel(BitPeer peer, int index, int begin) {
+        PeerQueue q = queues.get(peer);
+        if (q == null) {
+            return false;
+        }
+        Iterator<BitRequest> it = q.requests.iterator();
+        while (it.hasNext()) {
+            if (it.next().matches(index, begin)) {
+                it.remove();
+                if (q.requests.isEmpty()) {
+                    active.remove(q);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* choked:  PEER was choked; drop its queued requests except for */
+    /* pieces in KEEP (allowed fast) */
+    /* return the dropped requests */
+    public List<BitRequest> choked(BitPeer peer, Set<Integer> keep) {
+        List<BitRequest> dropped = new ArrayList<BitRequest>();
+        PeerQueue q = queues.get(peer);
+        if (q == null) {
+            return dropped;
+        }
+        Iterator<BitRequest> it = q.requests.iterator();
+        while (it.hasNext()) {
+            BitRequest req = it.next();
+            if (!keep.contains(req.getIndex())) {
+                it.remove();
+                dropped.add(req);
+            }
+        }
+        if (q.requests.isEmpty()) {
+            active.remove(q);
+        }
+        return dropped;
+    }
+
+    public void peerRemoved(BitPeer peer) {
+        PeerQueue q = queues.remove(peer);
+        if (q != null) {
+            active.remove(q);
+        }
+    }
+
+    /* getQueued:  requests waiting from PEER */
+    public int getQueued(BitPeer peer) {
+        PeerQueue q = queues.get(peer);
+        return q == null ? 0 : q.requests.size();
+    }
+
+    /* run:  serve queued requests, in turn, as far as the read-ahead and */
+    /* the rate limit allow */
+    public void run() {
+        refill();
+        while (!active.isEmpty() && inFlight < MAX_IN_FLIGHT) {
+            PeerQueue q = active.peekFirst();
+            if (!q.inTurn) {
+                q.deficit += QUANTUM * (q.peer.remoteIsChoked ? CHOKED_WEIGHT
+                                                              : 1.0);
+                q.inTurn = true;
+            }
+            BitRequest req = q.requests.peekFirst();
+            while (req != null && req.getLength() <= q.deficit) {
+                if (inFlight >= MAX_IN_FLIGHT
+                    || (rateLimit > 0 && tokens < req.getLength())) {
+                    return;             // resume this turn next time
+                }
+                q.requests.pollFirst();
+                q.deficit -= req.getLength();
+                serve(q.peer, req);
+                req = q.requests.peekFirst();
+            }
+            active.pollFirst();
+            q.inTurn = false;
+            if (q.requests.isEmpty()) {
+                q.deficit = 0;
+            } else {
+                active.addLast(q);
+            }
+        }
+    }
+
+    /* serve:  read the block and hand it to the sender */
+    private void serve(BitPeer peer, BitRequest req) {
+        inFlight += req.getLength();
+        tokens -= req.getLength();
+        disk.read(req.getBegin(), req.getLength(), data -> {
+            inFlight -= req.getLength();
+            sender.send(peer, req, data);
+        });
+    }
+
+    /* refill:  the token bucket, holding a second's worth (at least one */
+    /* longest request) */
+    private void refill() {
+        long now = System.currentTimeMillis();
+        if (rateLimit > 0) {
+            tokens = Math.min(Math.max(rateLimit, MAX_LENGTH), tokens
+                              + (now - lastRefill) * rateLimit / 1000.0);
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,789 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Random;
+
+/* BitUtpConnection:  one uTP connection (BEP 29) as a BitConnection */
+/* Reliability: every packet stays in outBuf until the cumulative ack or */
+/* a selective ack covers it; three later packets acked resend it early, */
+/* and a retransmission timeout (srtt + 4 rttvar, at least 500 ms, */
+/* doubling) resends everything outstanding with the window collapsed. */
+/* Congestion: LEDBAT.  The peer echoes how long our packets took to */
+/* reach it; the lowest value over two minutes is the base delay, the */
+/* excess is queueing we cause, and the window grows while that is */
+/* under TARGET_DELAY and shrinks above it, so bulk transfers yield to */
+/* other traffic on the link.  Sends are paced at window / srtt. */
+/* All state is guarded by this object; packets are only sent from the */
+/* BitUtpSocket thread (service), the streams only fill and drain the */
+/* buffers. */
+public class BitUtpConnection implements BitConnection {
+    static final int ST_DATA = 0;
+    static final int ST_FIN = 1;
+    static final int ST_STATE = 2;
+    static final int ST_RESET = 3;
+    static final int ST_SYN = 4;
+    static final int VERSION = 1;
+    static final int HEADER = 20;
+    private static final int EXT_SACK = 1;
+    public static final int MSS = 1380;                 // payload per packet
+    private static final long TARGET_DELAY = 100000;    // us, LEDBAT target
+    private static final int MAX_GAIN = 3000;           // B per RTT at most
+    private static final int MIN_WINDOW = 2 * MSS;
+    private static final int MAX_WINDOW = 1 << 20;
+    private static final int OUT_PACKETS = 1024;        // seq slots, 2^n
+    private static final int RECV_BUFFER = 1 << 20;     // advertised window
+    private static final int SEND_BUFFER = 256 * 1024;  // queued by writers
+    private static final long MIN_RTO = 500000;         // us
+    private static final long INITIAL_RTO = 1000000;
+    private static final long MAX_RTO = 16000000;
+    private static final int MAX_TIMEOUTS = 6;          // in a row, then dead
+    private static final int DUP_ACKS = 3;              // fast retransmit
+    private static final long BASE_BUCKET = 60000000;   // us per minimum
+    private static final int BASE_HISTORY = 2;          // buckets kept
+    private static final long PACING_TICK = 10000;      // us of burst allowed
+    private static final long MASK32 = 0xffffffffL;
+
+    private static final int SYN_SENT = 0;
+    private static final int CONNECTED = 1;
+    private static final int DEAD = 2;
+
+    /* Packet:  a sent packet kept until it is acked */
+    private static class Packet {
+        int type;
+        int seq;
+        byte[] payload;
+        long sentAt;            // us, last transmission
+        int transmissions = 0;
+        boolean needResend = false;
+        boolean sacked = false;
+    }
+
+    private final BitUtpSocket socket;
+    private final InetSocketAddress remote;
+    private final int recvId;
+    private final int sendId;
+    private int state;
+    private String error = null;
+    private boolean closedLocally = false;
+    private boolean finSent = false;
+    private int soTimeout = 0;                 // ms, 0 = block forever
+
+    // sending
+    private int seqNr;                         // next seq to send
+    private int oldest;                        // lowest unacked seq
+    private final Packet[] outBuf = new Packet[OUT_PACKETS];
+    private long flightBytes = 0;              // payload in the network
+    private final ArrayDeque<byte[]> sendQ = new ArrayDeque<byte[]>();
+    private int sendHeadOff = 0;
+    private int sendQueued = 0;
+    private long peerWnd = MSS;                // peer's receive window
+    private int dupAcks = 0;
+    private int lastAck = -1;
+
+    // receiving
+    private int ackNr = 0;                     // last in-order seq received
+    private final HashMap<Integer, byte[]> reorder
+            = new HashMap<Integer, byte[]>();
+    private int reorderBytes = 0;
+    private final ArrayDeque<byte[]> recvQ = new ArrayDeque<byte[]>();
+    private int recvHeadOff = 0;
+    private int recvBuffered = 0;
+    private int eofSeq = -1;
+    private boolean eof = false;
+    private boolean ackPending = false;
+    private boolean synSeen = false;
+    private long replyMicros = 0;              // echoed as timestamp diff
+
+    // congestion control
+    private double cwnd = MIN_WINDOW;
+    private boolean slowStart = true;
+    private int recoverySeq = -1;              // no cut until acked past it
+    private long srtt = -1;                    // us
+    private long rttVar = 0;
+    private long rto = INITIAL_RTO;
+    private long rtoDeadline = 0;              // us, 0 = no timer
+    private int numTimeouts = 0;
+    private final long[] baseHistory = new long[BASE_HISTORY + 1];
+    private long baseBucket = -1;
+    private long ourDelay = 0;                 // us of queueing we cause
+    private double paceTokens = 0;
+    private long lastPace = 0;
+
+    // statistics
+    private long packetsSent = 0;
+    private long retransmits = 0;
+
+    private final InputStream inStream = new UtpInputStream();
+    private final OutputStream outStream = new UtpOutputStream();
+
+    BitUtpConnection(BitUtpSocket socket, InetSocketAddress remote,
+                     int recvId, int sendId, boolean initiator) {
+        this.socket = socket;
+        this.remote = remote;
+        this.recvId = recvId;
+        this.sendId = sendId;
+        if (initiator) {
+            this.state = SYN_SENT;
+            this.seqNr = 1;
+            this.oldest = 1;
+            queuePacket(ST_SYN, new byte[0]);
+        } else {
+            this.state = CONNECTED;
+            this.seqNr = new Random().nextInt(0x10000);
+            this.oldest = seqNr;
+        }
+    }
+
+    static long nowMicros() {
+        return System.nanoTime() / 1000;
+    }
+
+    InetSocketAddress getRemote() {
+        return remote;
+    }
+
+    int getRecvId() {
+        return recvId;
+    }
+
+    /* awaitConnected:  block until the SYN is answered */
+    /* return 0 once connected, -1 on timeout or reset */
+    synchronized int awaitConnected(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (state == SYN_SENT) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return -1;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException ex) {
+                return -1;
+            }
+        }
+        return state == CONNECTED ? 0 : -1;
+    }
+
+    /* onPacket:  process a datagram from the peer (BitUtpSocket thread) */
+    synchronized void onPacket(ByteBuffer buf, long now) {
+        int type = (buf.get(0) & 0xff) >> 4;
+        int ext = buf.get(1) & 0xff;
+        long timestamp = buf.getInt(4) & MASK32;
+        long timestampDiff = buf.getInt(8) & MASK32;
+        long wnd = buf.getInt(12) & MASK32;
+        int seq = buf.getShort(16) & 0xffff;
+        int ack = buf.getShort(18) & 0xffff;
+        byte[] sack = null;
+        int pos = HEADER;
+        while (ext != 0) {
+            if (pos + 2 > buf.limit()) {
+                return;
+            }
+            int next = buf.get(pos) & 0xff;
+            int len = buf.get(pos + 1) & 0xff;
+            if (pos + 2 + len > buf.limit()) {
+                return;
+            }
+            if (ext == EXT_SACK) {
+                sack = new byte[len];
+                for (int i = 0; i < len; ++i) {
+                    sack[i] = buf.get(pos + 2 + i);
+                }
+            }
+            pos += 2 + len;
+            ext = next;
+        }
+        if (state == DEAD) {
+            return;
+        }
+        if (type == ST_RESET) {
+            die("uTP: connection reset by " + remote);
+            return;
+        }
+        replyMicros = (now - timestamp) & MASK32;
+        peerWnd = wnd;
+        if (type == ST_SYN) {
+            if (!synSeen) {               // a repeat SYN only needs the ack
+                ackNr = seq;
+                synSeen = true;
+            }
+            ackPending = true;
+            return;
+        }
+        if (state == SYN_SENT) {
+            if (type != ST_STATE) {
+                return;
+            }
+            ackNr = (seq - 1) & 0xffff;
+            state = CONNECTED;
+            notifyAll();
+        }
+        if (timestampDiff != 0) {
+            updateDelay(timestampDiff, now);
+        }
+        processAck(ack, sack, type, buf.limit() - pos, now);
+        if (type == ST_DATA || type == ST_FIN) {
+            byte[] data = new byte[buf.limit() - pos];
+            for (int i = 0; i < data.length; ++i) {
+                data[i] = buf.get(pos + i);
+            }
+            receiveData(seq, type, data);
+        }
+    }
+
+    /* processAck:  retire acked packets, grow or cut the window */
+    private void processAck(int ack, byte[] sack, int type, int dataLen,
+                            long now) {
+        long ackedBytes = 0;
+        boolean advanced = false;
+        // (i) cumulative ack
+        while (oldest != seqNr && seqDiff(ack, oldest) >= 0) {
+            Packet p = outBuf[oldest & (OUT_PACKETS - 1)];
+            outBuf[oldest & (OUT_PACKETS - 1)] = null;
+            if (p != null && !p.sacked) {    // sacked: already retired
+                ackedBytes += retire(p, now);
+            }
+            oldest = (oldest + 1) & 0xffff;
+            advanced = true;
+        }
+        // (ii) selective acks: bit i of byte j is seq ack + 2 + 8j + i
+        int sackedAfter = 0;
+        if (sack != null) {
+            for (int i = 0; i < sack.length * 8; ++i) {
+                if ((sack[i / 8] & (1 << (i % 8))) == 0) {
+                    continue;
+                }
+                int s = (ack + 2 + i) & 0xffff;
+                if (!inFlight(s)) {
+                    continue;
+                }
+                Packet p = outBuf[s & (OUT_PACKETS - 1)];
+                if (p != null && !p.sacked) {
+                    ackedBytes += retire(p, now);
+                    p.sacked = true;
+                }
+                ++sackedAfter;
+            }
+        }
+        if (advanced) {
+            numTimeouts = 0;
+            dupAcks = 0;
+            rtoDeadline = oldest != seqNr ? now + rto : 0;
+        } else if (ack == lastAck && oldest != seqNr && type == ST_STATE
+                   && dataLen == 0) {
+            ++dupAcks;
+        }
+        lastAck = ack;
+        // (iii) fast retransmit of the oldest packet
+        if (oldest != seqNr && (sackedAfter >= DUP_ACKS || dupAcks >= DUP_ACKS)) {
+            Packet p = outBuf[oldest & (OUT_PACKETS - 1)];
+            if (p != null && !p.sacked && !p.needResend && p.transmissions == 1) {
+                markResend(p);
+                onLoss();
+            }
+        }
+        // (iv) LEDBAT window update
+        if (ackedBytes > 0) {
+            double offTarget = (double) (TARGET_DELAY - ourDelay) / TARGET_DELAY;
+            offTarget = Math.max(-1.0, Math.min(1.0, offTarget));
+            if (slowStart && ourDelay > TARGET_DELAY / 2) {
+                slowStart = false;
+            }
+            if (slowStart) {
+                cwnd += ackedBytes;
+            } else {
+                cwnd += MAX_GAIN * offTarget * ackedBytes / cwnd;
+            }
+            cwnd = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, cwnd));
+        }
+    }
+
+    /* retire:  a packet was acked; returns its payload bytes */
+    private long retire(Packet p, long now) {
+        if (p.transmissions == 1) {       // Karn: no samples from resends
+            updateRtt(now - p.sentAt);
+        }
+        if (p.needResend) {
+            p.needResend = false;
+            return 0;                     // not counted as in flight
+        }
+        flightBytes -= p.payload.length;
+        return p.payload.length;
+    }
+
+    private void updateRtt(long sample) {
+        if (srtt < 0) {
+            srtt = sample;
+            rttVar = sample / 2;
+        } else {
+            long delta = sample - srtt;
+            rttVar += (Math.abs(delta) - rttVar) / 4;
+            srtt += delta / 8;
+        }
+        rto = Math.max(MIN_RTO, srtt + 4 * rttVar);
+    }
+
+    /* updateDelay:  one-way delay sample from the peer's echo */
+    private void updateDelay(long sample, long now) {
+        long bucket = now / BASE_BUCKET;
+        if (bucket != baseBucket) {
+            System.arraycopy(baseHistory, 0, baseHistory, 1, BASE_HISTORY);
+            baseHistory[0] = sample;
+            if (baseBucket == -1) {
+                for (int i = 1; i <= BASE_HISTORY; ++i) {
+                    baseHistory[i] = sample;
+                }
+            }
+            baseBucket = bucket;
+        } else if (before(sample, baseHistory[0])) {
+            baseHistory[0] = sample;
+        }
+        long base = baseHistory[0];
+        for (int i = 1; i <= BASE_HISTORY; ++i) {
+            if (before(baseHistory[i], base)) {
+                base = baseHistory[i];
+            }
+        }
+        long delay = (sample - base) & MASK32;
+        ourDelay = delay > (MASK32 >> 1) ? 0 : delay;
+    }
+
+    /* onLoss:  halve the window, at most once per window of data */
+    private void onLoss() {
+        slowStart = false;
+        if (recoverySeq == -1 || seqDiff(oldest, recoverySeq) > 0) {
+            cwnd = Math.max(MIN_WINDOW, cwnd / 2);
+            recoverySeq = (seqNr - 1) & 0xffff;
+        }
+    }
+
+    /* receiveData:  deliver in order, hold up to a window out of order */
+    private void receiveData(int seq, int type, byte[] data) {
+        ackPending = true;
+        if (type == ST_FIN && eofSeq == -1) {
+            eofSeq = seq;
+        }
+        int d = seqDiff(seq, ackNr);
+        if (d <= 0) {
+            return;                       // duplicate
+        }
+        if (d > 1) {
+            if (d < OUT_PACKETS && !reorder.containsKey(seq)) {
+                reorder.put(seq, data);
+                reorderBytes += data.length;
+            }
+            return;
+        }
+        deliver(data);
+        ackNr = seq;
+        byte[] next;
+        while ((next = reorder.remove((ackNr + 1) & 0xffff)) != null) {
+            reorderBytes -= next.length;
+            deliver(next);
+            ackNr = (ackNr + 1) & 0xffff;
+        }
+        if (eofSeq != -1 && seqDiff(ackNr, eofSeq) >= 0) {
+            eof = true;
+            notifyAll();
+        }
+    }
+
+    private void deliver(byte[] data) {
+        if (data.length > 0) {
+            recvQ.offer(data);
+            recvBuffered += data.length;
+            notifyAll();
+        }
+    }
+
+    /* service:  send what is due (BitUtpSocket thread) */
+    /* returns the time (us) it next needs to run */
+    synchronized long service(long now) {
+        if (state == DEAD) {
+            return Long.MAX_VALUE;
+        }
+        if (rtoDeadline != 0 && now >= rtoDeadline) {
+            onTimeout(now);
+            if (state == DEAD) {
+                return Long.MAX_VALUE;
+            }
+        }
+        long next = rtoDeadline != 0 ? rtoDeadline : Long.MAX_VALUE;
+
+        // pacing: refill at cwnd / srtt, burst up to a tick's worth
+        double rate = srtt > 0 ? cwnd / srtt : 0;        // bytes per us
+        if (rate > 0) {
+            paceTokens = Math.min(Math.max(4 * MSS, rate * PACING_TICK),
+                                  paceTokens + (now - lastPace) * rate);
+        } else {
+            paceTokens = Double.MAX_VALUE;
+        }
+        lastPace = now;
+
+        long window = Math.min((long) cwnd, peerWnd);
+        // (i) resends first, oldest first
+        for (int s = oldest; s != seqNr; s = (s + 1) & 0xffff) {
+            Packet p = outBuf[s & (OUT_PACKETS - 1)];
+            if (p == null || !p.needResend) {
+                continue;
+            }
+            int len = p.payload.length;
+            if (flightBytes > 0 && flightBytes + len > window) {
+                break;
+            }
+            if (len > paceTokens) {
+                next = Math.min(next, now + (long) ((len - paceTokens) / rate));
+                break;
+            }
+            paceTokens -= len;
+            p.needResend = false;
+            flightBytes += len;
+            ++retransmits;
+            transmit(p, now);
+        }
+        // (ii) SYN waiting, or new data while window and pacing allow
+        if (state == CONNECTED) {
+            while (sendQueued > 0 && seqDiff(seqNr, oldest) < OUT_PACKETS - 1) {
+                int len = Math.min(MSS, sendQueued);
+                if (flightBytes > 0 && flightBytes + len > window) {
+                    break;
+                }
+                if (len > paceTokens) {
+                    next = Math.min(next,
+                                    now + (long) ((len - paceTokens) / rate));
+                    break;
+                }
+                paceTokens -= len;
+                byte[] payload = new byte[len];
+                for (int off = 0; off < len; ) {
+                    byte[] head = sendQ.peek();
+                    int n = Math.min(len - off, head.length - sendHeadOff);
+                    System.arraycopy(head, sendHeadOff, payload, off, n);
+                    off += n;
+                    sendHeadOff += n;
+                    if (sendHeadOff == head.length) {
+                        sendQ.poll();
+                        sendHeadOff = 0;
+                    }
+                }
+                sendQueued -= len;
+                notifyAll();              // writers may have room now
+                transmit(queuePacket(ST_DATA, payload), now);
+                flightBytes += len;
+            }
+            if (closedLocally && !finSent && sendQueued == 0) {
+                finSent = true;
+                transmit(queuePacket(ST_FIN, new byte[0]), now);
+            }
+        } else if (state == SYN_SENT && outBuf[oldest & (OUT_PACKETS - 1)]
+                                               .transmissions == 0) {
+            transmit(outBuf[oldest & (OUT_PACKETS - 1)], now);
+        }
+        // (iii) a bare ack if nothing above carried one
+        if (ackPending) {
+            sendState(now);
+        }
+        if (finSent && oldest == seqNr) {
+            die(null);                    // our FIN was acked
+            return Long.MAX_VALUE;
+        }
+        if (rtoDeadline != 0) {
+            next = Math.min(next, rtoDeadline);
+        }
+        return next;
+    }
+
+    /* onTimeout:  nothing acked for rto; resend all, collapse the window */
+    private void onTimeout(long now) {
+        if (++numTimeouts > MAX_TIMEOUTS) {
+            die("uTP: connection to " + remote + " timed out");
+            return;
+        }
+        if (oldest != seqNr) {
+            for (int s = oldest; s != seqNr; s = (s + 1) & 0xffff) {
+                Packet p = outBuf[s & (OUT_PACKETS - 1)];
+                if (p != null && !p.sacked && !p.needResend) {
+                    markResend(p);
+                }
+            }
+            cwnd = MIN_WINDOW;
+            slowStart = false;
+        } else {
+            peerWnd = Math.max(peerWnd, MSS);      // probe a zero window
+        }
+        rto = Math.min(MAX_RTO, rto * 2);
+        rtoDeadline = now + rto;
+    }
+
+    private void markResend(Packet p) {
+        p.needResend = true;
+        flightBytes -= p.payload.length;
+    }
+
+    /* queuePacket:  assign the next seq; kept until acked */
+    private Packet queuePacket(int type, byte[] payload) {
+        Packet p = new Packet();
+        p.type = type;
+        p.seq = seqNr;
+        p.payload = payload;
+        outBuf[seqNr & (OUT_PACKETS - 1)] = p;
+        seqNr = (seqNr + 1) & 0xffff;
+        return p;
+    }
+
+    private void transmit(Packet p, long now) {
+        p.sentAt = now;
+        ++p.transmissions;
+        ByteBuffer buf = socket.sendBuffer();
+        putHeader(buf, p.type, p.seq, now);
+        buf.put(p.payload);
+        buf.flip();
+        socket.send(remote, buf);
+        ++packetsSent;
+        if (reorder.isEmpty()) {
+            ackPending = false;           // ack_nr is in every packet
+        }
+        if (rtoDeadline == 0) {
+            rtoDeadline = now + rto;
+        }
+    }
+
+    /* sendState:  ack, with selective acks for what arrived early */
+    private void sendState(long now) {
+        ByteBuffer buf = socket.sendBuffer();
+        int maxBit = -1;
+        for (int s : reorder.keySet()) {
+            maxBit = Math.max(maxBit, seqDiff(s, ackNr) - 2);
+        }
+        int sackLen = maxBit < 0 ? 0 : Math.min(32, (maxBit / 32 + 1) * 4);
+        putHeader(buf, ST_STATE, seqNr, now);
+        if (sackLen > 0) {
+            buf.put(1, (byte) EXT_SACK);
+            buf.put((byte) 0);
+            buf.put((byte) sackLen);
+            byte[] mask = new byte[sackLen];
+            for (int s : reorder.keySet()) {
+                int bit = seqDiff(s, ackNr) - 2;
+                if (bit >= 0 && bit < sackLen * 8) {
+                    mask[bit / 8] |= 1 << (bit % 8);
+                }
+            }
+            buf.put(mask);
+        }
+        buf.flip();
+        socket.send(remote, buf);
+        ++packetsSent;
+        ackPending = false;
+    }
+
+    private void putHeader(ByteBuffer buf, int type, int seq, long now) {
+        buf.put((byte) ((type << 4) | VERSION));
+        buf.put((byte) 0);
+        buf.putShort((short) (type == ST_SYN ? recvId : sendId));
+        buf.putInt((int) now);
+        buf.putInt((int) replyMicros);
+        buf.putInt(advertisedWindow());
+        buf.putShort((short) seq);
+        buf.putShort((short) ackNr);
+    }
+
+    private int advertisedWindow() {
+        return Math.max(0, RECV_BUFFER - recvBuffered - reorderBytes);
+    }
+
+    /* die:  the connection is over (error null for a clean close) */
+    private void die(String msg) {
+        state = DEAD;
+        error = msg;
+        notifyAll();
+        socket.remove(this);
+    }
+
+    private boolean inFlight(int s) {
+        return seqDiff(s, oldest) >= 0 && seqDiff(s, seqNr) < 0;
+    }
+
+    /* seqDiff:  a - b for 16-bit sequence numbers */
+    private static int seqDiff(int a, int b) {
+        return (short) (a - b);
+    }
+
+    /* before:  a < b for 32-bit wrapping microsecond values */
+    private static boolean before(long a, long b) {
+        return ((a - b) & MASK32) > (MASK32 >> 1);
+    }
+
+    public InputStream getInputStream() {
+        return inStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outStream;
+    }
+
+    public InetAddress getInetAddress() {
+        return remote.getAddress();
+    }
+
+    public int getPort() {
+        return remote.getPort();
+    }
+
+    public synchronized void setSoTimeout(int ms) {
+        soTimeout = ms;
+    }
+
+    /* close:  queue a FIN after the data already written */
+    public void close() {
+        synchronized (this) {
+            if (closedLocally) {
+                return;
+            }
+            closedLocally = true;
+            notifyAll();
+            if (state == SYN_SENT) {
+                die(null);
+                return;
+            }
+        }
+        socket.wakeup();
+    }
+
+    public String getTransport() {
+        return "utp";
+    }
+
+    public synchronized double getCwnd() {
+        return cwnd;
+    }
+
+    public synchronized long getOurDelay() {
+        return ourDelay;
+    }
+
+    public synchronized long getFlightBytes() {
+        return flightBytes;
+    }
+
+    public synchronized long getSrtt() {
+        return srtt;
+    }
+
+    public synchronized long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public synchronized long getRetransmits() {
+        return retransmits;
+    }
+
+    /* UtpInputStream:  blocks like a socket stream, honouring soTimeout */
+    private class UtpInputStream extends InputStream {
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            boolean reopened;
+            synchronized (BitUtpConnection.this) {
+                long deadline = soTimeout > 0
+                        ? System.currentTimeMillis() + soTimeout : 0;
+                while (recvBuffered == 0) {
+                    if (eof) {
+                        return -1;
+                    }
+                    if (state == DEAD || closedLocally) {
+                        throw new IOException(error != null ? error
+                                              : "uTP: connection closed");
+                    }
+                    long wait = 0;
+                    if (deadline != 0) {
+                        wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new SocketTimeoutException();
+                        }
+                    }
+                    try {
+                        BitUtpConnection.this.wait(wait);
+                    } catch (InterruptedException ex) {
+                        throw new IOException("uTP: interrupted");
+                    }
+                }
+                boolean wasShut = advertisedWindow() < MSS;
+                while (n < len && recvBuffered > 0) {
+                    byte[] head = recvQ.peek();
+                    int k = Math.min(len - n, head.length - recvHeadOff);
+                    System.arraycopy(head, recvHeadOff, b, off + n, k);
+                    n += k;
+                    recvHeadOff += k;
+                    recvBuffered -= k;
+                    if (recvHeadOff == head.length) {
+                        recvQ.poll();
+                        recvHeadOff = 0;
+                    }
+                }
+                // tell a sender stalled on our window that it reopened
+                reopened = wasShut && advertisedWindow() >= MSS;
+                if (reopened) {
+                    ackPending = true;
+                }
+            }
+            if (reopened) {
+                socket.wakeup();
+            }
+            return n;
+        }
+
+        public int available() {
+            synchronized (BitUtpConnection.this) {
+                return recvBuffered;
+            }
+        }
+    }
+
+    /* UtpOutputStream:  blocks while SEND_BUFFER bytes wait to be sent */
+    private class UtpOutputStream extends OutputStream {
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (BitUtpConnection.this) {
+                while (len > 0) {
+                    if (state == DEAD || closedLocally) {
+                        throw new IOException(error != null ? error
+                                              : "uTP: connection closed");
+                    }
+                    if (sendQueued >= SEND_BUFFER) {
+                        socket.wakeup();
+                        try {
+                            BitUtpConnection.this.wait();
+                        } catch (InterruptedException ex) {
+                            throw new IOException("uTP: interrupted");
+                        }
+                        continue;
+                    }
+                    int n = Math.min(len, SEND_BUFFER - sendQueued);
+                    byte[] chunk = new byte[n];
+                    System.arraycopy(b, off, chunk, 0, n);
+                    sendQ.offer(chunk);
+                    sendQueued += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+            socket.wakeup();
+        }
+    }
+}
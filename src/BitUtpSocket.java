@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/* BitUtpSocket:  uTP (BEP 29) endpoint for every uTP connection */
+/* One DatagramChannel carries all connections, keyed by remote address */
+/* and connection id.  This thread does all sending and receiving: it */
+/* reads every waiting datagram, hands it to its BitUtpConnection, then */
+/* lets each connection send acks, data (within its LEDBAT window and */
+/* pacing) and retransmissions.  Readers and writers on the connection */
+/* streams only touch buffers and wake the thread up. */
+public class BitUtpSocket extends Thread {
+    private static final int TICK = 10;                 // ms, longest sleep
+    private static final int MAX_DATAGRAM = 1500;
+
+    private final int port;
+    private DatagramChannel channel = null;
+    private Selector selector = null;
+    private final HashMap<Long, BitUtpConnection> conns
+            = new HashMap<Long, BitUtpConnection>();
+    private volatile Consumer<BitConnection> acceptor = null;
+    private final ByteBuffer in = ByteBuffer.allocate(65536);
+    private final ByteBuffer out = ByteBuffer.allocate(MAX_DATAGRAM);
+    private final Random random = new Random();
+    private volatile boolean isStopped = false;
+
+    public BitUtpSocket(int port) {
+        super("BitUtpSocket");
+        setDaemon(true);
+        this.port = port;
+    }
+
+    /* bind:  open the UDP socket; return 0 on success, -1 on failure */
+    public int bind() {
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            System.err.println("error: cannot bind uTP port " + port);
+            return -1;
+        }
+        return 0;
+    }
+
+    public int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /* setAcceptor:  where incoming connections go; null refuses them */
+    public void setAcceptor(Consumer<BitConnection> acceptor) {
+        this.acceptor = acceptor;
+    }
+
+    public void stopThread() {
+        isStopped = true;
+        selector.wakeup();
+    }
+
+    /* connect:  open a uTP connection, waiting at most timeoutMs for the */
+    /* peer to answer the SYN */
+    public BitUtpConnection connect(InetSocketAddress addr, long timeoutMs)
+            throws IOException {
+        if (!(addr.getAddress() instanceof Inet4Address)) {
+            throw new IOException("uTP: IPv4 only");
+        }
+        BitUtpConnection conn;
+        synchronized (conns) {
+            int recvId;
+            do {
+                recvId = random.nextInt(0xffff);
+            } while (conns.containsKey(key(addr, recvId)));
+            conn = new BitUtpConnection(this, addr, recvId,
+                                        (recvId + 1) & 0xffff, true);
+            conns.put(key(addr, recvId), conn);
+        }
+        selector.wakeup();
+        if (conn.awaitConnected(timeoutMs) == -1) {
+            conn.close();
+            throw new IOException("uTP: no answer from " + addr);
+        }
+        return conn;
+    }
+
+    public void run() {
+        long nextWake = 0;
+        while (!isStopped) {
+            try {
+                long wait = Math.max(1, Math.min(TICK,
+                        nextWake - BitUtpConnection.nowMicros() / 1000));
+                selector.select(wait);
+                selector.selectedKeys().clear();
+                InetSocketAddress src;
+                while (true) {
+                    in.clear();
+                    src = (InetSocketAddress) channel.receive(in);
+                    if (src == null) {
+                        break;
+                    }
+                    in.flip();
+                    receive(src, in);
+                }
+            } catch (IOException ex) {
+                // ICMP errors and the like; keep serving other connections
+            }
+            List<BitUtpConnection> snapshot;
+            synchronized (conns) {
+                snapshot = new ArrayList<BitUtpConnection>(conns.values());
+            }
+            long now = BitUtpConnection.nowMicros();
+            nextWake = now / 1000 + TICK;
+            for (BitUtpConnection conn : snapshot) {
+                nextWake = Math.min(nextWake, conn.service(now) / 1000);
+            }
+        }
+        try {
+            channel.close();
+            selector.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    /* receive:  route one datagram to its connection */
+    private void receive(InetSocketAddress src, ByteBuffer buf) {
+        if (buf.remaining() < BitUtpConnection.HEADER
+            || !(src.getAddress() instanceof Inet4Address)) {
+            return;
+        }
+        int type = (buf.get(0) & 0xff) >> 4;
+        int version = buf.get(0) & 0x0f;
+        int connId = buf.getShort(2) & 0xffff;
+        int seq = buf.getShort(16) & 0xffff;
+        if (version != BitUtpConnection.VERSION) {
+            return;
+        }
+        BitUtpConnection conn;
+        Consumer<BitConnection> accept = acceptor;
+        boolean isNew = false;
+        synchronized (conns) {
+            if (type == BitUtpConnection.ST_SYN) {
+                // a SYN carries the initiator's receive id, ours is one more
+                conn = conns.get(key(src, (connId + 1) & 0xffff));
+                if (conn == null && accept != null) {
+                    conn = new BitUtpConnection(this, src,
+                            (connId + 1) & 0xffff, connId, false);
+                    conns.put(key(src, (connId + 1) & 0xffff), conn);
+                    isNew = true;
+                }
+            } else {
+                conn = conns.get(key(src, connId));
+                if (conn == null && type == BitUtpConnection.ST_RESET) {
+                    // a reset may name either of our two ids
+                    conn = conns.get(key(src, (connId - 1) & 0xffff));
+                }
+            }
+        }
+        if (conn != null) {
+            conn.onPacket(buf, BitUtpConnection.nowMicros());
+            if (isNew) {
+                accept.accept(conn);
+            }
+        } else if (type != BitUtpConnection.ST_RESET) {
+            sendReset(src, connId, seq);
+        }
+    }
+
+    /* sendBuffer:  the buffer to build an outgoing packet in */
+    ByteBuffer sendBuffer() {
+        out.clear();
+        return out;
+    }
+
+    /* send:  transmit one packet; only called from this thread */
+    /* a full socket buffer drops it, as the network would */
+    void send(InetSocketAddress dst, ByteBuffer packet) {
+        try {
+            channel.send(packet, dst);
+        } catch (IOException ex) {
+            // unreachable peer; retransmission timeouts notice it
+        }
+    }
+
+    private void sendReset(InetSocketAddress dst, int connId, int seq) {
+        ByteBuffer buf = sendBuffer();
+        buf.put((byte) ((BitUtpConnection.ST_RESET << 4)
+                        | BitUtpConnection.VERSION));
+        buf.put((byte) 0);
+        buf.putShort((short) connId);
+        buf.putInt((int) BitUtpConnection.nowMicros());
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putShort((short) random.nextInt(0x10000));
+        buf.putShort((short) seq);
+        buf.flip();
+        send(dst, buf);
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /* remove:  forget a connection that is closed or dead */
+    void remove(BitUtpConnection conn) {
+        synchronized (conns) {
+            long k = key(conn.getRemote(), conn.getRecvId());
+            if (conns.get(k) == conn) {
+                conns.remove(k);
+            }
+        }
+    }
+
+    public int getNumConnections() {
+        synchronized (conns) {
+            return conns.size();
+        }
+    }
+
+    /* key:  IPv4 address, port and receive id packed into a long */
+    private static long key(InetSocketAddress addr, int recvId) {
+        byte[] ip = addr.getAddress().getAddress();
+        long a = ((ip[0] & 0xffL) << 24) | ((ip[1] & 0xffL) << 16)
+                 | ((ip[2] & 0xffL) << 8) | (ip[3] & 0xffL);
+        return (a << 32) | ((long) addr.getPort() << 16) | recvId;
+    }
+}
@@ -2,15 +2,14 @@ import java.net.Socket;
 import java.net.ServerSocket;
 import java.net.SocketException;
 import java.io.IOException;
-import java.util.LinkedList;
 
 public class BitWelcomer extends Thread {
     private ServerSocket welcomeSocket = null;  // welcome new peers
-    private LinkedList<Socket> welcomeQ = null; // pending new peers
+    private BitHandshaker handshaker = null;    // validates new peers
     private volatile boolean isStopped = false;
 
-    public BitWelcomer(int welcomePort, final LinkedList<Socket> welcomeQ) {
-        this.welcomeQ = welcomeQ;
+    public BitWelcomer(int welcomePort, final BitHandshaker handshaker) {
+        this.handshaker = handshaker;
 
         try {
             welcomeSocket = new ServerSocket(welcomePort);
@@ -35,10 +34,8 @@ public class BitWelcomer extends Thread {
                 continue;
             }
             if (peerSocket != null) {
-                synchronized (welcomeQ) {
-                    welcomeQ.offer(peerSocket);
-                    welcomeQ.notifyAll();
-                }
+                // handshake happens on the handshaker's pool, not here
+                handshaker.inbound(new BitTcpConnection(peerSocket));
             }
         }
     }
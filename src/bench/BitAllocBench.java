@@ -0,0 +1,187 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/* BitAllocBench:  how each BitStorage allocation mode lays out a file */
+/* For each mode, downloads a file of sizeMB through BitStorage the way */
+/* the client does: 16 KiB blocks, whole pieces in a random order (as */
+/* rarest-first with many peers gives), each piece reported done as if */
+/* it passed its hash check.  Then flushes the file, drops the page cache */
+/* (needs root; otherwise the reads are from memory and say little), and */
+/* reads it back front to back as a seeder streaming it would.  Reports */
+/* write throughput, the extent count from filefrag (fewer is less */
+/* fragmented) and the sequential read throughput, and checks every */
+/* byte landed at its offset. */
+/* */
+/* Build as for BitBench, then: */
+/*   java -cp <bench-out> BitAllocBench [-s sizeMB] [-p pieceKB] */
+/*        [-m sparse|full|compact|all] [-d dir] [-c on|off] */
+public class BitAllocBench {
+    private static final int BLOCK = 16384;
+    private static final int READ_CHUNK = 1 << 20;
+    private static int sizeMB = 256;
+    private static int pieceKB = 256;
+    private static String modes = "all";
+    private static String dir = ".";
+    private static boolean dropCaches = true;
+
+    public static void main(String[] args) throws IOException {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-s")) {
+                sizeMB = Integer.parseInt(args[i+1]);
+            } else if (args[i].equals("-p")) {
+                pieceKB = Integer.parseInt(args[i+1]);
+            } else if (args[i].equals("-m")) {
+                modes = args[i+1];
+            } else if (args[i].equals("-d")) {
+                dir = args[i+1];
+            } else if (args[i].equals("-c")) {
+                dropCaches = !args[i+1].equals("off");
+            } else {
+                System.err.println("usage: java BitAllocBench [-s sizeMB] "
+                                   + "[-p pieceKB] "
+                                   + "[-m sparse|full|compact|all] "
+                                   + "[-d dir] [-c on|off]");
+                return;
+            }
+        }
+        // a short last piece, as most torrents have
+        long length = (long) sizeMB * 1048576 - 12345;
+        int pieceLength = pieceKB * 1024;
+        int numPieces = (int) ((length + pieceLength - 1) / pieceLength);
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < numPieces; ++i) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(42));
+
+        System.out.println(String.format(
+                "%d MB file, %d KB pieces, random piece order",
+                sizeMB, pieceKB));
+        System.out.println(String.format("%-8s %12s %8s %12s  %s",
+                "mode", "write MB/s", "extents", "read MB/s", "data"));
+        for (BitStorage.Allocation mode : BitStorage.Allocation.values()) {
+            if (!modes.equals("all")
+                && !modes.equalsIgnoreCase(mode.name())) {
+                continue;
+            }
+            run(mode, length, pieceLength, order);
+        }
+    }
+
+    /* run:  download, flush, read back and report one mode */
+    private static void run(BitStorage.Allocation mode, long length,
+                            int pieceLength, List<Integer> order)
+            throws IOException {
+        File file = new File(dir, "BitAllocBench." + mode.name().toLowerCase());
+        file.delete();
+        BitStorage storage = new BitStorage(new String[] { file.getPath() },
+                                            new long[] { length }, false);
+        storage.setAllocation(mode, pieceLength);
+        if (storage.open(null) == -1) {
+            return;
+        }
+
+        // (i) write pieces in random order, block by block
+        long start = System.nanoTime();
+        byte[] block = new byte[BLOCK];
+        for (int piece : order) {
+            long pieceStart = (long) piece * pieceLength;
+            long pieceEnd = Math.min(length, pieceStart + pieceLength);
+            for (long off = pieceStart; off < pieceEnd; off += BLOCK) {
+                int n = (int) Math.min(BLOCK, pieceEnd - off);
+                fill(block, off, n);
+                if (storage.write(off, ByteBuffer.wrap(block, 0, n)) == -1) {
+                    System.err.println("error: write failed at " + off);
+                    storage.close();
+                    return;
+                }
+            }
+            storage.pieceDone(piece);
+        }
+        storage.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.getChannel().force(true);
+        }
+        double writeSecs = (System.nanoTime() - start) / 1e9;
+        if (dropCaches) {
+            dropCaches();
+        }
+
+        // (ii) read it back in order, checking every byte
+        boolean intact = true;
+        start = System.nanoTime();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(READ_CHUNK);
+            byte[] expected = new byte[READ_CHUNK];
+            long off = 0;
+            while (off < length) {
+                buf.clear();
+                int n = ch.read(buf, off);
+                if (n <= 0) {
+                    break;
+                }
+                fill(expected, off, n);
+                for (int i = 0; i < n; ++i) {
+                    intact &= buf.array()[i] == expected[i];
+                }
+                off += n;
+            }
+            intact &= off == length && raf.length() == length;
+        }
+        double readSecs = (System.nanoTime() - start) / 1e9;
+        double mb = length / 1048576.0;
+        System.out.println(String.format("%-8s %12.1f %8s %12.1f  %s",
+                mode.name().toLowerCase(), mb / writeSecs, extents(file),
+                mb / readSecs, intact ? "intact" : "CORRUPT"));
+        file.delete();
+    }
+
+    /* fill:  the bytes expected at file offset OFF; cheap to check */
+    private static void fill(byte[] b, long off, int n) {
+        for (int i = 0; i < n; ++i) {
+            long x = off + i;
+            b[i] = (byte) (x ^ (x >>> 11) ^ (x >>> 23));
+        }
+    }
+
+    /* dropCaches:  flush the page cache so reads go to the disk */
+    private static void dropCaches() {
+        try (FileWriter w = new FileWriter("/proc/sys/vm/drop_caches")) {
+            w.write("3\n");
+        } catch (IOException ex) {
+            System.err.println("warning: cannot drop the page cache, "
+                               + "reads may come from memory (-c off)");
+            dropCaches = false;
+        }
+    }
+
+    /* extents:  the file's extent count from filefrag, or "n/a" */
+    private static String extents(File file) {
+        try {
+            Process p = new ProcessBuilder("filefrag", file.getPath())
+                    .redirectErrorStream(true).start();
+            BufferedReader r = new BufferedReader(
+                    new InputStreamReader(p.getInputStream()));
+            String line = r.readLine();
+            p.waitFor();
+            // "<path>: N extents found"
+            if (line != null && line.endsWith(" found")) {
+                String[] words = line.split(" ");
+                return words[words.length - 3];
+            }
+        } catch (IOException | InterruptedException ex) {
+        }
+        return "n/a";
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+import util.bencode.*;
+import util.lib.BitLibrary;
+
+/* BitBench:  microbenchmarks for the codec, bencode, bitfield and picker */
+/* hot paths.  Each benchmark is warmed up, then measured for time and */
+/* bytes allocated per operation (the JMH "gc" profiler figures).  Results */
+/* are compared against a saved baseline so regressions are visible. */
+/* */
+/* Compile and run from src/ (bench/ is not part of the client build): */
+/*   javac -d ../bench-out ./*.java ./util/lib/*.java ./util/bencode/*.java \ */
+/*         ./bench/*.java */
+/*   java -cp ../bench-out BitBench [-f filter] [-c baseline] [-w baseline] */
+/*                                  [-q on]   (quick, less accurate run) */
+/* With -f, -w only replaces the entries of the benchmarks that ran. */
+public class BitBench {
+    private static final String DEFAULT_BASELINE = "./bench/baseline.txt";
+    private static final String TORRENT = "./test/torrents/big.txt.torrent";
+    private static final int PIECE_LENGTH = 262144;
+    private static final double TIME_TOLERANCE = 0.10;   // 10% slower
+    private static final double ALLOC_TOLERANCE = 0.05;  // 5% more garbage
+    private static final int ALLOC_SLACK = 256;          // B/op of noise
+    private static int warmupIters = 5;
+    private static int measureIters = 5;
+    private static long iterNanos = 200000000L;          // 200ms per iteration
+    private static volatile long sink;                   // defeats DCE
+
+    /* Result:  one line of the report and of the baseline file */
+    static class Result {
+        String name;
+        double nsPerOp;
+        double bytesPerOp;
+        double mbPerSec;       // allocation rate
+
+        public String toString() {
+            return String.format("%-36s %12.1f %12.1f %10.1f",
+                                 name, nsPerOp, bytesPerOp, mbPerSec);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String filter = null;
+        String compareTo = DEFAULT_BASELINE;
+        String writeTo = null;
+        for (int i = 0; i < args.length - 1; i += 2) {
+            if (args[i].equals("-f")) {
+                filter = args[i+1];
+            } else if (args[i].equals("-c")) {
+                compareTo = args[i+1];
+            } else if (args[i].equals("-w")) {
+                writeTo = args[i+1];
+            } else if (args[i].equals("-q")) {   // quick run, -q on
+                warmupIters = 2;
+                measureIters = 3;
+                iterNanos = 50000000L;
+            }
+        }
+
+        Map<String, LongSupplier> suite = buildSuite();
+        Map<String, Result> baseline = readBaseline(compareTo);
+        List<Result> results = new ArrayList<Result>();
+
+        System.out.println(String.format("%-36s %12s %12s %10s",
+                           "benchmark", "ns/op", "B/op", "MB/s"));
+        int regressions = 0;
+        for (Map.Entry<String, LongSupplier> e : suite.entrySet()) {
+            if (filter != null && !e.getKey().contains(filter)) {
+                continue;
+            }
+            Result r = run(e.getKey(), e.getValue());
+            results.add(r);
+            StringBuilder line = new StringBuilder(r.toString());
+            Result base = baseline.get(r.name);
+            if (base != null) {
+                double dt = (r.nsPerOp - base.nsPerOp) / base.nsPerOp;
+                line.append(String.format("  %+6.1f%%", 100 * dt));
+                // allocation is nearly deterministic, so keep it tight
+                if (dt > TIME_TOLERANCE || r.bytesPerOp
+                        > base.bytesPerOp * (1 + ALLOC_TOLERANCE) + ALLOC_SLACK) {
+                    line.append("  REGRESSION");
+                    ++regressions;
+                }
+            }
+            System.out.println(line);
+        }
+
+        if (writeTo != null) {
+            if (filter != null) {
+                // a filtered run updates its entries, keeping the rest
+                Map<String, Result> merged = readBaseline(writeTo);
+                for (Result r : results) {
+                    merged.put(r.name, r);
+                }
+                results = new ArrayList<Result>(merged.values());
+            }
+            writeBaseline(writeTo, results);
+            System.out.println("wrote baseline to " + writeTo);
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " regression(s) against "
+                               + compareTo);
+        }
+    }
+
+    /* buildSuite:  name -> operation; each call returns a value to consume */
+    private static Map<String, LongSupplier> buildSuite() throws IOException {
+        Map<String, LongSupplier> suite
+                = new LinkedHashMap<String, LongSupplier>();
+        Random random = new Random(42);
+
+        // (i) BitMessage.pack / unpack for every message type
+        byte[] block = new byte[16384];
+        random.nextBytes(block);
+        boolean[] bf = new boolean[1000];
+        BitMessage[] msgs = {
+            new BitMessage(BitMessage.MessageType.KEEP_ALIVE),
+            new BitMessage(BitMessage.MessageType.CHOKE),
+            new BitMessage(BitMessage.MessageType.UNCHOKE),
+            new BitMessage(BitMessage.MessageType.INTERESTED),
+            new BitMessage(BitMessage.MessageType.UNINTERESTED),
+            new BitMessage(BitMessage.MessageType.HAVE, 7),
+            new BitMessage(BitMessage.MessageType.BITFIELD,
+                           BitLibrary.booleanToBits(bf)),
+            new BitMessage(BitMessage.MessageType.REQUEST, 7, 7 * 16384, 16384),
+            new BitMessage(BitMessage.MessageType.PIECE, 7, 7 * 16384, block),
+            new BitMessage(BitMessage.MessageType.CANCEL, 7, 7 * 16384, 16384)
+        };
+        for (final BitMessage m : msgs) {
+            final byte[] packed = m.pack();
+            String type = m.getType().toString().toLowerCase();
+            suite.put("message.pack." + type, () -> m.pack().length);
+            suite.put("message.unpack." + type,
+                      () -> BitMessage.unpack(packed).getIndex());
+        }
+
+        // (ii) BDecoder.read on a real torrent and a 100k-piece torrent
+        final String small = new String(Files.readAllBytes(Paths.get(TORRENT)),
+                                        StandardCharsets.US_ASCII).trim();
+        final String huge = syntheticTorrent(100000, random);
+        suite.put("bdecoder.read.small", () -> BDecoder.read(small).length);
+        suite.put("bdecoder.read.100k", () -> BDecoder.read(huge).length);
+
+        // (iii) bitfield conversions
+        for (final int n : new int[] {1000, 100000}) {
+            final boolean[] bools = randomBitfield(n, 0.5, random);
+            final byte[] bits = BitLibrary.booleanToBits(bools);
+            suite.put("bitfield.booleanToBits." + n,
+                      () -> BitLibrary.booleanToBits(bools).length);
+            suite.put("bitfield.bitsToBoolean." + n,
+                      () -> BitLibrary.bitsToBoolean(bits, n).length);
+        }
+
+        // (iv) piece picker
+        final BitPeer peer = new BitPeer(InetAddress.getLoopbackAddress(), 1);
+        for (final int n : new int[] {100, 10000, 100000}) {
+            final boolean[] remote = randomBitfield(n, 0.9, random);
+            final boolean[] local = randomBitfield(n, 0.5, random);
+            suite.put("picker.getRarePiece." + n, () -> {
+                peer.setBitfield(remote);
+                return peer.getRarePiece(local);
+            });
+        }
+
+        // (v) SHA1 of a whole piece
+        final byte[] piece = new byte[PIECE_LENGTH];
+        random.nextBytes(piece);
+        suite.put("sha1.piece.256k",
+                  () -> BitLibrary.getSHA1(piece, 0, piece.length)[0]);
+
+        // (vi) embedded tracker: announce into a 10k-peer swarm
+        final BitPeerTable table = new BitPeerTable(3600000L);
+        final byte[] hash = new byte[20];
+        random.nextBytes(hash);
+        final ByteBuffer compact = ByteBuffer.allocate(6 * 50);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10000; ++i) {
+            table.announce(hash, 0, 0x0a000000 + i, 6881, i % 4 == 0,
+                           BitPeerTable.STARTED, 0, now, compact);
+        }
+        final int[] next = {0};
+        suite.put("tracker.announce.10k", () -> {
+            compact.clear();
+            int ip = 0x0a000000 + (next[0]++ % 10000);
+            return table.announce(hash, 0, ip, 6881, false, BitPeerTable.NONE,
+                                  50, System.currentTimeMillis(), compact);
+        });
+
+        return suite;
+    }
+
+    /* run:  warm up, then measure time and allocation per operation */
+    private static Result run(String name, LongSupplier op) {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)
+                                             ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long batch = 1;
+        // size the batch so one timing call covers ~1ms of work
+        while (true) {
+            long t0 = System.nanoTime();
+            for (long i = 0; i < batch; ++i) {
+                sink += op.getAsLong();
+            }
+            if (System.nanoTime() - t0 > 1000000 || batch > (1L << 30)) {
+                break;
+            }
+            batch <<= 1;
+        }
+
+        long ops = 0;
+        long nanos = 0;
+        long bytes = 0;
+        for (int iter = 0; iter < warmupIters + measureIters; ++iter) {
+            long iterOps = 0;
+            long a0 = mx.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            long t1 = t0;
+            while (t1 - t0 < iterNanos) {
+                for (long i = 0; i < batch; ++i) {
+                    sink += op.getAsLong();
+                }
+                iterOps += batch;
+                t1 = System.nanoTime();
+            }
+            long a1 = mx.getThreadAllocatedBytes(tid);
+            if (iter >= warmupIters) {
+                ops += iterOps;
+                nanos += t1 - t0;
+                bytes += a1 - a0;
+            }
+        }
+
+        Result r = new Result();
+        r.name = name;
+        r.nsPerOp = (double) nanos / ops;
+        r.bytesPerOp = (double) bytes / ops;
+        r.mbPerSec = (bytes / 1048576.0) / (nanos / 1e9);
+        return r;
+    }
+
+    /* syntheticTorrent:  single-file metainfo with numPieces SHA1 entries */
+    private static String syntheticTorrent(int numPieces, Random random) {
+        StringBuilder pieces = new StringBuilder(numPieces * 20);
+        for (int i = 0; i < numPieces * 20; ++i) {
+            pieces.append((char) random.nextInt(128));
+        }
+        int pieceLength = 16384;    // keep the length within an int
+        long length = (long) numPieces * pieceLength;
+        return "d8:announce30:http://localhost:6969/announce"
+               + "4:infod6:lengthi" + length + "e4:name9:synthetic"
+               + "12:piece lengthi" + pieceLength + "e"
+               + "6:pieces" + pieces.length() + ":" + pieces + "ee";
+    }
+
+    private static boolean[] randomBitfield(int n, double p, Random random) {
+        boolean[] bf = new boolean[n];
+        for (int i = 0; i < n; ++i) {
+            bf[i] = random.nextDouble() < p;
+        }
+        return bf;
+    }
+
+    private static Map<String, Result> readBaseline(String path) {
+        Map<String, Result> baseline = new LinkedHashMap<String, Result>();
+        Path p = Paths.get(path);
+        if (!Files.isRegularFile(p)) {
+            return baseline;
+        }
+        try {
+            for (String line : Files.readAllLines(p)) {
+                String[] f = line.trim().split("\\s+");
+                if (f.length < 4 || line.startsWith("#")) {
+                    continue;
+                }
+                Result r = new Result();
+                r.name = f[0];
+                r.nsPerOp = Double.parseDouble(f[1]);
+                r.bytesPerOp = Double.parseDouble(f[2]);
+                r.mbPerSec = Double.parseDouble(f[3]);
+                baseline.put(r.name, r);
+            }
+        } catch (IOException|NumberFormatException ex) {
+            System.err.println("warning: could not read baseline " + path);
+        }
+        return baseline;
+    }
+
+    private static void writeBaseline(String path, List<Result> results)
+            throws IOException {
+        List<String> lines = new ArrayList<String>();
+        lines.add("# benchmark ns/op B/op MB/s  (java BitBench -w " + path + ")");
+        lines.add("# " + System.getProperty("java.vm.name") + " "
+                  + System.getProperty("java.version") + ", "
+                  + Runtime.getRuntime().availableProcessors() + " cpus");
+        for (Result r : results) {
+            lines.add(r.toString());
+        }
+        Files.write(Paths.get(path), lines);
+    }
+}
@@ -0,0 +1,174 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* BitDHTSim:  simulated multi-node DHT on loopback */
+/* Starts N BitDHT nodes in this process, each on its own UDP port, joins */
+/* them through node 0, then has random nodes announce random info hashes */
+/* and other random nodes look them up.  Optionally kills a fraction of */
+/* the nodes first, so lookups have to route around dead ones.  Reports */
+/* routing table sizes, how many lookups found the announced peer, and */
+/* how long that took. */
+/* */
+/* Build as for BitBench, then: */
+/*   java -cp <bench-out> BitDHTSim [-n nodes] [-s searches] [-k killPct] */
+/*        [-t timeoutSec] [-p basePort] */
+public class BitDHTSim {
+    private static int numNodes = 64;
+    private static int numSearches = 20;
+    private static double killPct = 0;
+    private static int timeoutSec = 30;
+    private static int basePort = 19000;
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-n")) {
+                numNodes = Integer.parseInt(args[i+1]);
+            } else if (args[i].equals("-s")) {
+                numSearches = Integer.parseInt(args[i+1]);
+            } else if (args[i].equals("-k")) {
+                killPct = Double.parseDouble(args[i+1]);
+            } else if (args[i].equals("-t")) {
+                timeoutSec = Integer.parseInt(args[i+1]);
+            } else if (args[i].equals("-p")) {
+                basePort = Integer.parseInt(args[i+1]);
+            } else {
+                System.err.println("usage: java BitDHTSim [-n nodes] "
+                                   + "[-s searches] [-k killPct] "
+                                   + "[-t timeoutSec] [-p basePort]");
+                return;
+            }
+        }
+        Random random = new Random(42);
+        InetAddress lo = InetAddress.getLoopbackAddress();
+
+        // (i) start the nodes and join them through node 0
+        BitDHT[] nodes = new BitDHT[numNodes];
+        for (int i = 0; i < numNodes; ++i) {
+            nodes[i] = new BitDHT(basePort + i);
+            if (nodes[i].bind() == -1) {
+                return;
+            }
+            nodes[i].start();
+        }
+        for (int i = 1; i < numNodes; ++i) {
+            nodes[i].bootstrap(new InetSocketAddress(lo, basePort));
+        }
+        nodes[0].bootstrap(new InetSocketAddress(lo, basePort + 1));
+        Thread.sleep(3000);
+        printTables("after join", nodes, null);
+
+        // (ii) kill some nodes, never node 0 or the ones we use below
+        int[] announcers = new int[numSearches];
+        int[] finders = new int[numSearches];
+        boolean[] dead = new boolean[numNodes];
+        for (int s = 0; s < numSearches; ++s) {
+            announcers[s] = random.nextInt(numNodes);
+            do {
+                finders[s] = random.nextInt(numNodes);
+            } while (finders[s] == announcers[s]);
+        }
+        int numDead = (int) (numNodes * killPct / 100);
+        for (int killed = 0; killed < numDead; ) {
+            int i = 1 + random.nextInt(numNodes - 1);
+            if (!dead[i] && !contains(announcers, i) && !contains(finders, i)) {
+                dead[i] = true;
+                nodes[i].stopThread();
+                ++killed;
+            }
+        }
+
+        // (iii) announce, then look each hash up from another node
+        byte[][] hashes = new byte[numSearches][20];
+        for (int s = 0; s < numSearches; ++s) {
+            random.nextBytes(hashes[s]);
+            nodes[announcers[s]].search(hashes[s], peerPort(announcers[s]),
+                                        peer -> { });
+        }
+        Thread.sleep(numDead > 0 ? 8000 : 2000);
+        final AtomicLongArray foundAt = new AtomicLongArray(numSearches);
+        final long start = System.currentTimeMillis();
+        for (int s = 0; s < numSearches; ++s) {
+            final int search = s;
+            final int want = peerPort(announcers[s]);
+            nodes[finders[s]].search(hashes[s], -1, peer -> {
+                if (peer.getPort() == want) {
+                    foundAt.compareAndSet(search, 0, Math.max(1,
+                            System.currentTimeMillis() - start));
+                }
+            });
+        }
+        long deadline = start + 1000L * timeoutSec;
+        while (System.currentTimeMillis() < deadline
+               && countFound(foundAt) < numSearches) {
+            Thread.sleep(50);
+        }
+
+        // (iv) report
+        printTables("at end", nodes, dead);
+        long[] times = new long[numSearches];
+        int found = 0;
+        for (int s = 0; s < numSearches; ++s) {
+            if (foundAt.get(s) > 0) {
+                times[found++] = foundAt.get(s);
+            }
+        }
+        Arrays.sort(times, 0, found);
+        System.out.println(String.format(
+                "%d nodes (%d killed), %d/%d lookups found the peer", numNodes,
+                numDead, found, numSearches));
+        if (found > 0) {
+            System.out.println(String.format(
+                    "lookup ms: p50 %d  p90 %d  max %d", times[found / 2],
+                    times[Math.min(found - 1, found * 9 / 10)],
+                    times[found - 1]));
+        }
+        System.exit(found == numSearches ? 0 : 1);
+    }
+
+    private static int peerPort(int node) {
+        return 30000 + node;
+    }
+
+    private static boolean contains(int[] a, int v) {
+        for (int x : a) {
+            if (x == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countFound(AtomicLongArray foundAt) {
+        int n = 0;
+        for (int i = 0; i < foundAt.length(); ++i) {
+            if (foundAt.get(i) > 0) {
+                ++n;
+            }
+        }
+        return n;
+    }
+
+    private static void printTables(String when, BitDHT[] nodes,
+                                    boolean[] dead) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (int i = 0; i < nodes.length; ++i) {
+            if (dead == null || !dead[i]) {
+                sizes.add(nodes[i].getNumNodes());
+            }
+        }
+        sizes.sort(null);
+        long sum = 0;
+        for (int n : sizes) {
+            sum += n;
+        }
+        System.out.println(String.format(
+                "routing tables %s: min %d  avg %.1f  max %d", when,
+                sizes.get(0), (double) sum / sizes.size(),
+                sizes.get(sizes.size() - 1)));
+    }
+}
@@ -0,0 +1,538 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import util.bencode.*;
+import util.lib.BitLibrary;
+
+/* BitSwarm:  loopback swarm simulator for end-to-end throughput tests */
+/* Starts one seeder and N leechers as local BitClient processes, each */
+/* connection passing through an in-process proxy that emulates latency, */
+/* bandwidth and loss for that link.  Reports throughput, the completion */
+/* time distribution, and CPU time and allocation of every node. */
+/* */
+/* Build as for BitBench, then from any scratch directory: */
+/*   java -cp <bench-out> BitSwarm [-n leechers] [-s sizeKB] [-k pieceKB] */
+/*        [-l latencyMs] [-b bandwidthKBps] [-d lossPct] [-c churnSec] */
+/*        [-t timeoutSec] [-L from:to:latencyMs:bandwidthKBps:lossPct]* */
+/*        [-a "extra BitClient flags"] */
+/* Node 0 is the seeder, nodes 1..N are leechers. */
+public class BitSwarm {
+    private static final String TORRENT_NAME = "swarm.torrent";
+    private static final String PAYLOAD_NAME = "swarm.bin";
+    private static final int BASE_PORT = 17000;      // node i listens on +i
+    private static final int PROXY_BASE_PORT = 18000;
+    private static final int CHUNK_SIZE = 16384;     // proxy forwarding unit
+    private static final Pattern GC_LINE
+            = Pattern.compile("(\\d+)([KMG])->(\\d+)([KMG])\\(");
+
+    private static int numLeechers = 3;
+    private static int sizeKB = 8192;
+    private static int pieceKB = 256;
+    private static int timeoutSec = 120;
+    private static int churnSec = 0;                 // 0 disables churn
+    private static String extraArgs = "";
+    private static Link defaultLink = new Link(0, 0, 0.0);
+    private static Map<String, Link> linkOverrides = new HashMap<String, Link>();
+
+    private static Path workDir;
+    private static byte[] payload;
+    private static Node[] nodes;
+    private static long swarmStart;
+
+    /* Link:  emulated properties of the path between two nodes */
+    static class Link {
+        final int latencyMs;       // one-way delay
+        final int bandwidthKBps;   // 0 for unlimited
+        final double lossPct;      // chance a chunk needs a retransmission
+
+        Link(int latencyMs, int bandwidthKBps, double lossPct) {
+            this.latencyMs = latencyMs;
+            this.bandwidthKBps = bandwidthKBps;
+            this.lossPct = lossPct;
+        }
+    }
+
+    /* Node:  one BitClient process */
+    static class Node {
+        final int id;
+        Process process = null;
+        long startTime = 0;
+        volatile long completeTime = 0;  // 0 until DOWNLOAD COMPLETE
+        volatile long firstPieceTime = 0; // 0 until the first NOW HAVE PIECE
+        int restarts = 0;
+        long cpuNanos = 0;               // accumulated over restarts
+
+        Node(int id) {
+            this.id = id;
+        }
+
+        boolean isSeeder() {
+            return id == 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (parseArgs(args) == -1) {
+            return;
+        }
+        workDir = Files.createTempDirectory("bitswarm");
+        setupFiles();
+        System.out.println("swarm: 1 seeder, " + numLeechers + " leechers, "
+                           + sizeKB + " KB payload in " + workDir);
+
+        nodes = new Node[numLeechers + 1];
+        for (int i = 0; i < nodes.length; ++i) {
+            nodes[i] = new Node(i);
+        }
+        // one proxy per ordered pair: i connects to j through proxy (i, j)
+        for (int i = 0; i < nodes.length; ++i) {
+            for (int j = 0; j < nodes.length; ++j) {
+                if (i != j) {
+                    startProxy(i, j);
+                }
+            }
+        }
+
+        swarmStart = System.currentTimeMillis();
+        startNode(nodes[0]);
+        Thread.sleep(1000);    // seeder must be listening first
+        for (int i = 1; i < nodes.length; ++i) {
+            startNode(nodes[i]);
+        }
+
+        Random random = new Random(7);
+        long deadline = swarmStart + timeoutSec * 1000L;
+        long nextChurn = churnSec > 0 ? swarmStart + churnSec * 1000L
+                                      : Long.MAX_VALUE;
+        while (!allComplete() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            if (System.currentTimeMillis() >= nextChurn) {
+                churn(random);
+                nextChurn += churnSec * 1000L;
+            }
+        }
+        long elapsed = System.currentTimeMillis() - swarmStart;
+
+        for (Node n : nodes) {
+            stopNode(n);
+        }
+        report(elapsed);
+        System.exit(0);
+    }
+
+    /* parseArgs:  flag/value pairs like BitClient; return -1 on failure */
+    private static int parseArgs(String[] args) {
+        try {
+            for (int i = 0; i < args.length - 1; i += 2) {
+                String v = args[i+1];
+                if (args[i].equals("-n")) {
+                    numLeechers = Integer.parseInt(v);
+                } else if (args[i].equals("-s")) {
+                    sizeKB = Integer.parseInt(v);
+                } else if (args[i].equals("-k")) {
+                    pieceKB = Integer.parseInt(v);
+                } else if (args[i].equals("-t")) {
+                    timeoutSec = Integer.parseInt(v);
+                } else if (args[i].equals("-c")) {
+                    churnSec = Integer.parseInt(v);
+                } else if (args[i].equals("-a")) {
+                    extraArgs = v;
+                } else if (args[i].equals("-l")) {
+                    defaultLink = new Link(Integer.parseInt(v),
+                            defaultLink.bandwidthKBps, defaultLink.lossPct);
+                } else if (args[i].equals("-b")) {
+                    defaultLink = new Link(defaultLink.latencyMs,
+                            Integer.parseInt(v), defaultLink.lossPct);
+                } else if (args[i].equals("-d")) {
+                    defaultLink = new Link(defaultLink.latencyMs,
+                            defaultLink.bandwidthKBps, Double.parseDouble(v));
+                } else if (args[i].equals("-L")) {
+                    String[] f = v.split(":");
+                    linkOverrides.put(f[0] + ":" + f[1],
+                            new Link(Integer.parseInt(f[2]),
+                                     Integer.parseInt(f[3]),
+                                     Double.parseDouble(f[4])));
+                } else {
+                    System.err.println("error: unknown flag " + args[i]);
+                    return -1;
+                }
+            }
+        } catch (NumberFormatException|ArrayIndexOutOfBoundsException ex) {
+            System.err.println("error: invalid argument " + ex.getMessage());
+            return -1;
+        }
+        return 0;
+    }
+
+    /* setupFiles:  random payload, matching .torrent, BitClient dir layout */
+    private static void setupFiles() throws IOException {
+        Files.createDirectories(workDir.resolve("test/torrents"));
+        Files.createDirectories(workDir.resolve("test/uploads"));
+        Files.createDirectories(workDir.resolve("test/downloads"));
+
+        payload = new byte[sizeKB * 1024];
+        new Random(42).nextBytes(payload);
+        Files.write(workDir.resolve("test/uploads/" + PAYLOAD_NAME), payload);
+
+        int pieceLength = pieceKB * 1024;
+        StringBuilder sha = new StringBuilder();
+        for (int off = 0; off < payload.length; off += pieceLength) {
+            int len = Math.min(pieceLength, payload.length - off);
+            byte[] h = BitLibrary.getSHA1(payload, off, len);
+            sha.append(new String(h, StandardCharsets.ISO_8859_1));
+        }
+        BDict info = new BDict();
+        info.put("length", new BNumber(payload.length));
+        info.put("name", new BString(PAYLOAD_NAME));
+        info.put("piece length", new BNumber(pieceLength));
+        info.put("pieces", new BString(sha.toString()));
+        BDict meta = new BDict();
+        meta.put("announce", new BString("http://127.0.0.1:6969/announce"));
+        meta.put("info", info);
+        Files.write(workDir.resolve("test/torrents/" + TORRENT_NAME),
+                    meta.encode().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /* startNode:  launch a BitClient process; peers are the other nodes */
+    private static void startNode(Node n) throws IOException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(ProcessHandle.current().info().command().orElse("java"));
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add("-Xlog:gc:file=gc-" + n.id + "-" + n.restarts + ".log");
+        cmd.add("BitClient");
+        cmd.add("-w");
+        cmd.add(String.valueOf(BASE_PORT + n.id));
+        cmd.add("-m");
+        cmd.add("1000");    // sample the per-message log lines
+        for (Node other : nodes) {
+            if (other != n && other.process != null
+                && other.process.isAlive()) {
+                cmd.add("-p");
+                cmd.add("127.0.0.1:" + proxyPort(n.id, other.id));
+            }
+        }
+        if (n.isSeeder()) {
+            cmd.add("-x");
+            cmd.add("seed");
+        } else {
+            cmd.add("-s");
+            cmd.add("./test/downloads/node" + n.id + ".bin");
+        }
+        if (!extraArgs.isEmpty()) {
+            cmd.addAll(Arrays.asList(extraArgs.trim().split("\\s+")));
+        }
+        cmd.add(TORRENT_NAME);
+
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.directory(workDir.toFile());
+        pb.redirectErrorStream(true);
+        n.startTime = System.currentTimeMillis();
+        n.completeTime = 0;
+        n.firstPieceTime = 0;
+        n.process = pb.start();
+        final Node node = n;
+        final Process proc = n.process;
+        final Path logFile = workDir.resolve("node" + n.id + ".log");
+        Thread t = new Thread(() -> watchOutput(node, proc, logFile));
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /* watchOutput:  copy node output to its log and spot completion */
+    private static void watchOutput(Node n, Process proc, Path logFile) {
+        try (BufferedReader in = new BufferedReader(
+                 new InputStreamReader(proc.getInputStream()));
+             PrintWriter log = new PrintWriter(Files.newBufferedWriter(logFile,
+                 java.nio.file.StandardOpenOption.CREATE,
+                 java.nio.file.StandardOpenOption.APPEND))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                log.println(line);
+                if (n.firstPieceTime == 0 && line.contains("NOW HAVE PIECE")) {
+                    n.firstPieceTime = System.currentTimeMillis();
+                }
+                if (n.completeTime == 0 && line.contains("DOWNLOAD COMPLETE")) {
+                    n.completeTime = System.currentTimeMillis();
+                }
+            }
+        } catch (IOException ex) {
+            // process was killed
+        }
+    }
+
+    private static void stopNode(Node n) throws InterruptedException {
+        if (n.process == null) {
+            return;
+        }
+        n.cpuNanos += n.process.info().totalCpuDuration()
+                              .orElse(Duration.ZERO).toNanos();
+        n.process.destroy();
+        n.process.waitFor(5, TimeUnit.SECONDS);
+        n.process.destroyForcibly();
+    }
+
+    /* churn:  kill a random unfinished leecher and start it over */
+    private static void churn(Random random) throws Exception {
+        List<Node> candidates = new ArrayList<Node>();
+        for (int i = 1; i < nodes.length; ++i) {
+            if (nodes[i].completeTime == 0) {
+                candidates.add(nodes[i]);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        Node n = candidates.get(random.nextInt(candidates.size()));
+        System.out.println("churn: restarting node " + n.id);
+        stopNode(n);
+        n.process = null;
+        ++n.restarts;
+        startNode(n);
+    }
+
+    private static boolean allComplete() {
+        for (int i = 1; i < nodes.length; ++i) {
+            if (nodes[i].completeTime == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int proxyPort(int from, int to) {
+        return PROXY_BASE_PORT + from * nodes.length + to;
+    }
+
+    private static Link getLink(int from, int to) {
+        Link l = linkOverrides.get(from + ":" + to);
+        return l != null ? l : defaultLink;
+    }
+
+    /* startProxy:  accept on proxyPort(from, to), forward to node to */
+    private static void startProxy(final int from, final int to)
+            throws IOException {
+        final ServerSocket server = new ServerSocket(proxyPort(from, to), 50,
+                                        InetAddress.getLoopbackAddress());
+        final Link link = getLink(from, to);
+        final Link back = getLink(to, from);
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket a = server.accept();
+                    Socket b = new Socket(InetAddress.getLoopbackAddress(),
+                                          BASE_PORT + to);
+                    a.setTcpNoDelay(true);
+                    b.setTcpNoDelay(true);
+                    pump(a, b, link);
+                    pump(b, a, back);
+                } catch (IOException ex) {
+                    // target not up yet; the client sees a dropped connection
+                }
+            }
+        }, "proxy-" + from + "-" + to);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /* pump:  forward src to dst through an emulated link */
+    /* a reader thread timestamps chunks into a delay line, and a writer */
+    /* thread releases each one after the latency, paced to the bandwidth; a */
+    /* lost chunk is held for a retransmission timeout, blocking the stream */
+    /* behind it as TCP would */
+    private static void pump(final Socket src, final Socket dst,
+                             final Link link) {
+        final LinkedBlockingQueue<Object[]> line
+                = new LinkedBlockingQueue<Object[]>();
+        final Object[] eof = new Object[0];
+        Thread reader = new Thread(() -> {
+            byte[] buf = new byte[CHUNK_SIZE];
+            try {
+                InputStream in = src.getInputStream();
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    line.put(new Object[] {System.nanoTime(),
+                                           Arrays.copyOf(buf, n)});
+                }
+            } catch (IOException|InterruptedException ex) {
+            }
+            line.add(eof);
+        });
+        Thread writer = new Thread(() -> {
+            Random random = new Random();
+            long rtoNanos = TimeUnit.MILLISECONDS.toNanos(
+                                Math.max(200, 3 * link.latencyMs));
+            long nextSend = 0;    // bandwidth pacing
+            try {
+                OutputStream out = dst.getOutputStream();
+                while (true) {
+                    Object[] chunk = line.take();
+                    if (chunk == eof) {
+                        break;
+                    }
+                    byte[] data = (byte[]) chunk[1];
+                    long due = (Long) chunk[0]
+                               + TimeUnit.MILLISECONDS.toNanos(link.latencyMs);
+                    if (random.nextDouble() * 100 < link.lossPct) {
+                        due += rtoNanos;
+                    }
+                    due = Math.max(due, nextSend);
+                    sleepUntil(due);
+                    out.write(data);
+                    out.flush();
+                    if (link.bandwidthKBps > 0) {
+                        nextSend = Math.max(due, System.nanoTime())
+                                   + data.length * 1000000L / link.bandwidthKBps
+                                   * 1000 / 1024;
+                    }
+                }
+            } catch (IOException|InterruptedException ex) {
+            }
+            try {
+                src.close();
+                dst.close();
+            } catch (IOException ex) {
+            }
+        });
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException {
+        long wait = nanoTime - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /* report:  throughput, completion distribution, CPU and allocation */
+    private static void report(long elapsedMs) throws IOException {
+        List<Long> times = new ArrayList<Long>();
+        List<Long> firsts = new ArrayList<Long>();
+        int verified = 0;
+        System.out.println();
+        System.out.println(String.format("%-6s %10s %10s %10s %9s %12s %8s",
+                           "node", "first", "complete", "MB/s", "cpu ms",
+                           "alloc MB", "restarts"));
+        for (Node n : nodes) {
+            String first = "-";
+            String complete = "-";
+            String rate = "-";
+            if (!n.isSeeder() && n.firstPieceTime > 0) {
+                firsts.add(n.firstPieceTime - n.startTime);
+                first = (n.firstPieceTime - n.startTime) + "ms";
+            }
+            if (!n.isSeeder() && n.completeTime > 0) {
+                long t = n.completeTime - n.startTime;
+                times.add(t);
+                complete = t + "ms";
+                rate = String.format("%.2f", payload.length / 1048576.0
+                                              / (t / 1000.0));
+                Path f = workDir.resolve("test/downloads/node" + n.id + ".bin");
+                if (Arrays.equals(Files.readAllBytes(f), payload)) {
+                    ++verified;
+                } else {
+                    complete += "!";    // finished but corrupt
+                }
+            } else if (n.isSeeder()) {
+                complete = "seed";
+            }
+            System.out.println(String.format("%-6d %10s %10s %10s %9d %12d %8d",
+                               n.id, first, complete, rate, n.cpuNanos / 1000000,
+                               allocatedMB(n), n.restarts));
+        }
+
+        System.out.println();
+        System.out.println("completed " + times.size() + "/" + numLeechers
+                           + ", verified " + verified + ", wall " + elapsedMs
+                           + "ms");
+        if (!firsts.isEmpty()) {
+            long[] t = new long[firsts.size()];
+            for (int i = 0; i < t.length; ++i) {
+                t[i] = firsts.get(i);
+            }
+            Arrays.sort(t);
+            System.out.println(String.format(
+                "first piece ms: min %d  p50 %d  p90 %d  max %d",
+                t[0], percentile(t, 50), percentile(t, 90), t[t.length - 1]));
+        }
+        if (!times.isEmpty()) {
+            long[] t = new long[times.size()];
+            for (int i = 0; i < t.length; ++i) {
+                t[i] = times.get(i);
+            }
+            Arrays.sort(t);
+            System.out.println(String.format(
+                "completion ms: min %d  p50 %d  p90 %d  max %d",
+                t[0], percentile(t, 50), percentile(t, 90), t[t.length - 1]));
+            double total = (double) payload.length * times.size() / 1048576.0;
+            System.out.println(String.format(
+                "aggregate download throughput: %.2f MB/s",
+                total / (elapsedMs / 1000.0)));
+        }
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, idx)];
+    }
+
+    /* allocatedMB:  allocation inferred from the GC logs of a node, i.e. */
+    /* heap growth between collections; a lower bound (at MB granularity) */
+    private static long allocatedMB(Node n) {
+        long total = 0;
+        for (int r = 0; r <= n.restarts; ++r) {
+            Path log = workDir.resolve("gc-" + n.id + "-" + r + ".log");
+            if (!Files.isRegularFile(log)) {
+                continue;
+            }
+            try {
+                long after = 0;
+                for (String line : Files.readAllLines(log)) {
+                    Matcher m = GC_LINE.matcher(line);
+                    if (m.find()) {
+                        long before = toMB(m.group(1), m.group(2));
+                        total += Math.max(0, before - after);
+                        after = toMB(m.group(3), m.group(4));
+                    }
+                }
+            } catch (IOException ex) {
+            }
+        }
+        return total;
+    }
+
+    private static long toMB(String num, String unit) {
+        long v = Long.parseLong(num);
+        if (unit.equals("K")) {
+            return v / 1024;
+        } else if (unit.equals("G")) {
+            return v * 1024;
+        }
+        return v;
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpServer;
+
+/* BitTrackerSim:  BitTracker (HTTP announces) against local trackers */
+/* Announces to the embedded BitTrackerServer, which answers with compact */
+/* peer lists (and a failure reason for an unknown path), and to a small */
+/* stand-in HTTP tracker with canned replies: non-compact peer dicts with */
+/* bad ports among them, peers6, out-of-range intervals and an HTTP error. */
+/* Then runs the announce loop with its waits recorded instead of slept, */
+/* to check the interval it honours and the backoff after failures. */
+/* Prints one line per check and exits non-zero if any fails. */
+/* */
+/* Build as for BitBench, then: */
+/*   java -cp <bench-out> BitTrackerSim [-p basePort] */
+public class BitTrackerSim {
+    private static final int DEFAULT_INTERVAL = 1800;   // BitTracker's
+    private static final int NUM_LEECHERS = 3;
+    private static int basePort = 19700;
+    private static int numFailed = 0;
+    private static final byte[] infoHash = new byte[20];
+    private static final byte[] peerID
+            = "-BS0001-simsimsimsim".getBytes(StandardCharsets.US_ASCII);
+
+    /* Probe:  a BitTracker that keeps the peers it is given, and records */
+    /* the announce loop's waits (in s) instead of sleeping */
+    static class Probe extends BitTracker {
+        final List<InetSocketAddress> peers
+                = new ArrayList<InetSocketAddress>();
+        final List<Long> waits = new ArrayList<Long>();
+        int maxWaits = 0;
+
+        Probe(String url) {
+            super(url, BitTrackerSim.infoHash, BitTrackerSim.peerID, 6881);
+        }
+
+        @Override
+        protected void addPeers(List<InetSocketAddress> found) {
+            peers.clear();
+            peers.addAll(found);
+        }
+
+        @Override
+        protected void sleepUntil(long time, boolean cutShort) {
+            waits.add(Math.round((time - System.currentTimeMillis()) / 1000.0));
+            if (waits.size() >= maxWaits) {
+                isStopped = true;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-p")) {
+                basePort = Integer.parseInt(args[i+1]);
+            } else {
+                System.err.println("usage: java BitTrackerSim [-p basePort]");
+                return;
+            }
+        }
+        Arrays.fill(infoHash, (byte) 7);
+        try {
+            runChecks();
+        } catch (Exception ex) {
+            // e.g. a reply that escapes announce(): that kills the thread
+            ex.printStackTrace();
+            check("no exception escapes the tracker", false);
+        }
+        System.out.println(numFailed == 0 ? "all checks passed"
+                                          : numFailed + " check(s) FAILED");
+        System.exit(numFailed == 0 ? 0 : 1);    // the HTTP server's too
+    }
+
+    private static void runChecks() throws Exception {
+        String server = "http://127.0.0.1:" + basePort;
+        String standIn = "http://127.0.0.1:" + (basePort + 1);
+
+        // (i) embedded tracker: compact peers, interval, failure reason
+        BitTrackerServer tracker = new BitTrackerServer(basePort);
+        if (tracker.bind() == -1) {
+            System.exit(1);
+        }
+        tracker.start();
+        for (int i = 0; i < NUM_LEECHERS; ++i) {
+            leech(server + "/announce", 7001 + i);
+        }
+        Probe p = new Probe(server + "/announce");
+        check("compact: announce succeeds", p.announce("started") == 0);
+        check("compact: " + NUM_LEECHERS + " leechers returned, got "
+              + p.peers.size(), p.peers.size() == NUM_LEECHERS
+              && p.peers.contains(new InetSocketAddress("127.0.0.1", 7001)));
+        check("compact: interval 300, got " + p.interval, p.interval == 300);
+        p = new Probe(server + "/nonsense");
+        check("failure reason: announce fails", p.announce(null) == -1);
+        check("failure reason: no peers", p.peers.isEmpty());
+
+        // (ii) stand-in tracker with canned replies
+        HttpServer http = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), basePort + 1), 0);
+        serve(http, "/dict", 200, "d8:intervali900e12:min intervali1200e"
+              + "5:peersl"
+              + "d2:ip9:127.0.0.24:porti6881ee"       // the good one
+              + "d2:ip9:127.0.0.34:porti-1ee"
+              + "d2:ip9:127.0.0.44:porti70000ee"
+              + "d2:ip9:127.0.0.54:porti0ee"
+              + "d2:ipi7e4:porti6882ee"
+              + "i5e"
+              + "ee");
+        serve(http, "/peers6", 200, "d8:intervali60e5:peers6:"
+              + compact(new byte[] {127, 0, 0, 6}, 6881) + "6:peers618:"
+              + compact(InetAddress.getByName("::1").getAddress(), 6882)
+              + "e");
+        serve(http, "/interval", 200, "d8:intervali4294967296e"
+              + "12:min intervali-5e5:peers0:e");
+        serve(http, "/error", 500, "");
+        http.start();
+
+        p = new Probe(standIn + "/dict");
+        check("dict: announce succeeds", p.announce(null) == 0);
+        check("dict: bad ports and entries skipped, got " + p.peers,
+              p.peers.equals(Arrays.asList(
+                  new InetSocketAddress("127.0.0.2", 6881))));
+        check("dict: min interval 1200 raises interval 900, got "
+              + p.interval, p.interval == 1200);
+        p = new Probe(standIn + "/peers6");
+        check("peers6: announce succeeds", p.announce(null) == 0);
+        check("peers6: one IPv4 and one IPv6 peer, got " + p.peers,
+              p.peers.size() == 2
+              && p.peers.get(1).getAddress() instanceof Inet6Address
+              && p.peers.get(1).getPort() == 6882);
+        p = new Probe(standIn + "/interval");
+        check("bad intervals: announce succeeds", p.announce(null) == 0);
+        check("bad intervals: ignored, got " + p.interval,
+              p.interval == DEFAULT_INTERVAL);
+        p = new Probe(standIn + "/error");
+        check("HTTP 500: announce fails", p.announce(null) == -1);
+
+        // (iii) the announce loop: interval between successes, doubling
+        // backoff from 15 s after failures
+        p = new Probe(standIn + "/dict");
+        p.maxWaits = 3;
+        p.run();
+        check("loop: waits the interval, got " + p.waits,
+              p.waits.equals(Arrays.asList(1200L, 1200L, 1200L)));
+        p = new Probe(standIn + "/error");
+        p.maxWaits = 5;
+        p.run();
+        check("loop: backs off 15 * 2^n after failures, got " + p.waits,
+              p.waits.equals(Arrays.asList(15L, 30L, 60L, 120L, 240L)));
+
+        http.stop(0);
+        tracker.stopThread();
+    }
+
+    private static void check(String what, boolean ok) {
+        System.out.println((ok ? "ok    " : "FAIL  ") + what);
+        if (!ok) {
+            ++numFailed;
+        }
+    }
+
+    /* leech:  announce a leecher on PORT with a plain HTTP request */
+    private static void leech(String url, int port) throws Exception {
+        byte[] id = Arrays.copyOf(peerID, 20);
+        id[19] = (byte) port;
+        URL u = new URL(url + "?info_hash=" + BitTracker.urlEncode(infoHash)
+                        + "&peer_id=" + BitTracker.urlEncode(id)
+                        + "&port=" + port + "&left=1000&compact=1"
+                        + "&event=started");
+        try (InputStream in = u.openStream()) {
+            while (in.read() != -1) {
+            }
+        }
+    }
+
+    /* serve:  answer PATH with STATUS and BODY (bytes 0-255 as chars) */
+    private static void serve(HttpServer http, String path, int status,
+                              String body) {
+        final byte[] data = body.getBytes(StandardCharsets.ISO_8859_1);
+        http.createContext(path, ex -> {
+            ex.sendResponseHeaders(status, data.length == 0 ? -1
+                                                            : data.length);
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(data);
+            }
+        });
+    }
+
+    /* compact:  address bytes and a 2-byte port, as a bencode string body */
+    private static String compact(byte[] addr, int port) {
+        ByteBuffer buf = ByteBuffer.allocate(addr.length + 2);
+        buf.put(addr).putShort((short) port);
+        return new String(buf.array(), StandardCharsets.ISO_8859_1);
+    }
+}
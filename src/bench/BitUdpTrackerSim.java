@@ -0,0 +1,259 @@
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/* BitUdpTrackerSim:  BitUdpTracker (BEP 15) against the embedded tracker */
+/* Announces and scrapes to BitTrackerServer's UDP side through a relay */
+/* that logs each client packet (time, action, size) and can drop the */
+/* next few, and checks: connect then announce, the cached connection */
+/* id, the peers and interval returned, scrapes batched 74 hashes to a */
+/* packet, and the retransmit schedule base * 2^n (base cut from 15 s to */
+/* 100 ms so the run is quick).  Prints one line per check and exits */
+/* non-zero if any fails. */
+/* */
+/* Build as for BitBench, then: */
+/*   java -cp <bench-out> BitUdpTrackerSim [-p basePort] */
+public class BitUdpTrackerSim {
+    private static final int NUM_LEECHERS = 3;
+    private static final int NUM_SCRAPE = 150;           // 74 + 74 + 2
+    private static final long BASE = 100;                // ms, first timeout
+    private static final long SLACK = 80;                // ms, timing noise
+    private static final int ACTION_CONNECT = 0;
+    private static final int ACTION_ANNOUNCE = 1;
+    private static final int ACTION_SCRAPE = 2;
+    private static int basePort = 19800;
+    private static int numFailed = 0;
+    private static final byte[] infoHash = new byte[20];
+    private static final byte[] peerID
+            = "-BS0001-simsimsimsim".getBytes(StandardCharsets.US_ASCII);
+
+    /* Probe:  a BitUdpTracker that keeps the peers it is given */
+    static class Probe extends BitUdpTracker {
+        final List<InetSocketAddress> peers
+                = new ArrayList<InetSocketAddress>();
+
+        Probe(String url) {
+            super(url, BitUdpTrackerSim.infoHash, BitUdpTrackerSim.peerID,
+                  6881);
+        }
+
+        @Override
+        protected void addPeers(List<InetSocketAddress> found) {
+            peers.clear();
+            peers.addAll(found);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-p")) {
+                basePort = Integer.parseInt(args[i+1]);
+            } else {
+                System.err.println("usage: java BitUdpTrackerSim "
+                                   + "[-p basePort]");
+                return;
+            }
+        }
+        Arrays.fill(infoHash, (byte) 9);
+        try {
+            runChecks();
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            check("no exception escapes the tracker", false);
+        }
+        System.out.println(numFailed == 0 ? "all checks passed"
+                                          : numFailed + " check(s) FAILED");
+        System.exit(numFailed == 0 ? 0 : 1);
+    }
+
+    private static void runChecks() throws Exception {
+        BitTrackerServer tracker = new BitTrackerServer(basePort);
+        if (tracker.bind() == -1) {
+            throw new Exception("cannot bind tracker");
+        }
+        tracker.start();
+        for (int i = 0; i < NUM_LEECHERS; ++i) {
+            leech("http://127.0.0.1:" + basePort + "/announce", 7001 + i);
+        }
+        Relay relay = new Relay(basePort + 1, basePort);
+        relay.start();
+        String url = "udp://127.0.0.1:" + (basePort + 1) + "/announce";
+
+        // (i) connect, then announce
+        Probe p = new Probe(url);
+        check("announce succeeds", p.announce("started") == 0);
+        check("connect then announce, got " + relay.actions(),
+              relay.actions().equals(Arrays.asList(ACTION_CONNECT,
+                                                   ACTION_ANNOUNCE)));
+        check(NUM_LEECHERS + " leechers returned, got " + p.peers.size(),
+              p.peers.size() == NUM_LEECHERS
+              && p.peers.contains(new InetSocketAddress("127.0.0.1", 7001)));
+        check("interval 300, got " + p.interval, p.interval == 300);
+
+        // (ii) the connection id is reused within its minute
+        relay.clear();
+        check("second announce succeeds", p.announce(null) == 0);
+        check("no new connect, got " + relay.actions(),
+              relay.actions().equals(Arrays.asList(ACTION_ANNOUNCE)));
+
+        // (iii) scrape: batches of at most 74 hashes
+        List<byte[]> hashes = new ArrayList<byte[]>();
+        hashes.add(infoHash);
+        Random random = new Random(42);
+        while (hashes.size() < NUM_SCRAPE) {
+            byte[] h = new byte[20];
+            random.nextBytes(h);
+            hashes.add(h);
+        }
+        relay.clear();
+        int[][] counts = BitUdpTracker.scrape(url, hashes);
+        check("scrape batches 74 + 74 + 2, got " + relay.hashCounts(),
+              relay.hashCounts().equals(Arrays.asList(74, 74, 2)));
+        check("scrape: 1 seeder and " + NUM_LEECHERS + " leechers, got "
+              + Arrays.toString(counts[0]),
+              counts[0][0] == 1 && counts[0][2] == NUM_LEECHERS);
+        check("scrape: unknown hashes empty, got "
+              + Arrays.toString(counts[NUM_SCRAPE - 1]),
+              counts[NUM_SCRAPE - 1][0] == 0
+              && counts[NUM_SCRAPE - 1][2] == 0);
+
+        // (iv) retransmits after base * 2^n
+        BitUdpTracker.setRetransmitBase(BASE);
+        relay.clear();
+        relay.dropNext(3);
+        check("announce succeeds after 3 losses", p.announce(null) == 0);
+        List<Long> gaps = relay.gaps();
+        boolean onTime = gaps.size() == 3;
+        for (int n = 0; onTime && n < 3; ++n) {
+            onTime = gaps.get(n) >= (BASE << n) - 5
+                     && gaps.get(n) <= (BASE << n) + SLACK;
+        }
+        check("retransmits after 100, 200, 400 ms, got " + gaps, onTime);
+
+        relay.stopRelay();
+        tracker.stopThread();
+    }
+
+    private static void check(String what, boolean ok) {
+        System.out.println((ok ? "ok    " : "FAIL  ") + what);
+        if (!ok) {
+            ++numFailed;
+        }
+    }
+
+    /* leech:  announce a leecher on PORT with a plain HTTP request */
+    private static void leech(String url, int port) throws Exception {
+        byte[] id = Arrays.copyOf(peerID, 20);
+        id[19] = (byte) port;
+        URL u = new URL(url + "?info_hash=" + BitTracker.urlEncode(infoHash)
+                        + "&peer_id=" + BitTracker.urlEncode(id)
+                        + "&port=" + port + "&left=1000&compact=1"
+                        + "&event=started");
+        try (InputStream in = u.openStream()) {
+            while (in.read() != -1) {
+            }
+        }
+    }
+
+    /* Relay:  forwards client datagrams to the tracker and its replies */
+    /* back, logging each client packet and dropping the next few on */
+    /* request */
+    static class Relay extends Thread {
+        private final DatagramSocket socket;
+        private final InetSocketAddress server;
+        private SocketAddress client = null;
+        private final List<long[]> log = new ArrayList<long[]>(); // t, act, len
+        private int toDrop = 0;
+
+        Relay(int port, int serverPort) throws Exception {
+            setDaemon(true);
+            InetAddress lo = InetAddress.getByName("127.0.0.1");
+            socket = new DatagramSocket(port, lo);
+            server = new InetSocketAddress(lo, serverPort);
+        }
+
+        public void run() {
+            byte[] buf = new byte[4096];
+            DatagramPacket p = new DatagramPacket(buf, buf.length);
+            try {
+                while (true) {
+                    p.setLength(buf.length);
+                    socket.receive(p);
+                    byte[] data = Arrays.copyOf(buf, p.getLength());
+                    if (p.getSocketAddress().equals(server)) {
+                        if (client != null) {
+                            socket.send(new DatagramPacket(data, data.length,
+                                                           client));
+                        }
+                        continue;
+                    }
+                    client = p.getSocketAddress();
+                    synchronized (this) {
+                        log.add(new long[] {System.currentTimeMillis(),
+                                data.length >= 12
+                                ? ByteBuffer.wrap(data).getInt(8) : -1,
+                                data.length});
+                        if (toDrop > 0) {
+                            --toDrop;
+                            continue;
+                        }
+                    }
+                    socket.send(new DatagramPacket(data, data.length, server));
+                }
+            } catch (Exception ex) {
+                // closed
+            }
+        }
+
+        void stopRelay() {
+            socket.close();
+        }
+
+        synchronized void clear() {
+            log.clear();
+        }
+
+        synchronized void dropNext(int n) {
+            toDrop = n;
+        }
+
+        /* actions:  the action of each client packet since clear() */
+        synchronized List<Integer> actions() {
+            List<Integer> out = new ArrayList<Integer>();
+            for (long[] e : log) {
+                out.add((int) e[1]);
+            }
+            return out;
+        }
+
+        /* hashCounts:  info hashes in each scrape packet since clear() */
+        synchronized List<Integer> hashCounts() {
+            List<Integer> out = new ArrayList<Integer>();
+            for (long[] e : log) {
+                if (e[1] == ACTION_SCRAPE) {
+                    out.add((int) (e[2] - 16) / 20);
+                }
+            }
+            return out;
+        }
+
+        /* gaps:  ms between consecutive client packets since clear() */
+        synchronized List<Long> gaps() {
+            List<Long> out = new ArrayList<Long>();
+            for (int i = 1; i < log.size(); ++i) {
+                out.add(log.get(i)[0] - log.get(i - 1)[0]);
+            }
+            return out;
+        }
+    }
+}
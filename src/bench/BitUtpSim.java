@@ -0,0 +1,286 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* BitUtpSim:  one uTP transfer on loopback through an emulated link */
+/* Two BitUtpSocket endpoints talk through an in-process UDP relay that */
+/* adds one-way latency, loss, reordering (reorderPct of packets held */
+/* back one extra latency, so later ones overtake them), and a bandwidth */
+/* bottleneck with a tail-drop queue of queueMs.  Sends sizeKB of random */
+/* data one way, checks it arrived intact, and reports throughput, */
+/* retransmissions, the sender's LEDBAT state, and the queueing delay the */
+/* transfer built up at the bottleneck (LEDBAT should hold it near its */
+/* 100 ms target rather than filling the queue).  The sender's bytes in */
+/* flight are sampled throughout and must never go negative. */
+/* */
+/* Build as for BitBench, then: */
+/*   java -cp <bench-out> BitUtpSim [-s sizeKB] [-l latencyMs] */
+/*        [-b bandwidthKBps] [-d lossPct] [-r reorderPct] [-q queueMs] */
+/*        [-t timeoutSec] [-p basePort] */
+public class BitUtpSim {
+    private static int sizeKB = 8192;
+    private static int latencyMs = 20;
+    private static int bandwidthKBps = 2048;
+    private static double lossPct = 0;
+    private static double reorderPct = 0;
+    private static int queueMs = 500;
+    private static int timeoutSec = 60;
+    private static int basePort = 19500;
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-s")) {
+                sizeKB = Integer.parseInt(args[i+1]);
+            } else if (args[i].equals("-l")) {
+                latencyMs = Integer.parseInt(args[i+1]);
+            } else if (args[i].equals("-b")) {
+                bandwidthKBps = Integer.parseInt(args[i+1]);
+            } else if (args[i].equals("-d")) {
+                lossPct = Double.parseDouble(args[i+1]);
+            } else if (args[i].equals("-r")) {
+                reorderPct = Double.parseDouble(args[i+1]);
+            } else if (args[i].equals("-q")) {
+                queueMs = Integer.parseInt(args[i+1]);
+            } else if (args[i].equals("-t")) {
+                timeoutSec = Integer.parseInt(args[i+1]);
+            } else if (args[i].equals("-p")) {
+                basePort = Integer.parseInt(args[i+1]);
+            } else {
+                System.err.println("usage: java BitUtpSim [-s sizeKB] "
+                                   + "[-l latencyMs] [-b bandwidthKBps] "
+                                   + "[-d lossPct] [-r reorderPct] "
+                                   + "[-q queueMs] "
+                                   + "[-t timeoutSec] [-p basePort]");
+                return;
+            }
+        }
+        InetAddress lo = InetAddress.getLoopbackAddress();
+
+        // (i) endpoints: A sends, B receives; A only knows the relay
+        BitUtpSocket a = new BitUtpSocket(basePort);
+        BitUtpSocket b = new BitUtpSocket(basePort + 1);
+        if (a.bind() == -1 || b.bind() == -1) {
+            return;
+        }
+        final AtomicReference<BitConnection> accepted
+                = new AtomicReference<BitConnection>();
+        b.setAcceptor(conn -> {
+            synchronized (accepted) {
+                accepted.set(conn);
+                accepted.notifyAll();
+            }
+        });
+        a.start();
+        b.start();
+        DatagramSocket facingA = new DatagramSocket(basePort + 2, lo);
+        DatagramSocket facingB = new DatagramSocket(basePort + 3, lo);
+        Link forward = new Link(facingA, facingB,
+                                new InetSocketAddress(lo, basePort + 1));
+        Link backward = new Link(facingB, facingA, null);
+        forward.reverse = backward;
+        forward.start();
+        backward.start();
+
+        // (ii) connect and transfer
+        byte[] payload = new byte[sizeKB * 1024];
+        new Random(42).nextBytes(payload);
+        BitUtpConnection sender = a.connect(
+                new InetSocketAddress(lo, basePort + 2), 5000);
+        BitConnection receiver;
+        synchronized (accepted) {
+            while (accepted.get() == null) {
+                accepted.wait();
+            }
+            receiver = accepted.get();
+        }
+        final byte[] received = new byte[payload.length];
+        final long[] doneAt = new long[1];
+        Thread reader = new Thread(() -> {
+            try {
+                InputStream in = receiver.getInputStream();
+                int n = 0;
+                while (n < received.length) {
+                    int k = in.read(received, n, received.length - n);
+                    if (k == -1) {
+                        break;
+                    }
+                    n += k;
+                }
+                doneAt[0] = System.currentTimeMillis();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        // bytes in flight, sampled while the transfer runs
+        final long[] minFlight = new long[] {0};
+        Thread sampler = new Thread(() -> {
+            while (true) {
+                long f = sender.getFlightBytes();
+                synchronized (minFlight) {
+                    minFlight[0] = Math.min(minFlight[0], f);
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+        long start = System.currentTimeMillis();
+        OutputStream out = sender.getOutputStream();
+        for (int off = 0; off < payload.length; off += 16384) {
+            out.write(payload, off, Math.min(16384, payload.length - off));
+        }
+        reader.join(1000L * timeoutSec);
+        sampler.interrupt();
+        sampler.join();
+
+        // (iii) report
+        boolean intact = doneAt[0] > 0 && Arrays.equals(payload, received);
+        boolean flightOk = minFlight[0] >= 0;
+        double secs = ((doneAt[0] > 0 ? doneAt[0] : System.currentTimeMillis())
+                       - start) / 1000.0;
+        System.out.println(String.format(
+                "link: %d ms one way, %d KB/s, %.1f%% loss, %.1f%% reordered, "
+                + "%d ms queue", latencyMs, bandwidthKBps, lossPct,
+                reorderPct, queueMs));
+        System.out.println(String.format(
+                "%d KB in %.2f s: %.2f MB/s, %s", sizeKB, secs,
+                payload.length / 1048576.0 / secs,
+                intact ? "intact" : "INCOMPLETE OR CORRUPT"));
+        System.out.println(String.format(
+                "sender: %d packets, %d retransmitted, cwnd %.0f B, "
+                + "srtt %.1f ms, our delay %.1f ms", sender.getPacketsSent(),
+                sender.getRetransmits(), sender.getCwnd(),
+                sender.getSrtt() / 1000.0, sender.getOurDelay() / 1000.0));
+        System.out.println(String.format(
+                "bottleneck queue: mean %.1f ms  max %.1f ms, %d dropped "
+                + "(queue full), %d lost", forward.queueSum / 1000.0
+                / Math.max(1, forward.forwarded), forward.queueMax / 1000.0,
+                forward.tailDrops, forward.lost));
+        System.out.println(String.format(
+                "sender bytes in flight: min %d%s", minFlight[0],
+                flightOk ? "" : "  NEGATIVE"));
+        System.exit(intact && flightOk ? 0 : 1);
+    }
+
+    /* Delivery:  a datagram waiting out the link's latency */
+    private static class Delivery implements Delayed {
+        final byte[] data;
+        final long due;           // nanoTime
+
+        Delivery(byte[] data, long due) {
+            this.data = data;
+            this.due = due;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed o) {
+            return Long.compare(due, ((Delivery) o).due);
+        }
+    }
+
+    /* Link:  one direction of the relay */
+    /* Packets received on "from" leave from "to" towards dst (for the */
+    /* backward link, wherever the forward link last heard from). */
+    private static class Link {
+        final DatagramSocket from;
+        final DatagramSocket to;
+        volatile SocketAddress dst;
+        Link reverse = null;
+        final DelayQueue<Delivery> queue = new DelayQueue<Delivery>();
+        final Random random = new Random(7);
+        long lastDeparture = 0;   // nanoTime the bottleneck frees up
+        volatile long forwarded = 0;
+        volatile long lost = 0;
+        volatile long tailDrops = 0;
+        volatile long queueSum = 0;   // us
+        volatile long queueMax = 0;
+
+        Link(DatagramSocket from, DatagramSocket to, SocketAddress dst) {
+            this.from = from;
+            this.to = to;
+            this.dst = dst;
+        }
+
+        void start() {
+            Thread in = new Thread(() -> {
+                byte[] buf = new byte[65536];
+                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                try {
+                    while (true) {
+                        p.setLength(buf.length);
+                        from.receive(p);
+                        if (reverse != null) {
+                            reverse.dst = p.getSocketAddress();
+                        }
+                        admit(Arrays.copyOf(buf, p.getLength()));
+                    }
+                } catch (Exception ex) {
+                }
+            });
+            Thread out = new Thread(() -> {
+                try {
+                    while (true) {
+                        Delivery d = queue.take();
+                        if (dst != null) {
+                            to.send(new DatagramPacket(d.data, d.data.length,
+                                                       dst));
+                        }
+                    }
+                } catch (Exception ex) {
+                }
+            });
+            in.setDaemon(true);
+            out.setDaemon(true);
+            in.start();
+            out.start();
+        }
+
+        /* admit:  loss, then the bottleneck queue, then latency (twice it */
+    /* for a reordered packet) */
+        private void admit(byte[] data) {
+            if (random.nextDouble() * 100 < lossPct) {
+                ++lost;
+                return;
+            }
+            long now = System.nanoTime();
+            long departure = now;
+            if (bandwidthKBps > 0) {
+                departure = Math.max(now, lastDeparture);
+                long waited = departure - now;
+                if (waited > queueMs * 1000000L) {
+                    ++tailDrops;
+                    return;
+                }
+                departure += data.length * 1000000000L / (bandwidthKBps * 1024L);
+                lastDeparture = departure;
+                queueSum += waited / 1000;
+                queueMax = Math.max(queueMax, waited / 1000);
+            }
+            ++forwarded;
+            long delay = latencyMs * 1000000L;
+            if (random.nextDouble() * 100 < reorderPct) {
+                delay *= 2;
+            }
+            queue.put(new Delivery(data, departure + delay));
+        }
+    }
+}
@@ -8,11 +8,20 @@ import util.bencode.BDict;
 import util.bencode.BNumber;
 import util.bencode.BString;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class BDecoder {
+    /* read:  parses raw bencoded bytes (a .torrent file, a tracker or DHT */
+    /* response) into BObjects.  Every byte maps to exactly one char, so */
+    /* binary strings such as SHA1 hashes and compact peer lists survive */
+    /* intact; use BString.getBytes() to get them back. */
+    public static BObject[] read(final byte[] data) {
+        return read(new String(data, StandardCharsets.ISO_8859_1));
+    }
+
     /* read:  parses an encoded string into Bobjects */
     public static BObject[] read(final String str) {
         AtomicInteger pos = new AtomicInteger(0);
@@ -4,18 +4,22 @@ import util.bencode.BObject;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.TreeMap;
 
 
 /* BDict:  BObject for Bencode dictionary */
 public class BDict extends HashMap<String, BObject> implements BObject {
 
     /* encode:  turn BDict into string representation */
+    /* keys are written in sorted order, as bencoding requires, so that */
+    /* re-encoding a decoded info dict reproduces its exact bytes */
     @Override
     public String encode() {
         final StringBuilder buf = new StringBuilder();
         buf.append('d');
 
-        for (final Map.Entry<String, BObject> elt : entrySet()) {
+        for (final Map.Entry<String, BObject> elt
+                 : new TreeMap<String, BObject>(this).entrySet()) {
             buf.append(elt.getKey().length() + ":" + elt.getKey()
                        + elt.getValue().encode());
         }
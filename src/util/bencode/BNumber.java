@@ -2,18 +2,29 @@ package util.bencode;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
+/* BNumber:  BObject for a Bencoded integer; 64 bits, since file */
+/* lengths can pass 2 GiB */
 public class BNumber implements BObject {
-    private int number;
+    private long number;
 
-    public BNumber(final int n) {
+    public BNumber(final long n) {
         this.number = n;
     }
 
+    /* getNumber:  the value as an int, for fields that always fit; */
+    /* -1 if it does not fit (never a wrapped value) */
     public int getNumber() {
+        if (number < Integer.MIN_VALUE || number > Integer.MAX_VALUE) {
+            return -1;
+        }
+        return (int) number;
+    }
+
+    public long getLong() {
         return number;
     }
 
-    public void setNumber(final int n) {
+    public void setNumber(final long n) {
         this.number = n;
     }
 
@@ -28,10 +39,10 @@ public class BNumber implements BObject {
             pos.getAndIncrement();
         }
 
-        int value = 0;
+        long value = 0;
         final int endPos = str.indexOf('e', pos.get());
         try {
-            value = Integer.parseInt(str.substring(pos.get(), endPos));
+            value = Long.parseLong(str.substring(pos.get(), endPos));
         } catch (NumberFormatException ex) {
             System.err.println("error: misformatted BNumber object");
             return null;
@@ -1,5 +1,6 @@
 package util.bencode;
 
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /* BString:  BObject for a Bencoded string */
@@ -14,6 +15,12 @@ public class BString implements BObject {
         return str;
     }
 
+    /* getBytes:  the raw bytes of the string (one char per byte, as */
+    /* produced by BDecoder.read(byte[])) */
+    public byte[] getBytes() {
+        return str.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
     public void setString(final String str) {
         this.str = str;
     }
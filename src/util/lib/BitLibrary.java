@@ -7,15 +7,19 @@ import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Collection;
-import java.util.Date;
 import java.util.Formatter;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
 
 public class BitLibrary {
+    /* TIME_FORMAT:  immutable and thread-safe, shared by all log timestamps */
+    public static final DateTimeFormatter TIME_FORMAT
+            = DateTimeFormatter.ofPattern("hh:mm:ss");
+
     /* getRandomSet:  returns an array of n (or hi - lo, whichever is smaller) */
     /* random integers from the range [lo, hi) */
     public static Set<Integer> getRandomSet(int n, int lo, int hi) {
@@ -84,6 +88,17 @@ public class BitLibrary {
         return true;
     }
 
+    /* countTrue:  returns the number of true values, e.g. pieces downloaded */
+    public static int countTrue(boolean[] array) {
+        int n = 0;
+        for (boolean val : array) {
+            if (val) {
+                ++n;
+            }
+        }
+        return n;
+    }
+
     /* hasStr:  returns true iff array of strings contains an instance of str */
     public static boolean hasStr(String[] array, String str) {
         for (String s : array) {
@@ -115,7 +130,7 @@ public class BitLibrary {
 
     /* getTimeString: return a reader-friendly timestamp to print to the log */
     public static String getTimeString() {
-        return new SimpleDateFormat("hh:mm:ss").format(new Date());
+        return TIME_FORMAT.format(LocalTime.now());
     }
 
     /* getSHA1:  returns the 20-byte SHA1 hash of the stringToHash */
@@ -135,6 +150,18 @@ public class BitLibrary {
         return md.digest();
     }
 
+    /* getSHA1:  returns the 20-byte SHA1 hash of len bytes of data at off */
+    public static byte[] getSHA1(final byte[] data, int off, int len) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(data, off, len);
+            return md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
     /* writeByteBuffer:  writes a byte buffer out to the output stream */
     public static void writeByteBuffer(ByteBuffer buf, OutputStream out) {
         WritableByteChannel channel = Channels.newChannel(out);
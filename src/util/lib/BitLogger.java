@@ -0,0 +1,269 @@
+package util.lib;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/* BitLogger:  asynchronous, level-filtered logger for the transfer loop */
+/* Callers hand the raw fields of an event (template and arguments) to a */
+/* bounded ring buffer; a background writer thread does all formatting and */
+/* printing.  When the ring is full the event is dropped and counted. */
+public class BitLogger {
+    private static final int RING_SIZE = 4096;        // must be a power of 2
+    private static final int MAX_ARGS = 4;            // args per log event
+    private static final long IDLE_PARK_NS = 1000000; // writer idle wait, 1ms
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    /* Level: ERROR is always logged, TRACE logs every single message */
+    public enum Level {
+        ERROR,
+        WARN,
+        INFO,
+        DEBUG,
+        TRACE
+    }
+
+    /* Event:  one preallocated slot of the ring buffer */
+    private static final class Event {
+        long time;
+        Level level;
+        String template;
+        final Object[] args = new Object[MAX_ARGS];
+        int numArgs;
+    }
+
+    private final Event[] ring = new Event[RING_SIZE];
+    private final AtomicLongArray sequence = new AtomicLongArray(RING_SIZE);
+    private final AtomicLong tail = new AtomicLong(0);  // next slot to claim
+    private long head = 0;                              // writer only
+    private final AtomicLong dropped = new AtomicLong(0);
+    private long droppedReported = 0;                   // writer only
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Thread writer;
+    private volatile Level level = Level.INFO;
+    private volatile int sampleRate = 1;                // log 1 in sampleRate
+    private int sampleCount = 0;                        // racy by design
+    private volatile boolean isStopped = false;
+
+    /* writer-side cache so the timestamp is formatted once per second */
+    private long cachedSecond = -1;
+    private String cachedStamp = null;
+    private final StringBuilder line = new StringBuilder(256);
+
+    public BitLogger(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+        for (int i = 0; i < RING_SIZE; ++i) {
+            ring[i] = new Event();
+            sequence.set(i, i);
+        }
+        writer = new Thread(this::drainLoop, "BitLogger");
+        writer.setDaemon(true);
+        writer.start();
+        // flush whatever is still queued when main() returns or is killed
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /* setSampleRate:  log only 1 in N per-message events (N >= 1) */
+    public void setSampleRate(int n) {
+        this.sampleRate = Math.max(1, n);
+    }
+
+    /* isEnabled:  check before building expensive arguments */
+    public boolean isEnabled(Level lvl) {
+        return lvl.ordinal() <= level.ordinal();
+    }
+
+    /* getDropped:  number of events lost because the ring was full */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /* log:  queue an event; '{}' in template is replaced by the next arg */
+    public void log(Level lvl, String template) {
+        publish(lvl, template, 0, null, null, null, null);
+    }
+
+    public void log(Level lvl, String template, Object a) {
+        publish(lvl, template, 1, a, null, null, null);
+    }
+
+    public void log(Level lvl, String template, Object a, Object b) {
+        publish(lvl, template, 2, a, b, null, null);
+    }
+
+    public void log(Level lvl, String template, Object a, Object b, Object c) {
+        publish(lvl, template, 3, a, b, c, null);
+    }
+
+    public void log(Level lvl, String template, Object a, Object b, Object c,
+                    Object d) {
+        publish(lvl, template, 4, a, b, c, d);
+    }
+
+    /* sampled:  log a per-message event at INFO, subject to the sample rate */
+    /* at TRACE level every event is logged regardless of sampling */
+    public void sampled(String template, Object a, Object b) {
+        Level cur = level;
+        if (cur == Level.TRACE) {
+            publish(Level.TRACE, template, 2, a, b, null, null);
+        } else if (isEnabled(Level.INFO) && ++sampleCount >= sampleRate) {
+            sampleCount = 0;
+            publish(Level.INFO, template, 2, a, b, null, null);
+        }
+    }
+
+    public void sampled(String template, Object a, Object b, Object c) {
+        Level cur = level;
+        if (cur == Level.TRACE) {
+            publish(Level.TRACE, template, 3, a, b, c, null);
+        } else if (isEnabled(Level.INFO) && ++sampleCount >= sampleRate) {
+            sampleCount = 0;
+            publish(Level.INFO, template, 3, a, b, c, null);
+        }
+    }
+
+    /* stop:  drain the ring and stop the writer thread */
+    public void stop() {
+        isStopped = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* publish:  claim a slot (multi-producer), fill it, and release it */
+    private void publish(Level lvl, String template, int numArgs,
+                         Object a, Object b, Object c, Object d) {
+        if (!isEnabled(lvl)) {
+            return;
+        }
+        long pos;
+        Event ev;
+        while (true) {
+            pos = tail.get();
+            int idx = (int) (pos & (RING_SIZE - 1));
+            long seq = sequence.get(idx);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    ev = ring[idx];
+                    break;
+                }
+            } else if (seq < pos) {
+                dropped.incrementAndGet();    // ring is full
+                return;
+            }
+            // else another producer claimed pos first, retry
+        }
+        ev.time = System.currentTimeMillis();
+        ev.level = lvl;
+        ev.template = template;
+        ev.numArgs = numArgs;
+        ev.args[0] = a;
+        ev.args[1] = b;
+        ev.args[2] = c;
+        ev.args[3] = d;
+        sequence.lazySet((int) (pos & (RING_SIZE - 1)), pos + 1);
+    }
+
+    /* drainLoop:  writer thread body, formats and prints queued events */
+    private void drainLoop() {
+        while (true) {
+            int n = drain();
+            if (n == 0) {
+                out.flush();
+                err.flush();
+                if (isStopped) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NS);
+            }
+        }
+    }
+
+    private int drain() {
+        int n = 0;
+        while (true) {
+            int idx = (int) (head & (RING_SIZE - 1));
+            if (sequence.get(idx) != head + 1) {
+                break;
+            }
+            Event ev = ring[idx];
+            write(ev);
+            for (int i = 0; i < MAX_ARGS; ++i) {
+                ev.args[i] = null;    // let arguments be collected
+            }
+            ev.template = null;
+            sequence.lazySet(idx, head + RING_SIZE);
+            ++head;
+            ++n;
+        }
+        long d = dropped.get();
+        if (d != droppedReported) {
+            err.println("warning: logger dropped " + (d - droppedReported)
+                        + " events (" + d + " total)");
+            droppedReported = d;
+        }
+        return n;
+    }
+
+    /* write:  format a single event; INFO and TRACE lines get a timestamp */
+    private void write(Event ev) {
+        line.setLength(0);
+        String t = ev.template;
+        boolean stamped = (ev.level == Level.INFO || ev.level == Level.TRACE)
+                          && !t.startsWith("\t");
+        if (stamped) {
+            line.append(getStamp(ev.time)).append(": ");
+        }
+        int arg = 0;
+        int start = 0;
+        int mark;
+        while ((mark = t.indexOf("{}", start)) != -1 && arg < ev.numArgs) {
+            line.append(t, start, mark);
+            appendArg(ev.args[arg++]);
+            start = mark + 2;
+        }
+        line.append(t, start, t.length());
+
+        if (ev.level == Level.INFO || ev.level == Level.TRACE) {
+            out.println(line);
+        } else {
+            err.println(line);
+        }
+    }
+
+    private void appendArg(Object arg) {
+        if (arg instanceof boolean[]) {
+            line.append(BitLibrary.getBitString((boolean[]) arg));
+        } else {
+            line.append(arg);
+        }
+    }
+
+    private String getStamp(long millis) {
+        long second = millis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedStamp = BitLibrary.TIME_FORMAT.format(
+                    LocalTime.ofInstant(Instant.ofEpochMilli(millis), ZONE));
+        }
+        return cachedStamp;
+    }
+}
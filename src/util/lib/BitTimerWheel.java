@@ -0,0 +1,176 @@
+package util.lib;
+
+/* BitTimerWheel:  hashed timer wheel driven by the transfer loop */
+/* Timeouts hash into one of numBuckets doubly-linked lists by their */
+/* expiry tick, so scheduling and cancelling are O(1) no matter how many */
+/* timers exist.  Not thread-safe: schedule, cancel and advance must all be */
+/* called from the thread that owns the wheel. */
+public class BitTimerWheel {
+    private final long tickMs;          // resolution of the wheel
+    private final Timeout[] buckets;    // list heads, one per slot
+    private final int mask;
+    private long currentTick;           // last tick that was processed
+    private final long startMs;
+    private int size = 0;
+
+    /* Timeout:  handle to a scheduled task, used to cancel it */
+    public static class Timeout {
+        private final Runnable task;
+        private long period;            // ms between runs, 0 for one-shot
+        private long rounds;            // full wheel turns left
+        private int bucket = -1;        // -1 when not scheduled
+        private boolean expired = false;// unlinked, waiting to run
+        private Timeout prev = null;
+        private Timeout next = null;
+        private Timeout nextExpired = null;
+
+        private Timeout(Runnable task, long period) {
+            this.task = task;
+            this.period = period;
+        }
+
+        public boolean isScheduled() {
+            return bucket != -1 || expired;
+        }
+    }
+
+    /* BitTimerWheel(long, int):  numBuckets is rounded up to a power of 2 */
+    public BitTimerWheel(long tickMs, int numBuckets) {
+        int n = 1;
+        while (n < numBuckets) {
+            n <<= 1;
+        }
+        this.tickMs = tickMs;
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+        this.startMs = System.currentTimeMillis();
+        this.currentTick = 0;
+    }
+
+    /* schedule:  run task once, delayMs from now */
+    public Timeout schedule(Runnable task, long delayMs) {
+        Timeout t = new Timeout(task, 0);
+        insert(t, delayMs);
+        return t;
+    }
+
+    /* scheduleRepeating:  run task every periodMs, starting periodMs from now */
+    public Timeout scheduleRepeating(Runnable task, long periodMs) {
+        Timeout t = new Timeout(task, Math.max(periodMs, tickMs));
+        insert(t, periodMs);
+        return t;
+    }
+
+    /* newTimeout:  create an unscheduled one-shot timeout for task, to be */
+    /* armed later with reschedule */
+    public Timeout newTimeout(Runnable task) {
+        return new Timeout(task, 0);
+    }
+
+    /* reschedule:  move an existing (possibly expired) one-shot timeout to */
+    /* fire delayMs from now; re-arms a timer without allocating a new one */
+    public void reschedule(Timeout t, long delayMs) {
+        cancel(t);
+        insert(t, delayMs);
+    }
+
+    /* cancel:  unschedule t; safe to call on an expired or cancelled timer */
+    public void cancel(Timeout t) {
+        if (t == null) {
+            return;
+        }
+        t.expired = false;    // e.g. cancelled by a task firing in same tick
+        if (t.bucket == -1) {
+            t.period = 0;
+            return;
+        }
+        unlink(t);
+        t.period = 0;    // a cancelled repeating timer must not come back
+    }
+
+    /* unlink:  O(1) removal from its bucket list */
+    private void unlink(Timeout t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            buckets[t.bucket] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+        t.bucket = -1;
+        --size;
+    }
+
+    /* advance:  run every task that expired up to nowMs, return how many */
+    public int advance(long nowMs) {
+        long targetTick = (nowMs - startMs) / tickMs;
+        int fired = 0;
+        while (currentTick < targetTick) {
+            ++currentTick;
+            int idx = (int) (currentTick & mask);
+            // (i) unlink everything due this tick before running any task,
+            // since a task may cancel or schedule other timers
+            Timeout due = null;
+            Timeout t = buckets[idx];
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.rounds > 0) {
+                    --t.rounds;
+                } else {
+                    unlink(t);
+                    t.expired = true;
+                    t.nextExpired = due;
+                    due = t;
+                }
+                t = next;
+            }
+            // (ii) run them, re-arming repeating timers first
+            while (due != null) {
+                t = due;
+                due = t.nextExpired;
+                t.nextExpired = null;
+                if (!t.expired) {
+                    continue;    // cancelled by an earlier task
+                }
+                t.expired = false;
+                if (t.period > 0) {
+                    insert(t, t.period);
+                }
+                t.task.run();
+                ++fired;
+            }
+        }
+        return fired;
+    }
+
+    /* msUntilNextTick:  how long the owner may sleep before calling advance */
+    public long msUntilNextTick(long nowMs) {
+        long nextTickMs = startMs + (currentTick + 1) * tickMs;
+        return Math.max(1, nextTickMs - nowMs);
+    }
+
+    /* size:  number of scheduled timeouts */
+    public int size() {
+        return size;
+    }
+
+    /* insert:  O(1) link into the bucket of the tick when t expires */
+    private void insert(Timeout t, long delayMs) {
+        long nowTick = (System.currentTimeMillis() - startMs) / tickMs;
+        long ticks = Math.max(1, (delayMs + tickMs - 1) / tickMs);
+        // expire relative to wall time, but never in a bucket already passed
+        long expiry = Math.max(nowTick + ticks, currentTick + 1);
+        t.rounds = (expiry - currentTick - 1) / buckets.length;
+        t.bucket = (int) (expiry & mask);
+        t.prev = null;
+        t.next = buckets[t.bucket];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        buckets[t.bucket] = t;
+        ++size;
+    }
+}